@@ -5,6 +5,8 @@ import org.apache.commons.codec.binary.Base64;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Description of location of data stored in Base64 encoding. This class allows
@@ -31,4 +33,36 @@ public class Base64DataStorage extends DataStorage {
 
         return Base64.decodeBase64(buffer);
     }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>The decoded data is shorter than the Base64 encoded data, and so the returned
+     * number of bytes will be less than length.
+     */
+    @Override
+    public int getData(long offset, int length, byte[] buffer) throws IOException {
+        byte[] decoded = getData(offset, length);
+        
+        System.arraycopy(decoded, 0, buffer, 0, decoded.length);
+        
+        return decoded.length;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>Base64 encoded data must be decoded individually, and within mzML the data
+     * is separated by the XML, so each DataLocation is read separately.
+     */
+    @Override
+    public List<byte[]> readMany(List<DataLocation> locations, int maximumGap) throws IOException {
+        List<byte[]> results = new ArrayList<byte[]>(locations.size());
+        
+        for(DataLocation location : locations) {
+            results.add(location.getBytes());
+        }
+        
+        return results;
+    }
 }
@@ -2,14 +2,42 @@ package com.alanmrace.jimzmlparser.data;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 
 /**
  * Default DataStorage where data is stored in binary.
  * 
  * @author Alan Race
+ * @see MappedDataStorage
+ * @see FileChannelDataStorage
  */
 public class BinaryDataStorage extends DataStorage {
 
+    /**
+     * Method used to access the binary data file.
+     */
+    public enum AccessMode {
+        /**
+         * Seek and read on a single RandomAccessFile, synchronized between threads.
+         */
+        RANDOM_ACCESS_FILE,
+        
+        /**
+         * Map the file into memory, so that concurrent reads do not contend on a lock.
+         * 
+         * @see MappedDataStorage
+         */
+        MEMORY_MAPPED,
+        
+        /**
+         * Read using positional reads on a FileChannel, so that concurrent reads 
+         * do not contend on a lock, without mapping the file into memory.
+         * 
+         * @see FileChannelDataStorage
+         */
+        POSITIONAL_READ
+    }
+    
     /**
      * Set up a file containing binary data. 
      * 
@@ -20,4 +48,34 @@ public class BinaryDataStorage extends DataStorage {
     public BinaryDataStorage(File dataFile, boolean openForWriting) throws FileNotFoundException {
         super(dataFile, openForWriting);
     }
+    
+    /**
+     * Open a file containing binary data for reading, using the specified method of 
+     * accessing the file.
+     * 
+     * @param dataFile File containing binary data
+     * @param accessMode Method to use when reading from the file
+     * @return BinaryDataStorage for the file
+     * @throws IOException Error occurred opening the file
+     */
+    public static BinaryDataStorage open(File dataFile, AccessMode accessMode) throws IOException {
+        switch(accessMode) {
+            case MEMORY_MAPPED:
+                return new MappedDataStorage(dataFile);
+            case POSITIONAL_READ:
+                return new FileChannelDataStorage(dataFile);
+            case RANDOM_ACCESS_FILE:
+            default:
+                return new BinaryDataStorage(dataFile, false);
+        }
+    }
+    
+    /**
+     * Get the method used to access the file.
+     * 
+     * @return AccessMode of this data storage
+     */
+    public AccessMode getAccessMode() {
+        return AccessMode.RANDOM_ACCESS_FILE;
+    }
 }
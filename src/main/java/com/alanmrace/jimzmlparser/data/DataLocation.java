@@ -2,6 +2,14 @@ package com.alanmrace.jimzmlparser.data;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
@@ -32,6 +40,12 @@ public class DataLocation implements Serializable {
      */
     public static final long EXTENDED_OFFSET = 4294967296L; // 2^32
     
+    /**
+     * Per-thread scratch space used to hold the raw bytes when decoding into a 
+     * caller supplied buffer, so that repeated reads do not allocate.
+     */
+    private static final ThreadLocal<byte[]> SCRATCH_SPACE = new ThreadLocal<byte[]>();
+    
     /**
      * The location and storage type of the data.
      * @see DataStorage
@@ -79,6 +93,16 @@ public class DataLocation implements Serializable {
         return dataStorage;
     }
     
+    /**
+     * Set the data storage, for example when the same file is reopened with a 
+     * different method of access.
+     * 
+     * @param dataStorage DataStorage containing the data
+     */
+    public void setDataStorage(DataStorage dataStorage) {
+        this.dataStorage = dataStorage;
+    }
+    
     /**
      * Get the offset in bytes of the data with respect to the dataStorage.
      * 
@@ -109,13 +133,42 @@ public class DataLocation implements Serializable {
 
             return new byte[0];
         }
+        
+        correctOffset();
+        
+        return dataStorage.getData(offset, length);
+    }
+    
+    /**
+     * Read the data from the data storage into the supplied byte array. The byte array
+     * must be at least {@link DataLocation#getLength()} bytes long.
+     * 
+     * @param buffer Buffer to read the data into
+     * @return Number of bytes placed into the buffer
+     * @throws IOException can be thrown by dataStorage if the data storage is on disk
+     */
+    public int getBytes(byte[] buffer) throws IOException {
+        if(length <= 0) {
+            LOGGER.log(Level.FINER, "Data is of size {0} for {1}", new Object[] {length, dataStorage});
+
+            return 0;
+        }
+        
+        correctOffset();
+        
+        return dataStorage.getData(offset, length, buffer);
+    }
+    
+    /**
+     * Correct the offset if a 32-bit signed integer overflow has occurred when 
+     * the offset was recorded.
+     */
+    private void correctOffset() {
         if(offset < 0) {
             LOGGER.log(Level.SEVERE, "Offset is {0} for {1}. Attempting to fix integer overflow.", new Object[] {offset, dataStorage});
 
             offset += EXTENDED_OFFSET; // By default is 2^32
         }
-        
-        return dataStorage.getData(offset, length);
     }
 
     /**
@@ -134,14 +187,280 @@ public class DataLocation implements Serializable {
      */
     
     public double[] getData() throws DataFormatException, IOException {
-        byte[] data = getBytes();
+        SpectrumDataCache cache = dataStorage.getSpectrumDataCache();
+        
+        if(cache != null) {
+            double[] cachedData = cache.get(this);
+            
+            if(cachedData != null)
+                return cachedData;
+        }
+        
+        double[] data = decode(getBytes());
         
+        if(cache != null)
+            cache.put(this, data);
+        
+        return data;
+    }
+    
+    /**
+     * Apply the reverse of the {@link DataLocation#dataTransformation} to the raw data.
+     * 
+     * @param data Raw data
+     * @return Converted and decompressed data
+     * @throws DataFormatException Issue with converting the data
+     */
+    private double[] decode(byte[] data) throws DataFormatException {
         if(dataTransformation == null)
             return DataTypeTransform.convertDataToDouble(data, DataTypeTransform.DataType.DOUBLE);
         
         return dataTransformation.performReverseTransform(data);
     }
     
+    /**
+     * Gets the data in the same way as {@link DataLocation#getData()}, but decodes 
+     * it into the supplied array rather than allocating a new one. The raw bytes 
+     * are read into per-thread scratch space, so repeated calls with the same 
+     * destination array allocate (almost) nothing.
+     * 
+     * @param dest Array to place the decoded data in, starting at index 0
+     * @return Number of values placed into dest
+     * @throws DataFormatException Issue with converting the data
+     * @throws IOException Issue reading the raw data
+     * @throws java.nio.BufferOverflowException If dest is too small to hold the data
+     */
+    public int getData(double[] dest) throws DataFormatException, IOException {
+        return getData(DoubleBuffer.wrap(dest));
+    }
+    
+    /**
+     * Gets the data in the same way as {@link DataLocation#getData()}, but decodes 
+     * it into the supplied buffer, starting at its current position. The position
+     * of the buffer is advanced by the number of values decoded.
+     * 
+     * <p>If a {@link SpectrumDataCache} is attached to the DataStorage then cached 
+     * data is used when present, but newly decoded data is not added to the cache 
+     * as that would require allocating a copy.
+     * 
+     * @param dest Buffer to place the decoded data in
+     * @return Number of values placed into dest
+     * @throws DataFormatException Issue with converting the data
+     * @throws IOException Issue reading the raw data
+     * @throws java.nio.BufferOverflowException If dest does not have enough space remaining to hold the data
+     */
+    public int getData(DoubleBuffer dest) throws DataFormatException, IOException {
+        SpectrumDataCache cache = dataStorage.getSpectrumDataCache();
+        
+        if(cache != null) {
+            double[] cachedData = cache.get(this);
+            
+            if(cachedData != null) {
+                dest.put(cachedData);
+                
+                return cachedData.length;
+            }
+        }
+        
+        byte[] scratch = getScratchSpace(length);
+        int numBytes = getBytes(scratch);
+        
+        if(dataTransformation == null)
+            return DataTypeTransform.convertDataToDouble(scratch, 0, numBytes, DataTypeTransform.DataType.DOUBLE, dest);
+        
+        return dataTransformation.performReverseTransform(scratch, numBytes, dest);
+    }
+    
+    /**
+     * Gets the data in the same way as {@link DataLocation#getData()}, but returns 
+     * it as a primitive array of the requested data type (double[], float[], long[], 
+     * int[], short[] or byte[] respectively). When the requested data type is the 
+     * data type that the values are stored as, the data is decoded directly into
+     * the returned array without creating a double[], so for example 32-bit float 
+     * data requires half of the memory of {@link DataLocation#getData()}.
+     * 
+     * <p>If a {@link SpectrumDataCache} is attached to the DataStorage then cached 
+     * data is used when present, but newly decoded data is not added to the cache.
+     * 
+     * @param dataType Data type of the array to return
+     * @return Converted and decompressed data as a primitive array of dataType
+     * @throws DataFormatException Issue with converting the data
+     * @throws IOException Issue reading the raw data
+     * @see DataTransformation#getStoredDataType() 
+     */
+    public Object getData(DataTypeTransform.DataType dataType) throws DataFormatException, IOException {
+        SpectrumDataCache cache = dataStorage.getSpectrumDataCache();
+        
+        if(cache != null) {
+            double[] cachedData = cache.get(this);
+            
+            if(cachedData != null)
+                return dataType == DataTypeTransform.DataType.DOUBLE ? cachedData : DataTypeTransform.convertDoublesToArray(cachedData, dataType);
+        }
+        
+        byte[] scratch = getScratchSpace(length);
+        int numBytes = getBytes(scratch);
+        
+        if(dataTransformation == null)
+            return DataTypeTransform.convertDataToArray(scratch, 0, numBytes, DataTypeTransform.DataType.DOUBLE, dataType);
+        
+        return dataTransformation.performReverseTransform(scratch, numBytes, dataType);
+    }
+    
+    /**
+     * Get a read-only view of the data. If the data is not compressed, the view is a
+     * typed buffer over the raw little-endian data as it is stored (a DoubleBuffer, 
+     * FloatBuffer, LongBuffer, IntBuffer, ShortBuffer or ByteBuffer depending on the
+     * stored data type) and when the DataStorage is a {@link MappedDataStorage} no 
+     * data is copied at all. Compressed data is decoded as in {@link DataLocation#getData()}
+     * and a DoubleBuffer over the decoded data is returned.
+     * 
+     * @return Read-only buffer of the data
+     * @throws DataFormatException Issue with converting the data
+     * @throws IOException Issue reading the raw data
+     * @see DataTransformation#getStoredDataType() 
+     */
+    public Buffer getDataView() throws DataFormatException, IOException {
+        if(dataTransformation != null && dataTransformation.isCompressed())
+            return DoubleBuffer.wrap(getData()).asReadOnlyBuffer();
+        
+        DataTypeTransform.DataType dataType = DataTypeTransform.DataType.DOUBLE;
+        
+        if(dataTransformation != null)
+            dataType = dataTransformation.getStoredDataType();
+        
+        ByteBuffer bytes;
+        
+        if(length <= 0) {
+            bytes = ByteBuffer.allocate(0);
+        } else {
+            correctOffset();
+            
+            bytes = dataStorage.getDataBuffer(offset, length);
+        }
+        
+        switch(dataType) {
+            case DOUBLE:
+                return bytes.asDoubleBuffer();
+            case FLOAT:
+                return bytes.asFloatBuffer();
+            case INTEGER_64BIT:
+                return bytes.asLongBuffer();
+            case INTEGER_32BIT:
+                return bytes.asIntBuffer();
+            case INTEGER_16BIT:
+                return bytes.asShortBuffer();
+            case INTEGER_8BIT:
+            default:
+                return bytes;
+        }
+    }
+    
+    /**
+     * Get the scratch space for the current thread, enlarging it if it is smaller
+     * than the requested size.
+     * 
+     * @param size Minimum size of the scratch space in bytes
+     * @return Scratch space for the current thread
+     */
+    private static byte[] getScratchSpace(int size) {
+        byte[] scratch = SCRATCH_SPACE.get();
+        
+        if(scratch == null || scratch.length < size) {
+            scratch = new byte[Math.max(size, 0)];
+            SCRATCH_SPACE.set(scratch);
+        }
+        
+        return scratch;
+    }
+    
+    /**
+     * Gets the data asynchronously. The raw data is read on the I/O executor of the
+     * DataStorage (see {@link DataStorage#readAsync(long, int)}) and then converted 
+     * and decompressed as in {@link DataLocation#getData()} on the common 
+     * ForkJoinPool, so that reading and decoding of different data can overlap.
+     * 
+     * @return CompletableFuture which completes with the converted and decompressed
+     * data, or exceptionally with a CompletionException wrapping any IOException 
+     * or DataFormatException
+     */
+    public CompletableFuture<double[]> getDataAsync() {
+        final SpectrumDataCache cache = dataStorage.getSpectrumDataCache();
+        
+        if(cache != null) {
+            double[] cachedData = cache.get(this);
+            
+            if(cachedData != null)
+                return CompletableFuture.completedFuture(cachedData);
+        }
+        
+        CompletableFuture<byte[]> rawData;
+        
+        if(length <= 0) {
+            rawData = CompletableFuture.completedFuture(new byte[0]);
+        } else {
+            correctOffset();
+            
+            rawData = dataStorage.readAsync(offset, length);
+        }
+        
+        return rawData.thenApplyAsync(new Function<byte[], double[]>() {
+            @Override
+            public double[] apply(byte[] data) {
+                try {
+                    double[] decodedData = decode(data);
+                    
+                    if(cache != null)
+                        cache.put(DataLocation.this, decodedData);
+                    
+                    return decodedData;
+                } catch (DataFormatException ex) {
+                    throw new CompletionException(ex);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Gets the data for many DataLocations at once. The raw data is read using 
+     * {@link DataStorage#readMany(java.util.List)} on the DataStorage of the first 
+     * DataLocation, so that nearby requests are merged into larger sequential reads,
+     * and then each is converted to a double[] as in {@link DataLocation#getData()}.
+     * 
+     * @param locations DataLocations to read
+     * @return Converted and decompressed data for each DataLocation, in the same order as locations
+     * @throws DataFormatException Issue with converting the data
+     * @throws IOException Issue reading the raw data
+     */
+    public static List<double[]> getData(List<DataLocation> locations) throws DataFormatException, IOException {
+        List<double[]> results = new ArrayList<double[]>(locations.size());
+        
+        if(locations.isEmpty())
+            return results;
+        
+        List<byte[]> rawData = locations.get(0).getDataStorage().readMany(locations);
+        
+        for(int i = 0; i < locations.size(); i++) {
+            DataTransformation transformation = locations.get(i).getDataTransformation();
+            
+            if(transformation == null)
+                results.add(DataTypeTransform.convertDataToDouble(rawData.get(i), DataTypeTransform.DataType.DOUBLE));
+            else
+                results.add(transformation.performReverseTransform(rawData.get(i)));
+        }
+        
+        return results;
+    }
+    
+    /**
+     * Get the data transformation applied to generate the data in the DataLocation.
+     * 
+     * @return DataTransformation, or null if none has been set
+     */
+    public DataTransformation getDataTransformation() {
+        return dataTransformation;
+    }
+    
     /**
      * Set the data transformation which describes how the data was originally 
      * converted from a byte[] representation of double[] to how it was stored in
@@ -4,6 +4,21 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,6 +29,7 @@ import java.util.logging.Logger;
  * @author Alan Race
  * @see Base64DataStorage
  * @see BinaryDataStorage
+ * @see MappedDataStorage
  * @see MzMLSpectrumDataStorage
  */
 public abstract class DataStorage {
@@ -21,6 +37,65 @@ public abstract class DataStorage {
     /** Class logger. */
     private static final Logger LOGGER = Logger.getLogger(DataStorage.class.getName());
     
+    /** 
+     * Default maximum number of unrequested bytes between two requests in 
+     * {@link #readMany(java.util.List)} for them to be merged into a single read (32 KB).
+     */
+    public static final int DEFAULT_MAXIMUM_GAP = 32 * 1024;
+    
+    /**
+     * Maximum size in bytes of a single merged read performed by 
+     * {@link #readMany(java.util.List, int)} (16 MB). Requests are not merged
+     * beyond this size to limit the memory used.
+     */
+    public static final int MAXIMUM_MERGED_READ = 16 * 1024 * 1024;
+    
+    /**
+     * Number of threads used by the default I/O executor.
+     */
+    public static final int DEFAULT_IO_THREADS = 4;
+    
+    /**
+     * Shared executor used for asynchronous reads when no executor has been set 
+     * on the DataStorage. Created on first use.
+     */
+    private static Executor defaultIOExecutor;
+    
+    /** Executor used for asynchronous reads, or null to use the default. */
+    private Executor ioExecutor;
+    
+    /** Cache of decoded data read from this DataStorage, or null if not caching. */
+    private SpectrumDataCache spectrumDataCache;
+    
+    /**
+     * Default size of the read-ahead buffer in bytes (16 MB).
+     */
+    public static final int DEFAULT_READ_AHEAD_SIZE = 16 * 1024 * 1024;
+    
+    /**
+     * Maximum number of bytes which can be skipped between one read and the next for
+     * the reads to still be considered sequential (64 KB).
+     */
+    private static final int SEQUENTIAL_READ_GAP = 64 * 1024;
+    
+    /** Size of the read-ahead buffer in bytes, or 0 if read-ahead is disabled. */
+    private volatile int readAheadSize;
+    
+    /** Buffer holding data read ahead of the last request. */
+    private byte[] readAheadBuffer;
+    
+    /** Offset within the file of the start of the read-ahead buffer. */
+    private long readAheadOffset;
+    
+    /** Number of valid bytes in the read-ahead buffer. */
+    private int readAheadLength;
+    
+    /** Offset within the file of the end of the previous request, or -1 if none. */
+    private long previousReadEnd = -1;
+    
+    /** Lock protecting the read-ahead state. */
+    private final Object readAheadLock = new Object();
+    
     /** File containing the data. */
     private File dataFile;
     
@@ -92,12 +167,357 @@ public abstract class DataStorage {
 
         byte[] buffer = new byte[length];
 
+        readDataWithReadAhead(offset, buffer, 0, length);
+	
+	    return buffer;
+    }
+    
+    /**
+     * Get a read-only, little-endian ByteBuffer containing the data at the specified 
+     * offset with the specified length. Subclasses which have the file in memory (such 
+     * as {@link MappedDataStorage}) return a view of the data without copying it, 
+     * otherwise the data is read into a new buffer.
+     * 
+     * @param offset Offset in bytes within the dataStorage
+     * @param length Length of the data in bytes
+     * @return Read-only ByteBuffer positioned at the start of the data
+     * @throws IOException Exception thrown when trying to read data
+     */
+    public ByteBuffer getDataBuffer(long offset, int length) throws IOException {
+        return ByteBuffer.wrap(getData(offset, length)).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    /**
+     * Get the data from the dataStorage at the specified offset with the specified length,
+     * placing it into the supplied buffer rather than allocating a new byte[]. The
+     * buffer must be at least length bytes long.
+     * 
+     * <p>If the randomAccessFile has not been opened successfully (in the constructor) then
+     * no data is read and 0 is returned.
+     * 
+     * @param offset Offset in bytes within the dataStorage
+     * @param length Length of the data in bytes
+     * @param buffer Buffer to place the data in, starting at index 0
+     * @return Number of bytes of data placed in the buffer
+     * @throws IOException Exception thrown when trying to read data
+     */
+    public int getData(long offset, int length, byte[] buffer) throws IOException {
+        if(!fileStreamOpen) {
+            LOGGER.log(Level.SEVERE, "Trying to access data from a closed stream ({0})", randomAccessFile);
+
+            return 0;
+        }
+        
+        readDataWithReadAhead(offset, buffer, 0, length);
+        
+        return length;
+    }
+    
+    /**
+     * Get the data from the dataStorage at the specified offset with the specified length
+     * asynchronously, using the I/O executor of this DataStorage. 
+     * 
+     * @param offset Offset in bytes within the dataStorage
+     * @param length Length of the data in bytes
+     * @return CompletableFuture which completes with the data, or exceptionally with 
+     * a CompletionException wrapping any IOException
+     * @see #getData(long, int)
+     * @see #setIOExecutor(java.util.concurrent.Executor) 
+     */
+    public CompletableFuture<byte[]> readAsync(final long offset, final int length) {
+        return CompletableFuture.supplyAsync(new Supplier<byte[]>() {
+            @Override
+            public byte[] get() {
+                try {
+                    return getData(offset, length);
+                } catch (IOException ex) {
+                    throw new CompletionException(ex);
+                }
+            }
+        }, getIOExecutor());
+    }
+    
+    /**
+     * Set the cache used to hold data decoded from this DataStorage.
+     * 
+     * @param spectrumDataCache Cache to use, or null to disable caching
+     * @see DataLocation#getData() 
+     */
+    public void setSpectrumDataCache(SpectrumDataCache spectrumDataCache) {
+        this.spectrumDataCache = spectrumDataCache;
+    }
+    
+    /**
+     * Get the cache used to hold data decoded from this DataStorage.
+     * 
+     * @return Cache, or null if not caching
+     */
+    public SpectrumDataCache getSpectrumDataCache() {
+        return spectrumDataCache;
+    }
+    
+    /**
+     * Set the executor used to perform asynchronous reads from this DataStorage.
+     * 
+     * @param ioExecutor Executor to use, or null to use the default I/O executor
+     * @see #setDefaultIOExecutor(java.util.concurrent.Executor) 
+     */
+    public void setIOExecutor(Executor ioExecutor) {
+        this.ioExecutor = ioExecutor;
+    }
+    
+    /**
+     * Get the executor used to perform asynchronous reads from this DataStorage.
+     * 
+     * @return Executor for asynchronous reads
+     */
+    public Executor getIOExecutor() {
+        if(ioExecutor != null)
+            return ioExecutor;
+        
+        return getDefaultIOExecutor();
+    }
+    
+    /**
+     * Set the executor used to perform asynchronous reads for all DataStorage 
+     * which have not had an executor set with {@link #setIOExecutor(java.util.concurrent.Executor)}.
+     * 
+     * @param executor Executor to use, or null to revert to the built in executor
+     */
+    public static synchronized void setDefaultIOExecutor(Executor executor) {
+        defaultIOExecutor = executor;
+    }
+    
+    /**
+     * Get the executor used to perform asynchronous reads for all DataStorage 
+     * which have not had an executor set. Unless otherwise specified this is a 
+     * fixed pool of {@link #DEFAULT_IO_THREADS} daemon threads.
+     * 
+     * @return Default executor for asynchronous reads
+     */
+    public static synchronized Executor getDefaultIOExecutor() {
+        if(defaultIOExecutor == null) {
+            defaultIOExecutor = Executors.newFixedThreadPool(DEFAULT_IO_THREADS, new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+                
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "jimzMLParser-io-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    
+                    return thread;
+                }
+            });
+        }
+        
+        return defaultIOExecutor;
+    }
+    
+    /**
+     * Read the data for many DataLocations at once, using {@link #DEFAULT_MAXIMUM_GAP}.
+     * 
+     * @param locations DataLocations to read
+     * @return byte[] containing the data for each DataLocation, in the same order as locations
+     * @throws IOException Exception thrown when trying to read data
+     * @see #readMany(java.util.List, int) 
+     */
+    public List<byte[]> readMany(List<DataLocation> locations) throws IOException {
+        return readMany(locations, DEFAULT_MAXIMUM_GAP);
+    }
+    
+    /**
+     * Read the data for many DataLocations at once. The requests are sorted by offset
+     * and requests which are adjacent or separated by no more than maximumGap bytes 
+     * are merged into a single sequential read, the result of which is then divided
+     * back up into the individual requests. This replaces many seeks and small reads
+     * with a few large reads, which is considerably faster on spinning disks and 
+     * network filesystems.
+     * 
+     * <p>DataLocations which do not refer to this DataStorage are read individually 
+     * using {@link DataLocation#getBytes()}.
+     * 
+     * @param locations DataLocations to read
+     * @param maximumGap Maximum number of bytes between two requests for them to be merged
+     * @return byte[] containing the data for each DataLocation, in the same order as locations
+     * @throws IOException Exception thrown when trying to read data
+     */
+    public List<byte[]> readMany(List<DataLocation> locations, int maximumGap) throws IOException {
+        byte[][] results = new byte[locations.size()][];
+        List<Integer> order = new ArrayList<Integer>(locations.size());
+        
+        for(int i = 0; i < locations.size(); i++) {
+            DataLocation location = locations.get(i);
+            
+            if(location.getDataStorage() != this || location.getLength() <= 0 || location.getOffset() < 0)
+                results[i] = location.getBytes();
+            else
+                order.add(i);
+        }
+        
+        final List<DataLocation> toSort = locations;
+        
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return Long.compare(toSort.get(first).getOffset(), toSort.get(second).getOffset());
+            }
+        });
+        
+        int start = 0;
+        
+        while(start < order.size()) {
+            DataLocation first = locations.get(order.get(start));
+            long readStart = first.getOffset();
+            long readEnd = readStart + first.getLength();
+            int end = start + 1;
+            
+            // Extend the read for as long as the next request is close enough
+            while(end < order.size()) {
+                DataLocation next = locations.get(order.get(end));
+                long nextEnd = Math.max(readEnd, next.getOffset() + next.getLength());
+                
+                if(next.getOffset() - readEnd > maximumGap || nextEnd - readStart > MAXIMUM_MERGED_READ)
+                    break;
+                
+                readEnd = nextEnd;
+                end++;
+            }
+            
+            byte[] buffer = getData(readStart, (int) (readEnd - readStart));
+            
+            for(int i = start; i < end; i++) {
+                DataLocation location = locations.get(order.get(i));
+                int from = (int) (location.getOffset() - readStart);
+                
+                if(buffer.length == 0)
+                    results[order.get(i)] = buffer;
+                else
+                    results[order.get(i)] = Arrays.copyOfRange(buffer, from, from + location.getLength());
+            }
+            
+            start = end;
+        }
+        
+        return Arrays.asList(results);
+    }
+    
+    /**
+     * Enable or disable read-ahead. When enabled, and a request immediately follows
+     * (or nearly follows) the previous request in the file, a block of readAheadSize 
+     * bytes is read starting at the request and subsequent requests which fall within
+     * the block are served from memory. This turns a scan through the data in file 
+     * order, such as iterating over all spectra to calculate the TIC image, into a 
+     * small number of large sequential reads.
+     * 
+     * <p>Read-ahead is of little benefit for random access or for {@link MappedDataStorage},
+     * and requests are serialised while it is enabled, so it is disabled by default.
+     * 
+     * @param readAheadSize Size of the read-ahead buffer in bytes (for example {@link #DEFAULT_READ_AHEAD_SIZE}), or 0 to disable
+     */
+    public void setReadAheadSize(int readAheadSize) {
+        synchronized(readAheadLock) {
+            this.readAheadSize = Math.max(readAheadSize, 0);
+            
+            readAheadBuffer = null;
+            readAheadLength = 0;
+            previousReadEnd = -1;
+        }
+    }
+    
+    /**
+     * Get the size of the read-ahead buffer.
+     * 
+     * @return Size of the read-ahead buffer in bytes, or 0 if read-ahead is disabled
+     */
+    public int getReadAheadSize() {
+        return readAheadSize;
+    }
+    
+    /**
+     * Read the data, serving it from the read-ahead buffer where possible.
+     * 
+     * @param offset Offset in bytes within the file
+     * @param buffer Buffer to read the data into
+     * @param bufferOffset Position within the buffer to start writing
+     * @param length Number of bytes to read
+     * @throws IOException Exception thrown when trying to read data
+     * @see #setReadAheadSize(int) 
+     */
+    private void readDataWithReadAhead(long offset, byte[] buffer, int bufferOffset, int length) throws IOException {
+        if(readAheadSize <= 0 || length >= readAheadSize) {
+            readData(offset, buffer, bufferOffset, length);
+            
+            return;
+        }
+        
+        synchronized(readAheadLock) {
+            boolean sequential = previousReadEnd >= 0 && offset >= previousReadEnd && offset - previousReadEnd <= SEQUENTIAL_READ_GAP;
+            previousReadEnd = offset + length;
+            
+            if(readAheadBuffer != null && offset >= readAheadOffset && offset + length <= readAheadOffset + readAheadLength) {
+                System.arraycopy(readAheadBuffer, (int) (offset - readAheadOffset), buffer, bufferOffset, length);
+                
+                return;
+            }
+            
+            long fillLength = Math.min(readAheadSize, getFileChannel().size() - offset);
+            
+            if(!sequential || fillLength < length) {
+                readData(offset, buffer, bufferOffset, length);
+                
+                return;
+            }
+            
+            if(readAheadBuffer == null || readAheadBuffer.length != readAheadSize)
+                readAheadBuffer = new byte[readAheadSize];
+            
+            readData(offset, readAheadBuffer, 0, (int) fillLength);
+            readAheadOffset = offset;
+            readAheadLength = (int) fillLength;
+            
+            System.arraycopy(readAheadBuffer, 0, buffer, bufferOffset, length);
+        }
+    }
+    
+    /**
+     * Read length bytes from the file, starting at offset, into the supplied buffer. 
+     * This is the single point through which all raw data is read from the file, and so 
+     * subclasses can override it to change how the file is accessed without affecting 
+     * any decoding performed in {@link #getData(long, int)}.
+     * 
+     * <p>The default implementation seeks and reads on the RandomAccessFile, synchronized
+     * on the file to allow multithreaded access.
+     * 
+     * @param offset Offset in bytes within the file
+     * @param buffer Buffer to read the data into
+     * @param bufferOffset Position within the buffer to start writing
+     * @param length Number of bytes to read
+     * @throws IOException Exception thrown when trying to read data
+     */
+    protected void readData(long offset, byte[] buffer, int bufferOffset, int length) throws IOException {
         synchronized(randomAccessFile) {
             randomAccessFile.seek(offset);
-            randomAccessFile.read(buffer);
+            randomAccessFile.read(buffer, bufferOffset, length);
         }
-	
-	    return buffer;
+    }
+    
+    /**
+     * Get the FileChannel associated with the open file, for subclasses which access
+     * the file other than through seek and read.
+     * 
+     * @return FileChannel of the open file
+     */
+    protected FileChannel getFileChannel() {
+        return randomAccessFile.getChannel();
+    }
+    
+    /**
+     * Check whether the file is currently open.
+     * 
+     * @return true if the file is open, false if it has been closed
+     */
+    public boolean isOpen() {
+        return fileStreamOpen;
     }
     
     /**
@@ -106,6 +526,10 @@ public abstract class DataStorage {
      * @throws IOException Exception thrown when trying to close randomAccessFile
      */
     public void close() throws IOException {
+        synchronized(readAheadLock) {
+            readAheadBuffer = null;
+        }
+        
         if(fileStreamOpen) {
             randomAccessFile.close();
 	    
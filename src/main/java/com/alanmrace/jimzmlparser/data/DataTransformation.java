@@ -1,7 +1,11 @@
 package com.alanmrace.jimzmlparser.data;
 
 import java.io.Serializable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.ListIterator;
@@ -26,6 +30,22 @@ public class DataTransformation implements Serializable {
     private List<DataTransform> transformation;
     
     private int[] dataSizeAtEachStage;
+    
+    /**
+     * Maximum size in bytes of a pipeline buffer kept for reuse between arrays.
+     */
+    private static final int MAXIMUM_RETAINED_PIPELINE_BUFFER = 16 * 1024 * 1024;
+    
+    /**
+     * Pair of buffers used by the fused reverse pipeline on each thread, with 
+     * successive steps alternating between them.
+     */
+    private static final ThreadLocal<TransformBuffer[]> PIPELINE_BUFFERS = new ThreadLocal<TransformBuffer[]>() {
+        @Override
+        protected TransformBuffer[] initialValue() {
+            return new TransformBuffer[] {new TransformBuffer(), new TransformBuffer()};
+        }
+    };
         
     /**
      * Add a DataTransform to the DataTransformation. This will be added to the 
@@ -47,13 +67,21 @@ public class DataTransformation implements Serializable {
     /**
      * Perform all steps of the DataTransformation sequentially to the supplied 
      * data, after first converting the double[] to a byte[] using 
-     * {@link DataTypeTransform#convertDoublesToBytes(double[])}. 
+     * {@link DataTypeTransform#convertDoublesToBytes(double[])}. If the first step
+     * is a {@link DoubleDataTransform} (such as MS-Numpress) then it is performed
+     * on the double[] directly instead.
      *  
      * @param data Data to perform the DataTransformation on
      * @return Transformed data
      * @throws DataFormatException Issue with the transformation
      */
     public byte[] performForwardTransform(double[] data) throws DataFormatException {
+        if(transformation != null && !transformation.isEmpty() && transformation.get(0) instanceof DoubleDataTransform) {
+            byte[] encodedData = ((DoubleDataTransform) transformation.get(0)).forwardTransform(data);
+            
+            return performForwardTransform(encodedData, data.length * 8, 1);
+        }
+        
         byte[] byteData = DataTypeTransform.convertDoublesToBytes(data);
         
         return performForwardTransform(byteData);
@@ -71,15 +99,32 @@ public class DataTransformation implements Serializable {
         if(transformation == null)
             return data;
         
+        return performForwardTransform(data, data.length, 0);
+    }
+    
+    /**
+     * Perform the steps of the DataTransformation sequentially, starting from the 
+     * specified step, to the supplied data and record the size of the data at each
+     * stage.
+     * 
+     * @param data Data output by the step prior to firstTransform
+     * @param originalLength Size in bytes of the data prior to any steps
+     * @param firstTransform Index of the first step to perform
+     * @return Transformed data
+     * @throws DataFormatException Issue with the transformation
+     */
+    private byte[] performForwardTransform(byte[] data, int originalLength, int firstTransform) throws DataFormatException {
         byte[] transformedData = data;
         
         dataSizeAtEachStage = new int[transformation.size() + 1];
-        int i = 0;
-        dataSizeAtEachStage[i++] = transformedData.length;
+        dataSizeAtEachStage[0] = originalLength;
         
-        for(DataTransform transform : transformation) {
-            transformedData = transform.forwardTransform(transformedData);
-            dataSizeAtEachStage[i++] = transformedData.length;
+        if(firstTransform > 0)
+            dataSizeAtEachStage[firstTransform] = transformedData.length;
+        
+        for(int i = firstTransform; i < transformation.size(); i++) {
+            transformedData = transformation.get(i).forwardTransform(transformedData);
+            dataSizeAtEachStage[i + 1] = transformedData.length;
         }
         
         return transformedData;
@@ -95,6 +140,19 @@ public class DataTransformation implements Serializable {
      * @throws DataFormatException Issue with the transformation
      */
     public double[] performReverseTransform(byte[] data) throws DataFormatException {
+        if(isFusable()) {
+            TransformBuffer output = performFusedReverseTransform(data, data.length, null, 0);
+            
+            try {
+                if(output.getForm() == FusedDataTransform.DataForm.DOUBLES)
+                    return Arrays.copyOf(output.getDoubleArray(), output.getLength());
+                
+                return (double[]) DataTypeTransform.convertDataToArray(output.getByteArray(), 0, output.getLength(), getStoredDataType(), DataTypeTransform.DataType.DOUBLE);
+            } finally {
+                releasePipelineBuffers();
+            }
+        }
+        
         byte[] transformedData = data;
         
         if(transformation != null) {
@@ -109,6 +167,251 @@ public class DataTransformation implements Serializable {
         return DataTypeTransform.convertDataToDouble(transformedData, DataTypeTransform.DataType.DOUBLE);
     }
     
+    /**
+     * Perform all steps of the DataTransformation in reverse to the first length 
+     * bytes of the supplied data, placing the resulting values into dest starting
+     * at its current position.
+     * 
+     * <p>Where the first step of the DataTransformation is a conversion from double 
+     * to another data type, the data is converted directly from the stored data type 
+     * into dest rather than through an intermediate byte[]. If there are no further 
+     * steps (i.e. the data is not compressed) then no arrays are allocated.
+     * 
+     * @param data Data to perform the reverse of the DataTransformation on
+     * @param length Number of bytes of data within data
+     * @param dest Buffer to place the transformed data in
+     * @return Number of values placed into dest
+     * @throws DataFormatException Issue with the transformation
+     * @throws java.nio.BufferOverflowException If dest does not have enough space remaining
+     */
+    public int performReverseTransform(byte[] data, int length, DoubleBuffer dest) throws DataFormatException {
+        if(isFusable()) {
+            // Allow the final stage to decode straight into the destination array
+            double[] target = null;
+            
+            if(dest.hasArray() && dest.arrayOffset() + dest.position() == 0)
+                target = dest.array();
+            
+            TransformBuffer output = performFusedReverseTransform(data, length, target, dest.remaining());
+            
+            try {
+                if(output.getForm() == FusedDataTransform.DataForm.BYTES)
+                    return DataTypeTransform.convertDataToDouble(output.getByteArray(), 0, output.getLength(), getStoredDataType(), dest);
+                
+                int numValues = output.getLength();
+                
+                if(numValues > dest.remaining())
+                    throw new BufferOverflowException();
+                
+                if(output.getDoubleArray() == target)
+                    dest.position(dest.position() + numValues);
+                else
+                    dest.put(output.getDoubleArray(), 0, numValues);
+                
+                return numValues;
+            } finally {
+                releasePipelineBuffers();
+            }
+        }
+        
+        ByteBuffer storedData = reverseEncoding(data, length);
+        
+        return DataTypeTransform.convertDataToDouble(storedData.array(), 0, storedData.limit(), getStoredDataType(), dest);
+    }
+    
+    /**
+     * Perform all steps of the DataTransformation in reverse to the first length 
+     * bytes of the supplied data, returning the values as a primitive array of the 
+     * requested data type (see {@link DataTypeTransform#convertDataToArray(byte[], int, int, DataTypeTransform.DataType, DataTypeTransform.DataType)}).
+     * 
+     * <p>The data is converted directly from the stored data type, so requesting the 
+     * data type that the values are stored as (see {@link #getStoredDataType()}) 
+     * avoids creating a double[] altogether.
+     * 
+     * @param data Data to perform the reverse of the DataTransformation on
+     * @param length Number of bytes of data within data
+     * @param dataType Data type of the array to return
+     * @return Transformed data as a primitive array of dataType
+     * @throws DataFormatException Issue with the transformation
+     */
+    public Object performReverseTransform(byte[] data, int length, DataTypeTransform.DataType dataType) throws DataFormatException {
+        if(isFusable()) {
+            TransformBuffer output = performFusedReverseTransform(data, length, null, 0);
+            
+            try {
+                if(output.getForm() == FusedDataTransform.DataForm.DOUBLES)
+                    return DataTypeTransform.convertDoublesToArray(Arrays.copyOf(output.getDoubleArray(), output.getLength()), dataType);
+                
+                return DataTypeTransform.convertDataToArray(output.getByteArray(), 0, output.getLength(), getStoredDataType(), dataType);
+            } finally {
+                releasePipelineBuffers();
+            }
+        }
+        
+        ByteBuffer storedData = reverseEncoding(data, length);
+        
+        return DataTypeTransform.convertDataToArray(storedData.array(), 0, storedData.limit(), getStoredDataType(), dataType);
+    }
+    
+    /**
+     * Perform in reverse all steps of the DataTransformation other than the initial 
+     * conversion of the data type, such as decompression, to the first length bytes
+     * of the supplied data.
+     * 
+     * @param data Data to perform the reverse of the DataTransformation on
+     * @param length Number of bytes of data within data
+     * @return Buffer wrapping the values in the stored data type, with the limit set
+     * to the number of bytes
+     * @throws DataFormatException Issue with the transformation
+     */
+    private ByteBuffer reverseEncoding(byte[] data, int length) throws DataFormatException {
+        if(!isCompressed())
+            return ByteBuffer.wrap(data, 0, length);
+        
+        int lastTransform = hasDataTypeTransform() ? 1 : 0;
+        byte[] transformedData = Arrays.copyOf(data, length);
+        
+        for(int i = transformation.size() - 1; i >= lastTransform; i--) {
+            transformedData = transformation.get(i).reverseTransform(transformedData);
+        }
+        
+        return ByteBuffer.wrap(transformedData);
+    }
+    
+    /**
+     * Check whether the reverse of the DataTransformation can be performed as a fused
+     * pipeline: every step other than the initial conversion of the data type must
+     * be a {@link FusedDataTransform}, and only the last step to be reversed may 
+     * produce doubles (and only when there is no conversion of the data type, as 
+     * the doubles are then the final values).
+     * 
+     * @return true if {@link #performFusedReverseTransform(byte[], int, double[], int)} can be used
+     */
+    private boolean isFusable() {
+        if(!isCompressed())
+            return false;
+        
+        int lastTransform = hasDataTypeTransform() ? 1 : 0;
+        
+        for(int i = lastTransform; i < transformation.size(); i++) {
+            DataTransform transform = transformation.get(i);
+            
+            if(!(transform instanceof FusedDataTransform))
+                return false;
+            
+            if(((FusedDataTransform) transform).getReverseOutputForm() == FusedDataTransform.DataForm.DOUBLES 
+                    && (i != lastTransform || lastTransform != 0))
+                return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Perform in reverse all steps of the DataTransformation other than the initial
+     * conversion of the data type as a fused pipeline. Each step reads directly 
+     * from the output of the previous step, with the outputs alternating between 
+     * two {@link TransformBuffer}s which are reused for every array decoded on the
+     * current thread, so no intermediate arrays are allocated once the buffers 
+     * are large enough.
+     * 
+     * <p>The returned buffer must be released with {@link #releasePipelineBuffers()}
+     * once its contents have been used.
+     * 
+     * @param data Data to perform the reverse of the DataTransformation on
+     * @param length Number of bytes of data within data
+     * @param target Array that a final step producing doubles may decode directly 
+     * into (from index 0), or null
+     * @param targetCapacity Number of values of target that may be written to
+     * @return Buffer containing the output of the final step
+     * @throws DataFormatException Issue with the transformation
+     */
+    private TransformBuffer performFusedReverseTransform(byte[] data, int length, double[] target, int targetCapacity) throws DataFormatException {
+        TransformBuffer[] buffers = PIPELINE_BUFFERS.get();
+        int lastTransform = hasDataTypeTransform() ? 1 : 0;
+        
+        byte[] input = data;
+        int inputLength = length;
+        TransformBuffer output = null;
+        
+        for(int i = transformation.size() - 1, stage = 0; i >= lastTransform; i--, stage++) {
+            output = buffers[stage & 1];
+            
+            if(i == lastTransform)
+                output.setDoubleTarget(target, targetCapacity);
+            
+            ((FusedDataTransform) transformation.get(i)).reverseTransform(input, 0, inputLength, output);
+            
+            input = output.getByteArray();
+            inputLength = output.getLength();
+        }
+        
+        return output;
+    }
+    
+    /**
+     * Release the references held by the pipeline buffers of the current thread to
+     * the caller's array, and any unusually large arrays.
+     */
+    private static void releasePipelineBuffers() {
+        for(TransformBuffer buffer : PIPELINE_BUFFERS.get()) {
+            buffer.trim(MAXIMUM_RETAINED_PIPELINE_BUFFER);
+        }
+    }
+    
+    /**
+     * Check whether the first step of the DataTransformation is a conversion from 
+     * double to another data type.
+     * 
+     * @return true if the first step is a DataTypeTransform from double
+     */
+    private boolean hasDataTypeTransform() {
+        return transformation != null && !transformation.isEmpty() && transformation.get(0) instanceof DataTypeTransform
+                && ((DataTypeTransform) transformation.get(0)).getFromDataType() == DataTypeTransform.DataType.DOUBLE;
+    }
+    
+    /**
+     * Get the data type that the values are stored as, prior to any further steps
+     * such as compression. This is the data type converted to by the first step 
+     * of the DataTransformation if it is a {@link DataTypeTransform}, and double 
+     * otherwise.
+     * 
+     * @return Data type of the stored values
+     */
+    public DataTypeTransform.DataType getStoredDataType() {
+        if(hasDataTypeTransform())
+            return ((DataTypeTransform) transformation.get(0)).getToDataType();
+        
+        return DataTypeTransform.DataType.DOUBLE;
+    }
+    
+    /**
+     * Check whether the DataTransformation contains any steps other than a conversion
+     * of the data type, such as compression. If not, the stored bytes are simply
+     * the little-endian values of {@link #getStoredDataType()}.
+     * 
+     * @return true if the data is compressed or otherwise encoded
+     */
+    public boolean isCompressed() {
+        if(transformation == null)
+            return false;
+        
+        return transformation.size() > (hasDataTypeTransform() ? 1 : 0);
+    }
+    
+    /**
+     * Get the steps of the DataTransformation, in the order they are performed 
+     * in the forward direction.
+     * 
+     * @return Unmodifiable list of DataTransform steps
+     */
+    public List<DataTransform> getTransforms() {
+        if(transformation == null)
+            return Collections.<DataTransform>emptyList();
+        
+        return Collections.unmodifiableList(transformation);
+    }
+    
     public int[] getDataSizeAtEachStage() {
         return dataSizeAtEachStage;
     }
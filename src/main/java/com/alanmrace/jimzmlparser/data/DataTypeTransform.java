@@ -3,13 +3,14 @@ package com.alanmrace.jimzmlparser.data;
 import com.alanmrace.jimzmlparser.mzml.BinaryDataArray;
 import com.alanmrace.jimzmlparser.obo.OBO;
 import com.alanmrace.jimzmlparser.obo.OBOTerm;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
 import java.util.zip.DataFormatException;
 
 /**
@@ -22,11 +23,6 @@ import java.util.zip.DataFormatException;
  */
 public class DataTypeTransform implements DataTransform {
     
-    /**
-     * Logger for the class.
-     */
-    private static final Logger LOGGER = Logger.getLogger(DataTypeTransform.class.getName());
-
     /**
      * Possible binary data types used to store data.
      */
@@ -141,20 +137,8 @@ public class DataTypeTransform implements DataTransform {
      */
     public static byte[] convertDoublesToBytes(double[] data) {
         byte[] convertedData = new byte[data.length*8];
-        int j = 0;
-
-        for (double aData : data) {
-            long doubleVal = Double.doubleToLongBits(aData);
-
-            convertedData[j++] = (byte) (doubleVal);
-            convertedData[j++] = (byte) (doubleVal >>> 8);
-            convertedData[j++] = (byte) (doubleVal >>> 16);
-            convertedData[j++] = (byte) (doubleVal >>> 24);
-            convertedData[j++] = (byte) (doubleVal >>> 32);
-            convertedData[j++] = (byte) (doubleVal >>> 40);
-            convertedData[j++] = (byte) (doubleVal >>> 48);
-            convertedData[j++] = (byte) (doubleVal >>> 56);
-        }
+        
+        wrap(convertedData, 0, convertedData.length).asDoubleBuffer().put(data);
         
         return convertedData;
     }
@@ -168,69 +152,374 @@ public class DataTypeTransform implements DataTransform {
      * @return Data as double[]
      */
     public static double[] convertDataToDouble(byte[] data, DataType dataType) {
-        double[] convertedData = new double[0];
-
         if (data == null) {
-            return convertedData;
+            return new double[0];
         }
 
-        ByteBuffer buffer = ByteBuffer.wrap(data);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        double[] convertedData = new double[data.length / getSizeInBytes(dataType)];
+        
+        convertToDouble(wrap(data, 0, data.length), dataType, convertedData, 0, convertedData.length);
+
+        return convertedData;
+    }
 
+    /**
+     * Convert data from uncompressed byte[] with the data type defined by the
+     * dataType into the supplied DoubleBuffer, starting at its current position.
+     * Unlike {@link #convertDataToDouble(byte[], DataType)} no arrays are allocated.
+     *
+     * @param data Data as byte[]
+     * @param offset Index of the first byte of the data within data
+     * @param length Number of bytes of data
+     * @param dataType DataType of the byte[]
+     * @param dest Buffer to place the converted data in
+     * @return Number of values placed into dest
+     * @throws java.nio.BufferOverflowException If dest does not have enough space remaining
+     */
+    public static int convertDataToDouble(byte[] data, int offset, int length, DataType dataType, DoubleBuffer dest) {
+        ByteBuffer buffer = wrap(data, offset, length);
+        
+        int numValues = length / getSizeInBytes(dataType);
+        
+        if (numValues > dest.remaining()) {
+            throw new BufferOverflowException();
+        }
+        
+        if (dest.hasArray()) {
+            // Write straight into the backing array rather than through put()
+            convertToDouble(buffer, dataType, dest.array(), dest.arrayOffset() + dest.position(), numValues);
+            dest.position(dest.position() + numValues);
+        } else if (dataType == DataType.DOUBLE) {
+            DoubleBuffer doubleBuffer = buffer.asDoubleBuffer();
+            doubleBuffer.limit(numValues);
+            dest.put(doubleBuffer);
+        } else {
+            for (int j = 0; j < numValues; j++) {
+                dest.put(getDouble(buffer, dataType, j));
+            }
+        }
+        
+        return numValues;
+    }
+    
+    /**
+     * Convert the values at the start of the little-endian buffer to double, 
+     * placing them into the supplied array. Double data is copied in bulk, and each
+     * other data type has its own loop over a typed view of the buffer so that the 
+     * loops are simple enough to be unrolled and vectorised by the JIT compiler.
+     * 
+     * @param buffer Little-endian data to convert
+     * @param dataType DataType of the data in the buffer
+     * @param dest Array to place the converted data in
+     * @param destOffset Index of dest at which to place the first value
+     * @param numValues Number of values to convert
+     */
+    private static void convertToDouble(ByteBuffer buffer, DataType dataType, double[] dest, int destOffset, int numValues) {
         switch (dataType) {
             case DOUBLE:
-                convertedData = new double[data.length / 8];
-
-                for (int j = 0; j < convertedData.length; j++) {
-                    convertedData[j] = buffer.getDouble();
-                }
-
+                buffer.asDoubleBuffer().get(dest, destOffset, numValues);
+                
                 break;
             case FLOAT:
-                convertedData = new double[data.length / 4];
-
-                for (int j = 0; j < convertedData.length; j++) {
-                    convertedData[j] = buffer.getFloat();
+                FloatBuffer floatBuffer = buffer.asFloatBuffer();
+                
+                for (int j = 0; j < numValues; j++) {
+                    dest[destOffset + j] = floatBuffer.get(j);
                 }
-
+                
                 break;
             case INTEGER_64BIT:
-                convertedData = new double[data.length / 8];
-
-                for (int j = 0; j < convertedData.length; j++) {
-                    convertedData[j] = buffer.getLong();
+                LongBuffer longBuffer = buffer.asLongBuffer();
+                
+                for (int j = 0; j < numValues; j++) {
+                    dest[destOffset + j] = longBuffer.get(j);
                 }
-
+                
                 break;
             case INTEGER_32BIT:
-                convertedData = new double[data.length / 4];
-
-                for (int j = 0; j < convertedData.length; j++) {
-                    convertedData[j] = buffer.getInt();
+                IntBuffer intBuffer = buffer.asIntBuffer();
+                
+                for (int j = 0; j < numValues; j++) {
+                    dest[destOffset + j] = intBuffer.get(j);
                 }
-
+                
                 break;
             case INTEGER_16BIT:
-                convertedData = new double[data.length / 2];
-
-                for (int j = 0; j < convertedData.length; j++) {
-                    convertedData[j] = buffer.getShort();
+                ShortBuffer shortBuffer = buffer.asShortBuffer();
+                
+                for (int j = 0; j < numValues; j++) {
+                    dest[destOffset + j] = shortBuffer.get(j);
                 }
-
+                
                 break;
             case INTEGER_8BIT:
-                convertedData = new double[data.length];
-
-                for (int j = 0; j < convertedData.length; j++) {
-                    convertedData[j] = buffer.get();
+                for (int j = 0; j < numValues; j++) {
+                    dest[destOffset + j] = buffer.get(j);
                 }
-
+                
                 break;
             default:
                 throw new UnsupportedOperationException("Data type not supported: " + dataType);
         }
-
-        return convertedData;
+    }
+    
+    /**
+     * Convert data from uncompressed byte[] with the data type defined by from to a 
+     * primitive array of the data type defined by to (double[], float[], long[], 
+     * int[], short[] or byte[] respectively). Where the two data types are the same
+     * the values are copied in bulk, so for example 32-bit float data can be read 
+     * as a float[] using half of the memory of the equivalent double[]. Otherwise 
+     * each value is converted directly to the new data type without an intermediate
+     * double[], with integer data types converted via long so that no precision 
+     * is lost.
+     *
+     * @param data Data as byte[]
+     * @param offset Index of the first byte of the data within data
+     * @param length Number of bytes of data
+     * @param from DataType of the byte[]
+     * @param to DataType of the array to return
+     * @return Data as a primitive array of the data type to
+     */
+    public static Object convertDataToArray(byte[] data, int offset, int length, DataType from, DataType to) {
+        ByteBuffer buffer = wrap(data, offset, length);
+        
+        int numValues = length / getSizeInBytes(from);
+        boolean integerSource = isInteger(from);
+        
+        switch (to) {
+            case DOUBLE:
+                double[] doubleData = new double[numValues];
+                convertToDouble(buffer, from, doubleData, 0, numValues);
+                
+                return doubleData;
+            case FLOAT:
+                float[] floatData = new float[numValues];
+                
+                if (from == to) {
+                    buffer.asFloatBuffer().get(floatData);
+                } else {
+                    for (int j = 0; j < numValues; j++) {
+                        floatData[j] = (float) getDouble(buffer, from, j);
+                    }
+                }
+                
+                return floatData;
+            case INTEGER_64BIT:
+                long[] longData = new long[numValues];
+                
+                if (from == to) {
+                    buffer.asLongBuffer().get(longData);
+                } else if (integerSource) {
+                    for (int j = 0; j < numValues; j++) {
+                        longData[j] = getLong(buffer, from, j);
+                    }
+                } else {
+                    for (int j = 0; j < numValues; j++) {
+                        longData[j] = (long) getDouble(buffer, from, j);
+                    }
+                }
+                
+                return longData;
+            case INTEGER_32BIT:
+                int[] intData = new int[numValues];
+                
+                if (from == to) {
+                    buffer.asIntBuffer().get(intData);
+                } else if (integerSource) {
+                    for (int j = 0; j < numValues; j++) {
+                        intData[j] = (int) getLong(buffer, from, j);
+                    }
+                } else {
+                    for (int j = 0; j < numValues; j++) {
+                        intData[j] = (int) getDouble(buffer, from, j);
+                    }
+                }
+                
+                return intData;
+            case INTEGER_16BIT:
+                short[] shortData = new short[numValues];
+                
+                if (from == to) {
+                    buffer.asShortBuffer().get(shortData);
+                } else if (integerSource) {
+                    for (int j = 0; j < numValues; j++) {
+                        shortData[j] = (short) getLong(buffer, from, j);
+                    }
+                } else {
+                    for (int j = 0; j < numValues; j++) {
+                        shortData[j] = (short) getDouble(buffer, from, j);
+                    }
+                }
+                
+                return shortData;
+            case INTEGER_8BIT:
+                byte[] byteData = new byte[numValues];
+                
+                if (from == to) {
+                    buffer.get(byteData);
+                } else if (integerSource) {
+                    for (int j = 0; j < numValues; j++) {
+                        byteData[j] = (byte) getLong(buffer, from, j);
+                    }
+                } else {
+                    for (int j = 0; j < numValues; j++) {
+                        byteData[j] = (byte) getDouble(buffer, from, j);
+                    }
+                }
+                
+                return byteData;
+            default:
+                throw new UnsupportedOperationException("Data type not supported: " + to);
+        }
+    }
+    
+    /**
+     * Get the value at the specified index of the little-endian buffer as a double.
+     * 
+     * @param buffer Little-endian data
+     * @param dataType DataType of the data in the buffer
+     * @param index Index of the value (not the byte)
+     * @return Value as a double
+     */
+    private static double getDouble(ByteBuffer buffer, DataType dataType, int index) {
+        switch (dataType) {
+            case DOUBLE:
+                return buffer.getDouble(index << 3);
+            case FLOAT:
+                return buffer.getFloat(index << 2);
+            default:
+                return getLong(buffer, dataType, index);
+        }
+    }
+    
+    /**
+     * Get the value at the specified index of the little-endian buffer containing
+     * integer data as a long.
+     * 
+     * @param buffer Little-endian data
+     * @param dataType Integer DataType of the data in the buffer
+     * @param index Index of the value (not the byte)
+     * @return Value as a long
+     */
+    private static long getLong(ByteBuffer buffer, DataType dataType, int index) {
+        switch (dataType) {
+            case INTEGER_64BIT:
+                return buffer.getLong(index << 3);
+            case INTEGER_32BIT:
+                return buffer.getInt(index << 2);
+            case INTEGER_16BIT:
+                return buffer.getShort(index << 1);
+            case INTEGER_8BIT:
+                return buffer.get(index);
+            default:
+                throw new UnsupportedOperationException("Data type not supported: " + dataType);
+        }
+    }
+    
+    /**
+     * Check whether the data type is an integer data type.
+     * 
+     * @param dataType DataType
+     * @return true if the data type is a signed integer
+     */
+    private static boolean isInteger(DataType dataType) {
+        return dataType != DataType.DOUBLE && dataType != DataType.FLOAT;
+    }
+    
+    /**
+     * Wrap a region of a byte[] as a little-endian ByteBuffer, with position 0 
+     * corresponding to the first byte of the region.
+     * 
+     * @param data Data as byte[]
+     * @param offset Index of the first byte of the region
+     * @param length Number of bytes in the region
+     * @return Little-endian buffer of the region
+     */
+    private static ByteBuffer wrap(byte[] data, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length).slice();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        
+        return buffer;
+    }
+    
+    /**
+     * Convert a double[] to a primitive array of the specified data type (double[], 
+     * float[], long[], int[], short[] or byte[] respectively) by casting each value.
+     * 
+     * @param data Data as double[]
+     * @param to DataType of the array to return
+     * @return Data as a primitive array of the data type to
+     */
+    public static Object convertDoublesToArray(double[] data, DataType to) {
+        switch (to) {
+            case DOUBLE:
+                return data.clone();
+            case FLOAT:
+                float[] floatData = new float[data.length];
+                
+                for (int j = 0; j < data.length; j++) {
+                    floatData[j] = (float) data[j];
+                }
+                
+                return floatData;
+            case INTEGER_64BIT:
+                long[] longData = new long[data.length];
+                
+                for (int j = 0; j < data.length; j++) {
+                    longData[j] = (long) data[j];
+                }
+                
+                return longData;
+            case INTEGER_32BIT:
+                int[] intData = new int[data.length];
+                
+                for (int j = 0; j < data.length; j++) {
+                    intData[j] = (int) data[j];
+                }
+                
+                return intData;
+            case INTEGER_16BIT:
+                short[] shortData = new short[data.length];
+                
+                for (int j = 0; j < data.length; j++) {
+                    shortData[j] = (short) data[j];
+                }
+                
+                return shortData;
+            case INTEGER_8BIT:
+                byte[] byteData = new byte[data.length];
+                
+                for (int j = 0; j < data.length; j++) {
+                    byteData[j] = (byte) data[j];
+                }
+                
+                return byteData;
+            default:
+                throw new UnsupportedOperationException("Data type not supported: " + to);
+        }
+    }
+    
+    /**
+     * Get the number of bytes used to store a single value of the specified data type.
+     * 
+     * @param dataType DataType
+     * @return Size of a single value in bytes
+     */
+    public static int getSizeInBytes(DataType dataType) {
+        switch (dataType) {
+            case DOUBLE:
+            case INTEGER_64BIT:
+                return 8;
+            case FLOAT:
+            case INTEGER_32BIT:
+                return 4;
+            case INTEGER_16BIT:
+                return 2;
+            case INTEGER_8BIT:
+                return 1;
+            default:
+                throw new UnsupportedOperationException("Data type not supported: " + dataType);
+        }
     }
 
     /**
@@ -247,57 +536,41 @@ public class DataTypeTransform implements DataTransform {
             return data;
         }
 
-        double[] doubleData = convertDataToDouble(data, from);
-
-        ByteArrayOutputStream byteArrayStream = new ByteArrayOutputStream();
-        DataOutputStream byteStream = new DataOutputStream(byteArrayStream);
-
-        try {
-            switch (to) {
-                case DOUBLE:
-                    for (double dataPoint : doubleData) {
-                        byteStream.writeLong(Long.reverseBytes(Double.doubleToLongBits(dataPoint)));
-                    }
-
-                    break;
-                case FLOAT:
-                    for (double dataPoint : doubleData) {
-                        byteStream.writeInt(Integer.reverseBytes(Float.floatToIntBits((float) dataPoint)));
-                    }
-
-                    break;
-                case INTEGER_64BIT:
-                    for (double dataPoint : doubleData) {
-                        byteStream.writeLong(Long.reverseBytes((long) dataPoint));
-                    }
-
-                    break;
-                case INTEGER_32BIT:
-                    for (double dataPoint : doubleData) {
-                        byteStream.writeInt(Integer.reverseBytes((int) dataPoint));
-                    }
-
-                    break;
-                case INTEGER_16BIT:
-                    for (double dataPoint : doubleData) {
-                        byteStream.writeShort(Short.reverseBytes((short) dataPoint));
-                    }
-
-                    break;
-                case INTEGER_8BIT:
-                    for (double dataPoint : doubleData) {
-                        byteStream.writeByte((byte) dataPoint);
-                    }
-
-                    break;
-                default:
-                    throw new UnsupportedOperationException("Data type not supported: " + to);
-            }
-        } catch (IOException ex) {
-            LOGGER.log(Level.SEVERE, null, ex);
+        Object convertedArray = convertDataToArray(data, 0, data.length, from, to);
+        
+        byte[] convertedData = new byte[(data.length / getSizeInBytes(from)) * getSizeInBytes(to)];
+        ByteBuffer buffer = wrap(convertedData, 0, convertedData.length);
+        
+        switch (to) {
+            case DOUBLE:
+                buffer.asDoubleBuffer().put((double[]) convertedArray);
+                
+                break;
+            case FLOAT:
+                buffer.asFloatBuffer().put((float[]) convertedArray);
+                
+                break;
+            case INTEGER_64BIT:
+                buffer.asLongBuffer().put((long[]) convertedArray);
+                
+                break;
+            case INTEGER_32BIT:
+                buffer.asIntBuffer().put((int[]) convertedArray);
+                
+                break;
+            case INTEGER_16BIT:
+                buffer.asShortBuffer().put((short[]) convertedArray);
+                
+                break;
+            case INTEGER_8BIT:
+                buffer.put((byte[]) convertedArray);
+                
+                break;
+            default:
+                throw new UnsupportedOperationException("Data type not supported: " + to);
         }
 
-        return byteArrayStream.toByteArray();
+        return convertedData;
     }
 
     @Override
@@ -311,6 +584,24 @@ public class DataTypeTransform implements DataTransform {
     }
 
     
+    /**
+     * Get the data type that the forward transform converts from.
+     * 
+     * @return Original data type
+     */
+    public DataType getFromDataType() {
+        return from;
+    }
+    
+    /**
+     * Get the data type that the forward transform converts to.
+     * 
+     * @return New data type
+     */
+    public DataType getToDataType() {
+        return to;
+    }
+    
     @Override
     public String toString() {
         return "DataTypeTransform from " + from + " to " + to;
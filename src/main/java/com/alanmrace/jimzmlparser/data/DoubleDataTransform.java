@@ -0,0 +1,23 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.util.zip.DataFormatException;
+
+/**
+ * DataTransform which encodes double values directly, such as MS-Numpress. When 
+ * such a transform is the first step of a {@link DataTransformation}, the forward 
+ * transform is performed on the double[] itself rather than on a byte[] 
+ * representation of it, and the reverse transform (as part of the fused pipeline)
+ * decodes straight to double values.
+ * 
+ */
+public interface DoubleDataTransform extends FusedDataTransform {
+    
+    /**
+     * Encode the supplied values.
+     * 
+     * @param data Data to encode
+     * @return Encoded data
+     * @throws DataFormatException Issue with the transformation
+     */
+    byte[] forwardTransform(double[] data) throws DataFormatException;
+}
@@ -0,0 +1,55 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * BinaryDataStorage which reads using positional reads on a FileChannel rather than
+ * seeking a shared RandomAccessFile. Positional reads do not modify the file pointer,
+ * so reads from multiple threads are not synchronized and can be issued to the disk
+ * concurrently. Unlike {@link MappedDataStorage} no part of the file is mapped into
+ * memory, which makes this suitable for network filesystems and for when the address
+ * space is limited.
+ * 
+ * <p>Note that interrupting a thread while it is reading will close the underlying 
+ * FileChannel, as with any interruptible channel.
+ * 
+ * @see BinaryDataStorage.AccessMode#POSITIONAL_READ
+ */
+public class FileChannelDataStorage extends BinaryDataStorage {
+    
+    /**
+     * Open the file for reading using positional reads.
+     * 
+     * @param dataFile File containing binary data
+     * @throws FileNotFoundException Error occurred opening the file
+     */
+    public FileChannelDataStorage(File dataFile) throws FileNotFoundException {
+        super(dataFile, false);
+    }
+    
+    @Override
+    protected void readData(long offset, byte[] buffer, int bufferOffset, int length) throws IOException {
+        FileChannel channel = getFileChannel();
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, bufferOffset, length);
+        long position = offset;
+        
+        while(byteBuffer.hasRemaining()) {
+            int bytesRead = channel.read(byteBuffer, position);
+            
+            if(bytesRead < 0)
+                throw new EOFException("Requested " + length + " bytes at offset " + offset + " beyond the end of " + getFile() + " (" + channel.size() + " bytes)");
+            
+            position += bytesRead;
+        }
+    }
+    
+    @Override
+    public AccessMode getAccessMode() {
+        return AccessMode.POSITIONAL_READ;
+    }
+}
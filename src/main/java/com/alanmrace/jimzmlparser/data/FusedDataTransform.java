@@ -0,0 +1,58 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.util.zip.DataFormatException;
+
+/**
+ * DataTransform which can also be performed in reverse as one stage of a fused 
+ * pipeline (see {@link DataTransformation#performReverseTransform(byte[], int, java.nio.DoubleBuffer)}).
+ * Rather than allocating a new byte[] for its output, the stage reads from a region
+ * of the output of the previous stage and writes into a {@link TransformBuffer}
+ * which is reused from one array to the next.
+ * 
+ * <p>Each stage takes bytes as its input and declares the form of its output, so
+ * that a stage which produces doubles (such as MS-Numpress) can be decoded straight
+ * into the destination array without being converted back into bytes.
+ * 
+ */
+public interface FusedDataTransform extends DataTransform {
+    
+    /**
+     * Form of the data produced by a stage of the pipeline.
+     */
+    enum DataForm {
+        
+        /**
+         * Little-endian bytes, to be passed to the next stage or converted from 
+         * the stored data type.
+         */
+        BYTES,
+        
+        /**
+         * Decoded double values.
+         */
+        DOUBLES
+    }
+    
+    /**
+     * Get the form of the data produced by 
+     * {@link #reverseTransform(byte[], int, int, TransformBuffer)}.
+     * 
+     * @return Form of the output of the reverse transform
+     */
+    DataForm getReverseOutputForm();
+    
+    /**
+     * Perform the data transformation in reverse on a region of the supplied data, 
+     * placing the result into output (using {@link TransformBuffer#byteArray(int, boolean)} 
+     * and {@link TransformBuffer#setByteLength(int)}, or {@link TransformBuffer#doubleArray(int)} 
+     * and {@link TransformBuffer#setDoubleLength(int)}, depending on 
+     * {@link #getReverseOutputForm()}).
+     * 
+     * @param data Data to reverse the transformation on
+     * @param offset Index of the first byte of the data within data
+     * @param length Number of bytes of data
+     * @param output Buffer to place the transformed data in
+     * @throws DataFormatException Issue with the transformation
+     */
+    void reverseTransform(byte[] data, int offset, int length, TransformBuffer output) throws DataFormatException;
+}
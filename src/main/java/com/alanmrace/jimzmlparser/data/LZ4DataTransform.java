@@ -1,49 +1,165 @@
 package com.alanmrace.jimzmlparser.data;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.zip.DataFormatException;
 import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
 import net.jpountz.lz4.LZ4Factory;
 import net.jpountz.lz4.LZ4FastDecompressor;
+import net.jpountz.lz4.LZ4SafeDecompressor;
 
 /**
+ * DataTransform describing the compression (forward) and decompression (reverse)
+ * of data using the LZ4 algorithm. The compressor and decompressor are stateless 
+ * and shared by all transforms, and compression is performed into a buffer kept 
+ * for each thread so that the only allocation is the compressed result.
  *
  * @author Alan Race
  */
-public class LZ4DataTransform implements DataTransform {
+public class LZ4DataTransform implements FusedDataTransform {
+    
+    /**
+     * Serialisation version ID.
+     */
+    private static final long serialVersionUID = 1L;
+    
     public static final int MAX_COMPRESSION_FACTOR = 10;
     
-    private final transient LZ4Factory factory = LZ4Factory.fastestInstance();
+    /**
+     * Maximum size in bytes of the compression buffer kept for reuse on each thread.
+     */
+    private static final int MAXIMUM_RETAINED_BUFFER = 16 * 1024 * 1024;
+    
+    private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+    private static final LZ4FastDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().fastDecompressor();
+    private static final LZ4SafeDecompressor SAFE_DECOMPRESSOR = LZ4Factory.fastestInstance().safeDecompressor();
+    
+    /**
+     * Buffer to compress into on each thread, enlarged as required.
+     */
+    private static final ThreadLocal<byte[]> COMPRESS_BUFFER = new ThreadLocal<byte[]>();
+    
     private final int arrayLengthInBytes;
     
+    /**
+     * Set up an LZ4 transform. LZ4 does not record the length of the decompressed 
+     * data, so it must be known in order to decompress to a byte array.
+     * 
+     * @param arrayLengthInBytes Length of the decompressed data in bytes, or -1 if 
+     * unknown (in which case data can only be decompressed into a ByteBuffer with 
+     * {@link #decompress(ByteBuffer, ByteBuffer)})
+     */
     public LZ4DataTransform(int arrayLengthInBytes) {
         this.arrayLengthInBytes = arrayLengthInBytes;
     }
     
     @Override
     public byte[] forwardTransform(byte[] data) throws DataFormatException {
-        LZ4Compressor compressor = factory.fastCompressor();
+        // The bound allows for incompressible data, such as m/z arrays which can be 
+        // slightly larger after compression
+        int maxCompressedLength = COMPRESSOR.maxCompressedLength(data.length);
+        byte[] compressed = COMPRESS_BUFFER.get();
         
-        // For some reason the compression of m/z arrays using LZ4 results in larger data than the input
-        int maxCompressedLength = compressor.maxCompressedLength(data.length) * 2;
-        byte[] compressed = new byte[maxCompressedLength];
+        if(compressed == null || compressed.length < maxCompressedLength) {
+            compressed = new byte[maxCompressedLength];
+            
+            if(maxCompressedLength <= MAXIMUM_RETAINED_BUFFER)
+                COMPRESS_BUFFER.set(compressed);
+        }
         
-        int compressedLength = compressor.compress(data, 0, data.length, compressed, 0, maxCompressedLength);
+        int compressedLength = COMPRESSOR.compress(data, 0, data.length, compressed, 0, maxCompressedLength);
         
+        return Arrays.copyOf(compressed, compressedLength);
+    }
+
+    @Override
+    public byte[] reverseTransform(byte[] data) throws DataFormatException {
+        TransformBuffer output = new TransformBuffer();
         
-        if(compressedLength != compressed.length)
-            return Arrays.copyOf(compressed, compressedLength);
+        reverseTransform(data, 0, data.length, output);
         
-        return compressed;
+        return output.toByteArray();
     }
 
     @Override
-    public byte[] reverseTransform(byte[] data) throws DataFormatException {
-        byte[] decompressed = new byte[arrayLengthInBytes];
+    public DataForm getReverseOutputForm() {
+        return DataForm.BYTES;
+    }
+
+    @Override
+    public void reverseTransform(byte[] data, int offset, int length, TransformBuffer output) throws DataFormatException {
+        if (arrayLengthInBytes < 0) {
+            throw new DataFormatException("Unknown decompressed size of LZ4 data");
+        }
         
-        LZ4FastDecompressor decompressor = factory.fastDecompressor();
-        decompressor.decompress(data, 0, decompressed, 0, arrayLengthInBytes);
+        byte[] decompressed = output.byteArray(arrayLengthInBytes, false);
         
-        return decompressed;
+        try {
+            DECOMPRESSOR.decompress(data, offset, decompressed, 0, arrayLengthInBytes);
+        } catch (LZ4Exception ex) {
+            throw createDataFormatException(ex);
+        }
+        
+        output.setByteLength(arrayLengthInBytes);
+    }
+    
+    /**
+     * Decompress the data at the position of source into destination, which may 
+     * be direct buffers (for example a region of a memory mapped file, see 
+     * {@link MappedDataStorage#getDataBuffer(long, int)}) or heap buffers. The 
+     * positions of both buffers are advanced.
+     * 
+     * <p>If the decompressed length of the transform is unknown, the remaining 
+     * data in source must be exactly the compressed data, and is decompressed into
+     * at most the remaining space in destination.
+     * 
+     * @param source Compressed data
+     * @param destination Buffer to decompress into, with at least the decompressed 
+     * length of the transform remaining
+     * @return Number of bytes decompressed
+     * @throws DataFormatException If the data is corrupt or destination is too small
+     */
+    public int decompress(ByteBuffer source, ByteBuffer destination) throws DataFormatException {
+        if (arrayLengthInBytes < 0) {
+            try {
+                int decompressedLength = SAFE_DECOMPRESSOR.decompress(source, source.position(), source.remaining(), 
+                        destination, destination.position(), destination.remaining());
+                
+                source.position(source.limit());
+                destination.position(destination.position() + decompressedLength);
+                
+                return decompressedLength;
+            } catch (LZ4Exception ex) {
+                throw createDataFormatException(ex);
+            }
+        }
+        
+        if (destination.remaining() < arrayLengthInBytes) {
+            throw new DataFormatException("Insufficient space to decompress " + arrayLengthInBytes + " bytes of LZ4 data, " + destination.remaining() + " remaining");
+        }
+        
+        try {
+            int compressedLength = DECOMPRESSOR.decompress(source, source.position(), destination, destination.position(), arrayLengthInBytes);
+            
+            source.position(source.position() + compressedLength);
+            destination.position(destination.position() + arrayLengthInBytes);
+        } catch (LZ4Exception ex) {
+            throw createDataFormatException(ex);
+        }
+        
+        return arrayLengthInBytes;
+    }
+    
+    private static DataFormatException createDataFormatException(LZ4Exception cause) {
+        DataFormatException dataFormatException = new DataFormatException("Failed to decompress LZ4 data: " + cause.getMessage());
+        dataFormatException.initCause(cause);
+        
+        return dataFormatException;
+    }
+    
+    @Override
+    public String toString() {
+        return "LZ4DataTransform";
     }
 }
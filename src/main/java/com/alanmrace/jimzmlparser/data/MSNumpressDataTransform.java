@@ -10,10 +10,14 @@ import java.util.zip.DataFormatException;
 import ms.numpress.MSNumpress;
 
 /**
+ * DataTransform describing the encoding (forward) and decoding (reverse) of data 
+ * using one of the MS-Numpress algorithms. The data is encoded directly from and 
+ * decoded directly to double values (see {@link DoubleDataTransform}), using 
+ * buffers sized from the MS-Numpress bounds.
  *
  * @author Alan
  */
-public class MSNumpressDataTransform implements DataTransform {
+public class MSNumpressDataTransform implements DoubleDataTransform {
 
     public enum NumpressAlgorithm {
         LINEAR,
@@ -21,6 +25,16 @@ public class MSNumpressDataTransform implements DataTransform {
         SLOF
     }
     
+    /**
+     * Maximum size in bytes of the encode buffer kept for reuse on each thread.
+     */
+    private static final int MAXIMUM_RETAINED_BUFFER = 16 * 1024 * 1024;
+    
+    /**
+     * Buffer to encode into on each thread, enlarged as required.
+     */
+    private static final ThreadLocal<byte[]> ENCODE_BUFFER = new ThreadLocal<byte[]>();
+    
     private final NumpressAlgorithm algorithm;
     private String accession;
     private double mzError = 1e5;
@@ -41,39 +55,144 @@ public class MSNumpressDataTransform implements DataTransform {
         this.algorithm = algorithm;
     }
     
+    /**
+     * Get the maximum number of bytes required to encode the specified number of
+     * values with the algorithm, as documented by MSNumpress.
+     * 
+     * @param numValues Number of values to encode
+     * @return Maximum size of the encoded data in bytes
+     */
+    public int getMaximumEncodedLength(int numValues) {
+        switch(algorithm) {
+            case LINEAR:
+                return 8 + numValues * 5;
+            case PIC:
+                return numValues * 5;
+            case SLOF:
+            default:
+                return 8 + numValues * 2;
+        }
+    }
+    
+    /**
+     * Get the maximum number of values that can be decoded from the specified 
+     * number of bytes with the algorithm, as allocated by {@link MSNumpress#decode(String, byte[], int)}.
+     * 
+     * @param encodedLength Size of the encoded data in bytes
+     * @return Maximum number of decoded values
+     */
+    public int getMaximumDecodedLength(int encodedLength) {
+        switch(algorithm) {
+            case LINEAR:
+            case PIC:
+                return encodedLength * 2;
+            case SLOF:
+            default:
+                return Math.max(0, (encodedLength - 8) / 2);
+        }
+    }
+    
     @Override
     public byte[] forwardTransform(byte[] data) throws DataFormatException {
-        byte[] encoded = new byte[data.length];
-        double[] dataAsDouble = DataTypeTransform.convertDataToDouble(data, DataTypeTransform.DataType.DOUBLE);
-        int numBytes = -1;
+        return forwardTransform(DataTypeTransform.convertDataToDouble(data, DataTypeTransform.DataType.DOUBLE));
+    }
+    
+    @Override
+    public byte[] forwardTransform(double[] data) throws DataFormatException {
+        int maximumLength = getMaximumEncodedLength(data.length);
+        byte[] encoded = ENCODE_BUFFER.get();
+        
+        if(encoded == null || encoded.length < maximumLength) {
+            encoded = new byte[maximumLength];
+            
+            if(maximumLength <= MAXIMUM_RETAINED_BUFFER)
+                ENCODE_BUFFER.set(encoded);
+        }
+        
+        int numBytes;
         
         switch(algorithm) {
             case LINEAR:
-                numBytes = MSNumpress.encodeLinear(dataAsDouble, dataAsDouble.length, encoded, mzError);
+                numBytes = MSNumpress.encodeLinear(data, data.length, encoded, mzError);
                 
                 break;
             case PIC:
-                numBytes = MSNumpress.encodePic(dataAsDouble, dataAsDouble.length, encoded);
+                numBytes = MSNumpress.encodePic(data, data.length, encoded);
                 
                 break;
             case SLOF:
-                double fixedPoint = MSNumpress.optimalSlofFixedPoint(dataAsDouble, dataAsDouble.length);
-                numBytes = MSNumpress.encodeSlof(dataAsDouble, dataAsDouble.length, encoded, fixedPoint);
+            default:
+                double fixedPoint = MSNumpress.optimalSlofFixedPoint(data, data.length);
+                numBytes = MSNumpress.encodeSlof(data, data.length, encoded, fixedPoint);
                 
                 break;
         }
         
-        if(numBytes >= 0 && numBytes != encoded.length)
-            encoded = Arrays.copyOfRange(encoded, 0, numBytes);
+        if(numBytes < 0)
+            throw new DataFormatException("Failed to encode data with MS-Numpress (" + algorithm + ")");
         
-        return encoded;
+        return Arrays.copyOf(encoded, numBytes);
     }
 
     @Override
     public byte[] reverseTransform(byte[] data) throws DataFormatException {
-        double[] result = MSNumpress.decode(accession, data, data.length);
+        return DataTypeTransform.convertDoublesToBytes(decode(data, 0, data.length));
+    }
+    
+    /**
+     * Decode a region of MS-Numpress encoded data to double[] in a single pass.
+     * 
+     * @param data Encoded data
+     * @param offset Index of the first byte of the encoded data within data
+     * @param length Number of bytes of encoded data
+     * @return Decoded values
+     * @throws DataFormatException If the data is corrupt
+     */
+    public double[] decode(byte[] data, int offset, int length) throws DataFormatException {
+        TransformBuffer output = new TransformBuffer();
+        
+        reverseTransform(data, offset, length, output);
+        
+        return Arrays.copyOf(output.getDoubleArray(), output.getLength());
+    }
+
+    @Override
+    public DataForm getReverseOutputForm() {
+        return DataForm.DOUBLES;
+    }
+
+    @Override
+    public void reverseTransform(byte[] data, int offset, int length, TransformBuffer output) throws DataFormatException {
+        byte[] encoded = data;
+        
+        // MSNumpress always decodes from the start of the array
+        if (offset != 0) {
+            encoded = Arrays.copyOfRange(data, offset, offset + length);
+        }
+        
+        int numValues;
+        
+        switch(algorithm) {
+            case LINEAR:
+                numValues = MSNumpress.decodeLinear(encoded, length, output.doubleArray(getMaximumDecodedLength(length)));
+                
+                break;
+            case PIC:
+                numValues = MSNumpress.decodePic(encoded, length, output.doubleArray(getMaximumDecodedLength(length)));
+                
+                break;
+            case SLOF:
+            default:
+                numValues = MSNumpress.decodeSlof(encoded, length, output.doubleArray(getMaximumDecodedLength(length)));
+                
+                break;
+        }
+        
+        if (numValues < 0) {
+            throw new DataFormatException("Corrupt MS-Numpress data (" + algorithm + ")");
+        }
         
-        return DataTypeTransform.convertDoublesToBytes(result);
+        output.setDoubleLength(numValues);
     }
     
 }
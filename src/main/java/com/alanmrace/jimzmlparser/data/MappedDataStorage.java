@@ -0,0 +1,175 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * BinaryDataStorage which maps the file into memory rather than reading it through
+ * a RandomAccessFile. Reads do not have to share a file pointer and so are not 
+ * synchronized, allowing many threads to read from the same file concurrently.
+ * 
+ * <p>A single MappedByteBuffer can address at most 2 GB, so the file is mapped as 
+ * a series of consecutive segments. Reads which cross the boundary between two 
+ * segments are copied from each segment in turn.
+ * 
+ * @see BinaryDataStorage.AccessMode#MEMORY_MAPPED
+ */
+public class MappedDataStorage extends BinaryDataStorage {
+    
+    /** Class logger. */
+    private static final Logger LOGGER = Logger.getLogger(MappedDataStorage.class.getName());
+    
+    /**
+     * Default size of each mapped segment of the file in bytes (1 GB).
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+    
+    /**
+     * Size of each mapped segment in bytes. All segments except the last are 
+     * exactly this size.
+     */
+    private final int segmentSize;
+    
+    /**
+     * Total size of the file in bytes at the time of mapping.
+     */
+    private final long fileSize;
+    
+    /**
+     * Mapped segments of the file, in order. Set to null once the storage is closed.
+     */
+    private volatile MappedByteBuffer[] segments;
+    
+    /**
+     * Map the file for reading using the default segment size.
+     * 
+     * @param dataFile File containing binary data
+     * @throws IOException Error occurred opening or mapping the file
+     */
+    public MappedDataStorage(File dataFile) throws IOException {
+        this(dataFile, DEFAULT_SEGMENT_SIZE);
+    }
+    
+    /**
+     * Map the file for reading using the specified segment size.
+     * 
+     * @param dataFile File containing binary data
+     * @param segmentSize Size of each mapped segment in bytes
+     * @throws IOException Error occurred opening or mapping the file
+     */
+    public MappedDataStorage(File dataFile, int segmentSize) throws IOException {
+        super(dataFile, false);
+        
+        if(segmentSize <= 0)
+            throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+        
+        this.segmentSize = segmentSize;
+        
+        FileChannel channel = getFileChannel();
+        fileSize = channel.size();
+        
+        int numSegments = (int) ((fileSize + segmentSize - 1) / segmentSize);
+        segments = new MappedByteBuffer[numSegments];
+        
+        for(int i = 0; i < numSegments; i++) {
+            long position = (long) i * segmentSize;
+            long size = Math.min(segmentSize, fileSize - position);
+            
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+        
+        LOGGER.log(Level.FINER, "[Mapped] {0} ({1} segments)", new Object[] {dataFile, numSegments});
+    }
+    
+    @Override
+    protected void readData(long offset, byte[] buffer, int bufferOffset, int length) throws IOException {
+        MappedByteBuffer[] currentSegments = segments;
+        
+        if(currentSegments == null)
+            throw new IOException("Trying to access data from a closed file (" + getFile() + ")");
+        
+        if(offset < 0 || offset + length > fileSize)
+            throw new EOFException("Requested " + length + " bytes at offset " + offset + " beyond the end of " + getFile() + " (" + fileSize + " bytes)");
+        
+        int segmentIndex = (int) (offset / segmentSize);
+        int position = (int) (offset % segmentSize);
+        int remaining = length;
+        
+        while(remaining > 0) {
+            // Duplicate so that each thread has its own position within the segment
+            ByteBuffer segment = currentSegments[segmentIndex].duplicate();
+            int toCopy = Math.min(remaining, segment.limit() - position);
+            
+            segment.position(position);
+            segment.get(buffer, bufferOffset, toCopy);
+            
+            bufferOffset += toCopy;
+            remaining -= toCopy;
+            
+            segmentIndex++;
+            position = 0;
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>The returned buffer is a view directly onto the mapped file, so no data is 
+     * copied. If the data crosses the boundary between two segments then that region
+     * of the file is mapped separately.
+     */
+    @Override
+    public ByteBuffer getDataBuffer(long offset, int length) throws IOException {
+        MappedByteBuffer[] currentSegments = segments;
+        
+        if(currentSegments == null)
+            throw new IOException("Trying to access data from a closed file (" + getFile() + ")");
+        
+        if(offset < 0 || offset + length > fileSize)
+            throw new EOFException("Requested " + length + " bytes at offset " + offset + " beyond the end of " + getFile() + " (" + fileSize + " bytes)");
+        
+        int segmentIndex = (int) (offset / segmentSize);
+        int position = (int) (offset % segmentSize);
+        ByteBuffer view;
+        
+        if(position + length <= currentSegments[segmentIndex].limit()) {
+            view = currentSegments[segmentIndex].duplicate();
+            view.position(position);
+            view.limit(position + length);
+            view = view.slice();
+        } else {
+            view = getFileChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        
+        return view.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    /**
+     * Get the size of each mapped segment in bytes.
+     * 
+     * @return Segment size in bytes
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+    
+    @Override
+    public AccessMode getAccessMode() {
+        return AccessMode.MEMORY_MAPPED;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        // The mapping is released once the buffers are garbage collected
+        segments = null;
+        
+        super.close();
+    }
+}
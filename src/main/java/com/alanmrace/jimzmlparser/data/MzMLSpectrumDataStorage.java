@@ -38,6 +38,14 @@ public class MzMLSpectrumDataStorage extends DataStorage {
 	return base64DataStorage;
     }
     
+    @Override
+    public void setSpectrumDataCache(SpectrumDataCache spectrumDataCache) {
+        super.setSpectrumDataCache(spectrumDataCache);
+        
+        // Data is decoded from the Base64 representation
+        base64DataStorage.setSpectrumDataCache(spectrumDataCache);
+    }
+    
     @Override
     public void close() throws IOException {
         super.close();
@@ -0,0 +1,413 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * DataTransform describing the lossy quantization (forward) and dequantization
+ * (reverse) of data to a smaller number of bits per value. This is intended for
+ * reduced size copies of data (for example for visualisation) where the precision
+ * of each intensity value is not important.
+ *
+ * <p>The parameters required to dequantize an array (such as the scale factor) are
+ * calculated for each array and stored in a header at the start of the quantized
+ * data, as for MS-Numpress, so each spectrum uses the full range of the quantized
+ * values. All values are stored little-endian.
+ *
+ * <p>Values are encoded directly from and decoded directly to double values (see
+ * {@link DoubleDataTransform}), so the quantization must be the first step of a
+ * {@link DataTransformation} and can be followed by compression.
+ */
+public class QuantizationDataTransform implements DoubleDataTransform {
+
+    /**
+     * Serialisation version ID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Quantization scheme.
+     */
+    public enum QuantizationType {
+        /**
+         * Unsigned 16-bit integers spanning the range of the array, with the minimum
+         * value and the scale factor (both 64-bit floats) stored in the header. The
+         * maximum error is half of (maximum - minimum) / 65535.
+         */
+        SCALED_INTEGER_16BIT,
+
+        /**
+         * IEEE 754 half-precision (16-bit) floats, with a relative error of at most
+         * 2^-11 for values between 6.1e-5 and 65504. Larger finite values are 
+         * clamped to {@link #MAXIMUM_HALF_FLOAT}.
+         */
+        HALF_FLOAT,
+
+        /**
+         * Unsigned 8-bit integers proportional to log(1 + value), with the scale
+         * factor (a 64-bit float) stored in the header. Negative values are stored
+         * as 0.
+         */
+        LOG_INTEGER_8BIT,
+
+        /**
+         * Unsigned 16-bit integers proportional to log(1 + value), with the scale
+         * factor (a 64-bit float) stored in the header. Negative values are stored
+         * as 0.
+         */
+        LOG_INTEGER_16BIT
+    }
+
+    /**
+     * Largest finite IEEE 754 half-precision float.
+     */
+    public static final double MAXIMUM_HALF_FLOAT = 65504;
+
+    /**
+     * Maximum size in bytes of the encode buffer kept for reuse on each thread.
+     */
+    private static final int MAXIMUM_RETAINED_BUFFER = 16 * 1024 * 1024;
+
+    /**
+     * Buffer to encode into on each thread, enlarged as required.
+     */
+    private static final ThreadLocal<byte[]> ENCODE_BUFFER = new ThreadLocal<byte[]>();
+
+    private final QuantizationType quantizationType;
+
+    /**
+     * Set up a quantization transform.
+     *
+     * @param quantizationType Quantization scheme
+     */
+    public QuantizationDataTransform(QuantizationType quantizationType) {
+        this.quantizationType = quantizationType;
+    }
+
+    /**
+     * Get the quantization scheme.
+     *
+     * @return Quantization scheme
+     */
+    public QuantizationType getQuantizationType() {
+        return quantizationType;
+    }
+
+    /**
+     * Get the size in bytes of the header stored before the quantized values.
+     *
+     * @return Header size in bytes
+     */
+    public int getHeaderLength() {
+        switch(quantizationType) {
+            case SCALED_INTEGER_16BIT:
+                return 16;
+            case LOG_INTEGER_8BIT:
+            case LOG_INTEGER_16BIT:
+                return 8;
+            case HALF_FLOAT:
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Get the size in bytes of each quantized value.
+     *
+     * @return Size of each value in bytes
+     */
+    public int getValueLength() {
+        return (quantizationType == QuantizationType.LOG_INTEGER_8BIT) ? 1 : 2;
+    }
+
+    /**
+     * Get the number of bytes required to quantize the specified number of values.
+     *
+     * @param numValues Number of values
+     * @return Size of the quantized data in bytes
+     */
+    public int getEncodedLength(int numValues) {
+        return getHeaderLength() + numValues * getValueLength();
+    }
+
+    @Override
+    public byte[] forwardTransform(byte[] data) throws DataFormatException {
+        return forwardTransform(DataTypeTransform.convertDataToDouble(data, DataTypeTransform.DataType.DOUBLE));
+    }
+
+    @Override
+    public byte[] forwardTransform(double[] data) throws DataFormatException {
+        int encodedLength = getEncodedLength(data.length);
+        byte[] encoded = ENCODE_BUFFER.get();
+
+        if(encoded == null || encoded.length < encodedLength) {
+            encoded = new byte[encodedLength];
+
+            if(encodedLength <= MAXIMUM_RETAINED_BUFFER)
+                ENCODE_BUFFER.set(encoded);
+        }
+
+        int position = getHeaderLength();
+
+        switch(quantizationType) {
+            case SCALED_INTEGER_16BIT: {
+                double minimum = Double.POSITIVE_INFINITY;
+                double maximum = Double.NEGATIVE_INFINITY;
+
+                for(double value : data) {
+                    minimum = Math.min(minimum, value);
+                    maximum = Math.max(maximum, value);
+                }
+
+                if(data.length == 0) {
+                    minimum = 0;
+                    maximum = 0;
+                } else if(Double.isInfinite(minimum) || Double.isInfinite(maximum) || Double.isNaN(minimum) || Double.isNaN(maximum)) {
+                    throw new DataFormatException("Cannot quantize non-finite values (" + quantizationType + ")");
+                }
+
+                double scale = (maximum - minimum) / 65535;
+
+                putLong(encoded, 0, Double.doubleToLongBits(minimum));
+                putLong(encoded, 8, Double.doubleToLongBits(scale));
+
+                for(double value : data) {
+                    int quantized = (scale == 0) ? 0 : (int) Math.round((value - minimum) / scale);
+
+                    position = putShort(encoded, position, Math.min(quantized, 65535));
+                }
+
+                break;
+            }
+            case HALF_FLOAT:
+                for(double value : data) {
+                    // Clamp rather than overflow to infinity
+                    if(!Double.isInfinite(value)) {
+                        value = Math.max(-MAXIMUM_HALF_FLOAT, Math.min(MAXIMUM_HALF_FLOAT, value));
+                    }
+
+                    position = putShort(encoded, position, floatToHalf((float) value));
+                }
+
+                break;
+            case LOG_INTEGER_8BIT:
+            case LOG_INTEGER_16BIT:
+            default: {
+                int maximumQuantized = (quantizationType == QuantizationType.LOG_INTEGER_8BIT) ? 255 : 65535;
+                double maximum = 0;
+
+                for(double value : data) {
+                    maximum = Math.max(maximum, value);
+                }
+
+                if(Double.isInfinite(maximum) || Double.isNaN(maximum)) {
+                    throw new DataFormatException("Cannot quantize non-finite values (" + quantizationType + ")");
+                }
+
+                double scale = Math.log1p(maximum) / maximumQuantized;
+
+                putLong(encoded, 0, Double.doubleToLongBits(scale));
+
+                for(double value : data) {
+                    int quantized = (scale == 0 || !(value > 0)) ? 0 : (int) Math.min(Math.round(Math.log1p(value) / scale), maximumQuantized);
+
+                    if(maximumQuantized == 255) {
+                        encoded[position++] = (byte) quantized;
+                    } else {
+                        position = putShort(encoded, position, quantized);
+                    }
+                }
+
+                break;
+            }
+        }
+
+        return Arrays.copyOf(encoded, encodedLength);
+    }
+
+    @Override
+    public byte[] reverseTransform(byte[] data) throws DataFormatException {
+        return DataTypeTransform.convertDoublesToBytes(decode(data, 0, data.length));
+    }
+
+    /**
+     * Dequantize a region of quantized data to double[].
+     *
+     * @param data Quantized data
+     * @param offset Index of the first byte of the quantized data within data
+     * @param length Number of bytes of quantized data
+     * @return Dequantized values
+     * @throws DataFormatException If the length of the data is invalid
+     */
+    public double[] decode(byte[] data, int offset, int length) throws DataFormatException {
+        TransformBuffer output = new TransformBuffer();
+
+        reverseTransform(data, offset, length, output);
+
+        return Arrays.copyOf(output.getDoubleArray(), output.getLength());
+    }
+
+    @Override
+    public DataForm getReverseOutputForm() {
+        return DataForm.DOUBLES;
+    }
+
+    @Override
+    public void reverseTransform(byte[] data, int offset, int length, TransformBuffer output) throws DataFormatException {
+        int headerLength = getHeaderLength();
+        int valueLength = getValueLength();
+
+        if(length < headerLength || (length - headerLength) % valueLength != 0) {
+            throw new DataFormatException("Invalid length of quantized data (" + quantizationType + "): " + length);
+        }
+
+        int numValues = (length - headerLength) / valueLength;
+        double[] decoded = output.doubleArray(numValues);
+        int position = offset + headerLength;
+
+        switch(quantizationType) {
+            case SCALED_INTEGER_16BIT: {
+                double minimum = Double.longBitsToDouble(getLong(data, offset));
+                double scale = Double.longBitsToDouble(getLong(data, offset + 8));
+
+                for(int i = 0; i < numValues; i++, position += 2) {
+                    decoded[i] = minimum + getUnsignedShort(data, position) * scale;
+                }
+
+                break;
+            }
+            case HALF_FLOAT:
+                for(int i = 0; i < numValues; i++, position += 2) {
+                    decoded[i] = halfToFloat(getUnsignedShort(data, position));
+                }
+
+                break;
+            case LOG_INTEGER_8BIT: {
+                double scale = Double.longBitsToDouble(getLong(data, offset));
+
+                for(int i = 0; i < numValues; i++) {
+                    decoded[i] = Math.expm1((data[position++] & 0xFF) * scale);
+                }
+
+                break;
+            }
+            case LOG_INTEGER_16BIT:
+            default: {
+                double scale = Double.longBitsToDouble(getLong(data, offset));
+
+                for(int i = 0; i < numValues; i++, position += 2) {
+                    decoded[i] = Math.expm1(getUnsignedShort(data, position) * scale);
+                }
+
+                break;
+            }
+        }
+
+        output.setDoubleLength(numValues);
+    }
+
+    /**
+     * Convert a float to the nearest IEEE 754 half-precision float (rounding to
+     * even).
+     *
+     * @param value Value to convert
+     * @return Half-precision bits
+     */
+    static int floatToHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int magnitude = bits & 0x7FFFFFFF;
+
+        if(magnitude >= 0x7F800000) {
+            // Infinity or NaN
+            return sign | 0x7C00 | ((magnitude > 0x7F800000) ? 0x200 : 0);
+        }
+
+        if(magnitude >= 0x477FF000) {
+            // Rounds to a value larger than the largest half-precision float
+            return sign | 0x7C00;
+        }
+
+        if(magnitude >= 0x38800000) {
+            // Normal half-precision value, so rebias the exponent and round the mantissa
+            magnitude -= 112 << 23;
+
+            return sign | ((magnitude + 0xFFF + ((magnitude >> 13) & 1)) >> 13);
+        }
+
+        if(magnitude < 0x33000000) {
+            // Rounds to zero
+            return sign;
+        }
+
+        // Subnormal half-precision value
+        int shift = 126 - (magnitude >>> 23);
+        int mantissa = (magnitude & 0x7FFFFF) | 0x800000;
+        int half = mantissa >> shift;
+        int remainder = mantissa & ((1 << shift) - 1);
+        int halfway = 1 << (shift - 1);
+
+        if(remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+            half++;
+        }
+
+        return sign | half;
+    }
+
+    /**
+     * Convert IEEE 754 half-precision float bits to a float.
+     *
+     * @param half Half-precision bits
+     * @return Value
+     */
+    static float halfToFloat(int half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1F;
+        int mantissa = half & 0x3FF;
+
+        if(exponent == 0) {
+            // Zero or subnormal (mantissa * 2^-24)
+            float value = mantissa * 5.9604645E-8f;
+
+            return (sign == 0) ? value : -value;
+        }
+
+        if(exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+
+    private static int putShort(byte[] data, int position, int value) {
+        data[position] = (byte) value;
+        data[position + 1] = (byte) (value >>> 8);
+
+        return position + 2;
+    }
+
+    private static int getUnsignedShort(byte[] data, int position) {
+        return (data[position] & 0xFF) | ((data[position + 1] & 0xFF) << 8);
+    }
+
+    private static void putLong(byte[] data, int position, long value) {
+        for(int i = 0; i < 8; i++) {
+            data[position + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static long getLong(byte[] data, int position) {
+        long value = 0;
+
+        for(int i = 0; i < 8; i++) {
+            value |= (data[position + i] & 0xFFL) << (8 * i);
+        }
+
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "QuantizationDataTransform (" + quantizationType + ")";
+    }
+}
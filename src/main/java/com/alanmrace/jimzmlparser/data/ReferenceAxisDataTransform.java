@@ -0,0 +1,353 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.DataFormatException;
+
+/**
+ * DataTransform describing the encoding (forward) and decoding (reverse) of an
+ * array (typically an m/z array) as indices into a shared, sorted reference axis.
+ * In processed imzML data the m/z array of each spectrum is often almost a subset
+ * of a single axis, so storing the axis once and each array as the gaps between
+ * successive indices into it takes one or two bytes per value rather than eight.
+ *
+ * <p>The encoded data starts with the number of values (a little-endian 32-bit
+ * integer), followed by a variable length code for each value. Values found in
+ * the axis are coded as (zigzag encoded index delta) &lt;&lt; 1, where the delta
+ * is the number of axis values skipped since the previous index; values not found
+ * in the axis are coded as 1, followed by the value as a little-endian 64-bit
+ * float. With the default tolerance of 0 the encoding is lossless.
+ *
+ * <p>The reference axis is stored as little-endian 64-bit floats alongside the data
+ * (see {@link com.alanmrace.jimzmlparser.writer.ImzMLWriterAbstract#setUseReferencemzAxis(boolean)})
+ * and loaded with {@link #loadReferenceAxis(DataStorage, long, int)}, which caches
+ * the axis so that it is only read once for each file.
+ */
+public class ReferenceAxisDataTransform implements DoubleDataTransform {
+
+    /**
+     * Serialisation version ID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Maximum size in bytes of the encode buffer kept for reuse on each thread.
+     */
+    private static final int MAXIMUM_RETAINED_BUFFER = 16 * 1024 * 1024;
+
+    /**
+     * Buffer to encode into on each thread, enlarged as required.
+     */
+    private static final ThreadLocal<byte[]> ENCODE_BUFFER = new ThreadLocal<byte[]>();
+
+    /**
+     * Reference axes loaded from each DataStorage, indexed by their offset.
+     */
+    private static final Map<DataStorage, Map<Long, double[]>> LOADED_AXES = new WeakHashMap<DataStorage, Map<Long, double[]>>();
+
+    /**
+     * Sorted reference axis.
+     */
+    private final double[] referenceAxis;
+
+    /**
+     * Maximum difference between a value and an axis value for the value to be
+     * stored as an index into the axis.
+     */
+    private final double tolerance;
+
+    /**
+     * Set up a lossless transform against the specified reference axis.
+     *
+     * @param referenceAxis Reference axis, sorted in ascending order
+     */
+    public ReferenceAxisDataTransform(double[] referenceAxis) {
+        this(referenceAxis, 0);
+    }
+
+    /**
+     * Set up a transform against the specified reference axis, storing values within
+     * the tolerance of an axis value as that axis value.
+     *
+     * @param referenceAxis Reference axis, sorted in ascending order
+     * @param tolerance Maximum difference between a value and an axis value for the
+     * value to be stored as that axis value, or 0 for lossless encoding
+     */
+    public ReferenceAxisDataTransform(double[] referenceAxis, double tolerance) {
+        this.referenceAxis = referenceAxis;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Create a reference axis from the sorted, distinct values of the supplied arrays.
+     *
+     * @param arrays Arrays (such as m/z arrays) to create the axis from
+     * @return Reference axis
+     */
+    public static double[] createReferenceAxis(Iterable<double[]> arrays) {
+        int totalLength = 0;
+
+        for (double[] array : arrays) {
+            totalLength += array.length;
+        }
+
+        double[] values = new double[totalLength];
+        int position = 0;
+
+        for (double[] array : arrays) {
+            System.arraycopy(array, 0, values, position, array.length);
+            position += array.length;
+        }
+
+        Arrays.sort(values);
+
+        int numDistinct = 0;
+
+        for (int i = 0; i < values.length; i++) {
+            if (numDistinct == 0 || Double.compare(values[i], values[numDistinct - 1]) != 0) {
+                values[numDistinct++] = values[i];
+            }
+        }
+
+        return Arrays.copyOf(values, numDistinct);
+    }
+
+    /**
+     * Load the reference axis stored at the specified location within a DataStorage.
+     * The axis is cached, so that all arrays referencing it share the same instance.
+     *
+     * @param dataStorage DataStorage containing the reference axis
+     * @param offset Offset of the axis in bytes
+     * @param length Length of the axis in bytes
+     * @return Reference axis
+     * @throws IOException If the axis could not be read
+     */
+    public static double[] loadReferenceAxis(DataStorage dataStorage, long offset, int length) throws IOException {
+        synchronized (LOADED_AXES) {
+            Map<Long, double[]> axes = LOADED_AXES.get(dataStorage);
+
+            if (axes == null) {
+                axes = new HashMap<Long, double[]>();
+                LOADED_AXES.put(dataStorage, axes);
+            }
+
+            double[] axis = axes.get(offset);
+
+            if (axis == null || axis.length * 8 != length) {
+                axis = DataTypeTransform.convertDataToDouble(dataStorage.getData(offset, length), DataTypeTransform.DataType.DOUBLE);
+                axes.put(offset, axis);
+            }
+
+            return axis;
+        }
+    }
+
+    /**
+     * Get the reference axis.
+     *
+     * @return Reference axis
+     */
+    public double[] getReferenceAxis() {
+        return referenceAxis;
+    }
+
+    /**
+     * Get the maximum number of bytes required to encode the specified number of
+     * values.
+     *
+     * @param numValues Number of values to encode
+     * @return Maximum size of the encoded data in bytes
+     */
+    public static int getMaximumEncodedLength(int numValues) {
+        return 4 + numValues * 9;
+    }
+
+    @Override
+    public byte[] forwardTransform(byte[] data) throws DataFormatException {
+        return forwardTransform(DataTypeTransform.convertDataToDouble(data, DataTypeTransform.DataType.DOUBLE));
+    }
+
+    @Override
+    public byte[] forwardTransform(double[] data) throws DataFormatException {
+        int maximumLength = getMaximumEncodedLength(data.length);
+        byte[] encoded = ENCODE_BUFFER.get();
+
+        if (encoded == null || encoded.length < maximumLength) {
+            encoded = new byte[maximumLength];
+
+            if (maximumLength <= MAXIMUM_RETAINED_BUFFER) {
+                ENCODE_BUFFER.set(encoded);
+            }
+        }
+
+        for (int i = 0; i < 4; i++) {
+            encoded[i] = (byte) (data.length >>> (8 * i));
+        }
+
+        int position = 4;
+        int previousIndex = -1;
+
+        for (double value : data) {
+            int index = findIndex(value, previousIndex);
+
+            if (index < 0) {
+                encoded[position++] = 1;
+
+                long bits = Double.doubleToRawLongBits(value);
+
+                for (int i = 0; i < 8; i++) {
+                    encoded[position++] = (byte) (bits >>> (8 * i));
+                }
+            } else {
+                int delta = index - previousIndex - 1;
+                long code = ((long) ((delta << 1) ^ (delta >> 31)) & 0xFFFFFFFFL) << 1;
+
+                while ((code & ~0x7FL) != 0) {
+                    encoded[position++] = (byte) ((code & 0x7F) | 0x80);
+                    code >>>= 7;
+                }
+
+                encoded[position++] = (byte) code;
+
+                previousIndex = index;
+            }
+        }
+
+        return Arrays.copyOf(encoded, position);
+    }
+
+    /**
+     * Find the index of the axis value closest to the specified value, searching
+     * after the previous index first as arrays are typically sorted.
+     *
+     * @param value Value to find
+     * @param previousIndex Index found for the previous value, or -1
+     * @return Index of the axis value, or -1 if there is none within the tolerance
+     */
+    private int findIndex(double value, int previousIndex) {
+        int fromIndex = (previousIndex >= 0 && value > referenceAxis[previousIndex]) ? previousIndex + 1 : 0;
+        int index = Arrays.binarySearch(referenceAxis, fromIndex, referenceAxis.length, value);
+
+        if (index >= 0) {
+            return index;
+        }
+
+        if (tolerance <= 0) {
+            return -1;
+        }
+
+        // Check the axis values either side of the insertion point
+        int insertionPoint = -index - 1;
+        int closest = -1;
+        double closestDifference = tolerance;
+
+        for (int candidate = insertionPoint - 1; candidate <= insertionPoint; candidate++) {
+            if (candidate >= 0 && candidate < referenceAxis.length) {
+                double difference = Math.abs(referenceAxis[candidate] - value);
+
+                if (difference <= closestDifference) {
+                    closest = candidate;
+                    closestDifference = difference;
+                }
+            }
+        }
+
+        return closest;
+    }
+
+    @Override
+    public byte[] reverseTransform(byte[] data) throws DataFormatException {
+        return DataTypeTransform.convertDoublesToBytes(decode(data, 0, data.length));
+    }
+
+    /**
+     * Decode a region of encoded data to double[].
+     *
+     * @param data Encoded data
+     * @param offset Index of the first byte of the encoded data within data
+     * @param length Number of bytes of encoded data
+     * @return Decoded values
+     * @throws DataFormatException If the data is corrupt or does not match the axis
+     */
+    public double[] decode(byte[] data, int offset, int length) throws DataFormatException {
+        TransformBuffer output = new TransformBuffer();
+
+        reverseTransform(data, offset, length, output);
+
+        return Arrays.copyOf(output.getDoubleArray(), output.getLength());
+    }
+
+    @Override
+    public DataForm getReverseOutputForm() {
+        return DataForm.DOUBLES;
+    }
+
+    @Override
+    public void reverseTransform(byte[] data, int offset, int length, TransformBuffer output) throws DataFormatException {
+        if (length < 4) {
+            throw new DataFormatException("Corrupt reference axis encoded data");
+        }
+
+        int numValues = 0;
+
+        for (int i = 0; i < 4; i++) {
+            numValues |= (data[offset + i] & 0xFF) << (8 * i);
+        }
+
+        // Each value takes at least one byte
+        if (numValues < 0 || numValues > length - 4) {
+            throw new DataFormatException("Corrupt reference axis encoded data");
+        }
+
+        double[] decoded = output.doubleArray(numValues);
+        int position = offset + 4;
+        int end = offset + length;
+        int previousIndex = -1;
+
+        try {
+            for (int i = 0; i < numValues; i++) {
+                long code = 0;
+                int shift = 0;
+                byte current;
+
+                do {
+                    current = data[position++];
+                    code |= (long) (current & 0x7F) << shift;
+                    shift += 7;
+                } while (current < 0 && shift < 42);
+
+                if ((code & 1) != 0) {
+                    long bits = 0;
+
+                    for (int b = 0; b < 8; b++) {
+                        bits |= (data[position++] & 0xFFL) << (8 * b);
+                    }
+
+                    decoded[i] = Double.longBitsToDouble(bits);
+                } else {
+                    int zigzag = (int) (code >>> 1);
+                    int delta = (zigzag >>> 1) ^ -(zigzag & 1);
+
+                    previousIndex += delta + 1;
+                    decoded[i] = referenceAxis[previousIndex];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new DataFormatException("Corrupt reference axis encoded data, or data encoded against a different axis");
+        }
+
+        if (position > end) {
+            throw new DataFormatException("Corrupt reference axis encoded data");
+        }
+
+        output.setDoubleLength(numValues);
+    }
+
+    @Override
+    public String toString() {
+        return "ReferenceAxisDataTransform (" + referenceAxis.length + " values)";
+    }
+}
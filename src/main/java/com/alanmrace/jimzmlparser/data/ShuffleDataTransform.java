@@ -0,0 +1,230 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.util.zip.DataFormatException;
+
+/**
+ * DataTransform describing the shuffling (forward) and unshuffling (reverse) of
+ * the bytes or bits of fixed width elements, as performed by Blosc and HDF5 prior
+ * to compression.
+ *
+ * <p>Byte shuffling groups together the first byte of every element, followed by
+ * the second byte of every element, and so on. For smoothly varying numeric data
+ * (such as m/z and intensity arrays stored as float or double) the high order
+ * bytes of neighbouring elements are often identical, so the shuffled data
+ * compresses much better with a fast general purpose compressor such as
+ * {@link LZ4DataTransform} or {@link ZstdDataTransform}. Bit shuffling does the
+ * same for each bit, which is most effective for integer data with small values
+ * (such as counts).
+ *
+ * <p>The length of the data is unchanged. Any trailing bytes which do not make up
+ * a whole element (or for bit shuffling, a whole group of 8 elements) are left
+ * in place at the end of the data.
+ */
+public class ShuffleDataTransform implements FusedDataTransform {
+
+    /**
+     * Serialisation version ID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Granularity of the shuffle.
+     */
+    public enum ShuffleType {
+        /**
+         * Shuffle the bytes of each element.
+         */
+        BYTE,
+
+        /**
+         * Shuffle the bits of each element.
+         */
+        BIT
+    }
+
+    /**
+     * Size of each element in bytes.
+     */
+    protected final int elementSize;
+
+    /**
+     * Whether to shuffle bytes or bits.
+     */
+    protected final ShuffleType shuffleType;
+
+    /**
+     * Set up a byte shuffle of elements of the specified size.
+     *
+     * @param elementSize Size of each element in bytes
+     */
+    public ShuffleDataTransform(int elementSize) {
+        this(elementSize, ShuffleType.BYTE);
+    }
+
+    /**
+     * Set up a byte or bit shuffle of elements of the specified size.
+     *
+     * @param elementSize Size of each element in bytes
+     * @param shuffleType Whether to shuffle bytes or bits
+     */
+    public ShuffleDataTransform(int elementSize, ShuffleType shuffleType) {
+        if (elementSize < 1) {
+            throw new IllegalArgumentException("Invalid element size: " + elementSize);
+        }
+
+        this.elementSize = elementSize;
+        this.shuffleType = shuffleType;
+    }
+
+    /**
+     * Get the size of each element in bytes.
+     *
+     * @return Element size
+     */
+    public int getElementSize() {
+        return elementSize;
+    }
+
+    /**
+     * Get whether bytes or bits are shuffled.
+     *
+     * @return Shuffle type
+     */
+    public ShuffleType getShuffleType() {
+        return shuffleType;
+    }
+
+    @Override
+    public byte[] forwardTransform(byte[] data) throws DataFormatException {
+        byte[] shuffled = new byte[data.length];
+
+        if (shuffleType == ShuffleType.BIT) {
+            bitShuffle(data, 0, shuffled, data.length, true);
+        } else {
+            byteShuffle(data, 0, shuffled, data.length, true);
+        }
+
+        return shuffled;
+    }
+
+    @Override
+    public byte[] reverseTransform(byte[] data) throws DataFormatException {
+        TransformBuffer output = new TransformBuffer();
+
+        reverseTransform(data, 0, data.length, output);
+
+        return output.toByteArray();
+    }
+
+    @Override
+    public DataForm getReverseOutputForm() {
+        return DataForm.BYTES;
+    }
+
+    @Override
+    public void reverseTransform(byte[] data, int offset, int length, TransformBuffer output) throws DataFormatException {
+        byte[] unshuffled = output.byteArray(length, false);
+
+        if (shuffleType == ShuffleType.BIT) {
+            bitShuffle(data, offset, unshuffled, length, false);
+        } else {
+            byteShuffle(data, offset, unshuffled, length, false);
+        }
+
+        output.setByteLength(length);
+    }
+
+    /**
+     * Shuffle or unshuffle the bytes of each element.
+     *
+     * @param source Data to (un)shuffle
+     * @param offset Index of the first byte of the data within source
+     * @param destination Array to write the (un)shuffled data to, from index 0
+     * @param length Number of bytes
+     * @param forward true to shuffle, false to unshuffle
+     */
+    private void byteShuffle(byte[] source, int offset, byte[] destination, int length, boolean forward) {
+        int numElements = length / elementSize;
+
+        for (int b = 0; b < elementSize; b++) {
+            int planeStart = b * numElements;
+
+            for (int i = 0, elementByte = b; i < numElements; i++, elementByte += elementSize) {
+                if (forward) {
+                    destination[planeStart + i] = source[offset + elementByte];
+                } else {
+                    destination[elementByte] = source[offset + planeStart + i];
+                }
+            }
+        }
+
+        int shuffledLength = numElements * elementSize;
+        System.arraycopy(source, offset + shuffledLength, destination, shuffledLength, length - shuffledLength);
+    }
+
+    /**
+     * Shuffle or unshuffle the bits of each element, in groups of 8 elements. Bit
+     * j of byte b of each element is stored in bit plane (8 * b + j), which holds
+     * one bit for every element.
+     *
+     * @param source Data to (un)shuffle
+     * @param offset Index of the first byte of the data within source
+     * @param destination Array to write the (un)shuffled data to, from index 0
+     * @param length Number of bytes
+     * @param forward true to shuffle, false to unshuffle
+     */
+    private void bitShuffle(byte[] source, int offset, byte[] destination, int length, boolean forward) {
+        int numGroups = length / elementSize / 8;
+
+        for (int b = 0; b < elementSize; b++) {
+            for (int group = 0; group < numGroups; group++) {
+                // Gather byte b of 8 consecutive elements (or one byte from each
+                // of the 8 bit planes) into a bit matrix and transpose it
+                long matrix = 0;
+
+                for (int e = 0; e < 8; e++) {
+                    int index = forward ? ((group * 8 + e) * elementSize + b) : ((b * 8 + e) * numGroups + group);
+
+                    matrix |= (source[offset + index] & 0xFFL) << (8 * e);
+                }
+
+                matrix = transposeBitMatrix(matrix);
+
+                for (int e = 0; e < 8; e++) {
+                    int index = forward ? ((b * 8 + e) * numGroups + group) : ((group * 8 + e) * elementSize + b);
+
+                    destination[index] = (byte) (matrix >>> (8 * e));
+                }
+            }
+        }
+
+        int shuffledLength = numGroups * 8 * elementSize;
+        System.arraycopy(source, offset + shuffledLength, destination, shuffledLength, length - shuffledLength);
+    }
+
+    /**
+     * Transpose an 8x8 bit matrix, where byte i of the long is row i and bit j of
+     * each byte is column j.
+     *
+     * @param matrix Bit matrix
+     * @return Transposed bit matrix
+     */
+    static long transposeBitMatrix(long matrix) {
+        long x = matrix;
+        long t;
+
+        t = (x ^ (x >>> 7)) & 0x00AA00AA00AA00AAL;
+        x = x ^ t ^ (t << 7);
+        t = (x ^ (x >>> 14)) & 0x0000CCCC0000CCCCL;
+        x = x ^ t ^ (t << 14);
+        t = (x ^ (x >>> 28)) & 0x00000000F0F0F0F0L;
+        x = x ^ t ^ (t << 28);
+
+        return x;
+    }
+
+    @Override
+    public String toString() {
+        return "ShuffleDataTransform (" + shuffleType + ", " + elementSize + " byte elements)";
+    }
+}
@@ -0,0 +1,264 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded data arrays, limited to a maximum number of bytes. When adding
+ * an array would exceed the limit, the least recently used arrays are evicted.
+ * 
+ * <p>A cache is attached to a dataset with {@link com.alanmrace.jimzmlparser.mzml.MzML#setSpectrumDataCache(SpectrumDataCache)},
+ * after which {@link DataLocation#getData()} (and so {@link com.alanmrace.jimzmlparser.mzml.Spectrum#getmzArray()}
+ * and {@link com.alanmrace.jimzmlparser.mzml.Spectrum#getIntensityArray()}) consult the cache before
+ * reading and decoding the data. Copies of the cached arrays are returned, so modifying
+ * a returned array does not modify the cache.
+ * 
+ * <p>All methods are thread safe.
+ * 
+ */
+public class SpectrumDataCache {
+    
+    /**
+     * Approximate memory used by each entry in addition to the data itself, in bytes.
+     */
+    private static final long ENTRY_OVERHEAD = 96;
+    
+    /**
+     * Maximum number of bytes of data to hold in the cache.
+     */
+    private long maximumSize;
+    
+    /**
+     * Current number of bytes held in the cache.
+     */
+    private long size;
+    
+    /**
+     * Cached data in access order, least recently used first.
+     */
+    private final LinkedHashMap<CacheKey, double[]> cache;
+    
+    private long hitCount;
+    
+    private long missCount;
+    
+    private long evictionCount;
+    
+    /**
+     * Create a cache which holds at most maximumSize bytes of data.
+     * 
+     * @param maximumSize Maximum size of the cache in bytes
+     */
+    public SpectrumDataCache(long maximumSize) {
+        this.maximumSize = maximumSize;
+        this.cache = new LinkedHashMap<CacheKey, double[]>(16, 0.75f, true);
+    }
+    
+    /**
+     * Get a copy of the cached data for the DataLocation, if present.
+     * 
+     * @param location DataLocation of the data
+     * @return Copy of the cached data, or null if the data is not in the cache
+     */
+    public synchronized double[] get(DataLocation location) {
+        double[] data = cache.get(new CacheKey(location));
+        
+        if (data == null) {
+            missCount++;
+            
+            return null;
+        }
+        
+        hitCount++;
+        
+        return data.clone();
+    }
+    
+    /**
+     * Add a copy of the data for the DataLocation to the cache, evicting the least
+     * recently used data as necessary. Data larger than the maximum size of the 
+     * cache is not cached.
+     * 
+     * @param location DataLocation of the data
+     * @param data Decoded data
+     */
+    public synchronized void put(DataLocation location, double[] data) {
+        long entrySize = getEntrySize(data);
+        
+        if (entrySize > maximumSize) {
+            return;
+        }
+        
+        double[] previous = cache.put(new CacheKey(location), data.clone());
+        
+        if (previous != null) {
+            size -= getEntrySize(previous);
+        }
+        
+        size += entrySize;
+        
+        evict();
+    }
+    
+    /**
+     * Remove the least recently used data until the cache is within its maximum size.
+     */
+    private void evict() {
+        Iterator<Map.Entry<CacheKey, double[]>> iterator = cache.entrySet().iterator();
+        
+        while (size > maximumSize && iterator.hasNext()) {
+            size -= getEntrySize(iterator.next().getValue());
+            iterator.remove();
+            
+            evictionCount++;
+        }
+    }
+    
+    private static long getEntrySize(double[] data) {
+        return (long) data.length * 8 + ENTRY_OVERHEAD;
+    }
+    
+    /**
+     * Remove all data from the cache. Statistics are not reset.
+     */
+    public synchronized void clear() {
+        cache.clear();
+        size = 0;
+    }
+    
+    /**
+     * Set the maximum number of bytes of data to hold in the cache, evicting data
+     * if the cache is currently larger than this.
+     * 
+     * @param maximumSize Maximum size of the cache in bytes
+     */
+    public synchronized void setMaximumSize(long maximumSize) {
+        this.maximumSize = maximumSize;
+        
+        evict();
+    }
+    
+    /**
+     * Get the maximum number of bytes of data to hold in the cache.
+     * 
+     * @return Maximum size of the cache in bytes
+     */
+    public synchronized long getMaximumSize() {
+        return maximumSize;
+    }
+    
+    /**
+     * Get the approximate number of bytes currently held in the cache.
+     * 
+     * @return Size of the cache in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    /**
+     * Get the number of data arrays currently held in the cache.
+     * 
+     * @return Number of cached arrays
+     */
+    public synchronized int getEntryCount() {
+        return cache.size();
+    }
+    
+    /**
+     * Get the number of requests which were found in the cache.
+     * 
+     * @return Number of cache hits
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+    
+    /**
+     * Get the number of requests which were not found in the cache.
+     * 
+     * @return Number of cache misses
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+    
+    /**
+     * Get the number of data arrays evicted to keep the cache within its maximum size.
+     * 
+     * @return Number of evictions
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+    
+    /**
+     * Get the fraction of requests which were found in the cache.
+     * 
+     * @return Hit rate between 0 and 1, or 0 if there have been no requests
+     */
+    public synchronized double getHitRate() {
+        long requests = hitCount + missCount;
+        
+        if (requests == 0) {
+            return 0;
+        }
+        
+        return (double) hitCount / requests;
+    }
+    
+    /**
+     * Reset the hit, miss and eviction counts.
+     */
+    public synchronized void resetStatistics() {
+        hitCount = 0;
+        missCount = 0;
+        evictionCount = 0;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return "SpectrumDataCache [" + cache.size() + " arrays, " + size + "/" + maximumSize + " bytes, " 
+                + hitCount + " hits, " + missCount + " misses, " + evictionCount + " evictions]";
+    }
+    
+    /**
+     * Key identifying data by the DataStorage it is stored in and its location 
+     * within it.
+     */
+    private static final class CacheKey {
+        
+        private final DataStorage dataStorage;
+        
+        private final long offset;
+        
+        private final int length;
+        
+        CacheKey(DataLocation location) {
+            this.dataStorage = location.getDataStorage();
+            this.offset = location.getOffset();
+            this.length = location.getLength();
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            
+            CacheKey other = (CacheKey) obj;
+            
+            return dataStorage == other.dataStorage && offset == other.offset && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = System.identityHashCode(dataStorage);
+            hash = 31 * hash + (int) (offset ^ (offset >>> 32));
+            hash = 31 * hash + length;
+            
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.util.Arrays;
+
+/**
+ * Reusable holder for the output of one stage of a fused DataTransformation 
+ * pipeline (see {@link FusedDataTransform}). The arrays held are only ever grown, 
+ * so when a TransformBuffer is reused for many arrays of similar size no further 
+ * allocation takes place. The valid data is the first {@link #getLength()} values 
+ * of either {@link #getByteArray()} or {@link #getDoubleArray()}, depending on 
+ * {@link #getForm()}.
+ * 
+ */
+public class TransformBuffer {
+    
+    /**
+     * Byte storage.
+     */
+    private byte[] bytes;
+    
+    /**
+     * Double storage.
+     */
+    private double[] doubles;
+    
+    /**
+     * Array supplied by the caller to decode doubles into directly, if any.
+     */
+    private double[] doubleTarget;
+    
+    /**
+     * Number of values of doubleTarget that may be written to.
+     */
+    private int doubleTargetCapacity;
+    
+    /**
+     * Array most recently returned by {@link #doubleArray(int)}.
+     */
+    private double[] doubleOutput;
+    
+    /**
+     * Form of the valid data.
+     */
+    private FusedDataTransform.DataForm form = FusedDataTransform.DataForm.BYTES;
+    
+    /**
+     * Number of valid values.
+     */
+    private int length;
+    
+    /**
+     * Get a byte[] with at least the specified capacity to write output into.
+     * 
+     * @param minimumCapacity Minimum number of bytes required
+     * @param keepContents true if the contents of the current byte[] should be 
+     * preserved when it has to be enlarged
+     * @return byte[] of at least minimumCapacity bytes
+     */
+    public byte[] byteArray(int minimumCapacity, boolean keepContents) {
+        if (bytes == null) {
+            bytes = new byte[minimumCapacity];
+        } else if (bytes.length < minimumCapacity) {
+            bytes = keepContents ? Arrays.copyOf(bytes, minimumCapacity) : new byte[minimumCapacity];
+        }
+        
+        return bytes;
+    }
+    
+    /**
+     * Get a double[] with at least the specified capacity to write output into. 
+     * If an array has been supplied with {@link #setDoubleTarget(double[], int)} 
+     * and it is large enough, then that is returned so that the output is written
+     * straight to its final destination.
+     * 
+     * @param minimumCapacity Minimum number of values required
+     * @return double[] of at least minimumCapacity values
+     */
+    public double[] doubleArray(int minimumCapacity) {
+        if (doubleTarget != null && doubleTargetCapacity >= minimumCapacity) {
+            doubleOutput = doubleTarget;
+        } else {
+            if (doubles == null || doubles.length < minimumCapacity) {
+                doubles = new double[minimumCapacity];
+            }
+            
+            doubleOutput = doubles;
+        }
+        
+        return doubleOutput;
+    }
+    
+    /**
+     * Set the number of valid bytes written to the array returned by 
+     * {@link #byteArray(int, boolean)}.
+     * 
+     * @param length Number of valid bytes
+     */
+    public void setByteLength(int length) {
+        this.form = FusedDataTransform.DataForm.BYTES;
+        this.length = length;
+    }
+    
+    /**
+     * Set the number of valid values written to the array returned by 
+     * {@link #doubleArray(int)}.
+     * 
+     * @param length Number of valid values
+     */
+    public void setDoubleLength(int length) {
+        this.form = FusedDataTransform.DataForm.DOUBLES;
+        this.length = length;
+    }
+    
+    /**
+     * Supply an array which {@link #doubleArray(int)} can return, so that the final 
+     * stage of a pipeline writes into the caller's array rather than an intermediate one.
+     * 
+     * @param target Array to write into, from index 0, or null to clear
+     * @param capacity Number of values of target that may be written to
+     */
+    public void setDoubleTarget(double[] target, int capacity) {
+        this.doubleTarget = target;
+        this.doubleTargetCapacity = capacity;
+    }
+    
+    /**
+     * Get the form of the valid data.
+     * 
+     * @return Form of the data
+     */
+    public FusedDataTransform.DataForm getForm() {
+        return form;
+    }
+    
+    /**
+     * Get the number of valid values (bytes or doubles, depending on {@link #getForm()}).
+     * 
+     * @return Number of valid values
+     */
+    public int getLength() {
+        return length;
+    }
+    
+    /**
+     * Get the byte[] containing the valid data, when the form is 
+     * {@link FusedDataTransform.DataForm#BYTES}.
+     * 
+     * @return byte[] whose first {@link #getLength()} bytes are valid
+     */
+    public byte[] getByteArray() {
+        return bytes;
+    }
+    
+    /**
+     * Get the double[] containing the valid data, when the form is 
+     * {@link FusedDataTransform.DataForm#DOUBLES}. This is the target supplied with
+     * {@link #setDoubleTarget(double[], int)} if the data was written there.
+     * 
+     * @return double[] whose first {@link #getLength()} values are valid
+     */
+    public double[] getDoubleArray() {
+        return doubleOutput;
+    }
+    
+    /**
+     * Copy the valid bytes to a new byte[] of exactly the right size, or return 
+     * the byte[] itself if it is already exactly the right size.
+     * 
+     * @return Valid bytes
+     */
+    public byte[] toByteArray() {
+        if (bytes == null) {
+            return new byte[0];
+        }
+        
+        if (bytes.length == length) {
+            return bytes;
+        }
+        
+        return Arrays.copyOf(bytes, length);
+    }
+    
+    /**
+     * Release any arrays larger than the specified size, so that a TransformBuffer 
+     * which is kept for reuse does not hold on to the memory required by an 
+     * unusually large array. The valid data is discarded.
+     * 
+     * @param maximumRetainedSize Maximum size in bytes of each array to keep
+     */
+    public void trim(int maximumRetainedSize) {
+        if (bytes != null && bytes.length > maximumRetainedSize) {
+            bytes = null;
+        }
+        
+        if (doubles != null && doubles.length * 8L > maximumRetainedSize) {
+            doubles = null;
+        }
+        
+        doubleTarget = null;
+        doubleTargetCapacity = 0;
+        doubleOutput = null;
+        length = 0;
+    }
+}
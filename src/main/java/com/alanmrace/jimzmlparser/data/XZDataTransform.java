@@ -8,12 +8,13 @@ package com.alanmrace.jimzmlparser.data;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Arrays;
 import java.util.zip.DataFormatException;
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.BasicArrayCache;
 import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.UnsupportedOptionsException;
+import org.tukaani.xz.XZ;
 import org.tukaani.xz.XZInputStream;
 import org.tukaani.xz.XZOutputStream;
 
@@ -21,84 +22,256 @@ import org.tukaani.xz.XZOutputStream;
  * DataTransform describing the compression (forward) and decompression (reverse)
  * of data using the XZ algorithm.
  * 
+ * <p>The large buffers used internally by the XZ encoder and decoder are reused 
+ * across arrays through a shared {@link ArrayCache}, and when the length of the 
+ * decompressed data is known the data is decompressed directly into an array of
+ * exactly that size. The preset and dictionary size used for compression are 
+ * specified per transform, which {@link com.alanmrace.jimzmlparser.mzml.BinaryDataArray}
+ * creates from the settings passed to 
+ * {@link com.alanmrace.jimzmlparser.mzml.BinaryDataArray#setCompression(com.alanmrace.jimzmlparser.mzml.BinaryDataArray.CompressionType, int, int, int)}.
+ * 
  * @author alan.race
  */
-public class XZDataTransform implements DataTransform {
+public class XZDataTransform implements FusedDataTransform {
+    
+    /**
+     * Serialisation version ID.
+     */
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * Buffer size to use when the size of the decompressed data is not known in advance.
+     */
+    protected static final int BYTE_BUFFER_SIZE = 1 << 20;
+    
+    /**
+     * Cache of the buffers used by the XZ encoder and decoder, shared by all transforms.
+     */
+    private static final ArrayCache ARRAY_CACHE = BasicArrayCache.getInstance();
+    
+    /**
+     * Smallest base 2 logarithm of the dictionary size supported, as 
+     * {@link LZMA2Options#DICT_SIZE_MIN} is 4 KiB.
+     */
+    public static final int MINIMUM_DICTIONARY_SIZE_LOG = 12;
+    
+    /**
+     * Largest base 2 logarithm of the dictionary size supported, as 
+     * {@link LZMA2Options#DICT_SIZE_MAX} is 768 MiB.
+     */
+    public static final int MAXIMUM_DICTIONARY_SIZE_LOG = 29;
+    
+    /**
+     * Expected length of the decompressed data in bytes, or -1 if unknown.
+     */
+    protected int expectedLength;
+    
+    /**
+     * Compression preset (0-9).
+     */
+    protected int preset;
+    
+    /**
+     * Dictionary size in bytes, or 0 to use the dictionary size of the preset.
+     */
+    protected int dictionarySize;
+    
+    /**
+     * Options used for compression, created when first required.
+     */
+    private transient LZMA2Options options;
+    
+    /**
+     * Set up an XZ transform where the length of the decompressed data is unknown,
+     * using the default preset and dictionary size.
+     */
+    public XZDataTransform() {
+        this(-1);
+    }
+    
+    /**
+     * Set up an XZ transform where the length of the decompressed data is known,
+     * using the default preset and dictionary size.
+     * 
+     * @param expectedLength Length of the decompressed data in bytes, or -1 if unknown
+     */
+    public XZDataTransform(int expectedLength) {
+        this.expectedLength = expectedLength;
+        this.preset = LZMA2Options.PRESET_DEFAULT;
+        this.dictionarySize = 0;
+    }
+    
+    /**
+     * Set up an XZ transform where the length of the decompressed data is known,
+     * using the specified preset and dictionary size for compression.
+     * 
+     * @param expectedLength Length of the decompressed data in bytes, or -1 if unknown
+     * @param preset Compression preset, from {@link LZMA2Options#PRESET_MIN} (0) to 
+     * {@link LZMA2Options#PRESET_MAX} (9)
+     * @param dictionarySize Dictionary size in bytes, or 0 to use the dictionary 
+     * size of the preset
+     * @throws IllegalArgumentException If the preset or dictionary size is not supported
+     */
+    public XZDataTransform(int expectedLength, int preset, int dictionarySize) {
+        this.expectedLength = expectedLength;
+        this.preset = preset;
+        this.dictionarySize = dictionarySize;
+        this.options = createOptions(preset, dictionarySize);
+    }
+    
+    /**
+     * Check that the base 2 logarithm of a dictionary size is supported.
+     * 
+     * @param dictionarySizeLog Base 2 logarithm of the dictionary size 
+     * ({@link #MINIMUM_DICTIONARY_SIZE_LOG} to {@link #MAXIMUM_DICTIONARY_SIZE_LOG}),
+     * or 0 to use the dictionary size of the preset
+     * @throws IllegalArgumentException If the dictionary size is not supported
+     */
+    public static void checkDictionarySizeLog(int dictionarySizeLog) {
+        if (dictionarySizeLog != 0 && (dictionarySizeLog < MINIMUM_DICTIONARY_SIZE_LOG || dictionarySizeLog > MAXIMUM_DICTIONARY_SIZE_LOG)) {
+            throw new IllegalArgumentException("Invalid XZ dictionary size log: " + dictionarySizeLog);
+        }
+    }
     
+    /**
+     * Create the LZMA2 options for the specified preset and dictionary size.
+     * 
+     * @param preset Compression preset
+     * @param dictionarySize Dictionary size in bytes, or 0 to use the dictionary 
+     * size of the preset
+     * @return Options
+     * @throws IllegalArgumentException If the preset or dictionary size is not supported
+     */
+    private static LZMA2Options createOptions(int preset, int dictionarySize) {
+        try {
+            LZMA2Options lzma2Options = new LZMA2Options(preset);
+            
+            if (dictionarySize > 0) {
+                lzma2Options.setDictSize(dictionarySize);
+            }
+            
+            return lzma2Options;
+        } catch (UnsupportedOptionsException ex) {
+            throw new IllegalArgumentException(ex.getMessage(), ex);
+        }
+    }
+    
+    /**
+     * Get the options used for compression.
+     * 
+     * @return Options
+     */
+    private LZMA2Options getOptions() {
+        if (options == null) {
+            options = createOptions(preset, dictionarySize);
+        }
+        
+        return options;
+    }
+    
+    /**
+     * Get the compression preset.
+     * 
+     * @return Preset
+     */
+    public int getPreset() {
+        return preset;
+    }
+    
+    /**
+     * Get the dictionary size.
+     * 
+     * @return Dictionary size in bytes
+     */
+    public int getDictionarySize() {
+        return getOptions().getDictSize();
+    }
     
     @Override
     public byte[] forwardTransform(byte[] data) throws DataFormatException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
-        XZOutputStream gzos = null;
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length / 2 + 64);
         
         try {
-            gzos = new XZOutputStream(outputStream, new LZMA2Options());
-            gzos.write(data, 0, data.length);
-            gzos.finish();
+            XZOutputStream xzOutputStream = new XZOutputStream(outputStream, getOptions(), XZ.CHECK_CRC64, ARRAY_CACHE);
+            xzOutputStream.write(data, 0, data.length);
+            xzOutputStream.close();
         } catch (IOException ex) {
-            Logger.getLogger(XZDataTransform.class.getName()).log(Level.SEVERE, null, ex);
-        } finally {
-            try {
-                if(gzos != null)
-                    gzos.close();
-            } catch (IOException ex) {
-                Logger.getLogger(XZDataTransform.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }
-        
-        if(gzos != null) {
-            try {
-                outputStream.flush();
-            } catch (IOException ex) {
-                Logger.getLogger(XZDataTransform.class.getName()).log(Level.SEVERE, null, ex);
-            }
+            DataFormatException dataFormatException = new DataFormatException("Failed to compress data with XZ: " + ex.getMessage());
+            dataFormatException.initCause(ex);
             
-            return outputStream.toByteArray();
+            throw dataFormatException;
         }
         
-        return new byte[0];
+        return outputStream.toByteArray();
     }
 
     @Override
     public byte[] reverseTransform(byte[] data) throws DataFormatException {
+        TransformBuffer output = new TransformBuffer();
+        
+        reverseTransform(data, 0, data.length, output);
+        
+        return output.toByteArray();
+    }
+    
+    @Override
+    public DataForm getReverseOutputForm() {
+        return DataForm.BYTES;
+    }
+
+    @Override
+    public void reverseTransform(byte[] data, int offset, int length, TransformBuffer output) throws DataFormatException {
+        byte[] uncompressedData;
+        
+        if (expectedLength >= 0) {
+            uncompressedData = output.byteArray(expectedLength, false);
+        } else {
+            uncompressedData = output.byteArray(Math.min(Math.max(length * 4, 64), BYTE_BUFFER_SIZE), false);
+        }
+        
+        int uncompressedLength = 0;
+        
         try {
-            XZInputStream xzInputStream = new XZInputStream(
-                    new ByteArrayInputStream(data));
+            XZInputStream xzInputStream = new XZInputStream(new ByteArrayInputStream(data, offset, length), -1, true, ARRAY_CACHE);
             
-            List<Byte> uncompressedData = new ArrayList<Byte>(data.length);
-            
-            int uncompressed = 0;
-            int firstByte;
-            
-            while((firstByte = xzInputStream.read()) != -1 && 
-                    (uncompressed = xzInputStream.available()) > 0) {
-                // Take into account the first byte
-                uncompressed++;
-                
-                byte[] temp = new byte[uncompressed]; // 2^20
-                temp[0] = (byte) firstByte;
-
-                xzInputStream.read(temp, 1, temp.length-1);
-
-                for (int i = 0; i < uncompressed; i++) {
-                    uncompressedData.add(temp[i]);
-                }
-            }
+            try {
+                while (true) {
+                    if (uncompressedLength == uncompressedData.length) {
+                        // Either the end of the data has been reached, or the expected 
+                        // length was wrong (or unknown) and so the output is grown
+                        int next = xzInputStream.read();
                         
-            xzInputStream.close();
-
-            byte[] uncompressedBytes = new byte[uncompressedData.size()];
-            
-            for (int i = 0; i < uncompressedData.size(); i++) {
-                uncompressedBytes[i] = uncompressedData.get(i);
+                        if (next == -1) {
+                            break;
+                        }
+                        
+                        uncompressedData = output.byteArray(Math.max(uncompressedData.length * 2, 64), true);
+                        uncompressedData[uncompressedLength++] = (byte) next;
+                    }
+                    
+                    int uncompressed = xzInputStream.read(uncompressedData, uncompressedLength, uncompressedData.length - uncompressedLength);
+                    
+                    if (uncompressed == -1) {
+                        break;
+                    }
+                    
+                    uncompressedLength += uncompressed;
+                }
+            } finally {
+                xzInputStream.close();
             }
-            
-            return uncompressedBytes;
         } catch (IOException ex) {
-            Logger.getLogger(XZDataTransform.class.getName()).log(Level.SEVERE, null, ex);
+            DataFormatException dataFormatException = new DataFormatException("Failed to decompress XZ data: " + ex.getMessage());
+            dataFormatException.initCause(ex);
+            
+            throw dataFormatException;
         }
         
-        return new byte[0];
+        output.setByteLength(uncompressedLength);
+    }
+    
+    @Override
+    public String toString() {
+        return "XZDataTransform (preset " + preset + ")";
     }
-
 }
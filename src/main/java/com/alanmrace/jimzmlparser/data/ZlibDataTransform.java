@@ -1,7 +1,8 @@
 package com.alanmrace.jimzmlparser.data;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
@@ -10,71 +11,281 @@ import java.util.zip.Inflater;
  * DataTransform describing the compression (forward) and decompression (reverse)
  * of data using the zlib algorithm.
  * 
+ * <p>Inflater and Deflater instances are pooled and reused for each array, rather
+ * than allocating (and initialising the native zlib state of) new instances every 
+ * time. At most {@link #MAXIMUM_POOLED_CONTEXTS} of each are retained, and any 
+ * others are ended once used so that their native memory is released. When the 
+ * length of the decompressed data is known, for example from the external array 
+ * length and data type, the data is inflated directly into an array of exactly 
+ * that size. The compression level is specified per transform, which 
+ * {@link com.alanmrace.jimzmlparser.mzml.BinaryDataArray} creates from the level
+ * passed to 
+ * {@link com.alanmrace.jimzmlparser.mzml.BinaryDataArray#setCompression(com.alanmrace.jimzmlparser.mzml.BinaryDataArray.CompressionType, int, int, int)}.
+ * 
  * @author Alan Race
  */
-public class ZlibDataTransform implements DataTransform {
+public class ZlibDataTransform implements FusedDataTransform {
+    
+    /**
+     * Serialisation version ID.
+     */
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * Byte buffer size to use for temporary storage for (de)compression when the 
+     * size of the output is not known in advance.
+     */
+    protected static final int BYTE_BUFFER_SIZE = 1 << 20;
+    
+    /**
+     * Maximum number of Inflater (and of Deflater) instances retained for reuse.
+     */
+    public static final int MAXIMUM_POOLED_CONTEXTS = 2 * Runtime.getRuntime().availableProcessors();
+    
+    /**
+     * Inflaters available for reuse.
+     */
+    private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<Inflater>(MAXIMUM_POOLED_CONTEXTS);
+    
+    /**
+     * Deflaters available for reuse.
+     */
+    private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<Deflater>(MAXIMUM_POOLED_CONTEXTS);
+    
+    /**
+     * Expected length of the decompressed data in bytes, or -1 if unknown.
+     */
+    protected int expectedLength;
+    
+    /**
+     * Compression level (0-9, or {@link Deflater#DEFAULT_COMPRESSION}) to use 
+     * for the forward transform.
+     */
+    protected int compressionLevel;
+    
+    /**
+     * Set up a zlib transform where the length of the decompressed data is unknown,
+     * using the default compression level.
+     */
+    public ZlibDataTransform() {
+        this(-1);
+    }
+    
+    /**
+     * Set up a zlib transform where the length of the decompressed data is known,
+     * using the default compression level.
+     * 
+     * @param expectedLength Length of the decompressed data in bytes, or -1 if unknown
+     */
+    public ZlibDataTransform(int expectedLength) {
+        this(expectedLength, Deflater.DEFAULT_COMPRESSION);
+    }
+    
+    /**
+     * Set up a zlib transform where the length of the decompressed data is known,
+     * using the specified compression level.
+     * 
+     * @param expectedLength Length of the decompressed data in bytes, or -1 if unknown
+     * @param compressionLevel Compression level, from {@link Deflater#BEST_SPEED} (1) 
+     * to {@link Deflater#BEST_COMPRESSION} (9), or {@link Deflater#DEFAULT_COMPRESSION}
+     * @throws IllegalArgumentException If the compression level is not valid
+     */
+    public ZlibDataTransform(int expectedLength, int compressionLevel) {
+        if ((compressionLevel < 0 || compressionLevel > 9) && compressionLevel != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        }
+        
+        this.expectedLength = expectedLength;
+        this.compressionLevel = compressionLevel;
+    }
     
     /**
-     * Byte buffer size to use for temporary storage for (de)compression.
+     * Get the compression level used for the forward transform.
+     * 
+     * @return Compression level
      */
-    protected static final int BYTE_BUFFER_SIZE = 2 ^ 20;
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Take a Deflater from the pool, or create one if none is available. The 
+     * Deflater must be returned with {@link #releaseDeflater(Deflater)} once used.
+     * 
+     * @return Deflater
+     */
+    private static Deflater acquireDeflater() {
+        Deflater deflater = DEFLATERS.poll();
+        
+        return (deflater == null) ? new Deflater() : deflater;
+    }
+    
+    /**
+     * Reset a Deflater and return it to the pool, or end it if the pool is full.
+     * 
+     * @param deflater Deflater taken with {@link #acquireDeflater()}
+     */
+    private static void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        
+        if (!DEFLATERS.offer(deflater)) {
+            deflater.end();
+        }
+    }
+    
+    /**
+     * Take an Inflater from the pool, or create one if none is available. The 
+     * Inflater must be returned with {@link #releaseInflater(Inflater)} once used.
+     * 
+     * @return Inflater
+     */
+    private static Inflater acquireInflater() {
+        Inflater inflater = INFLATERS.poll();
+        
+        return (inflater == null) ? new Inflater() : inflater;
+    }
+    
+    /**
+     * Reset an Inflater and return it to the pool, or end it if the pool is full.
+     * 
+     * @param inflater Inflater taken with {@link #acquireInflater()}
+     */
+    private static void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        
+        if (!INFLATERS.offer(inflater)) {
+            inflater.end();
+        }
+    }
 
     @Override
     public byte[] forwardTransform(byte[] data) throws DataFormatException {
-        Deflater compressor = new Deflater();
+        Deflater compressor = acquireDeflater();
+        
+        try {
+            return deflate(compressor, data);
+        } finally {
+            releaseDeflater(compressor);
+        }
+    }
+    
+    /**
+     * Compress data with the specified Deflater, which has been reset.
+     * 
+     * @param compressor Deflater
+     * @param data Data to compress
+     * @return Compressed data
+     */
+    private byte[] deflate(Deflater compressor, byte[] data) {
+        compressor.setLevel(compressionLevel);
         compressor.setInput(data);
         compressor.finish();
-
-        ArrayList<Byte> compressedData = new ArrayList<Byte>();
-        int compressed;
-
-        do {
-            byte[] temp = new byte[BYTE_BUFFER_SIZE]; // 2^20
-
-            compressed = compressor.deflate(temp);
-
-            for (int i = 0; i < compressed; i++) {
-                compressedData.add(temp[i]);
+        
+        // zlib's worst case expansion (see deflateBound), so a single call normally suffices
+        byte[] compressedData = new byte[data.length + (data.length >> 12) + (data.length >> 14) + (data.length >> 25) + 13];
+        int compressedLength = 0;
+        
+        while (!compressor.finished()) {
+            if (compressedLength == compressedData.length) {
+                compressedData = Arrays.copyOf(compressedData, compressedData.length + BYTE_BUFFER_SIZE);
             }
-        } while (compressed != 0);
-
-        byte[] compressedBytes = new byte[compressedData.size()];
-
-        for (int i = 0; i < compressedData.size(); i++) {
-            compressedBytes[i] = compressedData.get(i);
+            
+            compressedLength += compressor.deflate(compressedData, compressedLength, compressedData.length - compressedLength);
         }
-
-        return compressedBytes;
+        
+        return Arrays.copyOf(compressedData, compressedLength);
     }
 
     @Override
     public byte[] reverseTransform(byte[] data) throws DataFormatException {
-        Inflater decompressor = new Inflater();
-        decompressor.setInput(data);
-
-        List<Byte> uncompressedData = new ArrayList<Byte>(data.length);
-        int uncompressed;
-
-        do {
-            byte[] temp = new byte[BYTE_BUFFER_SIZE]; // 2^20
-
-            uncompressed = decompressor.inflate(temp);
+        TransformBuffer output = new TransformBuffer();
+        
+        reverseTransform(data, 0, data.length, output);
+        
+        return output.toByteArray();
+    }
+    
+    @Override
+    public DataForm getReverseOutputForm() {
+        return DataForm.BYTES;
+    }
 
-            for (int i = 0; i < uncompressed; i++) {
-                uncompressedData.add(temp[i]);
+    @Override
+    public void reverseTransform(byte[] data, int offset, int length, TransformBuffer output) throws DataFormatException {
+        // Empty arrays may be stored without a zlib stream
+        if (length == 0) {
+            output.byteArray(0, false);
+            output.setByteLength(0);
+            
+            return;
+        }
+        
+        Inflater decompressor = acquireInflater();
+        
+        try {
+            inflate(decompressor, data, offset, length, output);
+        } finally {
+            releaseInflater(decompressor);
+        }
+    }
+    
+    /**
+     * Decompress data with the specified Inflater, which has been reset.
+     * 
+     * @param decompressor Inflater
+     * @param data Array containing the compressed data
+     * @param offset Index of the first byte of the compressed data within data
+     * @param length Number of bytes of compressed data
+     * @param output Buffer to decompress into
+     * @throws DataFormatException If the data is not a valid zlib stream
+     */
+    private void inflate(Inflater decompressor, byte[] data, int offset, int length, TransformBuffer output) throws DataFormatException {
+        decompressor.setInput(data, offset, length);
+        
+        byte[] uncompressedData;
+        
+        if (expectedLength >= 0) {
+            uncompressedData = output.byteArray(expectedLength, false);
+        } else {
+            uncompressedData = output.byteArray(Math.min(Math.max(length * 4, 64), BYTE_BUFFER_SIZE), false);
+        }
+        
+        int uncompressedLength = 0;
+        
+        while (!decompressor.finished()) {
+            if (uncompressedLength == uncompressedData.length) {
+                // Allow for the end of the stream not yet having been consumed when the 
+                // output is exactly the expected length, otherwise the expected length 
+                // was wrong (or unknown) so grow the output
+                int newLength;
+                
+                if (uncompressedLength == expectedLength) {
+                    newLength = uncompressedLength + 64;
+                } else {
+                    newLength = Math.max(uncompressedData.length * 2, 64);
+                }
+                
+                if (newLength < 0) {
+                    throw new DataFormatException("Decompressed data is too large for an array");
+                }
+                
+                uncompressedData = output.byteArray(newLength, true);
+            }
+            
+            int uncompressed = decompressor.inflate(uncompressedData, uncompressedLength, uncompressedData.length - uncompressedLength);
+            uncompressedLength += uncompressed;
+            
+            // Fail on truncated data rather than looping forever or returning partial data
+            if (uncompressed == 0 && !decompressor.finished() && (decompressor.needsInput() || decompressor.needsDictionary())) {
+                throw new DataFormatException("Compressed data ended after " + uncompressedLength + " bytes, before the end of the zlib stream");
             }
-
-        } while (uncompressed != 0);
-
-        byte[] uncompressedBytes = new byte[uncompressedData.size()];
-
-        for (int i = 0; i < uncompressedData.size(); i++) {
-            uncompressedBytes[i] = uncompressedData.get(i);
         }
-
-        decompressor.end();
-
-        return uncompressedBytes;
+        
+        output.setByteLength(uncompressedLength);
+    }
+    
+    @Override
+    public String toString() {
+        return "ZlibDataTransform (level " + compressionLevel + ")";
     }
-
 }
@@ -1,36 +1,449 @@
 package com.alanmrace.jimzmlparser.data;
 
 import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.zip.DataFormatException;
 
 /**
+ * DataTransform describing the compression (forward) and decompression (reverse)
+ * of data using the Zstandard algorithm.
+ * 
+ * <p>Native compression and decompression contexts are pooled and reused for 
+ * every array, rather than being created and destroyed on each call. At most 
+ * {@link #MAXIMUM_POOLED_CONTEXTS} of each are retained, and any others are closed 
+ * once used so that their native memory is released. The compression level, long 
+ * distance matching and number of worker threads are specified per transform, 
+ * which {@link com.alanmrace.jimzmlparser.mzml.BinaryDataArray} creates from the 
+ * settings passed to 
+ * {@link com.alanmrace.jimzmlparser.mzml.BinaryDataArray#setCompression(com.alanmrace.jimzmlparser.mzml.BinaryDataArray.CompressionType, int, int, int)}.
+ * 
+ * <p>A {@link ZstdDictionary} can be set to compress many small, similar arrays
+ * against a shared dictionary. The same dictionary must then be set to decompress
+ * the data.
  *
  * @author Alan Race
  */
-public class ZstdDataTransform implements DataTransform {
+public class ZstdDataTransform implements FusedDataTransform {
+    
+    /**
+     * Serialisation version ID.
+     */
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * Default compression level.
+     */
+    public static final int DEFAULT_COMPRESSION_LEVEL = 3;
+    
+    /**
+     * Largest window log supported for long distance matching, as larger windows 
+     * cannot be decompressed with the default decompression settings.
+     */
+    public static final int MAXIMUM_WINDOW_LOG = 27;
+    
+    /**
+     * Maximum size in bytes of the compression buffer kept for reuse on each thread.
+     */
+    private static final int MAXIMUM_RETAINED_BUFFER = 16 * 1024 * 1024;
+    
+    /**
+     * Empty dictionary, loaded to clear any dictionary from a reused context.
+     */
+    private static final byte[] NO_DICTIONARY = new byte[0];
+    
+    /**
+     * Maximum number of compression (and of decompression) contexts retained for 
+     * reuse.
+     */
+    public static final int MAXIMUM_POOLED_CONTEXTS = 2 * Runtime.getRuntime().availableProcessors();
+    
+    /**
+     * Compression contexts available for reuse.
+     */
+    private static final BlockingQueue<CompressContext> COMPRESS_CONTEXTS = new ArrayBlockingQueue<CompressContext>(MAXIMUM_POOLED_CONTEXTS);
+    
+    /**
+     * Decompression contexts available for reuse.
+     */
+    private static final BlockingQueue<DecompressContext> DECOMPRESS_CONTEXTS = new ArrayBlockingQueue<DecompressContext>(MAXIMUM_POOLED_CONTEXTS);
+    
+    /**
+     * Buffer to compress into on each thread, enlarged as required.
+     */
+    private static final ThreadLocal<byte[]> COMPRESS_BUFFER = new ThreadLocal<byte[]>();
 
     protected int arrayLengthInBytes;
     protected int compressionLevel;
     
+    /**
+     * Window log to use for long distance matching, or 0 if disabled.
+     */
+    protected int longDistanceWindowLog;
+    
+    /**
+     * Number of worker threads to use for compression, or 0 to compress on the 
+     * calling thread.
+     */
+    protected int workers;
     
+    /**
+     * Dictionary to compress and decompress with, or null if none.
+     */
+    protected ZstdDictionary dictionary;
+    
+    /**
+     * Set up a Zstd transform using the default compression level, without long 
+     * distance matching and compressing on the calling thread.
+     * 
+     * @param arrayLengthInBytes Length of the decompressed data in bytes, or -1 if 
+     * unknown (in which case the size recorded in the compressed data is used)
+     */
     public ZstdDataTransform(int arrayLengthInBytes) {
-        this(arrayLengthInBytes, 3);
+        this(arrayLengthInBytes, DEFAULT_COMPRESSION_LEVEL);
     }
     
+    /**
+     * Set up a Zstd transform using the specified compression level, without long
+     * distance matching and compressing on the calling thread.
+     * 
+     * @param arrayLengthInBytes Length of the decompressed data in bytes, or -1 if unknown
+     * @param compressionLevel Compression level
+     */
     public ZstdDataTransform(int arrayLengthInBytes, int compressionLevel) {
+        this(arrayLengthInBytes, compressionLevel, 0, 0);
+    }
+    
+    /**
+     * Set up a Zstd transform using the specified compression settings.
+     * 
+     * @param arrayLengthInBytes Length of the decompressed data in bytes, or -1 if unknown
+     * @param compressionLevel Compression level
+     * @param longDistanceWindowLog Window log (10 to {@link #MAXIMUM_WINDOW_LOG}) 
+     * for long distance matching, or 0 to disable
+     * @param workers Number of worker threads to use for compression, or 0 to 
+     * compress on the calling thread
+     */
+    public ZstdDataTransform(int arrayLengthInBytes, int compressionLevel, int longDistanceWindowLog, int workers) {
+        checkLongDistanceWindowLog(longDistanceWindowLog);
+        
+        if (workers < 0) {
+            throw new IllegalArgumentException("Invalid number of workers: " + workers);
+        }
+        
         this.arrayLengthInBytes = arrayLengthInBytes;
         this.compressionLevel = compressionLevel;
+        this.longDistanceWindowLog = longDistanceWindowLog;
+        this.workers = workers;
+    }
+    
+    /**
+     * Check that the long distance matching window log is valid.
+     * 
+     * @param windowLog Window log (10 to {@link #MAXIMUM_WINDOW_LOG}), or 0 to disable
+     * @throws IllegalArgumentException If the window log is not valid
+     */
+    public static void checkLongDistanceWindowLog(int windowLog) {
+        if (windowLog != 0 && (windowLog < 10 || windowLog > MAXIMUM_WINDOW_LOG)) {
+            throw new IllegalArgumentException("Invalid window log for long distance matching: " + windowLog);
+        }
+    }
+    
+    /**
+     * Get the compression level.
+     * 
+     * @return Compression level
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Set the compression level.
+     *
+     * @param compressionLevel Compression level (1 to {@link Zstd#maxCompressionLevel()})
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Set the dictionary to compress and decompress with.
+     * 
+     * @param dictionary Dictionary, or null to compress without a dictionary
+     */
+    public void setDictionary(ZstdDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+    
+    /**
+     * Get the dictionary used to compress and decompress.
+     * 
+     * @return Dictionary, or null if none
+     */
+    public ZstdDictionary getDictionary() {
+        return dictionary;
+    }
+    
+    /**
+     * Take a compression context from the pool (or create one if none is available)
+     * and configure it with the settings of this transform. The dictionary is only
+     * loaded if it is not already the one loaded into the context, as loading a 
+     * dictionary is costly compared to compressing a small array. The context must
+     * be returned with {@link #releaseCompressContext(CompressContext)} once used.
+     * 
+     * @return Compression context
+     */
+    private CompressContext acquireCompressContext() {
+        CompressContext context = COMPRESS_CONTEXTS.poll();
+        
+        if (context == null) {
+            context = new CompressContext();
+        }
+        
+        ZstdDictCompress compressDictionary = (dictionary == null) ? null : dictionary.getCompressDictionary(compressionLevel);
+        
+        if (compressDictionary != context.dictionary) {
+            if (compressDictionary == null) {
+                context.ctx.loadDict(NO_DICTIONARY);
+            } else {
+                context.ctx.loadDict(compressDictionary);
+            }
+            
+            context.dictionary = compressDictionary;
+        }
+        
+        context.ctx.setLevel(compressionLevel);
+        context.ctx.setLong(longDistanceWindowLog);
+        context.ctx.setWorkers(workers);
+        context.ctx.setContentSize(true);
+        
+        return context;
+    }
+    
+    /**
+     * Return a compression context to the pool, or close it if the pool is full.
+     * 
+     * @param context Compression context taken with {@link #acquireCompressContext()}
+     */
+    private static void releaseCompressContext(CompressContext context) {
+        if (!COMPRESS_CONTEXTS.offer(context)) {
+            context.ctx.close();
+        }
+    }
+    
+    /**
+     * Take a decompression context from the pool (or create one if none is 
+     * available) with the dictionary of this transform (if any) loaded. As for 
+     * compression, the dictionary is only loaded if it is not already loaded. The 
+     * context must be returned with {@link #releaseDecompressContext(DecompressContext)}
+     * once used.
+     * 
+     * @return Decompression context
+     */
+    private DecompressContext acquireDecompressContext() {
+        DecompressContext context = DECOMPRESS_CONTEXTS.poll();
+        
+        if (context == null) {
+            context = new DecompressContext();
+        }
+        
+        ZstdDictDecompress decompressDictionary = (dictionary == null) ? null : dictionary.getDecompressDictionary();
+        
+        if (decompressDictionary != context.dictionary) {
+            if (decompressDictionary == null) {
+                context.ctx.loadDict(NO_DICTIONARY);
+            } else {
+                context.ctx.loadDict(decompressDictionary);
+            }
+            
+            context.dictionary = decompressDictionary;
+        }
+        
+        return context;
+    }
+    
+    /**
+     * Return a decompression context to the pool, or close it if the pool is full.
+     * 
+     * @param context Decompression context taken with {@link #acquireDecompressContext()}
+     */
+    private static void releaseDecompressContext(DecompressContext context) {
+        if (!DECOMPRESS_CONTEXTS.offer(context)) {
+            context.ctx.close();
+        }
     }
     
     @Override
     public byte[] forwardTransform(byte[] data) throws DataFormatException {
-        return Zstd.compress(data, compressionLevel);
+        int maximumLength = (int) Zstd.compressBound(data.length);
+        byte[] compressed = COMPRESS_BUFFER.get();
+        
+        if (compressed == null || compressed.length < maximumLength) {
+            compressed = new byte[maximumLength];
+            
+            if (maximumLength <= MAXIMUM_RETAINED_BUFFER) {
+                COMPRESS_BUFFER.set(compressed);
+            }
+        }
+        
+        CompressContext context = acquireCompressContext();
+        
+        try {
+            int compressedLength = context.ctx.compressByteArray(compressed, 0, compressed.length, data, 0, data.length);
+            
+            return Arrays.copyOf(compressed, compressedLength);
+        } catch (ZstdException ex) {
+            throw createDataFormatException("Failed to compress data with Zstd", ex);
+        } finally {
+            releaseCompressContext(context);
+        }
     }
 
     @Override
     public byte[] reverseTransform(byte[] data) throws DataFormatException {
-        return Zstd.decompress(data, arrayLengthInBytes);
+        TransformBuffer output = new TransformBuffer();
+        
+        reverseTransform(data, 0, data.length, output);
+        
+        return output.toByteArray();
+    }
+
+    @Override
+    public DataForm getReverseOutputForm() {
+        return DataForm.BYTES;
+    }
+
+    @Override
+    public void reverseTransform(byte[] data, int offset, int length, TransformBuffer output) throws DataFormatException {
+        int decompressedLength = getDecompressedLength(data, offset, length);
+        byte[] decompressed = output.byteArray(decompressedLength, false);
+        
+        DecompressContext context = acquireDecompressContext();
+        
+        try {
+            output.setByteLength(context.ctx.decompressByteArray(decompressed, 0, decompressedLength, data, offset, length));
+        } catch (ZstdException ex) {
+            throw createDataFormatException("Failed to decompress Zstd data", ex);
+        } finally {
+            releaseDecompressContext(context);
+        }
     }
     
+    /**
+     * Decompress the remaining data in source into destination, which may be 
+     * direct buffers (for example a region of a memory mapped file, see 
+     * {@link MappedDataStorage#getDataBuffer(long, int)}) or heap buffers. The 
+     * positions of both buffers are advanced.
+     * 
+     * @param source Compressed data
+     * @param destination Buffer to decompress into
+     * @return Number of bytes decompressed
+     * @throws DataFormatException If the data is corrupt or destination is too small
+     */
+    public int decompress(ByteBuffer source, ByteBuffer destination) throws DataFormatException {
+        DecompressContext context = acquireDecompressContext();
+        
+        try {
+            if (source.isDirect() && destination.isDirect()) {
+                int decompressedLength = context.ctx.decompressDirectByteBuffer(destination, destination.position(), destination.remaining(), 
+                        source, source.position(), source.remaining());
+                
+                source.position(source.limit());
+                destination.position(destination.position() + decompressedLength);
+                
+                return decompressedLength;
+            }
+            
+            byte[] sourceData = new byte[source.remaining()];
+            source.get(sourceData);
+            
+            if (destination.hasArray()) {
+                int decompressedLength = context.ctx.decompressByteArray(destination.array(), destination.arrayOffset() + destination.position(), 
+                        destination.remaining(), sourceData, 0, sourceData.length);
+                destination.position(destination.position() + decompressedLength);
+                
+                return decompressedLength;
+            }
+            
+            byte[] decompressed = new byte[destination.remaining()];
+            int decompressedLength = context.ctx.decompressByteArray(decompressed, 0, decompressed.length, sourceData, 0, sourceData.length);
+            destination.put(decompressed, 0, decompressedLength);
+            
+            return decompressedLength;
+        } catch (ZstdException ex) {
+            throw createDataFormatException("Failed to decompress Zstd data", ex);
+        } finally {
+            releaseDecompressContext(context);
+        }
+    }
+    
+    /**
+     * Get the length of the decompressed data, using the size recorded in the 
+     * compressed data if it was not supplied.
+     * 
+     * @param data Compressed data
+     * @param offset Index of the first byte of the compressed data within data
+     * @param length Number of bytes of compressed data
+     * @return Length of the decompressed data in bytes
+     * @throws DataFormatException If the length is not known
+     */
+    private int getDecompressedLength(byte[] data, int offset, int length) throws DataFormatException {
+        if (arrayLengthInBytes >= 0) {
+            return arrayLengthInBytes;
+        }
+        
+        long decompressedLength = Zstd.decompressedSize(data, offset, length);
+        
+        if (decompressedLength < 0 || decompressedLength > Integer.MAX_VALUE) {
+            throw new DataFormatException("Unknown decompressed size of Zstd data");
+        }
+        
+        return (int) decompressedLength;
+    }
+    
+    private static DataFormatException createDataFormatException(String message, Exception cause) {
+        DataFormatException dataFormatException = new DataFormatException(message + ": " + cause.getMessage());
+        dataFormatException.initCause(cause);
+        
+        return dataFormatException;
+    }
+    
+    /**
+     * Native compression context, with the dictionary currently loaded into it.
+     */
+    private static final class CompressContext {
+        
+        private final ZstdCompressCtx ctx = new ZstdCompressCtx();
+        
+        /**
+         * Dictionary loaded into the context, or null if none.
+         */
+        private ZstdDictCompress dictionary;
+    }
+    
+    /**
+     * Native decompression context, with the dictionary currently loaded into it.
+     */
+    private static final class DecompressContext {
+        
+        private final ZstdDecompressCtx ctx = new ZstdDecompressCtx();
+        
+        /**
+         * Dictionary loaded into the context, or null if none.
+         */
+        private ZstdDictDecompress dictionary;
+    }
+    
+    @Override
+    public String toString() {
+        return "ZstdDataTransform (level " + compressionLevel + ((dictionary == null) ? "" : ", with dictionary") + ")";
+    }
 }
-
@@ -0,0 +1,186 @@
+package com.alanmrace.jimzmlparser.data;
+
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.DataFormatException;
+
+/**
+ * Zstandard dictionary, trained on a sample of arrays, which can be shared by
+ * {@link ZstdDataTransform} instances to improve the compression of many small
+ * and similar arrays (such as the spectra of a processed imzML file).
+ *
+ * <p>The dictionary is stored once alongside the data (see
+ * {@link com.alanmrace.jimzmlparser.writer.ImzMLWriterAbstract#setZstdDictionarySize(int)})
+ * and loaded from the {@link DataStorage} with {@link #load(DataStorage, long, int)},
+ * which caches the dictionary so that it is only read and digested once for each
+ * file.
+ */
+public class ZstdDictionary implements Serializable {
+
+    /**
+     * Serialisation version ID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default size of a trained dictionary in bytes (112 KB, as used by the zstd
+     * command line tool).
+     */
+    public static final int DEFAULT_DICTIONARY_SIZE = 112 * 1024;
+
+    /**
+     * Dictionaries loaded from each DataStorage, indexed by their offset.
+     */
+    private static final Map<DataStorage, Map<Long, ZstdDictionary>> LOADED_DICTIONARIES = new WeakHashMap<DataStorage, Map<Long, ZstdDictionary>>();
+
+    /**
+     * Dictionary content.
+     */
+    private final byte[] dictionary;
+
+    /**
+     * Digested dictionaries for compression, indexed by compression level and 
+     * created on first use.
+     */
+    private transient Map<Integer, ZstdDictCompress> compressDictionaries;
+
+    /**
+     * Digested dictionary for decompression, created on first use.
+     */
+    private transient ZstdDictDecompress decompressDictionary;
+
+    /**
+     * Create a dictionary from its content, either the output of
+     * {@link #train(java.util.List, int)} or previously stored content.
+     *
+     * @param dictionary Dictionary content
+     */
+    public ZstdDictionary(byte[] dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Train a dictionary from a sample of the data that will be compressed with it.
+     * Each sample should be the data as it will be passed to the
+     * {@link ZstdDataTransform}, for example after conversion to the stored data type.
+     *
+     * @param samples Sample arrays to train the dictionary from
+     * @param dictionarySize Maximum size of the dictionary in bytes
+     * @return Trained dictionary
+     * @throws DataFormatException If there are too few samples, or they are too
+     * small, to train a dictionary
+     */
+    public static ZstdDictionary train(List<byte[]> samples, int dictionarySize) throws DataFormatException {
+        long totalSize = 0;
+
+        for (byte[] sample : samples) {
+            totalSize += sample.length;
+        }
+
+        ZstdDictTrainer trainer = new ZstdDictTrainer((int) Math.min(totalSize, Integer.MAX_VALUE), dictionarySize);
+
+        for (byte[] sample : samples) {
+            trainer.addSample(sample);
+        }
+
+        try {
+            return new ZstdDictionary(trainer.trainSamples());
+        } catch (ZstdException ex) {
+            DataFormatException dataFormatException = new DataFormatException("Failed to train Zstd dictionary: " + ex.getMessage());
+            dataFormatException.initCause(ex);
+
+            throw dataFormatException;
+        }
+    }
+
+    /**
+     * Load the dictionary stored at the specified location within a DataStorage.
+     * The dictionary is cached, so that all arrays referencing it share the same
+     * instance.
+     *
+     * @param dataStorage DataStorage containing the dictionary
+     * @param offset Offset of the dictionary in bytes
+     * @param length Length of the dictionary in bytes
+     * @return Dictionary
+     * @throws IOException If the dictionary could not be read
+     */
+    public static ZstdDictionary load(DataStorage dataStorage, long offset, int length) throws IOException {
+        synchronized (LOADED_DICTIONARIES) {
+            Map<Long, ZstdDictionary> dictionaries = LOADED_DICTIONARIES.get(dataStorage);
+
+            if (dictionaries == null) {
+                dictionaries = new HashMap<Long, ZstdDictionary>();
+                LOADED_DICTIONARIES.put(dataStorage, dictionaries);
+            }
+
+            ZstdDictionary dictionary = dictionaries.get(offset);
+
+            if (dictionary == null || dictionary.getLength() != length) {
+                dictionary = new ZstdDictionary(dataStorage.getData(offset, length));
+                dictionaries.put(offset, dictionary);
+            }
+
+            return dictionary;
+        }
+    }
+
+    /**
+     * Get the dictionary content, for storing alongside the compressed data.
+     *
+     * @return Dictionary content
+     */
+    public byte[] getBytes() {
+        return dictionary;
+    }
+
+    /**
+     * Get the length of the dictionary in bytes.
+     *
+     * @return Dictionary length
+     */
+    public int getLength() {
+        return dictionary.length;
+    }
+
+    /**
+     * Get the dictionary digested for compression at the specified level.
+     *
+     * @param compressionLevel Compression level
+     * @return Digested dictionary
+     */
+    protected synchronized ZstdDictCompress getCompressDictionary(int compressionLevel) {
+        if (compressDictionaries == null) {
+            compressDictionaries = new HashMap<Integer, ZstdDictCompress>();
+        }
+        
+        ZstdDictCompress compressDictionary = compressDictionaries.get(compressionLevel);
+
+        if (compressDictionary == null) {
+            compressDictionary = new ZstdDictCompress(dictionary, compressionLevel);
+            compressDictionaries.put(compressionLevel, compressDictionary);
+        }
+
+        return compressDictionary;
+    }
+
+    /**
+     * Get the dictionary digested for decompression.
+     *
+     * @return Digested dictionary
+     */
+    protected synchronized ZstdDictDecompress getDecompressDictionary() {
+        if (decompressDictionary == null) {
+            decompressDictionary = new ZstdDictDecompress(dictionary);
+        }
+
+        return decompressDictionary;
+    }
+}
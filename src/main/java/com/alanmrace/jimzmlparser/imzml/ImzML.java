@@ -82,7 +82,7 @@ public class ImzML extends MzML implements MassSpectrometryImagingData {
      * 3-D Array of Spectrum instances with each Spectrum in the location in the 
      * array as defined by the x, y, and z coordinates of the Spectrum.
      */
-    private Spectrum[][][] spectrumGrid;
+    private int[][][] spectrumGrid;
 
     /**
      * Array of the pixel locations that have an associated Spectrum.
@@ -134,11 +134,11 @@ public class ImzML extends MzML implements MassSpectrometryImagingData {
     public PixelLocation[] getPixelList() {
         // Useful for protein id script
         if(pixelLocations == null) {
-            pixelLocations = new PixelLocation[getRun().getSpectrumList().size()];
-            int index = 0;
+            SpectrumList spectrumList = getRun().getSpectrumList();
+            pixelLocations = new PixelLocation[spectrumList.size()];
             
-            for(Spectrum spectrum : getRun().getSpectrumList()) {
-                pixelLocations[index++] = spectrum.getPixelLocation();
+            for(int index = 0; index < pixelLocations.length; index++) {
+                pixelLocations[index] = spectrumList.getPixelLocation(index);
             }
         }
         
@@ -212,10 +212,9 @@ public class ImzML extends MzML implements MassSpectrometryImagingData {
             dimensionality += getSpatialDimensionality();
 
             // Check if we have MS/MS or mobility by looking to see if we have two or more spectra with same x, y location
-            Spectrum spectrum1 = getRun().getSpectrumList().getSpectrum(0);
-            Spectrum spectrum2 = getRun().getSpectrumList().getSpectrum(1);
+            SpectrumList spectrumList = getRun().getSpectrumList();
 
-            if (spectrum1.getPixelLocation().equals(spectrum2.getPixelLocation())) {
+            if (spectrumList.getPixelLocation(0).equals(spectrumList.getPixelLocation(1))) {
                 dimensionality++;
             }
         }
@@ -225,16 +224,15 @@ public class ImzML extends MzML implements MassSpectrometryImagingData {
 
     @Override
     public int getNumberOfSpectraPerPixel() {
-        Spectrum firstSpectrum = getRun().getSpectrumList().getSpectrum(0);
-        PixelLocation location = firstSpectrum.getPixelLocation();
+        SpectrumList spectrumList = getRun().getSpectrumList();
+        PixelLocation location = spectrumList.getPixelLocation(0);
         
         int numberOfSpectraPerPixel = 1;
         
-        int numSpectra = getRun().getSpectrumList().size();
-        SpectrumList spectrumList = getRun().getSpectrumList();
+        int numSpectra = spectrumList.size();
         
         for(int i = 1; i < numSpectra; i++) {
-            if(spectrumList.getSpectrum(i).getPixelLocation().equals(location))
+            if(spectrumList.getPixelLocation(i).equals(location))
                 numberOfSpectraPerPixel++;
         }
         
@@ -249,33 +247,37 @@ public class ImzML extends MzML implements MassSpectrometryImagingData {
     @Override
     public synchronized Spectrum getSpectrum(int x, int y, int z) {
         if (spectrumGrid == null) {
-            spectrumGrid = new Spectrum[getWidth()][getHeight()][getDepth()];
+            // Store the index of each spectrum (offset by one so that 0 is no spectrum)
+            // rather than the Spectrum, so that spectra are only created when requested
+            spectrumGrid = new int[getWidth()][getHeight()][getDepth()];
 
-            for (Spectrum spectrum : getRun().getSpectrumList()) {
-                for (Scan curScan : spectrum.getScanList()) {
-                    int curX = curScan.getCVParam(Scan.POSITION_X_ID).getValueAsInteger();
-                    int curY = curScan.getCVParam(Scan.POSITION_Y_ID).getValueAsInteger();
-                    int curZ = 1;
+            SpectrumList spectrumList = getRun().getSpectrumList();
 
-                    CVParam zPosCVParam = curScan.getCVParam(Scan.POSITION_Z_ID);
+            for (int i = 0; i < spectrumList.size(); i++) {
+                PixelLocation location = spectrumList.getPixelLocation(i);
 
-                    if (zPosCVParam != null) {
-                        curZ = zPosCVParam.getValueAsInteger();
-                    }
+                if (location == null) {
+                    continue;
+                }
 
-                    if (curX - 1 < 0 || curX - 1 > spectrumGrid.length || curY - 1 < 0 || curY - 1 > spectrumGrid[0].length || curZ - 1 < 0 || curZ - 1 > spectrumGrid[0][0].length) {
-                        return null;
-                    }
+                int curX = location.getX();
+                int curY = location.getY();
+                int curZ = location.getZ();
 
-                    spectrumGrid[curX - 1][curY - 1][curZ - 1] = spectrum;
+                if (curX - 1 < 0 || curX - 1 > spectrumGrid.length || curY - 1 < 0 || curY - 1 > spectrumGrid[0].length || curZ - 1 < 0 || curZ - 1 > spectrumGrid[0][0].length) {
+                    return null;
                 }
+
+                spectrumGrid[curX - 1][curY - 1][curZ - 1] = i + 1;
             }
         }
 
         if (spectrumGrid.length >= 1 && (x - 1) < spectrumGrid.length && x >= 1 &&
                 (y - 1) < spectrumGrid[0].length && y >= 1 &&
                 (z - 1) < spectrumGrid[0][0].length && z >= 1) {
-            return spectrumGrid[x - 1][y - 1][z - 1];
+            int index = spectrumGrid[x - 1][y - 1][z - 1];
+
+            return (index == 0) ? null : getRun().getSpectrumList().getSpectrum(index - 1);
         }
         
         return null;
@@ -338,15 +340,11 @@ public class ImzML extends MzML implements MassSpectrometryImagingData {
         SpectrumList spectrumList = getRun().getSpectrumList();
 
         if (spectrumList != null) {
-            for (Spectrum spectrum : spectrumList) {
-                CVParam maxCountPixelZ = spectrum.getScanList().get(0).getCVParam(Scan.POSITION_Z_ID);
+            for (int i = 0; i < spectrumList.size(); i++) {
+                PixelLocation location = spectrumList.getPixelLocation(i);
 
-                if (maxCountPixelZ != null) {
-                    int curDepth = maxCountPixelZ.getValueAsInteger();
-
-                    if (curDepth > depth) {
-                        depth = curDepth;
-                    }
+                if (location != null && location.getZ() > depth) {
+                    depth = location.getZ();
                 }
             }
         }
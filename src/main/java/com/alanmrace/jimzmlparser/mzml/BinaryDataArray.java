@@ -7,17 +7,30 @@ import com.alanmrace.jimzmlparser.data.DataTypeTransform.DataType;
 import com.alanmrace.jimzmlparser.data.LZ4DataTransform;
 import com.alanmrace.jimzmlparser.data.MSNumpressDataTransform;
 import com.alanmrace.jimzmlparser.data.MSNumpressDataTransform.NumpressAlgorithm;
+import com.alanmrace.jimzmlparser.data.QuantizationDataTransform;
+import com.alanmrace.jimzmlparser.data.QuantizationDataTransform.QuantizationType;
+import com.alanmrace.jimzmlparser.data.ReferenceAxisDataTransform;
+import com.alanmrace.jimzmlparser.data.ShuffleDataTransform;
+import com.alanmrace.jimzmlparser.data.ShuffleDataTransform.ShuffleType;
 import com.alanmrace.jimzmlparser.data.XZDataTransform;
 import com.alanmrace.jimzmlparser.data.ZlibDataTransform;
 import com.alanmrace.jimzmlparser.data.ZstdDataTransform;
+import com.alanmrace.jimzmlparser.data.ZstdDictionary;
 import com.alanmrace.jimzmlparser.obo.OBO;
 import com.alanmrace.jimzmlparser.obo.OBOTerm;
 import com.alanmrace.jimzmlparser.util.XMLHelper;
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.BufferOverflowException;
+import java.nio.DoubleBuffer;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import org.tukaani.xz.LZMA2Options;
 
 /**
  * BinaryDataArray tag.
@@ -100,7 +113,119 @@ public class BinaryDataArray extends MzMLContentWithParams {
                 
         MSNUMPRESS_POSITIVE_ZSTD,
         
-        MSNUMPRESS_SLOF_ZSTD;
+        MSNUMPRESS_SLOF_ZSTD,
+        
+        /**
+         * Byte shuffle followed by LZ4 compression
+         */
+        SHUFFLE_LZ4,
+        
+        /**
+         * Byte shuffle followed by ZStandard compression
+         */
+        SHUFFLE_ZSTD,
+        
+        /**
+         * Bit shuffle followed by LZ4 compression
+         */
+        BITSHUFFLE_LZ4,
+        
+        /**
+         * Bit shuffle followed by ZStandard compression
+         */
+        BITSHUFFLE_ZSTD,
+        
+        /**
+         * Lossy quantization to scaled unsigned 16-bit integers
+         */
+        SCALED_INTEGER_16BIT,
+        
+        /**
+         * Lossy quantization to half-precision floats
+         */
+        HALF_FLOAT,
+        
+        /**
+         * Lossy quantization to log-scaled unsigned 8-bit integers
+         */
+        LOG_INTEGER_8BIT,
+        
+        /**
+         * Lossy quantization to log-scaled unsigned 16-bit integers
+         */
+        LOG_INTEGER_16BIT,
+        
+        /**
+         * Lossy quantization to scaled unsigned 16-bit integers followed by 
+         * ZStandard compression
+         */
+        SCALED_INTEGER_16BIT_ZSTD,
+        
+        /**
+         * Lossy quantization to half-precision floats followed by ZStandard compression
+         */
+        HALF_FLOAT_ZSTD,
+        
+        /**
+         * Lossy quantization to log-scaled unsigned 8-bit integers followed by 
+         * ZStandard compression
+         */
+        LOG_INTEGER_8BIT_ZSTD,
+        
+        /**
+         * Lossy quantization to log-scaled unsigned 16-bit integers followed by 
+         * ZStandard compression
+         */
+        LOG_INTEGER_16BIT_ZSTD;
+        
+        /**
+         * Get the quantization performed prior to any compression for the 
+         * CompressionType. As there are no ontology terms for quantization, this 
+         * is recorded with the {@link #QUANTIZATION_NAME} UserParam alongside the
+         * compression term.
+         * 
+         * @param compressionType CompressionType
+         * @return Quantization performed, or null if none
+         */
+        public static QuantizationType toQuantizationType(CompressionType compressionType) {
+            switch(compressionType) {
+                case SCALED_INTEGER_16BIT:
+                case SCALED_INTEGER_16BIT_ZSTD:
+                    return QuantizationType.SCALED_INTEGER_16BIT;
+                case HALF_FLOAT:
+                case HALF_FLOAT_ZSTD:
+                    return QuantizationType.HALF_FLOAT;
+                case LOG_INTEGER_8BIT:
+                case LOG_INTEGER_8BIT_ZSTD:
+                    return QuantizationType.LOG_INTEGER_8BIT;
+                case LOG_INTEGER_16BIT:
+                case LOG_INTEGER_16BIT_ZSTD:
+                    return QuantizationType.LOG_INTEGER_16BIT;
+                default:
+                    return null;
+            }
+        }
+        
+        /**
+         * Get the shuffle performed prior to compression for the CompressionType.
+         * As there are no ontology terms for shuffling, this is recorded with the
+         * {@link #SHUFFLE_NAME} UserParam alongside the compression term.
+         * 
+         * @param compressionType CompressionType
+         * @return Shuffle performed prior to compression, or null if none
+         */
+        public static ShuffleType toShuffleType(CompressionType compressionType) {
+            switch(compressionType) {
+                case SHUFFLE_LZ4:
+                case SHUFFLE_ZSTD:
+                    return ShuffleType.BYTE;
+                case BITSHUFFLE_LZ4:
+                case BITSHUFFLE_ZSTD:
+                    return ShuffleType.BIT;
+                default:
+                    return null;
+            }
+        }
         
         /**
          * Convert CompressionType enum to OBOTerm, using ontology terms found in the 
@@ -112,14 +237,26 @@ public class BinaryDataArray extends MzMLContentWithParams {
         public static OBOTerm toOBOTerm(CompressionType compressionType) {
             switch(compressionType) {
                 case NONE:
+                case SCALED_INTEGER_16BIT:
+                case HALF_FLOAT:
+                case LOG_INTEGER_8BIT:
+                case LOG_INTEGER_16BIT:
                     return OBO.getOBO().getTerm(NO_COMPRESSION_ID);
                 case ZLIB:
                     return OBO.getOBO().getTerm(ZLIB_COMPRESSION_ID);
                 case XZ:
                     return OBO.getOBO().getTerm(XZ_COMPRESSION_ID);
                 case LZ4:
+                case SHUFFLE_LZ4:
+                case BITSHUFFLE_LZ4:
                     return OBO.getOBO().getTerm(LZ4_COMPRESSION_ID);
                 case ZSTD:
+                case SHUFFLE_ZSTD:
+                case BITSHUFFLE_ZSTD:
+                case SCALED_INTEGER_16BIT_ZSTD:
+                case HALF_FLOAT_ZSTD:
+                case LOG_INTEGER_8BIT_ZSTD:
+                case LOG_INTEGER_16BIT_ZSTD:
                     return OBO.getOBO().getTerm(ZSTD_COMPRESSION_ID);
                 case MSNUMPRESS_LINEAR:
                     return OBO.getOBO().getTerm(MSNUMPRESS_LINEAR_ID);
@@ -315,6 +452,54 @@ public class BinaryDataArray extends MzMLContentWithParams {
     
     public static final String MSNUMPRESS_SLOF_ZSTD_ID = "IMS:1005012";
     
+    /**
+     * Name of the UserParam giving the offset (in bytes) of the Zstd dictionary 
+     * within the binary data file, when the data was compressed with a dictionary.
+     */
+    public static final String ZSTD_DICTIONARY_OFFSET_NAME = "Zstd dictionary offset";
+    
+    /**
+     * Name of the UserParam giving the length (in bytes) of the Zstd dictionary
+     * within the binary data file, when the data was compressed with a dictionary.
+     */
+    public static final String ZSTD_DICTIONARY_LENGTH_NAME = "Zstd dictionary length";
+    
+    /**
+     * Name of the UserParam describing the shuffle performed on the elements of
+     * the data prior to compression (see {@link ShuffleDataTransform}), with the
+     * value "byte" or "bit".
+     */
+    public static final String SHUFFLE_NAME = "shuffle";
+    
+    /**
+     * Name of the UserParam describing the lossy quantization performed on the 
+     * data prior to any compression (see {@link QuantizationDataTransform}), with
+     * the name of the {@link QuantizationType} as the value.
+     */
+    public static final String QUANTIZATION_NAME = "quantization";
+    
+    /**
+     * Name of the UserParam giving the offset (in bytes) of the reference m/z axis
+     * within the binary data file, when the data is encoded as indices into the 
+     * axis (see {@link ReferenceAxisDataTransform}).
+     */
+    public static final String REFERENCE_MZ_AXIS_OFFSET_NAME = "reference m/z axis offset";
+    
+    /**
+     * Name of the UserParam giving the length (in bytes) of the reference m/z axis
+     * within the binary data file, when the data is encoded as indices into the axis.
+     */
+    public static final String REFERENCE_MZ_AXIS_LENGTH_NAME = "reference m/z axis length";
+    
+    /**
+     * Name of the UserParam giving the name of the {@link DataType} of data stored
+     * with an encoding that only jimzMLParser can read (see 
+     * {@link #hasNonStandardEncoding()}). The binary data type CVParam of such data 
+     * is the generic {@link #BINARY_DATA_TYPE_ID} term rather than a specific data
+     * type, so that other readers reject the data rather than misread it.
+     */
+    public static final String ENCODED_DATA_TYPE_NAME = "encoded data type";
+    
     /**
      * Accession: External array length (IMS:1000103). MUST supply once
      */
@@ -372,6 +557,31 @@ public class BinaryDataArray extends MzMLContentWithParams {
      * Location of the binary data array.
      */
     protected DataLocation dataLocation;
+    
+    /**
+     * Data which has been requested ahead of time with {@link #prefetch()} and 
+     * not yet retrieved.
+     */
+    private transient CompletableFuture<double[]> prefetchedData;
+    
+    /**
+     * Compression level (zlib or Zstd) or preset (XZ) to write the data with, or 
+     * 0 for the default.
+     */
+    private int compressionLevel;
+    
+    /**
+     * Window log when writing the data, for Zstd long distance matching or as 
+     * the base 2 logarithm of the XZ dictionary size, or 0 for the default (no 
+     * long distance matching, or the dictionary size of the XZ preset).
+     */
+    private int windowLog;
+    
+    /**
+     * Number of worker threads to use for Zstd compression when writing the data, 
+     * or 0 to compress on the calling thread.
+     */
+    private int compressionWorkers;
 
     /**
      * Instantiates a new binaryDataArray tag.
@@ -400,6 +610,10 @@ public class BinaryDataArray extends MzMLContentWithParams {
         this.ismzArray = bda.ismzArray;
         this.isIntensityArray = bda.isIntensityArray;
         this.data = bda.data;
+        
+        this.compressionLevel = bda.compressionLevel;
+        this.windowLog = bda.windowLog;
+        this.compressionWorkers = bda.compressionWorkers;
 
         if (bda.dataProcessingRef != null && dpList != null) {
             for (DataProcessing dp : dpList) {
@@ -590,16 +804,19 @@ public class BinaryDataArray extends MzMLContentWithParams {
         if(data != null)
             return data;
 
-        // If there is no dataLocation stored for the BinaryDataArray then it is 
-        // likely that the data storage is MzMLDataStorage and so needs to be converted 
-        // to Base64Storage prior to being able to load any data
-        if (dataLocation == null && parent != null) {
-            MzMLTag grandParent = parent.getParent();
-
-            if (grandParent instanceof MzMLDataContainer) {
-                ((MzMLDataContainer) grandParent).convertMzMLDataStorageToBase64();
+        CompletableFuture<double[]> prefetched = takePrefetchedData();
+        
+        if (prefetched != null) {
+            double[] loadedData = getPrefetchedData(prefetched);
+            
+            if (keepInMemory) {
+                data = loadedData;
             }
+            
+            return loadedData;
         }
+
+        ensureDataLocation();
          
         // If there is still no dataLocation after the conversion, then no data to load
         if (dataLocation == null) {
@@ -621,6 +838,280 @@ public class BinaryDataArray extends MzMLContentWithParams {
         return loadedData;
     }
     
+    /**
+     * Get the data array as a primitive array of the specified data type (double[], 
+     * float[], long[], int[], short[] or byte[] respectively), converting and 
+     * decompressing as necessary. If the requested data type matches the data type
+     * that the data is stored as (see {@link #getDataType()}) then the data is 
+     * decoded directly into the returned array, without first widening to double[].
+     * Otherwise each value is cast to the requested data type.
+     * 
+     * @param dataType Data type of the array to return
+     * @return Uncompressed data as a primitive array of dataType
+     * @throws IOException On failure to read from data location
+     */
+    public Object getDataAs(DataType dataType) throws IOException {
+        double[] doubleData = getLoadedData();
+        
+        if (doubleData != null) {
+            return dataType == DataType.DOUBLE ? doubleData : DataTypeTransform.convertDoublesToArray(doubleData, dataType);
+        }
+        
+        ensureDataLocation();
+        
+        if (dataLocation != null) {
+            try {
+                return dataLocation.getData(dataType);
+            } catch (DataFormatException ex) {
+                Logger.getLogger(BinaryDataArray.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        
+        return DataTypeTransform.convertDoublesToArray(new double[0], dataType);
+    }
+    
+    /**
+     * Get the data array as float[], converting and decompressing as necessary. 
+     * For data stored as 32-bit floats this requires half of the memory of 
+     * {@link #getDataAsDouble()}, with no loss of precision. Data stored as 
+     * double precision is rounded to the nearest float.
+     * 
+     * @return Uncompressed data as float[]
+     * @throws IOException On failure to read from data location
+     * @see #getDataAs(DataType) 
+     */
+    public float[] getDataAsFloat() throws IOException {
+        return (float[]) getDataAs(DataType.FLOAT);
+    }
+    
+    /**
+     * Get a read-only view of the data array. For uncompressed data this is a typed 
+     * buffer (for example a FloatBuffer for 32-bit float data) directly over the 
+     * stored data, which when the data storage is memory mapped (see 
+     * {@link com.alanmrace.jimzmlparser.data.BinaryDataStorage.AccessMode#MEMORY_MAPPED})
+     * involves no copying at all, and only the pages which are accessed are read 
+     * from disk. Compressed data is decoded and a DoubleBuffer returned.
+     *
+     * @return Read-only buffer of the data array
+     * @throws IOException On failure to read from data location
+     * @see DataLocation#getDataView() 
+     */
+    public Buffer getDataView() throws IOException {
+        double[] loadedData = getLoadedData();
+        
+        if (loadedData != null) {
+            return DoubleBuffer.wrap(loadedData).asReadOnlyBuffer();
+        }
+        
+        ensureDataLocation();
+        
+        if (dataLocation == null) {
+            return DoubleBuffer.allocate(0).asReadOnlyBuffer();
+        }
+        
+        try {
+            return dataLocation.getDataView();
+        } catch (DataFormatException ex) {
+            Logger.getLogger(BinaryDataArray.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        
+        return DoubleBuffer.allocate(0).asReadOnlyBuffer();
+    }
+    
+    /**
+     * Get the data array as double[] asynchronously, converting and decompressing 
+     * as necessary. The data is read on the I/O executor of the DataStorage and 
+     * decoded on the common ForkJoinPool. If the data has already been requested 
+     * with {@link #prefetch()} then the prefetched data is returned.
+     *
+     * @return CompletableFuture which completes with the uncompressed data, or 
+     * exceptionally with a CompletionException wrapping any IOException or 
+     * DataFormatException
+     * @see DataLocation#getDataAsync() 
+     */
+    public CompletableFuture<double[]> getDataAsDoubleAsync() {
+        if (data != null) {
+            return CompletableFuture.completedFuture(data);
+        }
+        
+        CompletableFuture<double[]> prefetched = takePrefetchedData();
+        
+        if (prefetched != null) {
+            return prefetched;
+        }
+        
+        try {
+            ensureDataLocation();
+        } catch (IOException ex) {
+            CompletableFuture<double[]> failed = new CompletableFuture<double[]>();
+            failed.completeExceptionally(new CompletionException(ex));
+            
+            return failed;
+        }
+        
+        if (dataLocation == null) {
+            return CompletableFuture.completedFuture(new double[0]);
+        }
+        
+        return dataLocation.getDataAsync();
+    }
+    
+    /**
+     * Start loading the data in the background, so that the next read of the data
+     * (with {@link #getDataAsDouble()}, {@link #getDataAsDouble(double[])}, 
+     * {@link #getDataAs(DataType)}, {@link #getDataAsFloat()}, {@link #getDataView()}
+     * or {@link #getDataAsDoubleAsync()}) does not have to wait for the data to be
+     * read, and does not read it again. Has no effect if the data is already held in 
+     * memory or is already being prefetched.
+     */
+    public synchronized void prefetch() {
+        if (data == null && prefetchedData == null) {
+            prefetchedData = getDataAsDoubleAsync();
+        }
+    }
+    
+    /**
+     * Discard any data that has been prefetched but not yet retrieved.
+     */
+    public synchronized void cancelPrefetch() {
+        prefetchedData = null;
+    }
+    
+    /**
+     * Take the prefetched data (if any), so that it is only returned once.
+     * 
+     * @return Prefetched data, or null if none has been prefetched
+     */
+    private synchronized CompletableFuture<double[]> takePrefetchedData() {
+        CompletableFuture<double[]> prefetched = prefetchedData;
+        prefetchedData = null;
+        
+        return prefetched;
+    }
+    
+    /**
+     * Get the data if it is held in memory or has been prefetched (taking the 
+     * prefetched data), so that every way of reading the data uses the prefetch
+     * rather than reading the data again.
+     * 
+     * @return Uncompressed data as double[], or null if the data has to be read
+     * @throws IOException On failure to read the prefetched data
+     */
+    private double[] getLoadedData() throws IOException {
+        if (data != null) {
+            return data;
+        }
+        
+        CompletableFuture<double[]> prefetched = takePrefetchedData();
+        
+        return (prefetched != null) ? getPrefetchedData(prefetched) : null;
+    }
+    
+    /**
+     * Wait for the prefetched data to complete, handling failures in the same way
+     * as {@link #getDataAsDouble(boolean)}.
+     * 
+     * @param prefetched Prefetched data
+     * @return Uncompressed data as double[]
+     * @throws IOException On failure to read from data location
+     */
+    private static double[] getPrefetchedData(CompletableFuture<double[]> prefetched) throws IOException {
+        try {
+            return prefetched.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            } else if (ex.getCause() instanceof DataFormatException) {
+                Logger.getLogger(BinaryDataArray.class.getName()).log(Level.SEVERE, null, ex.getCause());
+                
+                return new double[0];
+            }
+            
+            throw ex;
+        }
+    }
+    
+    /**
+     * Get the data array as double[], convert and decompress as necessary, placing
+     * the data into the supplied array rather than allocating a new one. Repeated 
+     * calls with the same array (for example when iterating over all spectra in a 
+     * dataset) allocate (almost) nothing for uncompressed data. The array should 
+     * be at least {@link #getArrayLength()} long.
+     *
+     * @param reuse Array to place the data in, starting at index 0
+     * @return Number of values placed into reuse
+     * @throws IOException On failure to read from data location
+     * @throws java.nio.BufferOverflowException If reuse is too small to hold the data
+     */
+    public int getDataAsDouble(double[] reuse) throws IOException {
+        double[] loadedData = getLoadedData();
+        
+        if(loadedData != null) {
+            if(loadedData.length > reuse.length)
+                throw new BufferOverflowException();
+            
+            System.arraycopy(loadedData, 0, reuse, 0, loadedData.length);
+            
+            return loadedData.length;
+        }
+        
+        ensureDataLocation();
+        
+        if (dataLocation == null) {
+            return 0;
+        }
+        
+        try {
+            return dataLocation.getData(reuse);
+        } catch (DataFormatException ex) {
+            Logger.getLogger(BinaryDataArray.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * If there is no dataLocation stored for the BinaryDataArray then it is 
+     * likely that the data storage is MzMLDataStorage and so needs to be converted 
+     * to Base64Storage prior to being able to load any data.
+     * 
+     * @throws IOException On failure to read from the mzML data storage
+     */
+    private void ensureDataLocation() throws IOException {
+        if (dataLocation == null && parent != null) {
+            MzMLTag grandParent = parent.getParent();
+
+            if (grandParent instanceof MzMLDataContainer) {
+                ((MzMLDataContainer) grandParent).convertMzMLDataStorageToBase64();
+            }
+        }
+    }
+    
+    /**
+     * Get the number of values in the data array, determined from (in order of preference)
+     * the external array length cvParam, the arrayLength attribute or the defaultArrayLength 
+     * of the spectrum or chromatogram containing this BinaryDataArray.
+     * 
+     * @return Number of values in the data array, or -1 if unknown
+     */
+    public int getArrayLength() {
+        long externalArrayLength = getExternalArrayLength();
+        
+        if (externalArrayLength >= 0) {
+            return (int) externalArrayLength;
+        }
+        
+        if (arrayLength >= 0) {
+            return arrayLength;
+        }
+        
+        if (parent != null && parent.getParent() instanceof MzMLDataContainer) {
+            return ((MzMLDataContainer) parent.getParent()).getDefaultArrayLength();
+        }
+        
+        return -1;
+    }
+    
     /**
      * Set the data internally. This does not update any metadata, and therefore
      * should only be used when metadata is also updated. Alternatively use
@@ -656,23 +1147,41 @@ public class BinaryDataArray extends MzMLContentWithParams {
      */
     public DataTransformation generateDataTransformation() {
         DataTransformation transformation = new DataTransformation();
+        QuantizationType quantizationType = getQuantizationType();
+
+        // Always add in the conversion to data type (or quantization or reference 
+        // axis encoding, which replace it) first
+        double[] referenceAxis = getReferenceAxis();
 
-        // Always add in the conversion to data type first
-        if (!DataType.DOUBLE.equals(getDataType())) {
+        if (quantizationType != null) {
+            transformation.addTransform(new QuantizationDataTransform(quantizationType));
+        } else if (referenceAxis != null) {
+            transformation.addTransform(new ReferenceAxisDataTransform(referenceAxis));
+        } else if (!DataType.DOUBLE.equals(getDataType())) {
             transformation.addTransform(new DataTypeTransform(DataType.DOUBLE, getDataType()));
         }
 
         CVParam compressionCVParam = this.getCVParamOrChild(BinaryDataArray.COMPRESSION_TYPE_ID);
         
+        // Add in any shuffle of the elements, which is performed prior to compression
+        ShuffleType shuffleType = getShuffleType();
+        
+        if (shuffleType != null) {
+            DataType storedDataType = getDataType();
+            int elementSize = (storedDataType == null) ? 8 : DataTypeTransform.getSizeInBytes(storedDataType);
+            
+            transformation.addTransform(new ShuffleDataTransform(elementSize, shuffleType));
+        }
+        
         // Add in any compression
         if (BinaryDataArray.ZLIB_COMPRESSION_ID.equals(compressionCVParam.getTerm().getID())) {
-            transformation.addTransform(new ZlibDataTransform());
+            transformation.addTransform(createZlibDataTransform(getDecodedLengthInBytes()));
         } else if(BinaryDataArray.XZ_COMPRESSION_ID.equals(compressionCVParam.getTerm().getID())) {
-            transformation.addTransform(new XZDataTransform());
+            transformation.addTransform(createXZDataTransform(getDecodedLengthInBytes()));
         } else if(BinaryDataArray.LZ4_COMPRESSION_ID.equals(compressionCVParam.getTerm().getID())) {
-            transformation.addTransform(new LZ4DataTransform((int)(this.getExternalArrayLength() * getDataTypeInBytes(getCVParamOrChild(BINARY_DATA_TYPE_ID)))));
+            transformation.addTransform(new LZ4DataTransform(getDecodedLengthInBytes()));
         } else if(BinaryDataArray.ZSTD_COMPRESSION_ID.equals(compressionCVParam.getTerm().getID())) {
-            transformation.addTransform(new ZstdDataTransform((int)(this.getExternalArrayLength() * getDataTypeInBytes(getCVParamOrChild(BINARY_DATA_TYPE_ID)))));
+            transformation.addTransform(createZstdDataTransform(getDecodedLengthInBytes()));
         } else if(BinaryDataArray.MSNUMPRESS_LINEAR_ID.equals(compressionCVParam.getTerm().getID())) {
             transformation.addTransform(new MSNumpressDataTransform(NumpressAlgorithm.LINEAR));
         } else if(BinaryDataArray.MSNUMPRESS_POSITIVE_ID.equals(compressionCVParam.getTerm().getID())) {
@@ -692,13 +1201,13 @@ public class BinaryDataArray extends MzMLContentWithParams {
             transformation.addTransform(new LZ4DataTransform(decompressedSize));
         } else if(BinaryDataArray.MSNUMPRESS_LINEAR_XZ_ID.equals(compressionCVParam.getTerm().getID())) {
             transformation.addTransform(new MSNumpressDataTransform(NumpressAlgorithm.LINEAR));
-            transformation.addTransform(new XZDataTransform());
+            transformation.addTransform(createXZDataTransform(-1));
         } else if(BinaryDataArray.MSNUMPRESS_LINEAR_ZLIB_ID.equals(compressionCVParam.getTerm().getID())) {
             transformation.addTransform(new MSNumpressDataTransform(NumpressAlgorithm.LINEAR));
-            transformation.addTransform(new ZlibDataTransform());
+            transformation.addTransform(createZlibDataTransform(-1));
         } else if(BinaryDataArray.MSNUMPRESS_LINEAR_ZSTD_ID.equals(compressionCVParam.getTerm().getID())) {
             transformation.addTransform(new MSNumpressDataTransform(NumpressAlgorithm.LINEAR));
-            transformation.addTransform(new ZstdDataTransform((int)(this.getExternalArrayLength() * getDataTypeInBytes(getCVParamOrChild(BINARY_DATA_TYPE_ID)))));
+            transformation.addTransform(createZstdDataTransform((int)(this.getExternalArrayLength() * getDataTypeInBytes(getCVParamOrChild(BINARY_DATA_TYPE_ID)))));
         } else if(BinaryDataArray.MSNUMPRESS_POSITIVE_LZ4_ID.equals(compressionCVParam.getTerm().getID())) {
             transformation.addTransform(new MSNumpressDataTransform(NumpressAlgorithm.PIC));
             
@@ -712,13 +1221,13 @@ public class BinaryDataArray extends MzMLContentWithParams {
             transformation.addTransform(new LZ4DataTransform(decompressedSize));
         } else if(BinaryDataArray.MSNUMPRESS_POSITIVE_XZ_ID.equals(compressionCVParam.getTerm().getID())) {
             transformation.addTransform(new MSNumpressDataTransform(NumpressAlgorithm.PIC));
-            transformation.addTransform(new XZDataTransform());
+            transformation.addTransform(createXZDataTransform(-1));
         } else if(BinaryDataArray.MSNUMPRESS_POSITIVE_ZLIB_ID.equals(compressionCVParam.getTerm().getID())) {
             transformation.addTransform(new MSNumpressDataTransform(NumpressAlgorithm.PIC));
-            transformation.addTransform(new ZlibDataTransform());
+            transformation.addTransform(createZlibDataTransform(-1));
         } else if(BinaryDataArray.MSNUMPRESS_POSITIVE_ZSTD_ID.equals(compressionCVParam.getTerm().getID())) {
             transformation.addTransform(new MSNumpressDataTransform(NumpressAlgorithm.PIC));
-            transformation.addTransform(new ZstdDataTransform((int)(this.getExternalArrayLength() * getDataTypeInBytes(getCVParamOrChild(BINARY_DATA_TYPE_ID)))));
+            transformation.addTransform(createZstdDataTransform((int)(this.getExternalArrayLength() * getDataTypeInBytes(getCVParamOrChild(BINARY_DATA_TYPE_ID)))));
         } else if(BinaryDataArray.MSNUMPRESS_SLOF_LZ4_ID.equals(compressionCVParam.getTerm().getID())) {
             transformation.addTransform(new MSNumpressDataTransform(NumpressAlgorithm.SLOF));
             
@@ -732,18 +1241,199 @@ public class BinaryDataArray extends MzMLContentWithParams {
             transformation.addTransform(new LZ4DataTransform(decompressedSize));
         } else if(BinaryDataArray.MSNUMPRESS_SLOF_XZ_ID.equals(compressionCVParam.getTerm().getID())) {
             transformation.addTransform(new MSNumpressDataTransform(NumpressAlgorithm.SLOF));
-            transformation.addTransform(new XZDataTransform());
+            transformation.addTransform(createXZDataTransform(-1));
         } else if(BinaryDataArray.MSNUMPRESS_SLOF_ZLIB_ID.equals(compressionCVParam.getTerm().getID())) {
             transformation.addTransform(new MSNumpressDataTransform(NumpressAlgorithm.SLOF));
-            transformation.addTransform(new ZlibDataTransform());
+            transformation.addTransform(createZlibDataTransform(-1));
         } else if(BinaryDataArray.MSNUMPRESS_SLOF_ZSTD_ID.equals(compressionCVParam.getTerm().getID())) {
             transformation.addTransform(new MSNumpressDataTransform(NumpressAlgorithm.SLOF));
-            transformation.addTransform(new ZstdDataTransform((int)(this.getExternalArrayLength() * getDataTypeInBytes(getCVParamOrChild(BINARY_DATA_TYPE_ID)))));
+            transformation.addTransform(createZstdDataTransform((int)(this.getExternalArrayLength() * getDataTypeInBytes(getCVParamOrChild(BINARY_DATA_TYPE_ID)))));
         }
         
         return transformation;
     }
 
+    /**
+     * Get the shuffle performed on the elements of the data prior to compression,
+     * as described by the {@link #SHUFFLE_NAME} UserParam.
+     * 
+     * @return Shuffle type, or null if the data is not shuffled
+     */
+    public ShuffleType getShuffleType() {
+        UserParam shuffleParam = getUserParam(SHUFFLE_NAME);
+        
+        if (shuffleParam == null || shuffleParam.getValue() == null) {
+            return null;
+        }
+        
+        try {
+            return ShuffleType.valueOf(shuffleParam.getValue().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            LOGGER.log(Level.WARNING, "Unknown shuffle type {0}", shuffleParam.getValue());
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Get the lossy quantization performed on the data prior to any compression,
+     * as described by the {@link #QUANTIZATION_NAME} UserParam.
+     * 
+     * @return Quantization type, or null if the data is not quantized
+     */
+    public QuantizationType getQuantizationType() {
+        UserParam quantizationParam = getUserParam(QUANTIZATION_NAME);
+        
+        if (quantizationParam == null || quantizationParam.getValue() == null) {
+            return null;
+        }
+        
+        try {
+            return QuantizationType.valueOf(quantizationParam.getValue().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            LOGGER.log(Level.WARNING, "Unknown quantization type {0}", quantizationParam.getValue());
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Get the reference axis that the data was encoded against, as referenced by
+     * the {@link #REFERENCE_MZ_AXIS_OFFSET_NAME} and {@link #REFERENCE_MZ_AXIS_LENGTH_NAME}
+     * UserParams. The axis is read from the same DataStorage as the data, so the 
+     * DataLocation must have been set.
+     * 
+     * @return Reference axis, or null if no axis is referenced or it could not 
+     * be read
+     */
+    public double[] getReferenceAxis() {
+        UserParam offsetParam = getUserParam(REFERENCE_MZ_AXIS_OFFSET_NAME);
+        UserParam lengthParam = getUserParam(REFERENCE_MZ_AXIS_LENGTH_NAME);
+        
+        if (offsetParam == null || lengthParam == null || dataLocation == null) {
+            return null;
+        }
+        
+        try {
+            return ReferenceAxisDataTransform.loadReferenceAxis(dataLocation.getDataStorage(), Long.parseLong(offsetParam.getValue()), Integer.parseInt(lengthParam.getValue()));
+        } catch (IOException | NumberFormatException ex) {
+            LOGGER.log(Level.SEVERE, "Failed to load reference m/z axis", ex);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Create a {@link ZlibDataTransform}, using the compression level set with
+     * {@link #setCompression(CompressionType, int, int, int)}.
+     * 
+     * @param arrayLengthInBytes Length of the decompressed data in bytes, or -1 if unknown
+     * @return ZlibDataTransform
+     */
+    private ZlibDataTransform createZlibDataTransform(int arrayLengthInBytes) {
+        int level = (compressionLevel == 0) ? Deflater.DEFAULT_COMPRESSION : compressionLevel;
+        
+        return new ZlibDataTransform(arrayLengthInBytes, level);
+    }
+    
+    /**
+     * Create an {@link XZDataTransform}, using the preset and dictionary size set
+     * with {@link #setCompression(CompressionType, int, int, int)}.
+     * 
+     * @param arrayLengthInBytes Length of the decompressed data in bytes, or -1 if unknown
+     * @return XZDataTransform
+     */
+    private XZDataTransform createXZDataTransform(int arrayLengthInBytes) {
+        if (compressionLevel == 0 && windowLog == 0) {
+            return new XZDataTransform(arrayLengthInBytes);
+        }
+        
+        int preset = (compressionLevel == 0) ? LZMA2Options.PRESET_DEFAULT : compressionLevel;
+        int dictionarySize = (windowLog == 0) ? 0 : 1 << windowLog;
+        
+        return new XZDataTransform(arrayLengthInBytes, preset, dictionarySize);
+    }
+    
+    /**
+     * Create a {@link ZstdDataTransform}, using the dictionary referenced by this
+     * BinaryDataArray if there is one and the compression settings specified with
+     * {@link #setCompression(CompressionType, int, int, int)}.
+     * 
+     * @param arrayLengthInBytes Length of the decompressed data in bytes, or -1 if unknown
+     * @return ZstdDataTransform
+     * @see #getZstdDictionary() 
+     */
+    private ZstdDataTransform createZstdDataTransform(int arrayLengthInBytes) {
+        int level = (compressionLevel == 0) ? ZstdDataTransform.DEFAULT_COMPRESSION_LEVEL : compressionLevel;
+        ZstdDataTransform zstdTransform = new ZstdDataTransform(arrayLengthInBytes, level, windowLog, compressionWorkers);
+        zstdTransform.setDictionary(getZstdDictionary());
+        
+        return zstdTransform;
+    }
+    
+    /**
+     * Get the Zstd dictionary that the data was compressed with, as referenced by
+     * the {@link #ZSTD_DICTIONARY_OFFSET_NAME} and {@link #ZSTD_DICTIONARY_LENGTH_NAME}
+     * UserParams (either within this BinaryDataArray or a referenced 
+     * ReferenceableParamGroup). The dictionary is read from the same DataStorage 
+     * as the data, so the DataLocation must have been set.
+     * 
+     * @return Zstd dictionary, or null if no dictionary is referenced or it could 
+     * not be read
+     */
+    public ZstdDictionary getZstdDictionary() {
+        UserParam offsetParam = getUserParam(ZSTD_DICTIONARY_OFFSET_NAME);
+        UserParam lengthParam = getUserParam(ZSTD_DICTIONARY_LENGTH_NAME);
+        
+        if (offsetParam == null || lengthParam == null || dataLocation == null) {
+            return null;
+        }
+        
+        try {
+            return ZstdDictionary.load(dataLocation.getDataStorage(), Long.parseLong(offsetParam.getValue()), Integer.parseInt(lengthParam.getValue()));
+        } catch (IOException | NumberFormatException ex) {
+            LOGGER.log(Level.SEVERE, "Failed to load Zstd dictionary", ex);
+        }
+        
+        return null;
+    }
+
+    /**
+     * Get the expected length in bytes of the data after decompression (but before 
+     * conversion to double), determined from the array length and the data type
+     * or quantization.
+     * 
+     * @return Length of the decompressed data in bytes, or -1 if unknown
+     * @see #getArrayLength() 
+     */
+    protected int getDecodedLengthInBytes() {
+        int numValues = getArrayLength();
+        CVParam dataTypeParam = getCVParamOrChild(BINARY_DATA_TYPE_ID);
+        QuantizationType quantizationType = getQuantizationType();
+        
+        // The length of data encoded against a reference axis is only known from
+        // the encoded data
+        if (getUserParam(REFERENCE_MZ_AXIS_OFFSET_NAME) != null) {
+            return -1;
+        }
+        
+        if (numValues >= 0 && quantizationType != null) {
+            return new QuantizationDataTransform(quantizationType).getEncodedLength(numValues);
+        }
+        
+        if (numValues < 0 || dataTypeParam == null) {
+            return -1;
+        }
+        
+        if (BINARY_DATA_TYPE_ID.equals(dataTypeParam.getTerm().getID())) {
+            DataType dataType = getEncodedDataType();
+            
+            return (dataType == null) ? -1 : numValues * DataTypeTransform.getSizeInBytes(dataType);
+        }
+        
+        return numValues * getDataTypeInBytes(dataTypeParam);
+    }
+
     /**
      * Gets binary data type. (e.g. double or single)
      *
@@ -768,6 +1458,8 @@ public class BinaryDataArray extends MzMLContentWithParams {
                 dataType = DataTypeTransform.DataType.INTEGER_16BIT;
             } else if (term.equals(SIGNED_8BIT_INTEGER_ID)) {
                 dataType = DataTypeTransform.DataType.INTEGER_8BIT;
+            } else if (term.equals(BINARY_DATA_TYPE_ID)) {
+                dataType = getEncodedDataType();
             }
         } else {
             LOGGER.log(Level.INFO, "BinaryDataArray#getDataType(): {0}", Arrays.toString(this.getCVParamList().toArray()));
@@ -776,6 +1468,110 @@ public class BinaryDataArray extends MzMLContentWithParams {
         return dataType;
     }
 
+    /**
+     * Get the data type recorded with the {@link #ENCODED_DATA_TYPE_NAME} UserParam,
+     * for data stored with an encoding that only jimzMLParser can read.
+     * 
+     * @return Data type, or null if not recorded
+     */
+    private DataType getEncodedDataType() {
+        UserParam dataTypeParam = getUserParam(ENCODED_DATA_TYPE_NAME);
+        
+        if (dataTypeParam == null || dataTypeParam.getValue() == null) {
+            return null;
+        }
+        
+        try {
+            return DataType.valueOf(dataTypeParam.getValue().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            LOGGER.log(Level.WARNING, "Unknown encoded data type {0}", dataTypeParam.getValue());
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Check whether the data is stored with an encoding that only jimzMLParser can
+     * read, which the standard compression and data type terms cannot describe: 
+     * a shuffle of the elements prior to compression, a lossy quantization or 
+     * encoding as indices into a reference m/z axis.
+     * 
+     * @return true if the data has a non-standard encoding
+     */
+    public boolean hasNonStandardEncoding() {
+        return getShuffleType() != null || getQuantizationType() != null 
+                || getUserParam(REFERENCE_MZ_AXIS_OFFSET_NAME) != null;
+    }
+    
+    /**
+     * Update the binary data type CVParam to reflect whether the data is stored 
+     * with a non-standard encoding (see {@link #hasNonStandardEncoding()}). If so, the 
+     * data type is replaced with the generic {@link #BINARY_DATA_TYPE_ID} term and
+     * recorded in the {@link #ENCODED_DATA_TYPE_NAME} UserParam, so that readers 
+     * which do not support the encoding reject the data rather than decode it as 
+     * the standard terms describe. Otherwise any such marker is replaced with the 
+     * specific data type. This is called by the writers prior to writing the data.
+     */
+    public void updateDataTypeForEncoding() {
+        DataType dataType = getDataType();
+        CVParam dataTypeParam = getCVParamOrChild(BINARY_DATA_TYPE_ID);
+        
+        if (dataType == null || dataTypeParam == null) {
+            return;
+        }
+        
+        boolean marked = BINARY_DATA_TYPE_ID.equals(dataTypeParam.getTerm().getID());
+        
+        if (!hasNonStandardEncoding()) {
+            if (marked) {
+                setDataType(dataType);
+            }
+        } else if (!marked) {
+            detachReferenceableParamGroups(BINARY_DATA_TYPE_ID);
+            this.removeChildrenOfCVParam(BINARY_DATA_TYPE_ID, true);
+            this.addCVParam(new EmptyCVParam(OBO.getOBO().getTerm(BINARY_DATA_TYPE_ID)));
+            
+            this.removeUserParam(ENCODED_DATA_TYPE_NAME);
+            this.addUserParam(new UserParam(ENCODED_DATA_TYPE_NAME, dataType.name()));
+        }
+    }
+    
+    /**
+     * Detach (see {@link #detachReferenceableParamGroupRef(ReferenceableParamGroupRef)})
+     * each referenced ReferenceableParamGroup which includes the term with the 
+     * specified ID or one of its children, so that the term can be replaced for 
+     * this BinaryDataArray without modifying the shared group.
+     * 
+     * @param id Ontology term ID
+     */
+    private void detachReferenceableParamGroups(String id) {
+        for (int i = getReferenceableParamGroupRefCount() - 1; i >= 0; i--) {
+            ReferenceableParamGroupRef ref = getReferenceableParamGroupRef(i);
+            
+            if (!ref.getReference().getChildrenOf(id, true).isEmpty()) {
+                detachReferenceableParamGroupRef(ref);
+            }
+        }
+    }
+
+    /**
+     * Detach (see {@link #detachReferenceableParamGroupRef(ReferenceableParamGroupRef)})
+     * each referenced ReferenceableParamGroup which includes the UserParam with the
+     * specified name, so that the UserParam can be replaced for this 
+     * BinaryDataArray without modifying the shared group.
+     * 
+     * @param name UserParam name
+     */
+    private void detachReferenceableParamGroupsWithUserParam(String name) {
+        for (int i = getReferenceableParamGroupRefCount() - 1; i >= 0; i--) {
+            ReferenceableParamGroupRef ref = getReferenceableParamGroupRef(i);
+            
+            if (ref.getReference().getUserParam(name) != null) {
+                detachReferenceableParamGroupRef(ref);
+            }
+        }
+    }
+
     /**
      * Gets the external array length.
      *
@@ -875,13 +1671,114 @@ public class BinaryDataArray extends MzMLContentWithParams {
     }
 
     /**
-     * Sets the compression (or none).
+     * Sets the compression (or none), using the default compression settings.
      * 
      * @param compression Compression
      */
-    public void setCompression(BinaryDataArray.CompressionType compression) {        
+    public void setCompression(BinaryDataArray.CompressionType compression) {
+        setCompression(compression, 0, 0, 0);
+    }
+    
+    /**
+     * Sets the compression (or none), and the settings used for any zlib, XZ or
+     * Zstd compression when the data is written. The settings only affect how the 
+     * data is compressed, not how it is decompressed, so are not recorded in the 
+     * metadata.
+     * 
+     * @param compression Compression
+     * @param compressionLevel Compression level, or 0 for the default level. For 
+     * zlib this is from {@link Deflater#BEST_SPEED} (1) to 
+     * {@link Deflater#BEST_COMPRESSION} (9), for XZ the preset from 1 to 
+     * {@link LZMA2Options#PRESET_MAX} (9), and for Zstd from 1 to 
+     * {@link com.github.luben.zstd.Zstd#maxCompressionLevel()}
+     * @param windowLog For Zstd, the window log (10 to {@link ZstdDataTransform#MAXIMUM_WINDOW_LOG})
+     * for long distance matching, or 0 to disable. For XZ, the base 2 logarithm of 
+     * the dictionary size ({@link XZDataTransform#MINIMUM_DICTIONARY_SIZE_LOG} to 
+     * {@link XZDataTransform#MAXIMUM_DICTIONARY_SIZE_LOG}), or 0 to use the 
+     * dictionary size of the preset
+     * @param workers Number of worker threads to use for Zstd compression, or 0 
+     * to compress on the calling thread
+     */
+    public void setCompression(BinaryDataArray.CompressionType compression, int compressionLevel, int windowLog, int workers) {
+        if (isXZCompression(compression)) {
+            XZDataTransform.checkDictionarySizeLog(windowLog);
+            
+            if (compressionLevel < 0 || compressionLevel > LZMA2Options.PRESET_MAX) {
+                throw new IllegalArgumentException("Invalid XZ preset: " + compressionLevel);
+            }
+        } else {
+            ZstdDataTransform.checkLongDistanceWindowLog(windowLog);
+        }
+        
+        if (isZlibCompression(compression) && (compressionLevel < 0 || compressionLevel > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid zlib compression level: " + compressionLevel);
+        }
+        
+        if (workers < 0) {
+            throw new IllegalArgumentException("Invalid number of workers: " + workers);
+        }
+        
+        this.compressionLevel = compressionLevel;
+        this.windowLog = windowLog;
+        this.compressionWorkers = workers;
+        
+        // Shared groups describing the compression are copied rather than modified
+        detachReferenceableParamGroups(BinaryDataArray.COMPRESSION_TYPE_ID);
+        detachReferenceableParamGroupsWithUserParam(SHUFFLE_NAME);
+        detachReferenceableParamGroupsWithUserParam(QUANTIZATION_NAME);
+        
         this.removeChildrenOfCVParam(BinaryDataArray.COMPRESSION_TYPE_ID, false);
         this.addCVParam(new EmptyCVParam(BinaryDataArray.CompressionType.toOBOTerm(compression)));
+        
+        this.removeUserParam(SHUFFLE_NAME);
+        ShuffleType shuffleType = BinaryDataArray.CompressionType.toShuffleType(compression);
+        
+        if (shuffleType != null) {
+            this.addUserParam(new UserParam(SHUFFLE_NAME, shuffleType.name().toLowerCase()));
+        }
+        
+        this.removeUserParam(QUANTIZATION_NAME);
+        QuantizationType quantizationType = BinaryDataArray.CompressionType.toQuantizationType(compression);
+        
+        if (quantizationType != null) {
+            this.addUserParam(new UserParam(QUANTIZATION_NAME, quantizationType.name()));
+        }
+    }
+    
+    /**
+     * Check whether the CompressionType compresses with zlib.
+     * 
+     * @param compression Compression
+     * @return true if the data is compressed with zlib, false otherwise
+     */
+    private static boolean isZlibCompression(BinaryDataArray.CompressionType compression) {
+        switch (compression) {
+            case ZLIB:
+            case MSNUMPRESS_LINEAR_ZLIB:
+            case MSNUMPRESS_POSITIVE_ZLIB:
+            case MSNUMPRESS_SLOF_ZLIB:
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Check whether the CompressionType compresses with XZ.
+     * 
+     * @param compression Compression
+     * @return true if the data is compressed with XZ, false otherwise
+     */
+    private static boolean isXZCompression(BinaryDataArray.CompressionType compression) {
+        switch (compression) {
+            case XZ:
+            case MSNUMPRESS_LINEAR_XZ:
+            case MSNUMPRESS_POSITIVE_XZ:
+            case MSNUMPRESS_SLOF_XZ:
+                return true;
+            default:
+                return false;
+        }
     }
     
     /**
@@ -915,7 +1812,9 @@ public class BinaryDataArray extends MzMLContentWithParams {
                 break;
         }
         
-        this.removeChildrenOfCVParam(BinaryDataArray.BINARY_DATA_TYPE_ID, false);
+        detachReferenceableParamGroups(BinaryDataArray.BINARY_DATA_TYPE_ID);
+        this.removeChildrenOfCVParam(BinaryDataArray.BINARY_DATA_TYPE_ID, true);
+        this.removeUserParam(ENCODED_DATA_TYPE_NAME);
         this.addCVParam(new EmptyCVParam(OBO.getOBO().getTerm(newDataTypeID)));
     }
     
@@ -0,0 +1,866 @@
+package com.alanmrace.jimzmlparser.mzml;
+
+import com.alanmrace.jimzmlparser.data.DataLocation;
+import com.alanmrace.jimzmlparser.data.DataStorage;
+import com.alanmrace.jimzmlparser.imzml.PixelLocation;
+import java.lang.ref.SoftReference;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * SpectrumList for imzML data which stores the per-spectrum values (pixel location,
+ * the location of the m/z and intensity arrays in the IBD file, the default array
+ * length and the total ion current) in a {@link SpectrumTable}, rather than
+ * storing a Spectrum for each pixel.
+ *
+ * <p>The first suitable spectrum added with {@link #addCompact(Spectrum)} is kept
+ * as a template. Each spectrum added afterwards which only differs from the template
+ * in the values stored in the table is discarded, and recreated from the template
+ * and the table when it is requested with {@link #get(int)}. Spectra which differ
+ * in any other way (for example additional cvParams or a precursorList) are
+ * stored as they are.
+ *
+ * <p>Spectra created by {@link #get(int)} (and so when iterating over the list)
+ * are only softly referenced, so the same Spectrum is returned while it is in
+ * use but it can be discarded when memory is required. Changes made to such a
+ * spectrum are only kept once {@link #update(int)} is called, which updates the
+ * table or, if the spectrum can no longer be recreated from the table, stores
+ * the spectrum. Only spectra which were added as they are, or updated, are
+ * stored. To create a new Spectrum each time use {@link #createSpectrum(int)},
+ * or read the values directly from {@link #getSpectrumTable()}.
+ */
+public class CompactSpectrumList extends SpectrumList {
+
+    /**
+     * Serialisation version ID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Accessions of the cvParams whose values are stored in the SpectrumTable.
+     */
+    private static final Set<String> TABLE_ACCESSIONS = new HashSet<String>(Arrays.asList(
+            Spectrum.TOTAL_ION_CURRENT_ID,
+            Scan.POSITION_X_ID, Scan.POSITION_Y_ID, Scan.POSITION_Z_ID,
+            BinaryDataArray.EXTERNAL_OFFSET_ID, BinaryDataArray.EXTERNAL_ENCODED_LENGTH_ID, BinaryDataArray.EXTERNAL_ARRAY_LENGTH_ID));
+
+    /**
+     * MzML containing the lists which spectra created from the template refer to.
+     */
+    private final MzML mzML;
+
+    /**
+     * DataStorage containing the binary data of the spectra.
+     */
+    private DataStorage dataStorage;
+
+    /**
+     * Per-spectrum values.
+     */
+    private final SpectrumTable table;
+
+    /**
+     * Spectrum used to create the spectra which are not stored.
+     */
+    private Spectrum template;
+
+    /**
+     * Prefix of the IDs of the spectra, if the IDs of the spectra are the prefix
+     * followed by a number increasing by one for each spectrum.
+     */
+    private String idPrefix;
+
+    /**
+     * Number following the prefix in the ID of the first spectrum.
+     */
+    private long idStart;
+
+    /**
+     * IDs of spectra which do not follow the pattern of idPrefix, or null if all do.
+     */
+    private String[] ids;
+
+    /**
+     * Stored spectra, either added as they are or updated, or null if none are
+     * stored.
+     */
+    private Spectrum[] spectra;
+
+    /**
+     * Spectra created from the template and the table which may still be in use,
+     * or null if none have been created.
+     */
+    private SoftReference<Spectrum>[] createdSpectra;
+
+    /**
+     * Rows which can be recreated from the template and the table.
+     */
+    private final BitSet tabulated = new BitSet();
+
+    /**
+     * DataProcessingList used to ensure that references are kept up to date.
+     */
+    private ReferenceList<DataProcessing> dataProcessingReferences;
+
+    /**
+     * Create an empty {@literal <spectrumList>} tag with space for the specified
+     * number of spectra.
+     *
+     * @param count Expected number of spectra
+     * @param defaultDataProcessingRef Default description of processing applied to the spectra in the list
+     * @param mzML MzML containing the lists referred to by the spectra
+     * @param dataStorage DataStorage containing the binary data of the spectra
+     */
+    public CompactSpectrumList(int count, DataProcessing defaultDataProcessingRef, MzML mzML, DataStorage dataStorage) {
+        super(count, defaultDataProcessingRef);
+
+        this.mzML = mzML;
+        this.dataStorage = dataStorage;
+        this.table = new SpectrumTable(count);
+    }
+
+    /**
+     * Get the table of per-spectrum values, with one row for each spectrum in the
+     * list. Values for spectra which were not added using {@link #addCompact(Spectrum)}
+     * (or which did not contain the values) may be missing from the table, and changes
+     * made to stored spectra are not reflected in the table.
+     *
+     * @return SpectrumTable
+     */
+    public SpectrumTable getSpectrumTable() {
+        return table;
+    }
+
+    /**
+     * Add a spectrum to the list, storing its values in the SpectrumTable and
+     * discarding the Spectrum if it can be recreated from the template.
+     *
+     * @param spectrum Spectrum to add
+     * @return true if the spectrum was discarded, false if it was stored
+     */
+    public synchronized boolean addCompact(Spectrum spectrum) {
+        int row = addRow();
+        boolean inTable = setRow(row, spectrum);
+
+        if (template == null && inTable && isSuitableTemplate(spectrum)) {
+            setTemplate(spectrum);
+        }
+
+        if (template != null && inTable && isCompatible(spectrum)) {
+            setID(row, spectrum.getID());
+            tabulated.set(row);
+
+            return true;
+        }
+
+        storeSpectrum(row, spectrum);
+
+        return false;
+    }
+
+    /**
+     * Add a spectrum which only differs from the template in the values stored in
+     * the SpectrumTable, without creating the Spectrum. The values of the new row
+     * should then be set using {@link #getSpectrumTable()}. This is used to restore
+     * a list which was previously created by {@link #addCompact(Spectrum)}.
+     *
+     * @param id ID of the spectrum, or null if the ID follows the numbering of
+     * the template
+     * @return Index of the new row
+     * @throws IllegalStateException If no template has been added
+     */
+    public synchronized int addTabulated(String id) {
+        if (template == null) {
+            throw new IllegalStateException("No template spectrum has been added to the list");
+        }
+
+        int row = addRow();
+
+        if (id != null) {
+            setID(row, id);
+        }
+
+        tabulated.set(row);
+
+        return row;
+    }
+
+    /**
+     * Check whether the spectrum at the specified index was discarded when added,
+     * and so is recreated from the template and the table when requested.
+     *
+     * @param index Index of the spectrum
+     * @return true if the spectrum can be recreated from the table
+     */
+    public synchronized boolean isTabulated(int index) {
+        return tabulated.get(index);
+    }
+
+    /**
+     * Get the ID of a spectrum if it has to be stored, because it does not follow
+     * the numbering of the IDs of the other spectra.
+     *
+     * @param index Index of the spectrum
+     * @return ID of the spectrum, or null if it follows the numbering
+     */
+    public synchronized String getStoredID(int index) {
+        return (ids != null) ? ids[index] : null;
+    }
+
+    @Override
+    public synchronized void add(Spectrum spectrum) {
+        int row = addRow();
+
+        setRow(row, spectrum);
+        storeSpectrum(row, spectrum);
+    }
+
+    @Override
+    public synchronized Spectrum remove(int index) {
+        Spectrum removed = get(index);
+
+        // IDs which follow the pattern depend on the index, so must be stored once moved
+        if (idPrefix != null) {
+            ensureIDCapacity();
+
+            for (int row = index + 1; row < table.size(); row++) {
+                if (ids[row] == null) {
+                    ids[row] = getID(row);
+                }
+            }
+        }
+
+        int numMoved = table.size() - index - 1;
+
+        if (ids != null) {
+            System.arraycopy(ids, index + 1, ids, index, numMoved);
+            ids[table.size() - 1] = null;
+        }
+
+        if (spectra != null) {
+            System.arraycopy(spectra, index + 1, spectra, index, numMoved);
+            spectra[table.size() - 1] = null;
+        }
+
+        if (createdSpectra != null) {
+            System.arraycopy(createdSpectra, index + 1, createdSpectra, index, numMoved);
+            createdSpectra[table.size() - 1] = null;
+        }
+
+        for (int row = index; row < table.size() - 1; row++) {
+            tabulated.set(row, tabulated.get(row + 1));
+        }
+
+        tabulated.clear(table.size() - 1);
+        table.removeRow(index);
+
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean remove(Spectrum spectrum) {
+        for (int i = 0; i < table.size(); i++) {
+            if ((spectra != null && spectra[i] == spectrum) || getCreatedSpectrum(i) == spectrum) {
+                remove(i);
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public synchronized void clear() {
+        table.clear();
+        tabulated.clear();
+
+        ids = null;
+        spectra = null;
+        createdSpectra = null;
+    }
+
+    @Override
+    public Spectrum get(String id) {
+        if (idPrefix != null && id.startsWith(idPrefix)) {
+            try {
+                long row = Long.parseLong(id.substring(idPrefix.length())) - idStart;
+
+                if (row >= 0 && row < size() && id.equals(getID((int) row))) {
+                    return get((int) row);
+                }
+            } catch (NumberFormatException ex) {
+                // Not in the pattern, so search all IDs
+            }
+        }
+
+        for (int i = 0; i < size(); i++) {
+            if (id.equals(getID(i))) {
+                return get(i);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public boolean containsID(String id) {
+        return get(id) != null;
+    }
+
+    /**
+     * Get the ID of the spectrum at the specified index, without creating the
+     * Spectrum.
+     *
+     * @param index Index of the spectrum
+     * @return ID of the spectrum
+     */
+    public synchronized String getID(int index) {
+        if (spectra != null && spectra[index] != null) {
+            return spectra[index].getID();
+        }
+
+        if (ids != null && ids[index] != null) {
+            return ids[index];
+        }
+
+        return idPrefix + (idStart + index);
+    }
+
+    @Override
+    public synchronized PixelLocation getPixelLocation(int index) {
+        if (spectra != null && spectra[index] != null) {
+            return spectra[index].getPixelLocation();
+        }
+
+        return new PixelLocation(table.getX(index), table.getY(index), table.getZ(index));
+    }
+
+    @Override
+    public synchronized void setPixelLocation(int index, int x, int y) {
+        if (spectra != null && spectra[index] != null) {
+            spectra[index].setPixelLocation(x, y);
+        } else {
+            table.setPixelLocation(index, x, y, table.getZ(index));
+
+            // Keep any spectrum which is still in use consistent with the table
+            Spectrum created = getCreatedSpectrum(index);
+
+            if (created != null) {
+                created.setPixelLocation(x, y, table.getZ(index));
+            }
+        }
+    }
+
+    /**
+     * Keep the changes made to the spectrum at the specified index. If the
+     * spectrum still only differs from the template in the values stored in the
+     * table, and its binary data arrays refer to the locations in the table, then
+     * the table is updated. Otherwise the spectrum is stored. Stored spectra, and
+     * spectra which are no longer in use, are unaffected.
+     *
+     * @param index Index of the spectrum
+     */
+    @Override
+    public synchronized void update(int index) {
+        if (index < 0 || index >= table.size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + table.size());
+        }
+
+        Spectrum spectrum = getCreatedSpectrum(index);
+
+        if (spectrum == null || (spectra != null && spectra[index] != null)) {
+            return;
+        }
+
+        boolean inTable = setRow(index, spectrum);
+
+        if (inTable && isCompatible(spectrum) && hasTableDataLocations(index, spectrum)) {
+            setID(index, spectrum.getID());
+
+            return;
+        }
+
+        createdSpectra[index] = null;
+        tabulated.clear(index);
+        storeSpectrum(index, spectrum);
+    }
+
+    /**
+     * Set the DataStorage containing the binary data of the spectra, for example
+     * to change how the data is accessed. Any stored spectra, or spectra which are
+     * in use, which read their data from the current DataStorage are updated to
+     * read from the new one, without creating the remaining spectra.
+     *
+     * @param dataStorage DataStorage containing the binary data of the spectra
+     */
+    public synchronized void setDataStorage(DataStorage dataStorage) {
+        for (int i = 0; i < table.size(); i++) {
+            if (spectra != null && spectra[i] != null) {
+                replaceDataStorage(spectra[i], this.dataStorage, dataStorage);
+            }
+
+            Spectrum created = getCreatedSpectrum(i);
+
+            if (created != null) {
+                replaceDataStorage(created, this.dataStorage, dataStorage);
+            }
+        }
+
+        this.dataStorage = dataStorage;
+    }
+
+    /**
+     * Get the DataStorage containing the binary data of the spectra.
+     *
+     * @return DataStorage
+     */
+    public synchronized DataStorage getDataStorage() {
+        return dataStorage;
+    }
+
+    /**
+     * Create the Spectrum at the specified index without keeping it in the list,
+     * so that a new Spectrum is created on each call. If the Spectrum is stored,
+     * then the stored Spectrum is returned.
+     *
+     * @param index Index of the spectrum
+     * @return Spectrum
+     */
+    public synchronized Spectrum createSpectrum(int index) {
+        if (index < 0 || index >= table.size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + table.size());
+        }
+
+        if (spectra != null && spectra[index] != null) {
+            return spectra[index];
+        }
+
+        Spectrum spectrum = copy(template);
+
+        spectrum.id = getID(index);
+        spectrum.defaultArrayLength = table.getDefaultArrayLength(index);
+
+        setValue(spectrum, Spectrum.TOTAL_ION_CURRENT_ID, table.getTotalIonCurrent(index));
+
+        Scan scan = spectrum.getScanList().get(0);
+
+        setValue(scan, Scan.POSITION_X_ID, table.getX(index));
+        setValue(scan, Scan.POSITION_Y_ID, table.getY(index));
+        setValue(scan, Scan.POSITION_Z_ID, table.getZ(index));
+
+        BinaryDataArrayList bdaList = spectrum.getBinaryDataArrayList();
+
+        setArray(bdaList.getmzArray(), table.getmzOffset(index), table.getmzEncodedLength(index), table.getmzArrayLength(index));
+        setArray(bdaList.getIntensityArray(), table.getIntensityOffset(index), table.getIntensityEncodedLength(index), table.getIntensityArrayLength(index));
+
+        spectrum.setParent(this);
+
+        if (dataProcessingReferences != null) {
+            spectrum.setDataProcessingList(dataProcessingReferences);
+        }
+
+        return spectrum;
+    }
+
+    /**
+     * Get the number of spectra which are stored (either added as they are or
+     * updated) rather than created on request.
+     *
+     * @return Number of stored spectra
+     */
+    public synchronized int getStoredSpectrumCount() {
+        int count = 0;
+
+        if (spectra != null) {
+            for (int i = 0; i < table.size(); i++) {
+                if (spectra[i] != null) {
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    @Override
+    public int size() {
+        return table.size();
+    }
+
+    @Override
+    public void ensureValidReferences() {
+        DataProcessing defaultDataProcessing = getDefaultDataProcessingRef();
+
+        if (dataProcessingReferences != null && defaultDataProcessing != null) {
+            DataProcessing validReference = dataProcessingReferences.getValidReference(defaultDataProcessing);
+
+            if (validReference != defaultDataProcessing) {
+                setDefaultDataProcessingRef(validReference);
+            }
+        }
+    }
+
+    @Override
+    protected List<Spectrum> getList() {
+        return new AbstractList<Spectrum>() {
+            @Override
+            public Spectrum get(int index) {
+                return getOrCreateSpectrum(index);
+            }
+
+            @Override
+            public int size() {
+                return table.size();
+            }
+        };
+    }
+
+    @Override
+    protected synchronized void setDataProcessingList(ReferenceList<DataProcessing> dataProcessingList) {
+        // Only the stored spectra need updating, so avoid iterating over (and creating) all spectra
+        this.dataProcessingReferences = dataProcessingList;
+
+        if (spectra != null) {
+            for (int i = 0; i < table.size(); i++) {
+                if (spectra[i] != null) {
+                    spectra[i].setDataProcessingList(dataProcessingList);
+                }
+            }
+        }
+    }
+
+    private synchronized Spectrum getOrCreateSpectrum(int index) {
+        Spectrum spectrum = getCreatedSpectrum(index);
+
+        if (spectrum != null) {
+            return spectrum;
+        }
+
+        spectrum = createSpectrum(index);
+
+        if (spectra == null || spectra[index] == null) {
+            ensureCreatedSpectraCapacity();
+
+            createdSpectra[index] = new SoftReference<Spectrum>(spectrum);
+        }
+
+        return spectrum;
+    }
+
+    /**
+     * Get the spectrum created from the template and the table at the specified
+     * index, if it is still in use.
+     *
+     * @param index Index of the spectrum
+     * @return Spectrum, or null if none has been created or it has been discarded
+     */
+    private Spectrum getCreatedSpectrum(int index) {
+        if (createdSpectra == null || createdSpectra[index] == null) {
+            return null;
+        }
+
+        return createdSpectra[index].get();
+    }
+
+    /**
+     * Check whether the binary data arrays of a spectrum read their data from the
+     * locations stored in the table, as they do when recreated from the table.
+     *
+     * @param row Index of the row
+     * @param spectrum Spectrum
+     * @return true if the arrays refer to the locations in the table
+     */
+    private boolean hasTableDataLocations(int row, Spectrum spectrum) {
+        BinaryDataArrayList bdaList = spectrum.getBinaryDataArrayList();
+
+        return isTableDataLocation(bdaList.getmzArray().getDataLocation(), table.getmzOffset(row), table.getmzEncodedLength(row))
+                && isTableDataLocation(bdaList.getIntensityArray().getDataLocation(), table.getIntensityOffset(row), table.getIntensityEncodedLength(row));
+    }
+
+    private boolean isTableDataLocation(DataLocation location, long offset, int encodedLength) {
+        return location != null && location.getDataStorage() == dataStorage
+                && location.getOffset() == offset && location.getLength() == encodedLength;
+    }
+
+    private static void replaceDataStorage(Spectrum spectrum, DataStorage oldStorage, DataStorage newStorage) {
+        for (BinaryDataArray bda : spectrum.getBinaryDataArrayList()) {
+            DataLocation location = bda.getDataLocation();
+
+            if (location != null && location.getDataStorage() == oldStorage) {
+                location.setDataStorage(newStorage);
+            }
+        }
+    }
+
+    private int addRow() {
+        int row = table.addRow();
+
+        // Keep any allocated arrays at least as long as the table
+        if (spectra != null) {
+            ensureSpectraCapacity();
+        }
+
+        if (createdSpectra != null) {
+            ensureCreatedSpectraCapacity();
+        }
+
+        if (ids != null) {
+            ensureIDCapacity();
+        }
+
+        return row;
+    }
+
+    private void storeSpectrum(int row, Spectrum spectrum) {
+        ensureSpectraCapacity();
+
+        spectra[row] = spectrum;
+        spectrum.setParent(this);
+
+        if (dataProcessingReferences != null) {
+            spectrum.setDataProcessingList(dataProcessingReferences);
+        }
+    }
+
+    private void ensureSpectraCapacity() {
+        if (spectra == null) {
+            spectra = new Spectrum[table.size()];
+        } else if (spectra.length < table.size()) {
+            spectra = Arrays.copyOf(spectra, Math.max(table.size(), spectra.length + (spectra.length >> 1)));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void ensureCreatedSpectraCapacity() {
+        if (createdSpectra == null) {
+            createdSpectra = new SoftReference[table.size()];
+        } else if (createdSpectra.length < table.size()) {
+            createdSpectra = Arrays.copyOf(createdSpectra, Math.max(table.size(), createdSpectra.length + (createdSpectra.length >> 1)));
+        }
+    }
+
+    private void ensureIDCapacity() {
+        if (ids == null) {
+            ids = new String[table.size()];
+        } else if (ids.length < table.size()) {
+            ids = Arrays.copyOf(ids, Math.max(table.size(), ids.length + (ids.length >> 1)));
+        }
+    }
+
+    private void setID(int row, String id) {
+        if (idPrefix != null && id.equals(idPrefix + (idStart + row))) {
+            if (ids != null) {
+                ids[row] = null;
+            }
+
+            return;
+        }
+
+        ensureIDCapacity();
+
+        ids[row] = id;
+    }
+
+    private void setTemplate(Spectrum spectrum) {
+        template = copy(spectrum);
+
+        String id = spectrum.getID();
+        int numberStart = id.length();
+
+        while (numberStart > 0 && Character.isDigit(id.charAt(numberStart - 1))) {
+            numberStart--;
+        }
+
+        if (numberStart < id.length() && id.length() - numberStart < 18) {
+            idPrefix = id.substring(0, numberStart);
+            idStart = Long.parseLong(id.substring(numberStart)) - (table.size() - 1);
+        }
+    }
+
+    private Spectrum copy(Spectrum spectrum) {
+        FileDescription fileDescription = mzML.getFileDescription();
+        SourceFileList sourceFileList = (fileDescription == null) ? null : fileDescription.getSourceFileList();
+
+        return new Spectrum(spectrum, mzML.getReferenceableParamGroupList(), mzML.getDataProcessingList(), sourceFileList, mzML.getInstrumentConfigurationList());
+    }
+
+    /**
+     * Store the values of a spectrum in a row of the table.
+     *
+     * @param row Index of the row
+     * @param spectrum Spectrum
+     * @return true if all values (other than the total ion current) were found
+     */
+    private boolean setRow(int row, Spectrum spectrum) {
+        table.setDefaultArrayLength(row, spectrum.getDefaultArrayLength());
+
+        CVParam tic = getDirectCVParam(spectrum, Spectrum.TOTAL_ION_CURRENT_ID);
+
+        if (tic != null) {
+            table.setTotalIonCurrent(row, tic.getValueAsDouble());
+        }
+
+        boolean complete = false;
+        ScanList scanList = spectrum.getScanList();
+
+        if (scanList != null && scanList.size() > 0) {
+            Scan scan = scanList.get(0);
+
+            CVParam x = getDirectCVParam(scan, Scan.POSITION_X_ID);
+            CVParam y = getDirectCVParam(scan, Scan.POSITION_Y_ID);
+            CVParam z = getDirectCVParam(scan, Scan.POSITION_Z_ID);
+
+            if (x != null && y != null) {
+                table.setPixelLocation(row, x.getValueAsInteger(), y.getValueAsInteger(), (z == null) ? 1 : z.getValueAsInteger());
+
+                complete = true;
+            }
+        }
+
+        BinaryDataArrayList bdaList = spectrum.getBinaryDataArrayList();
+        BinaryDataArray mzArray = (bdaList == null) ? null : bdaList.getmzArray();
+        BinaryDataArray intensityArray = (bdaList == null) ? null : bdaList.getIntensityArray();
+
+        if (isInTable(mzArray)) {
+            table.setmzArray(row, mzArray.getExternalOffset(), (int) mzArray.getExternalEncodedLength(), (int) mzArray.getExternalArrayLength());
+        } else {
+            complete = false;
+        }
+
+        if (isInTable(intensityArray)) {
+            table.setIntensityArray(row, intensityArray.getExternalOffset(), (int) intensityArray.getExternalEncodedLength(), (int) intensityArray.getExternalArrayLength());
+        } else {
+            complete = false;
+        }
+
+        return complete;
+    }
+
+    private static boolean isInTable(BinaryDataArray bda) {
+        return bda != null && getDirectCVParam(bda, BinaryDataArray.EXTERNAL_OFFSET_ID) != null
+                && getDirectCVParam(bda, BinaryDataArray.EXTERNAL_ENCODED_LENGTH_ID) != null;
+    }
+
+    private static boolean isSuitableTemplate(Spectrum spectrum) {
+        return spectrum.getScanList().size() == 1 && spectrum.getBinaryDataArrayList().size() == 2
+                && spectrum.getPrecursorList() == null && spectrum.getProductList() == null;
+    }
+
+    /**
+     * Check whether a spectrum only differs from the template in the values stored
+     * in the table.
+     *
+     * @param spectrum Spectrum to check
+     * @return true if the spectrum can be recreated from the template
+     */
+    private boolean isCompatible(Spectrum spectrum) {
+        String spotID = spectrum.getSpotID();
+
+        return spectrum.getDataProcessingRef() == template.getDataProcessingRef()
+                && spectrum.getSourceFileRef() == template.getSourceFileRef()
+                && ((spotID == null) ? template.getSpotID() == null : spotID.equals(template.getSpotID()))
+                && hasSameChildren(spectrum, template);
+    }
+
+    private static boolean hasSameChildren(MzMLTag tag, MzMLTag templateTag) {
+        Set<String> tableAccessions = new HashSet<String>();
+        Set<String> templateTableAccessions = new HashSet<String>();
+        List<MzMLTag> children = getChildren(tag, tableAccessions);
+        List<MzMLTag> templateChildren = getChildren(templateTag, templateTableAccessions);
+
+        // Only the presence of values stored in the table needs to match, in any order
+        if (children.size() != templateChildren.size() || !tableAccessions.equals(templateTableAccessions)) {
+            return false;
+        }
+
+        for (int i = 0; i < children.size(); i++) {
+            MzMLTag child = children.get(i);
+            MzMLTag templateChild = templateChildren.get(i);
+
+            if (child.getClass() != templateChild.getClass()) {
+                return false;
+            }
+
+            if (!child.getXMLAttributeText().equals(templateChild.getXMLAttributeText()) || !hasSameChildren(child, templateChild)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the children of a tag, other than the cvParams whose values are stored
+     * in the table.
+     *
+     * @param tag Tag
+     * @param tableAccessions Set to add the accessions of the cvParams whose values
+     * are stored in the table to
+     * @return Children which are not stored in the table
+     */
+    private static List<MzMLTag> getChildren(MzMLTag tag, Set<String> tableAccessions) {
+        List<MzMLTag> children = new ArrayList<MzMLTag>();
+
+        for (MzMLTag child : getChildren(tag)) {
+            if (child instanceof CVParam && TABLE_ACCESSIONS.contains(((CVParam) child).getTerm().getID())) {
+                tableAccessions.add(((CVParam) child).getTerm().getID());
+            } else {
+                children.add(child);
+            }
+        }
+
+        return children;
+    }
+
+    private static List<MzMLTag> getChildren(MzMLTag tag) {
+        List<MzMLTag> children = new ArrayList<MzMLTag>();
+
+        if (tag instanceof HasChildren) {
+            ((HasChildren) tag).addChildrenToCollection(children);
+        }
+
+        return children;
+    }
+
+    private static CVParam getDirectCVParam(MzMLContentWithParams content, String accession) {
+        for (CVParam cvParam : content.getCVParamList()) {
+            if (accession.equals(cvParam.getTerm().getID())) {
+                return cvParam;
+            }
+        }
+
+        return null;
+    }
+
+    private static void setValue(MzMLContentWithParams content, String accession, double value) {
+        CVParam cvParam = getDirectCVParam(content, accession);
+
+        if (cvParam != null && !Double.isNaN(value)) {
+            cvParam.setValueAsString("" + value);
+        }
+    }
+
+    private static void setValue(MzMLContentWithParams content, String accession, long value) {
+        CVParam cvParam = getDirectCVParam(content, accession);
+
+        if (cvParam != null) {
+            cvParam.setValueAsString("" + value);
+        }
+    }
+
+    private void setArray(BinaryDataArray bda, long offset, int encodedLength, int arrayLength) {
+        setValue(bda, BinaryDataArray.EXTERNAL_OFFSET_ID, offset);
+        setValue(bda, BinaryDataArray.EXTERNAL_ENCODED_LENGTH_ID, encodedLength);
+        setValue(bda, BinaryDataArray.EXTERNAL_ARRAY_LENGTH_ID, arrayLength);
+
+        DataLocation location = new DataLocation(dataStorage, offset, encodedLength);
+        bda.setDataLocation(location);
+        location.setDataTransformation(bda.generateDataTransformation());
+    }
+}
@@ -130,6 +130,13 @@ public interface HasParams extends HasChildren {
      */
     void removeUserParam(int index);
     
+    /**
+     * Remove all userParams with the specified name.
+     * 
+     * @param name Name of the userParam
+     */
+    void removeUserParam(String name);
+    
     /**
      * Get list of UserParams associated with this MzMLContent.
      * 
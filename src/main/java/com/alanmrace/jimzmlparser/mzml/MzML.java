@@ -6,8 +6,10 @@ import java.io.IOException;
 import java.io.Serializable;
 
 import com.alanmrace.jimzmlparser.obo.OBO;
+import com.alanmrace.jimzmlparser.data.BinaryDataStorage;
 import com.alanmrace.jimzmlparser.data.DataLocation;
 import com.alanmrace.jimzmlparser.data.DataStorage;
+import com.alanmrace.jimzmlparser.data.SpectrumDataCache;
 import com.alanmrace.jimzmlparser.util.XMLHelper;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -56,6 +58,11 @@ public class MzML extends MzMLContentWithParams implements Serializable {
      */
     protected transient DataStorage dataStorage;
 
+    /**
+     * Cache of decoded data, shared by all spectra and chromatograms.
+     */
+    protected transient SpectrumDataCache spectrumDataCache;
+
     // Attributes
 
     /**
@@ -177,6 +184,125 @@ public class MzML extends MzMLContentWithParams implements Serializable {
      */
     public synchronized void setDataStorage(DataStorage dataStorage) {
         this.dataStorage = dataStorage;
+        
+        if (dataStorage != null && spectrumDataCache != null) {
+            dataStorage.setSpectrumDataCache(spectrumDataCache);
+        }
+    }
+
+    /**
+     * Attach a cache for the decoded data of all spectra and chromatograms, which
+     * is then consulted by {@link Spectrum#getmzArray()}, {@link Spectrum#getIntensityArray()} 
+     * and other methods which read data from the data storage.
+     * 
+     * @param spectrumDataCache Cache to use, or null to disable caching
+     */
+    public synchronized void setSpectrumDataCache(SpectrumDataCache spectrumDataCache) {
+        this.spectrumDataCache = spectrumDataCache;
+        
+        if (dataStorage != null) {
+            dataStorage.setSpectrumDataCache(spectrumDataCache);
+        }
+    }
+
+    /**
+     * Get the cache for the decoded data of all spectra and chromatograms.
+     * 
+     * @return Cache, or null if no cache has been attached
+     */
+    public SpectrumDataCache getSpectrumDataCache() {
+        return spectrumDataCache;
+    }
+
+    /**
+     * Get the storage for the data within the mzML file.
+     * 
+     * @return dataStorage, or null if no data storage has been opened
+     */
+    public DataStorage getDataStorage() {
+        return dataStorage;
+    }
+
+    /**
+     * Switch the method used to read from the binary data storage. A new 
+     * {@link BinaryDataStorage} is opened on the same file with the specified 
+     * access mode, all spectra and chromatograms which refer to the current data 
+     * storage are updated to refer to the new one and the current data storage 
+     * is closed.
+     * 
+     * <p>If the data is not held in a BinaryDataStorage (for example when only the
+     * mzML header has been parsed and the data remains in Base64) then this has 
+     * no effect.
+     * 
+     * @param accessMode Method to use when reading from the binary data storage
+     * @throws IOException Error occurred opening the new data storage
+     */
+    public synchronized void setDataStorageAccessMode(BinaryDataStorage.AccessMode accessMode) throws IOException {
+        if (!(dataStorage instanceof BinaryDataStorage)) {
+            Logger.getLogger(MzML.class.getName()).log(Level.WARNING, "Cannot change access mode of data storage {0}", dataStorage);
+            
+            return;
+        }
+        
+        BinaryDataStorage currentStorage = (BinaryDataStorage) dataStorage;
+        
+        if (currentStorage.getAccessMode() == accessMode) {
+            return;
+        }
+        
+        BinaryDataStorage newStorage = BinaryDataStorage.open(currentStorage.getFile(), accessMode);
+        newStorage.setSpectrumDataCache(currentStorage.getSpectrumDataCache());
+        
+        SpectrumList spectrumList = getRun().getSpectrumList();
+        
+        if (spectrumList instanceof CompactSpectrumList && ((CompactSpectrumList) spectrumList).getDataStorage() == currentStorage) {
+            // Avoid creating each spectrum which is not stored
+            ((CompactSpectrumList) spectrumList).setDataStorage(newStorage);
+        } else if (spectrumList != null) {
+            for (Spectrum spectrum : spectrumList) {
+                replaceDataStorage(spectrum, currentStorage, newStorage);
+            }
+        }
+        
+        ChromatogramList chromatogramList = getRun().getChromatogramList();
+        
+        if (chromatogramList != null) {
+            for (Chromatogram chromatogram : chromatogramList) {
+                replaceDataStorage(chromatogram, currentStorage, newStorage);
+            }
+        }
+        
+        dataStorage = newStorage;
+        currentStorage.close();
+    }
+    
+    /**
+     * Update any DataLocation within the data container (or its binary data arrays)
+     * which refers to oldStorage to refer to newStorage instead.
+     * 
+     * @param container Spectrum or chromatogram to update
+     * @param oldStorage DataStorage to replace
+     * @param newStorage DataStorage to replace with
+     */
+    private static void replaceDataStorage(MzMLDataContainer container, DataStorage oldStorage, DataStorage newStorage) {
+        replaceDataStorage(container.getDataLocation(), oldStorage, newStorage);
+        
+        for (BinaryDataArray bda : container.getBinaryDataArrayList()) {
+            replaceDataStorage(bda.getDataLocation(), oldStorage, newStorage);
+        }
+    }
+    
+    /**
+     * Update the DataLocation to refer to newStorage if it currently refers to oldStorage.
+     * 
+     * @param dataLocation DataLocation to update
+     * @param oldStorage DataStorage to replace
+     * @param newStorage DataStorage to replace with
+     */
+    private static void replaceDataStorage(DataLocation dataLocation, DataStorage oldStorage, DataStorage newStorage) {
+        if (dataLocation != null && dataLocation.getDataStorage() == oldStorage) {
+            dataLocation.setDataStorage(newStorage);
+        }
     }
 
     /**
@@ -62,6 +62,12 @@ public abstract class MzMLContentList<T extends MzMLTag>
         }
     }
 
+    /**
+     * Get the list of MzMLTags. All read access to the list goes through this
+     * method, so that subclasses can provide the tags from another source.
+     *
+     * @return List of MzMLTags
+     */
     protected List<T> getList() {
         return list;
     }
@@ -89,7 +95,7 @@ public abstract class MzMLContentList<T extends MzMLTag>
 
     @Override
     public T get(int index) {
-        return list.get(index);
+        return getList().get(index);
     }
 
     @Override
@@ -97,6 +103,8 @@ public abstract class MzMLContentList<T extends MzMLTag>
         if(list == null)
             return null;
 
+        ensureModifiableList();
+
         return list.remove(index);
     }
     
@@ -105,26 +113,40 @@ public abstract class MzMLContentList<T extends MzMLTag>
         if(list == null)
             return false;
 
+        ensureModifiableList();
+
         return list.remove(item);
     }
 
+    /**
+     * Replace the empty or singleton list used for small lists with an ArrayList,
+     * so that items can be removed.
+     */
+    private void ensureModifiableList() {
+        if (!(list instanceof ArrayList)) {
+            list = new ArrayList<T>(list);
+        }
+    }
+
     @Override
     public int indexOf(T item) {
-        return list.indexOf(item);
+        return getList().indexOf(item);
     }
 
     @Override
     public int size() {
-        return list.size();
+        return getList().size();
     }
 
     @Override
     public void addChildrenToCollection(Collection<MzMLTag> children) {
-        children.addAll(list);
+        children.addAll(getList());
     }
 
     @Override
     protected void addTagSpecificElementsAtXPathToCollection(Collection<MzMLTag> elements, String fullXPath, String currentXPath) throws InvalidXPathException {
+        List<T> list = getList();
+
         if (!fullXPath.equals(currentXPath) && list.isEmpty()) {
             throw new UnfollowableXPathException("No " + getTagName() + " exists, so cannot go to " + fullXPath, fullXPath, currentXPath);
         }
@@ -160,16 +182,17 @@ public abstract class MzMLContentList<T extends MzMLTag>
 
     @Override
     public Iterator<T> iterator() {
-        return list.iterator();
+        return getList().iterator();
     }
 
     @Override
     public boolean contains(T item) {        
-        return list.contains(item);
+        return getList().contains(item);
     }
     
     @Override
     public void clear() {
-        list.clear();
+        // The list may be an unmodifiable empty or singleton list
+        list = Collections.emptyList();
     }
 }
@@ -79,21 +79,7 @@ public abstract class MzMLContentWithParams extends MzMLContent implements HasPa
             cvParams = new ArrayList<CVParam>();
 
             for (CVParam cvParam : mzMLContent.cvParams) {
-                if (cvParam instanceof StringCVParam) {
-                    cvParams.add(new StringCVParam((StringCVParam) cvParam));
-                } else if (cvParam instanceof LongCVParam) {
-                    cvParams.add(new LongCVParam((LongCVParam) cvParam));
-                } else if (cvParam instanceof DoubleCVParam) {
-                    cvParams.add(new DoubleCVParam((DoubleCVParam) cvParam));
-                } else if (cvParam instanceof IntegerCVParam) {
-                    cvParams.add(new IntegerCVParam((IntegerCVParam) cvParam));
-                } else if (cvParam instanceof BooleanCVParam) {
-                    cvParams.add(new BooleanCVParam((BooleanCVParam) cvParam));
-                } else if (cvParam instanceof EmptyCVParam) {
-                    cvParams.add(new EmptyCVParam((EmptyCVParam) cvParam));
-                } else {
-                    throw new IllegalArgumentException("Unknown CVParam type, unable to replicate: " + cvParam.getClass());
-                }
+                cvParams.add(copyCVParam(cvParam));
             }
         }
 
@@ -106,6 +92,30 @@ public abstract class MzMLContentWithParams extends MzMLContent implements HasPa
         }
     }
     
+    /**
+     * Create a copy of a CVParam of the same type.
+     * 
+     * @param cvParam CVParam to copy
+     * @return Copy of the CVParam
+     */
+    private static CVParam copyCVParam(CVParam cvParam) {
+        if (cvParam instanceof StringCVParam) {
+            return new StringCVParam((StringCVParam) cvParam);
+        } else if (cvParam instanceof LongCVParam) {
+            return new LongCVParam((LongCVParam) cvParam);
+        } else if (cvParam instanceof DoubleCVParam) {
+            return new DoubleCVParam((DoubleCVParam) cvParam);
+        } else if (cvParam instanceof IntegerCVParam) {
+            return new IntegerCVParam((IntegerCVParam) cvParam);
+        } else if (cvParam instanceof BooleanCVParam) {
+            return new BooleanCVParam((BooleanCVParam) cvParam);
+        } else if (cvParam instanceof EmptyCVParam) {
+            return new EmptyCVParam((EmptyCVParam) cvParam);
+        }
+        
+        throw new IllegalArgumentException("Unknown CVParam type, unable to replicate: " + cvParam.getClass());
+    }
+    
     @Override
     public void addChildrenToCollection(Collection<MzMLTag> children) {
         children.addAll(referenceableParamGroupRefs);
@@ -200,6 +210,37 @@ public abstract class MzMLContentWithParams extends MzMLContent implements HasPa
     public void removeAllReferenceableParamGroupRefs() {
         referenceableParamGroupRefs = Collections.emptyList();
     }
+    
+    /**
+     * Copy the CVParams and UserParams of a referenced ReferenceableParamGroup into
+     * this tag and remove the reference, so that the params can be changed for this
+     * tag alone without modifying the group, which may be shared with other tags.
+     * 
+     * @param ref Reference to the ReferenceableParamGroup to detach
+     */
+    public void detachReferenceableParamGroupRef(ReferenceableParamGroupRef ref) {
+        List<ReferenceableParamGroupRef> remainingRefs = new ArrayList<ReferenceableParamGroupRef>(referenceableParamGroupRefs);
+        
+        if (!remainingRefs.remove(ref)) {
+            return;
+        }
+        
+        removeAllReferenceableParamGroupRefs();
+        
+        for (ReferenceableParamGroupRef remainingRef : remainingRefs) {
+            addReferenceableParamGroupRef(remainingRef);
+        }
+        
+        ReferenceableParamGroup rpg = ref.getReference();
+        
+        for (CVParam cvParam : rpg.getCVParamList()) {
+            addCVParam(copyCVParam(cvParam));
+        }
+        
+        for (UserParam userParam : rpg.getUserParamList()) {
+            addUserParam(new UserParam(userParam));
+        }
+    }
 
     @Override
     public int getReferenceableParamGroupRefCount() {
@@ -291,6 +332,14 @@ public abstract class MzMLContentWithParams extends MzMLContent implements HasPa
         List<CVParam> children = getChildrenOf(id, includeCurrent);
 
         for (CVParam cvParam : children) {
+            if (!cvParams.contains(cvParam)) {
+                continue;
+            }
+            
+            if (!(cvParams instanceof ArrayList)) {
+                cvParams = new ArrayList<CVParam>(cvParams);
+            }
+            
             cvParams.remove(cvParam);
             
             if(hasListeners())
@@ -318,10 +367,23 @@ public abstract class MzMLContentWithParams extends MzMLContent implements HasPa
 
     @Override
     public void removeUserParam(int index) {
+        if (!(userParams instanceof ArrayList)) {
+            userParams = new ArrayList<UserParam>(userParams);
+        }
+        
         UserParam removedParam = userParams.remove(index);
         removedParam.setParent(null);
     }
 
+    @Override
+    public void removeUserParam(String name) {
+        for (int i = userParams.size() - 1; i >= 0; i--) {
+            if (userParams.get(i).getName().equals(name)) {
+                removeUserParam(i);
+            }
+        }
+    }
+
     @Override
     public CVParam getCVParam(String id) {
         for (ReferenceableParamGroupRef ref : referenceableParamGroupRefs) {
@@ -5,6 +5,8 @@ import com.alanmrace.jimzmlparser.data.DataTypeTransform.DataType;
 import com.alanmrace.jimzmlparser.data.MzMLSpectrumDataStorage;
 import com.alanmrace.jimzmlparser.util.XMLHelper;
 import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Base class with default implementations of methods for MzMLTags which describe 
@@ -90,6 +92,16 @@ public abstract class MzMLDataContainer extends MzMLIndexedContentWithParams {
         this.binaryDataArrayList = binaryDataArrayList;
     }
 
+    /**
+     * Get the default length of the binary data arrays contained within this
+     * spectrum or chromatogram.
+     *
+     * @return Default array length in data points
+     */
+    public int getDefaultArrayLength() {
+        return defaultArrayLength;
+    }
+
     /**
      * Returns the BinaryDatayArrayList, or creates and returns an empty list if 
      * none currently exists.
@@ -237,6 +249,65 @@ public abstract class MzMLDataContainer extends MzMLIndexedContentWithParams {
         return binaryDataArrayList.getIntensityArray().getDataAsDouble(keepInMemory);
     }
         
+    /**
+     * Get the intensity array as a float[]. Intensities are typically stored as 
+     * 32-bit floats, in which case the data is decoded without loss of precision 
+     * and using half of the memory of {@link #getIntensityArray()}.
+     * 
+     * @return Intensity array
+     * @throws IOException Issue when trying to access DataLocation
+     * @see BinaryDataArray#getDataAsFloat() 
+     */
+    public float[] getIntensityArrayAsFloat() throws IOException {
+        if (binaryDataArrayList == null || binaryDataArrayList.getIntensityArray() == null) {
+            return new float[0];
+        }
+
+        ensureLoadableData();
+
+        return binaryDataArrayList.getIntensityArray().getDataAsFloat();
+    }
+        
+    /**
+     * Start loading the data for all BinaryDataArrays in the background. 
+     * 
+     * @see BinaryDataArray#prefetch() 
+     */
+    public void prefetch() {
+        if (binaryDataArrayList == null) {
+            return;
+        }
+        
+        try {
+            ensureLoadableData();
+        } catch (IOException ex) {
+            // The error will be reported when the data is requested
+            Logger.getLogger(MzMLDataContainer.class.getName()).log(Level.FINE, null, ex);
+            
+            return;
+        }
+        
+        for (BinaryDataArray bda : binaryDataArrayList) {
+            bda.prefetch();
+        }
+    }
+    
+    /**
+     * Discard any prefetched data for all BinaryDataArrays which has not been 
+     * retrieved.
+     * 
+     * @see BinaryDataArray#cancelPrefetch() 
+     */
+    public void cancelPrefetch() {
+        if (binaryDataArrayList == null) {
+            return;
+        }
+        
+        for (BinaryDataArray bda : binaryDataArrayList) {
+            bda.cancelPrefetch();
+        }
+    }
+    
     /**
      * Sets the compression (or none) to all BinaryDataArray within this data 
      * container. This only takes effect when the data is written out.
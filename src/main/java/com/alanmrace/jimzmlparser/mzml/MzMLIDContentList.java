@@ -88,17 +88,21 @@ public abstract class MzMLIDContentList<T extends ReferenceableTag & MzMLTag> ex
     public T remove(int index) {
         T removed = super.remove(index);
 
-        if(removed != null)
-            dictionary.remove(removed);
+        if(removed != null && dictionary.get(removed.getID()) == removed)
+            dictionary.remove(removed.getID());
 
         return removed;
     }
 
     @Override
     public boolean remove(T item) {
-        dictionary.remove(item);
+        boolean removed = super.remove(item);
 
-        return super.remove(item);
+        // Only remove the ID if it refers to the removed item
+        if(removed && dictionary.get(item.getID()) == item)
+            dictionary.remove(item.getID());
+
+        return removed;
     }
     
     public boolean containsID(String id) {
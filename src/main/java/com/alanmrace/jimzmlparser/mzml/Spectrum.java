@@ -7,6 +7,9 @@ import com.alanmrace.jimzmlparser.obo.OBO;
 import com.alanmrace.jimzmlparser.util.XMLHelper;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiFunction;
 
 /**
  * Class describing a {@literal <spectrum>} tag, with additional methods for
@@ -199,6 +202,15 @@ public class Spectrum extends MzMLDataContainer {
         this.sourceFileRef = sourceFileRef;
     }
 
+    /**
+     * Get SourceFileRef.
+     *
+     * @return Source file reference, or null if none
+     */
+    public SourceFile getSourceFileRef() {
+        return sourceFileRef;
+    }
+
     /**
      * Set spotID attribute for spectrum XML tag.
      *
@@ -208,6 +220,15 @@ public class Spectrum extends MzMLDataContainer {
         this.spotID = spotID;
     }
 
+    /**
+     * Get spotID attribute for spectrum XML tag.
+     *
+     * @return Spot ID, or null if none
+     */
+    public String getSpotID() {
+        return spotID;
+    }
+
     /**
      * Get ScanList.
      *
@@ -438,6 +459,76 @@ public class Spectrum extends MzMLDataContainer {
         return getmzArray(false);
     }
 
+    /**
+     * Get the m/z array of the spectrum as a float[]. A float has approximately 
+     * 7 significant digits, so m/z values stored as double precision will be rounded 
+     * (to around 0.0001 at m/z 1000), which is sufficient for many imaging workflows
+     * but not for high resolution data. Where the m/z array is stored as 32-bit 
+     * floats no precision is lost.
+     * 
+     * @return m/z array
+     * @throws IOException Issue when trying to access DataLocation
+     * @see BinaryDataArray#getDataAsFloat() 
+     */
+    public float[] getmzArrayAsFloat() throws IOException {
+        if (binaryDataArrayList == null || binaryDataArrayList.getmzArray() == null) {
+            return new float[0];
+        }
+
+        ensureLoadableData();
+
+        return binaryDataArrayList.getmzArray().getDataAsFloat();
+    }
+
+    /**
+     * Get the m/z array and intensity array of the spectrum asynchronously. The 
+     * data is read on the I/O executor of the DataStorage and decoded on the common
+     * ForkJoinPool, so that the caller can continue processing (or request further
+     * spectra) while the data is loaded.
+     *
+     * @return CompletableFuture which completes with a double[2][] containing the m/z 
+     * array followed by the intensity array, or exceptionally with a CompletionException
+     * wrapping any IOException
+     * @see BinaryDataArray#getDataAsDoubleAsync() 
+     */
+    public CompletableFuture<double[][]> getSpectralDataAsync() {
+        if (binaryDataArrayList == null) {
+            return CompletableFuture.completedFuture(new double[][] {new double[0], new double[0]});
+        }
+
+        try {
+            ensureLoadableData();
+        } catch (IOException ex) {
+            CompletableFuture<double[][]> failed = new CompletableFuture<double[][]>();
+            failed.completeExceptionally(new CompletionException(ex));
+            
+            return failed;
+        }
+        
+        return getDataAsync(binaryDataArrayList.getmzArray()).thenCombine(getDataAsync(binaryDataArrayList.getIntensityArray()), 
+                new BiFunction<double[], double[], double[][]>() {
+                    @Override
+                    public double[][] apply(double[] mzs, double[] intensities) {
+                        return new double[][] {mzs, intensities};
+                    }
+                });
+    }
+    
+    /**
+     * Get the data of the BinaryDataArray asynchronously, or an empty array if the
+     * BinaryDataArray does not exist.
+     * 
+     * @param bda BinaryDataArray
+     * @return CompletableFuture which completes with the data
+     */
+    private static CompletableFuture<double[]> getDataAsync(BinaryDataArray bda) {
+        if (bda == null) {
+            return CompletableFuture.completedFuture(new double[0]);
+        }
+        
+        return bda.getDataAsDoubleAsync();
+    }
+
     /**
      * Get the m/z array of the spectrum as a double[] and optionally keep the
      * array within memory.
@@ -1,9 +1,12 @@
 package com.alanmrace.jimzmlparser.mzml;
 
+import com.alanmrace.jimzmlparser.imzml.PixelLocation;
 import com.alanmrace.jimzmlparser.util.XMLHelper;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * Class describing the {@literal <spectrumList>} tag in MzML. Stores all Spectrum instances
@@ -149,6 +152,42 @@ public class SpectrumList extends MzMLIDContentList<Spectrum> {
         return get(index);
     }
 
+    /**
+     * Get the pixel location of the spectrum at the specified index. Subclasses
+     * which do not store each Spectrum (such as {@link CompactSpectrumList}) 
+     * return the location without creating the Spectrum.
+     * 
+     * @param index Index of the spectrum
+     * @return Pixel location of the spectrum, or null if none
+     */
+    public PixelLocation getPixelLocation(int index) {
+        return get(index).getPixelLocation();
+    }
+    
+    /**
+     * Set the pixel location of the spectrum at the specified index, as with
+     * {@link Spectrum#setPixelLocation(int, int)}.
+     * 
+     * @param index Index of the spectrum
+     * @param x x-coordinate
+     * @param y y-coordinate
+     */
+    public void setPixelLocation(int index, int x, int y) {
+        get(index).setPixelLocation(x, y);
+    }
+
+    /**
+     * Keep the changes made to the spectrum at the specified index. Each Spectrum 
+     * is stored in a SpectrumList, so this has no effect, but subclasses which 
+     * create spectra on request (such as {@link CompactSpectrumList}) otherwise 
+     * only keep changes while the Spectrum is in use.
+     * 
+     * @param index Index of the spectrum
+     */
+    public void update(int index) {
+        // Changes are made to the stored Spectrum
+    }
+
     @Override
     public Spectrum get(String id) {
         List<Spectrum> list = getList();
@@ -195,6 +234,55 @@ public class SpectrumList extends MzMLIDContentList<Spectrum> {
         return remove(spectrum);
     }
     
+    /**
+     * Iterate over the spectra in order, loading the data for the upcoming spectra 
+     * in the background. When a spectrum is returned, the data for that spectrum and 
+     * the following prefetchWindow spectra has already been requested (see 
+     * {@link Spectrum#prefetch()}), so {@link Spectrum#getmzArray()} and 
+     * {@link Spectrum#getIntensityArray()} do not have to wait on the disk. Any 
+     * prefetched data which was not retrieved is discarded when moving on to the 
+     * next spectrum.
+     * 
+     * @param prefetchWindow Number of spectra beyond the current one to load in advance
+     * @return Iterator over the spectra
+     */
+    public Iterator<Spectrum> iterator(final int prefetchWindow) {
+        return new Iterator<Spectrum>() {
+            private int index = 0;
+            
+            private int nextToPrefetch = 0;
+            
+            @Override
+            public boolean hasNext() {
+                return index < size();
+            }
+
+            @Override
+            public Spectrum next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                
+                if (index > 0) {
+                    get(index - 1).cancelPrefetch();
+                }
+                
+                int prefetchEnd = Math.min(size(), index + prefetchWindow + 1);
+                
+                for (nextToPrefetch = Math.max(nextToPrefetch, index); nextToPrefetch < prefetchEnd; nextToPrefetch++) {
+                    get(nextToPrefetch).prefetch();
+                }
+                
+                return get(index++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("remove");
+            }
+        };
+    }
+    
     @Override
     public String getXMLAttributeText() {
         return super.getXMLAttributeText() + " defaultDataProcessingRef=\"" + XMLHelper.ensureSafeXML(defaultDataProcessingRef.getID()) + "\""; 
@@ -0,0 +1,382 @@
+package com.alanmrace.jimzmlparser.mzml;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Columnar table of the per-spectrum values of an imzML file, storing each value
+ * in a primitive array rather than as CVParams of a Spectrum. Each row describes
+ * one spectrum: its pixel location, the offset, encoded length and array length
+ * of the m/z and intensity arrays in the IBD file, the default array length and
+ * the total ion current.
+ *
+ * <p>Each row uses {@value #BYTES_PER_ROW} bytes, compared to several kilobytes
+ * for a parsed Spectrum.
+ *
+ * @see CompactSpectrumList
+ */
+public class SpectrumTable implements Serializable {
+
+    /**
+     * Serialisation version ID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of bytes used to store each row.
+     */
+    public static final int BYTES_PER_ROW = 56;
+
+    /**
+     * Initial capacity of the table if none is specified.
+     */
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int size;
+
+    private int[] x;
+    private int[] y;
+    private int[] z;
+
+    private long[] mzOffset;
+    private int[] mzEncodedLength;
+    private int[] mzArrayLength;
+
+    private long[] intensityOffset;
+    private int[] intensityEncodedLength;
+    private int[] intensityArrayLength;
+
+    private int[] defaultArrayLength;
+    private double[] totalIonCurrent;
+
+    /**
+     * Create an empty table.
+     */
+    public SpectrumTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty table with the specified initial capacity.
+     *
+     * @param capacity Initial number of rows to allocate
+     */
+    public SpectrumTable(int capacity) {
+        allocate(Math.max(1, capacity));
+    }
+
+    private void allocate(int capacity) {
+        if (x == null) {
+            x = new int[capacity];
+            y = new int[capacity];
+            z = new int[capacity];
+            mzOffset = new long[capacity];
+            mzEncodedLength = new int[capacity];
+            mzArrayLength = new int[capacity];
+            intensityOffset = new long[capacity];
+            intensityEncodedLength = new int[capacity];
+            intensityArrayLength = new int[capacity];
+            defaultArrayLength = new int[capacity];
+            totalIonCurrent = new double[capacity];
+        } else {
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            z = Arrays.copyOf(z, capacity);
+            mzOffset = Arrays.copyOf(mzOffset, capacity);
+            mzEncodedLength = Arrays.copyOf(mzEncodedLength, capacity);
+            mzArrayLength = Arrays.copyOf(mzArrayLength, capacity);
+            intensityOffset = Arrays.copyOf(intensityOffset, capacity);
+            intensityEncodedLength = Arrays.copyOf(intensityEncodedLength, capacity);
+            intensityArrayLength = Arrays.copyOf(intensityArrayLength, capacity);
+            defaultArrayLength = Arrays.copyOf(defaultArrayLength, capacity);
+            totalIonCurrent = Arrays.copyOf(totalIonCurrent, capacity);
+        }
+    }
+
+    /**
+     * Add an empty row to the end of the table. The total ion current of the row
+     * is NaN.
+     *
+     * @return Index of the new row
+     */
+    public int addRow() {
+        if (size == x.length) {
+            allocate(x.length + (x.length >> 1) + 1);
+        }
+
+        totalIonCurrent[size] = Double.NaN;
+
+        return size++;
+    }
+
+    /**
+     * Remove a row, moving all following rows up by one.
+     *
+     * @param row Index of the row to remove
+     */
+    public void removeRow(int row) {
+        checkRow(row);
+
+        int numMoved = size - row - 1;
+
+        if (numMoved > 0) {
+            System.arraycopy(x, row + 1, x, row, numMoved);
+            System.arraycopy(y, row + 1, y, row, numMoved);
+            System.arraycopy(z, row + 1, z, row, numMoved);
+            System.arraycopy(mzOffset, row + 1, mzOffset, row, numMoved);
+            System.arraycopy(mzEncodedLength, row + 1, mzEncodedLength, row, numMoved);
+            System.arraycopy(mzArrayLength, row + 1, mzArrayLength, row, numMoved);
+            System.arraycopy(intensityOffset, row + 1, intensityOffset, row, numMoved);
+            System.arraycopy(intensityEncodedLength, row + 1, intensityEncodedLength, row, numMoved);
+            System.arraycopy(intensityArrayLength, row + 1, intensityArrayLength, row, numMoved);
+            System.arraycopy(defaultArrayLength, row + 1, defaultArrayLength, row, numMoved);
+            System.arraycopy(totalIonCurrent, row + 1, totalIonCurrent, row, numMoved);
+        }
+
+        size--;
+    }
+
+    /**
+     * Remove all rows.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Reduce the capacity of the table to the number of rows.
+     */
+    public void trimToSize() {
+        if (size < x.length) {
+            allocate(Math.max(1, size));
+        }
+    }
+
+    /**
+     * Get the number of rows in the table.
+     *
+     * @return Number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of bytes allocated for the table.
+     *
+     * @return Allocated size in bytes
+     */
+    public long getMemoryUsage() {
+        return (long) x.length * BYTES_PER_ROW;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size);
+        }
+    }
+
+    /**
+     * Set the pixel location of a row.
+     *
+     * @param row Index of the row
+     * @param x x-coordinate
+     * @param y y-coordinate
+     * @param z z-coordinate
+     */
+    public void setPixelLocation(int row, int x, int y, int z) {
+        checkRow(row);
+
+        this.x[row] = x;
+        this.y[row] = y;
+        this.z[row] = z;
+    }
+
+    /**
+     * Set the location of the m/z array of a row within the IBD file.
+     *
+     * @param row Index of the row
+     * @param offset Offset in bytes
+     * @param encodedLength Encoded length in bytes
+     * @param arrayLength Number of values in the array
+     */
+    public void setmzArray(int row, long offset, int encodedLength, int arrayLength) {
+        checkRow(row);
+
+        mzOffset[row] = offset;
+        mzEncodedLength[row] = encodedLength;
+        mzArrayLength[row] = arrayLength;
+    }
+
+    /**
+     * Set the location of the intensity array of a row within the IBD file.
+     *
+     * @param row Index of the row
+     * @param offset Offset in bytes
+     * @param encodedLength Encoded length in bytes
+     * @param arrayLength Number of values in the array
+     */
+    public void setIntensityArray(int row, long offset, int encodedLength, int arrayLength) {
+        checkRow(row);
+
+        intensityOffset[row] = offset;
+        intensityEncodedLength[row] = encodedLength;
+        intensityArrayLength[row] = arrayLength;
+    }
+
+    /**
+     * Set the default array length of a row.
+     *
+     * @param row Index of the row
+     * @param defaultArrayLength Default array length
+     */
+    public void setDefaultArrayLength(int row, int defaultArrayLength) {
+        checkRow(row);
+
+        this.defaultArrayLength[row] = defaultArrayLength;
+    }
+
+    /**
+     * Set the total ion current of a row.
+     *
+     * @param row Index of the row
+     * @param totalIonCurrent Total ion current, or NaN if not known
+     */
+    public void setTotalIonCurrent(int row, double totalIonCurrent) {
+        checkRow(row);
+
+        this.totalIonCurrent[row] = totalIonCurrent;
+    }
+
+    /**
+     * Get the x-coordinate of a row.
+     *
+     * @param row Index of the row
+     * @return x-coordinate
+     */
+    public int getX(int row) {
+        checkRow(row);
+
+        return x[row];
+    }
+
+    /**
+     * Get the y-coordinate of a row.
+     *
+     * @param row Index of the row
+     * @return y-coordinate
+     */
+    public int getY(int row) {
+        checkRow(row);
+
+        return y[row];
+    }
+
+    /**
+     * Get the z-coordinate of a row.
+     *
+     * @param row Index of the row
+     * @return z-coordinate
+     */
+    public int getZ(int row) {
+        checkRow(row);
+
+        return z[row];
+    }
+
+    /**
+     * Get the offset of the m/z array of a row within the IBD file.
+     *
+     * @param row Index of the row
+     * @return Offset in bytes
+     */
+    public long getmzOffset(int row) {
+        checkRow(row);
+
+        return mzOffset[row];
+    }
+
+    /**
+     * Get the encoded length of the m/z array of a row.
+     *
+     * @param row Index of the row
+     * @return Encoded length in bytes
+     */
+    public int getmzEncodedLength(int row) {
+        checkRow(row);
+
+        return mzEncodedLength[row];
+    }
+
+    /**
+     * Get the number of values in the m/z array of a row.
+     *
+     * @param row Index of the row
+     * @return Number of values
+     */
+    public int getmzArrayLength(int row) {
+        checkRow(row);
+
+        return mzArrayLength[row];
+    }
+
+    /**
+     * Get the offset of the intensity array of a row within the IBD file.
+     *
+     * @param row Index of the row
+     * @return Offset in bytes
+     */
+    public long getIntensityOffset(int row) {
+        checkRow(row);
+
+        return intensityOffset[row];
+    }
+
+    /**
+     * Get the encoded length of the intensity array of a row.
+     *
+     * @param row Index of the row
+     * @return Encoded length in bytes
+     */
+    public int getIntensityEncodedLength(int row) {
+        checkRow(row);
+
+        return intensityEncodedLength[row];
+    }
+
+    /**
+     * Get the number of values in the intensity array of a row.
+     *
+     * @param row Index of the row
+     * @return Number of values
+     */
+    public int getIntensityArrayLength(int row) {
+        checkRow(row);
+
+        return intensityArrayLength[row];
+    }
+
+    /**
+     * Get the default array length of a row.
+     *
+     * @param row Index of the row
+     * @return Default array length
+     */
+    public int getDefaultArrayLength(int row) {
+        checkRow(row);
+
+        return defaultArrayLength[row];
+    }
+
+    /**
+     * Get the total ion current of a row.
+     *
+     * @param row Index of the row
+     * @return Total ion current, or NaN if not known
+     */
+    public double getTotalIonCurrent(int row) {
+        checkRow(row);
+
+        return totalIonCurrent[row];
+    }
+}
@@ -67,6 +67,17 @@ public class ImzMLHandler extends MzMLHeaderHandler {
      */
     private boolean processingSCiLS3DData = false;
 
+    /**
+     * If true, spectra are stored in a {@link CompactSpectrumList} as they are
+     * parsed rather than in a SpectrumList.
+     */
+    private boolean compact = false;
+
+    /**
+     * CompactSpectrumList which parsed spectra are added to when compact is true.
+     */
+    private CompactSpectrumList compactSpectrumList;
+
     /**
      * Updated at the end of each {@literal <scan>} tag if processing SCiLS
      * exported 3D data (see {@link ImzMLHandler#processingSCiLS3DData}) to keep
@@ -127,6 +138,27 @@ public class ImzMLHandler extends MzMLHeaderHandler {
         }
     }
 
+    /**
+     * Set up a SAX parser for imzML with the specified ontology dictionary,
+     * accessing the IBD file using the specified method.
+     *
+     * @param obo Ontology database
+     * @param ibdFile IBD file containing the binary data for the imzML file
+     * @param openDataStorage if true, open the binary data file, otherwise just
+     * process metadata
+     * @param accessMode Method used to read from the IBD file
+     * @throws IOException If the IBD file could not be found or opened
+     */
+    public ImzMLHandler(OBO obo, File ibdFile, boolean openDataStorage, BinaryDataStorage.AccessMode accessMode) throws IOException {
+        super(obo);
+
+        this.ibdFile = ibdFile;
+
+        if (openDataStorage) {
+            this.dataStorage = BinaryDataStorage.open(ibdFile, accessMode);
+        }
+    }
+
     /**
      * Set up an ImzMLHandler, perform the parsing and return the ImzML
      * representation. Calls parseimzML(filename, true); defaulting to opening
@@ -171,16 +203,88 @@ public class ImzMLHandler extends MzMLHeaderHandler {
      * @throws ImzMLParseException If a fatal parse error occurs
      */
     public static ImzML parseimzML(String filename, boolean openDataStorage, ParserListener listener) throws ImzMLParseException {
+        return parseimzML(filename, openDataStorage, BinaryDataStorage.AccessMode.RANDOM_ACCESS_FILE, listener);
+    }
+
+    /**
+     * Set up an ImzMLHandler, perform the parsing and return the ImzML
+     * representation, opening the IBD binary data storage with the specified
+     * access mode. Using {@link BinaryDataStorage.AccessMode#MEMORY_MAPPED} 
+     * allows multiple threads to read spectra concurrently without contending
+     * on a single file lock.
+     *
+     * @param filename Location of the imzML file
+     * @param accessMode Method used to read from the IBD file
+     * @return ImzML representation of the imzML file
+     * @throws ImzMLParseException If a fatal parse error occurs
+     */
+    public static ImzML parseimzML(String filename, BinaryDataStorage.AccessMode accessMode) throws ImzMLParseException {
+        return parseimzML(filename, true, accessMode, null);
+    }
+
+    /**
+     * Set up an ImzMLHandler, perform the parsing and return the ImzML
+     * representation, optionally opening the IBD binary data storage for
+     * reading with the specified access mode. Optional inclusion of a 
+     * ParserListener which will be notified of any non-fatal parsing issues.
+     *
+     * @param filename Location of the imzML file
+     * @param openDataStorage true to open the IBD binary data storage, false to
+     * only parse metadata
+     * @param accessMode Method used to read from the IBD file
+     * @param listener ParserListener which will be notified of any non-fatal
+     * parsing issues
+     * @return ImzML representation of the imzML file
+     * @throws ImzMLParseException If a fatal parse error occurs
+     */
+    public static ImzML parseimzML(String filename, boolean openDataStorage, BinaryDataStorage.AccessMode accessMode, ParserListener listener) throws ImzMLParseException {
+        return parseimzML(filename, openDataStorage, accessMode, listener, false);
+    }
+
+    /**
+     * Set up an ImzMLHandler, perform the parsing and return the ImzML
+     * representation, storing the spectra in a {@link CompactSpectrumList}.
+     * The pixel location, location of the binary data and total ion current of
+     * each spectrum are stored in a {@link SpectrumTable} and spectra are only
+     * created when requested, substantially reducing the memory required for
+     * large images. Calls parseimzMLCompact(filename, RANDOM_ACCESS_FILE, null).
+     *
+     * @param filename Location of the imzML file
+     * @return ImzML representation of the imzML file
+     * @throws ImzMLParseException If a fatal parse error occurs
+     */
+    public static ImzML parseimzMLCompact(String filename) throws ImzMLParseException {
+        return parseimzMLCompact(filename, BinaryDataStorage.AccessMode.RANDOM_ACCESS_FILE, null);
+    }
+
+    /**
+     * Set up an ImzMLHandler, perform the parsing and return the ImzML
+     * representation, storing the spectra in a {@link CompactSpectrumList} and
+     * opening the IBD binary data storage with the specified access mode.
+     *
+     * @param filename Location of the imzML file
+     * @param accessMode Method used to read from the IBD file
+     * @param listener ParserListener which will be notified of any non-fatal
+     * parsing issues
+     * @return ImzML representation of the imzML file
+     * @throws ImzMLParseException If a fatal parse error occurs
+     */
+    public static ImzML parseimzMLCompact(String filename, BinaryDataStorage.AccessMode accessMode, ParserListener listener) throws ImzMLParseException {
+        return parseimzML(filename, true, accessMode, listener, true);
+    }
+
+    private static ImzML parseimzML(String filename, boolean openDataStorage, BinaryDataStorage.AccessMode accessMode, ParserListener listener, boolean compact) throws ImzMLParseException {
         ImzMLHandler handler;
         InputStream inputStream = null;
 
         try {
             OBO obo = OBO.getOBO();
 
-            File ibdFile = new File(filename.substring(0, filename.toLowerCase().lastIndexOf(".imzml")) + ".ibd");
+            File ibdFile = getIBDFile(filename);
 
             // Convert mzML header information -> imzML
-            handler = new ImzMLHandler(obo, ibdFile, openDataStorage);
+            handler = new ImzMLHandler(obo, ibdFile, openDataStorage, accessMode);
+            handler.setCompact(compact);
 
             if (listener != null) {
                 handler.registerParserListener(listener);
@@ -191,16 +295,7 @@ public class ImzMLHandler extends MzMLHeaderHandler {
             //get a new instance of parser
             SAXParser sp = spf.newSAXParser();
 
-            File file = new File(filename);
-            inputStream = new FileInputStream(file);
-
-            if (filename.endsWith(".lz4")) {
-                inputStream = new LZ4BlockInputStream(inputStream);
-            } else if (filename.endsWith(".gz")) {
-                inputStream = new GZIPInputStream(inputStream);
-            } else if (filename.endsWith(".xz")) {
-                inputStream = new XZInputStream(inputStream);
-            }
+            inputStream = openInputStream(filename);
 
             //parse the file and also register this class for call backs
             sp.parse(inputStream, handler);
@@ -208,31 +303,7 @@ public class ImzMLHandler extends MzMLHeaderHandler {
             ImzML imzML = handler.getimzML();
             imzML.setOBO(obo);
 
-            // Check if Bruker data, and then correct the image to be relative rather than absolute
-            InstrumentConfiguration ic = imzML.getInstrumentConfigurationList().getInstrumentConfiguration(0);
-            if(ic.getCVParamOrChild("MS:1000122") != null) {
-                int minX = Integer.MAX_VALUE;
-                int minY = Integer.MAX_VALUE;
-
-                for(Spectrum spectrum : imzML.getRun().getSpectrumList()) {
-                    PixelLocation location = spectrum.getPixelLocation();
-                    if(location.getX() < minX)
-                        minX = location.getX();
-                    if(location.getY() < minY)
-                        minY = location.getY();
-                }
-
-                for(Spectrum spectrum : imzML.getRun().getSpectrumList()) {
-                    PixelLocation location = spectrum.getPixelLocation();
-                    spectrum.setPixelLocation(location.getX() - minX + 1, location.getY() - minY + 1);
-                }
-
-                CVParam curWidth = imzML.getScanSettingsList().getScanSettings(0).getCVParam(ScanSettings.MAX_COUNT_PIXEL_X_ID);
-                curWidth.setValueAsString("" + (curWidth.getValueAsLong() - minX + 1));
-
-                CVParam curHeight = imzML.getScanSettingsList().getScanSettings(0).getCVParam(ScanSettings.MAX_COUNT_PIXEL_Y_ID);
-                curHeight.setValueAsString("" + (curHeight.getValueAsLong() - minY + 1));
-            }
+            correctBrukerPixelLocations(imzML);
         } catch (SAXException ex) {
             LOGGER.log(Level.SEVERE, null, ex);
 
@@ -262,6 +333,79 @@ public class ImzMLHandler extends MzMLHeaderHandler {
         return handler.getimzML();
     }
 
+    /**
+     * Correct the pixel locations of Bruker data, which are absolute stage
+     * positions, to be relative to the image (starting at 1).
+     *
+     * @param imzML ImzML to correct
+     */
+    static void correctBrukerPixelLocations(ImzML imzML) {
+        // Check if Bruker data, and then correct the image to be relative rather than absolute
+        InstrumentConfiguration ic = imzML.getInstrumentConfigurationList().getInstrumentConfiguration(0);
+        if(ic.getCVParamOrChild("MS:1000122") != null) {
+            SpectrumList spectrumList = imzML.getRun().getSpectrumList();
+            int minX = Integer.MAX_VALUE;
+            int minY = Integer.MAX_VALUE;
+
+            for(int i = 0; i < spectrumList.size(); i++) {
+                PixelLocation location = spectrumList.getPixelLocation(i);
+                if(location.getX() < minX)
+                    minX = location.getX();
+                if(location.getY() < minY)
+                    minY = location.getY();
+            }
+
+            for(int i = 0; i < spectrumList.size(); i++) {
+                PixelLocation location = spectrumList.getPixelLocation(i);
+                spectrumList.setPixelLocation(i, location.getX() - minX + 1, location.getY() - minY + 1);
+            }
+
+            CVParam curWidth = imzML.getScanSettingsList().getScanSettings(0).getCVParam(ScanSettings.MAX_COUNT_PIXEL_X_ID);
+            curWidth.setValueAsString("" + (curWidth.getValueAsLong() - minX + 1));
+
+            CVParam curHeight = imzML.getScanSettingsList().getScanSettings(0).getCVParam(ScanSettings.MAX_COUNT_PIXEL_Y_ID);
+            curHeight.setValueAsString("" + (curHeight.getValueAsLong() - minY + 1));
+        }
+    }
+
+    /**
+     * Open an imzML file for reading, decompressing it if the filename ends with
+     * .lz4, .gz or .xz.
+     *
+     * @param filename Location of the imzML file
+     * @return InputStream of the (decompressed) imzML file
+     * @throws IOException If the file could not be opened
+     */
+    static InputStream openInputStream(String filename) throws IOException {
+        InputStream inputStream = new FileInputStream(new File(filename));
+
+        try {
+            if (filename.endsWith(".lz4")) {
+                inputStream = new LZ4BlockInputStream(inputStream);
+            } else if (filename.endsWith(".gz")) {
+                inputStream = new GZIPInputStream(inputStream);
+            } else if (filename.endsWith(".xz")) {
+                inputStream = new XZInputStream(inputStream);
+            }
+        } catch (IOException ex) {
+            inputStream.close();
+
+            throw ex;
+        }
+
+        return inputStream;
+    }
+
+    /**
+     * Get the IBD file corresponding to an imzML file.
+     *
+     * @param filename Location of the imzML file
+     * @return IBD file
+     */
+    static File getIBDFile(String filename) {
+        return new File(filename.substring(0, filename.toLowerCase().lastIndexOf(".imzml")) + ".ibd");
+    }
+
     @Override
     protected void startCVParam(Attributes attributes) {
         String accession = attributes.getValue(MzMLHeaderHandler.ACCESSION_ATTRIBUTE_NAME);
@@ -299,12 +443,12 @@ public class ImzMLHandler extends MzMLHeaderHandler {
             if (z != current3DPositionZ) {
                 if (current3DPositionZ != Double.POSITIVE_INFINITY && !haveDoneCheck) {
                     int imageSize = imageMaxX * imageMaxY;
-                    int numImagesGuess = (int) Math.ceil((numberOfSpectra * 1.0) / spectrumList.size());
+                    int numImagesGuess = (int) Math.ceil((numberOfSpectra * 1.0) / numberOfSpectraParsed);
 
                     maxImagesX = (int) Math.ceil(Math.sqrt(numImagesGuess));
 
                     LOGGER.log(Level.FINER, "Found image size {0} ({1}, {2})", new Object[]{imageSize, imageMaxX, imageMaxY});
-                    LOGGER.log(Level.FINER, "Guessing we have {0} images based on {1} spectra", new Object[]{numImagesGuess, spectrumList.size()});
+                    LOGGER.log(Level.FINER, "Guessing we have {0} images based on {1} spectra", new Object[]{numImagesGuess, numberOfSpectraParsed});
                     LOGGER.log(Level.FINER, "Putting {0} images in x", maxImagesX);
 
                     haveDoneCheck = true;
@@ -421,6 +565,68 @@ public class ImzMLHandler extends MzMLHeaderHandler {
         }
 
         super.endElement(uri, localName, qName);
+
+        if (compactSpectrumList != null) {
+            if ("spectrum".equals(qName)) {
+                // Move the spectrum, now that any referenceableParamGroups have been
+                // created, from the parsing list into the table
+                compactSpectrumList.addCompact(spectrumList.remove(spectrumList.size() - 1));
+            } else if ("spectrumList".equals(qName)) {
+                compactSpectrumList.getSpectrumTable().trimToSize();
+
+                run.setSpectrumList(compactSpectrumList);
+            }
+        }
+    }
+
+    @Override
+    protected void startSpectrumList(Attributes attributes) {
+        super.startSpectrumList(attributes);
+
+        if (compact) {
+            compactSpectrumList = new CompactSpectrumList(numberOfSpectra, spectrumList.getDefaultDataProcessingRef(), mzML, dataStorage);
+        }
+    }
+
+    @Override
+    protected MzMLDataContainer getDataContainer() {
+        // Spectra are removed from the parsing list in compact mode, so an index
+        // cannot be used to locate their data
+        if (compactSpectrumList != null && processingSpectrum) {
+            return null;
+        }
+
+        return super.getDataContainer();
+    }
+
+    /**
+     * Check whether the parsed spectra are from SCiLS 3D data, in which case the
+     * pixel locations depend on all previously parsed spectra.
+     *
+     * @return true if SCiLS 3D data was found
+     */
+    boolean isProcessingSCiLS3DData() {
+        return processingSCiLS3DData;
+    }
+
+    /**
+     * Set whether spectra should be stored in a {@link CompactSpectrumList} as
+     * they are parsed. Must be called before parsing.
+     *
+     * @param compact true to store the spectra in a CompactSpectrumList
+     */
+    void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Get the CompactSpectrumList which parsed spectra are added to.
+     *
+     * @return CompactSpectrumList, or null if not parsing in compact mode or the
+     * {@literal <spectrumList>} tag has not yet been reached
+     */
+    CompactSpectrumList getCompactSpectrumList() {
+        return compactSpectrumList;
     }
 
     /**
@@ -0,0 +1,828 @@
+package com.alanmrace.jimzmlparser.parser;
+
+import com.alanmrace.jimzmlparser.data.BinaryDataStorage;
+import com.alanmrace.jimzmlparser.exceptions.FatalRuntimeParseException;
+import com.alanmrace.jimzmlparser.exceptions.ImzMLParseException;
+import com.alanmrace.jimzmlparser.imzml.ImzML;
+import com.alanmrace.jimzmlparser.mzml.CVParam;
+import com.alanmrace.jimzmlparser.mzml.CompactSpectrumList;
+import com.alanmrace.jimzmlparser.mzml.FileContent;
+import com.alanmrace.jimzmlparser.mzml.FileDescription;
+import com.alanmrace.jimzmlparser.mzml.SpectrumTable;
+import com.alanmrace.jimzmlparser.obo.OBO;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+/**
+ * Binary sidecar index for imzML files, allowing a previously parsed imzML file
+ * to be reopened without parsing the {@literal <spectrum>} tags.
+ *
+ * <p>The first time an imzML file is parsed with {@link #parseimzML(java.lang.String)}
+ * the spectra are stored in a {@link CompactSpectrumList} and its
+ * {@link SpectrumTable} is written to a file alongside the imzML file (the imzML
+ * filename followed by {@value #EXTENSION}). The index also records the location
+ * in the imzML file of the spectra which cannot be recreated from the table (the
+ * template spectrum and any spectra which differ from it). When the imzML file
+ * is next opened, only the metadata surrounding the {@literal <spectrumList>} and
+ * those spectra are parsed, and the table is read from the index. The index is
+ * read into memory and closed before parsing, so that it can be rewritten while
+ * the reopened imzML file is in use.
+ *
+ * <p>The index is keyed by the size and modification time of the imzML and IBD
+ * files and by the UUID of the imzML file. If any of these do not match, or the index
+ * cannot be read, then the imzML file is parsed in full and the index is
+ * rewritten. Compressed imzML files and SCiLS 3D data are parsed without an
+ * index. When reopening using the index, a ParserListener is only notified of
+ * issues found in the parsed metadata and spectra.
+ */
+public class ImzMLSidecarIndex {
+
+    /**
+     * Logger for the class.
+     */
+    private static final Logger LOGGER = Logger.getLogger(ImzMLSidecarIndex.class.getName());
+
+    /**
+     * Extension appended to the imzML filename to give the filename of the index.
+     */
+    public static final String EXTENSION = ".jidx";
+
+    /**
+     * Identifies an index file ("JIDX").
+     */
+    static final int MAGIC = 0x4A494458;
+
+    /**
+     * Version of the index file format.
+     */
+    static final int VERSION = 2;
+
+    /**
+     * Size of the index header containing the key: the magic number, version and
+     * the size and modification time of the imzML and IBD files.
+     */
+    private static final int KEY_SIZE = 40;
+
+    /**
+     * Size of the buffer used when locating spectra in the imzML file.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ImzMLSidecarIndex() {
+    }
+
+    /**
+     * Get the index file for an imzML file.
+     *
+     * @param filename Location of the imzML file
+     * @return Index file
+     */
+    public static File getIndexFile(String filename) {
+        return new File(filename + EXTENSION);
+    }
+
+    /**
+     * Open an imzML file using the index if it is up to date, otherwise parse the
+     * imzML file and write the index, opening the IBD file with random access.
+     *
+     * @param filename Location of the imzML file
+     * @return ImzML representation of the imzML file
+     * @throws ImzMLParseException If a fatal parse error occurs
+     */
+    public static ImzML parseimzML(String filename) throws ImzMLParseException {
+        return parseimzML(filename, BinaryDataStorage.AccessMode.RANDOM_ACCESS_FILE, null);
+    }
+
+    /**
+     * Open an imzML file using the index if it is up to date, otherwise parse the
+     * imzML file and write the index, opening the IBD file with the specified
+     * access mode. The spectra are stored in a {@link CompactSpectrumList}.
+     *
+     * @param filename Location of the imzML file
+     * @param accessMode Method used to read from the IBD file
+     * @param listener ParserListener which will be notified of any non-fatal
+     * parsing issues, or null
+     * @return ImzML representation of the imzML file
+     * @throws ImzMLParseException If a fatal parse error occurs
+     */
+    public static ImzML parseimzML(String filename, BinaryDataStorage.AccessMode accessMode, ParserListener listener) throws ImzMLParseException {
+        if (filename.endsWith(".lz4") || filename.endsWith(".gz") || filename.endsWith(".xz")) {
+            return ImzMLHandler.parseimzMLCompact(filename, accessMode, listener);
+        }
+
+        File imzMLFile = new File(filename);
+        File indexFile = getIndexFile(filename);
+
+        if (isUpToDate(indexFile, imzMLFile, ImzMLHandler.getIBDFile(filename))) {
+            ImzML imzML = open(filename, indexFile, accessMode, listener);
+
+            if (imzML != null) {
+                return imzML;
+            }
+
+            LOGGER.log(Level.INFO, "Index {0} does not match the imzML file, rebuilding", indexFile);
+        }
+
+        return parseAndWriteIndex(filename, indexFile, accessMode, listener);
+    }
+
+    /**
+     * Check whether an index exists and was written for the current version of
+     * the imzML and IBD files, based on their size and modification time.
+     *
+     * @param indexFile Index file
+     * @param imzMLFile imzML file
+     * @param ibdFile IBD file
+     * @return true if the index can be used
+     */
+    static boolean isUpToDate(File indexFile, File imzMLFile, File ibdFile) {
+        if (!indexFile.isFile()) {
+            return false;
+        }
+
+        RandomAccessFile raf = null;
+
+        try {
+            raf = new RandomAccessFile(indexFile, "r");
+
+            return raf.length() >= KEY_SIZE && raf.readInt() == MAGIC && raf.readInt() == VERSION
+                    && raf.readLong() == imzMLFile.length() && raf.readLong() == imzMLFile.lastModified()
+                    && raf.readLong() == ibdFile.length() && raf.readLong() == ibdFile.lastModified();
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, "Failed to read index " + indexFile, ex);
+
+            return false;
+        } finally {
+            close(raf);
+        }
+    }
+
+    private static ImzML parseAndWriteIndex(String filename, File indexFile, BinaryDataStorage.AccessMode accessMode, ParserListener listener) throws ImzMLParseException {
+        File imzMLFile = new File(filename);
+        File ibdFile = ImzMLHandler.getIBDFile(filename);
+
+        // Record the key before parsing, so that changes during parsing make the index stale
+        long length = imzMLFile.length();
+        long lastModified = imzMLFile.lastModified();
+        long ibdLength = ibdFile.length();
+        long ibdLastModified = ibdFile.lastModified();
+
+        ImzML imzML = null;
+        ImzMLHandler handler = null;
+        InputStream inputStream = null;
+
+        try {
+            OBO obo = OBO.getOBO();
+
+            handler = new ImzMLHandler(obo, ibdFile, true, accessMode);
+            handler.setCompact(true);
+
+            if (listener != null) {
+                handler.registerParserListener(listener);
+            }
+
+            inputStream = ImzMLHandler.openInputStream(filename);
+
+            SAXParserFactory.newInstance().newSAXParser().parse(inputStream, handler);
+
+            imzML = handler.getimzML();
+            imzML.setOBO(obo);
+
+            CompactSpectrumList spectrumList = handler.getCompactSpectrumList();
+
+            // The index is written before correcting Bruker pixel locations, as the
+            // correction is applied again when opening with the index
+            if (spectrumList != null && !handler.isProcessingSCiLS3DData()) {
+                try {
+                    if (!write(imzMLFile, length, lastModified, ibdLength, ibdLastModified, getUUID(imzML), spectrumList, indexFile)) {
+                        LOGGER.log(Level.FINE, "Could not locate the spectra in {0}, no index written", filename);
+                    }
+                } catch (IOException ex) {
+                    LOGGER.log(Level.WARNING, "Failed to write index " + indexFile, ex);
+                }
+            }
+
+            ImzMLHandler.correctBrukerPixelLocations(imzML);
+        } catch (FatalRuntimeParseException ex) {
+            throw new ImzMLParseException(ex.getIssue(), ex);
+        } catch (SAXException ex) {
+            throw ParallelImzMLParser.createParseException(ex);
+        } catch (IOException ex) {
+            throw ParallelImzMLParser.createParseException(ex);
+        } catch (ParserConfigurationException ex) {
+            throw ParallelImzMLParser.createParseException(ex);
+        } finally {
+            if (imzML == null) {
+                closeDataStorage(handler);
+            }
+
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+
+        return imzML;
+    }
+
+    /**
+     * Open an imzML file using the index, parsing only the metadata surrounding
+     * the spectra and the spectra which cannot be recreated from the table.
+     *
+     * @return ImzML, or null if the index does not match the imzML file
+     */
+    static ImzML open(String filename, File indexFile, BinaryDataStorage.AccessMode accessMode, ParserListener listener) {
+        ImzML imzML = null;
+        IndexHandler handler = null;
+        RandomAccessFile imzMLRAF = null;
+
+        try {
+            ByteBuffer index = readIndex(indexFile);
+
+            IndexHeader header = IndexHeader.read(index);
+
+            imzMLRAF = new RandomAccessFile(filename, "r");
+            FileChannel channel = imzMLRAF.getChannel();
+
+            List<InputStream> streams = new ArrayList<InputStream>();
+            streams.add(new IndexedMzMLReader.ChannelInputStream(channel, 0, header.spectraStart));
+
+            for (int i = 0; i < header.segmentRows.length; i++) {
+                streams.add(new IndexedMzMLReader.ChannelInputStream(channel, header.segmentStarts[i], header.segmentEnds[i]));
+            }
+
+            streams.add(new IndexedMzMLReader.ChannelInputStream(channel, header.spectraEnd));
+
+            OBO obo = OBO.getOBO();
+
+            handler = new IndexHandler(obo, ImzMLHandler.getIBDFile(filename), accessMode, header);
+
+            if (listener != null) {
+                handler.registerParserListener(listener);
+            }
+
+            SAXParserFactory.newInstance().newSAXParser().parse(new SequenceInputStream(Collections.enumeration(streams)), handler);
+
+            CompactSpectrumList spectrumList = handler.getCompactSpectrumList();
+            ImzML parsed = handler.getimzML();
+
+            if (spectrumList == null || spectrumList.size() != header.numberOfSpectra || !header.uuid.equals(getUUID(parsed))) {
+                return null;
+            }
+
+            readTable(index, header, spectrumList.getSpectrumTable());
+
+            parsed.setOBO(obo);
+            ImzMLHandler.correctBrukerPixelLocations(parsed);
+
+            imzML = parsed;
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, "Failed to open " + filename + " using index", ex);
+        } catch (SAXException ex) {
+            LOGGER.log(Level.FINE, "Failed to open " + filename + " using index", ex);
+        } catch (ParserConfigurationException ex) {
+            LOGGER.log(Level.FINE, "Failed to open " + filename + " using index", ex);
+        } catch (RuntimeException ex) {
+            // Includes an inconsistent or truncated index
+            LOGGER.log(Level.FINE, "Failed to open " + filename + " using index", ex);
+        } finally {
+            if (imzML == null) {
+                closeDataStorage(handler);
+            }
+
+            close(imzMLRAF);
+        }
+
+        return imzML;
+    }
+
+    /**
+     * Read the whole index into a heap buffer. The index is not memory mapped, as
+     * a mapping is only released when garbage collected and prevents the index
+     * being replaced on some platforms.
+     *
+     * @param indexFile Index file
+     * @return Contents of the index
+     * @throws IOException If the index could not be read
+     */
+    private static ByteBuffer readIndex(File indexFile) throws IOException {
+        FileInputStream in = new FileInputStream(indexFile);
+
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Index is too large");
+            }
+
+            ByteBuffer index = ByteBuffer.allocate((int) size);
+
+            while (index.hasRemaining()) {
+                if (channel.read(index) < 0) {
+                    throw new IOException("Index is truncated");
+                }
+            }
+
+            index.flip();
+
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the index for a CompactSpectrumList parsed from an imzML file.
+     *
+     * @param imzMLFile imzML file
+     * @param length Size of the imzML file when it was parsed
+     * @param lastModified Modification time of the imzML file when it was parsed
+     * @param ibdLength Size of the IBD file when the imzML file was parsed
+     * @param ibdLastModified Modification time of the IBD file when the imzML
+     * file was parsed
+     * @param uuid UUID of the imzML file, or an empty string if none
+     * @param spectrumList CompactSpectrumList parsed from the imzML file
+     * @param indexFile Index file to write
+     * @return true if the index was written, false if the spectra could not be
+     * located in the imzML file
+     * @throws IOException If the imzML file could not be read or the index could
+     * not be written
+     */
+    static boolean write(File imzMLFile, long length, long lastModified, long ibdLength, long ibdLastModified, String uuid, CompactSpectrumList spectrumList, File indexFile) throws IOException {
+        int numberOfSpectra = spectrumList.size();
+        int templateRow = -1;
+
+        // Rows which must be parsed: the template and any rows which are not tabulated
+        List<Integer> segmentRows = new ArrayList<Integer>();
+        List<Integer> storedIDRows = new ArrayList<Integer>();
+
+        for (int row = 0; row < numberOfSpectra; row++) {
+            if (!spectrumList.isTabulated(row)) {
+                segmentRows.add(row);
+            } else if (templateRow < 0) {
+                templateRow = row;
+                segmentRows.add(row);
+            } else if (spectrumList.getStoredID(row) != null) {
+                storedIDRows.add(row);
+            }
+        }
+
+        int[] rows = new int[segmentRows.size()];
+        String[] ids = new String[rows.length];
+
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = segmentRows.get(i);
+            ids[i] = spectrumList.getID(rows[i]);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(imzMLFile, "r");
+        long[] boundaries;
+        long[][] segments;
+
+        try {
+            FileChannel channel = raf.getChannel();
+
+            boundaries = ParallelImzMLParser.findChunkBoundaries(channel, 1);
+
+            if (boundaries == null) {
+                return false;
+            }
+
+            segments = findSpectra(channel, boundaries[0], boundaries[1], rows, ids);
+
+            if (segments == null) {
+                return false;
+            }
+        } finally {
+            raf.close();
+        }
+
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.writeLong(ibdLength);
+            out.writeLong(ibdLastModified);
+            writeString(out, uuid);
+            out.writeLong(boundaries[0]);
+            out.writeLong(boundaries[1]);
+            out.writeInt(numberOfSpectra);
+            out.writeInt(templateRow);
+
+            out.writeInt(rows.length);
+
+            for (int i = 0; i < rows.length; i++) {
+                out.writeInt(rows[i]);
+                out.writeLong(segments[i][0]);
+                out.writeLong(segments[i][1]);
+                writeString(out, ids[i]);
+            }
+
+            out.writeInt(storedIDRows.size());
+
+            for (int row : storedIDRows) {
+                out.writeInt(row);
+                writeString(out, spectrumList.getStoredID(row));
+            }
+
+            writeTable(out, spectrumList.getSpectrumTable());
+        } finally {
+            out.close();
+        }
+
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        return true;
+    }
+
+    /**
+     * Locate the specified spectra within the {@literal <spectrumList>}. Each
+     * spectrum extends from its {@literal <spectrum>} tag to the following
+     * {@literal <spectrum>} tag (or the end of the spectrumList), and the id
+     * attribute of its {@literal <spectrum>} tag must match its ID. The
+     * spectrumList is read once, using a single buffer.
+     *
+     * @param channel FileChannel of the imzML file
+     * @param firstSpectrum Position of the first {@literal <spectrum>} tag
+     * @param spectraEnd Position of the {@literal </spectrumList>} tag
+     * @param rows Indices of the spectra to locate, in ascending order
+     * @param ids IDs of the spectra to locate
+     * @return Start and end position of each spectrum, or null if any of the
+     * spectra could not be located
+     * @throws IOException If the file could not be read
+     */
+    static long[][] findSpectra(FileChannel channel, long firstSpectrum, long spectraEnd, int[] rows, String[] ids) throws IOException {
+        long[][] segments = new long[rows.length][];
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+        long bufferStart = firstSpectrum;
+        int spectrum = -1;
+        int segment = 0;
+
+        while (bufferStart < spectraEnd && segment < rows.length) {
+            // Any partial tag from the previous read is kept at the start of the buffer
+            buffer.limit((int) Math.min(BUFFER_SIZE, spectraEnd - bufferStart));
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, bufferStart + buffer.position()) <= 0) {
+                    break;
+                }
+            }
+
+            int length = buffer.position();
+            boolean endOfSpectra = bufferStart + length >= spectraEnd;
+            int next = length;
+
+            for (int i = 0; i < length && segment < rows.length; i++) {
+                if (bytes[i] != '<') {
+                    continue;
+                }
+
+                int tagEnd = i + 1;
+
+                while (tagEnd < length && bytes[tagEnd] != '>') {
+                    tagEnd++;
+                }
+
+                if (tagEnd == length) {
+                    // Read the tag again from the start of the next read, unless it
+                    // is longer than the buffer
+                    if (!endOfSpectra && i > 0) {
+                        next = i;
+                    }
+
+                    break;
+                }
+
+                if (isSpectrumTag(bytes, i, tagEnd)) {
+                    long position = bufferStart + i;
+
+                    // The previous spectrum ends at this one
+                    if (segments[segment] != null) {
+                        segments[segment][1] = position;
+                        segment++;
+                    }
+
+                    spectrum++;
+
+                    if (segment < rows.length && rows[segment] == spectrum) {
+                        if (!ids[segment].equals(IndexedMzMLReader.getID(new String(bytes, i, tagEnd - i, UTF8)))) {
+                            return null;
+                        }
+
+                        segments[segment] = new long[]{position, spectraEnd};
+                    }
+                }
+
+                i = tagEnd;
+            }
+
+            if (endOfSpectra || length == 0) {
+                break;
+            }
+
+            System.arraycopy(bytes, next, bytes, 0, length - next);
+            buffer.clear();
+            buffer.position(length - next);
+            bufferStart += next;
+        }
+
+        // The last spectrum extends to the end of the spectrumList
+        if (segment < rows.length && segments[segment] != null) {
+            segment++;
+        }
+
+        return (segment == rows.length) ? segments : null;
+    }
+
+    private static boolean isSpectrumTag(byte[] bytes, int tagStart, int tagEnd) {
+        return tagStart + ParallelImzMLParser.SPECTRUM_TAG.length <= tagEnd && ParallelImzMLParser.matches(bytes, tagStart, ParallelImzMLParser.SPECTRUM_TAG)
+                && ParallelImzMLParser.isTagNameEnd(bytes[tagStart + ParallelImzMLParser.SPECTRUM_TAG.length]);
+    }
+
+    private static void writeTable(DataOutputStream out, SpectrumTable table) throws IOException {
+        int size = table.size();
+
+        for (int row = 0; row < size; row++) {
+            out.writeInt(table.getX(row));
+        }
+        for (int row = 0; row < size; row++) {
+            out.writeInt(table.getY(row));
+        }
+        for (int row = 0; row < size; row++) {
+            out.writeInt(table.getZ(row));
+        }
+        for (int row = 0; row < size; row++) {
+            out.writeLong(table.getmzOffset(row));
+        }
+        for (int row = 0; row < size; row++) {
+            out.writeInt(table.getmzEncodedLength(row));
+        }
+        for (int row = 0; row < size; row++) {
+            out.writeInt(table.getmzArrayLength(row));
+        }
+        for (int row = 0; row < size; row++) {
+            out.writeLong(table.getIntensityOffset(row));
+        }
+        for (int row = 0; row < size; row++) {
+            out.writeInt(table.getIntensityEncodedLength(row));
+        }
+        for (int row = 0; row < size; row++) {
+            out.writeInt(table.getIntensityArrayLength(row));
+        }
+        for (int row = 0; row < size; row++) {
+            out.writeInt(table.getDefaultArrayLength(row));
+        }
+        for (int row = 0; row < size; row++) {
+            out.writeDouble(table.getTotalIonCurrent(row));
+        }
+    }
+
+    private static void readTable(ByteBuffer index, IndexHeader header, SpectrumTable table) throws IOException {
+        int size = header.numberOfSpectra;
+        int base = header.tableStart;
+
+        if (index.limit() != base + (long) size * SpectrumTable.BYTES_PER_ROW) {
+            throw new IOException("Index is truncated");
+        }
+
+        // Each column is stored in turn, as in the table
+        int y = base + 4 * size;
+        int z = y + 4 * size;
+        int mzOffset = z + 4 * size;
+        int mzEncodedLength = mzOffset + 8 * size;
+        int mzArrayLength = mzEncodedLength + 4 * size;
+        int intensityOffset = mzArrayLength + 4 * size;
+        int intensityEncodedLength = intensityOffset + 8 * size;
+        int intensityArrayLength = intensityEncodedLength + 4 * size;
+        int defaultArrayLength = intensityArrayLength + 4 * size;
+        int totalIonCurrent = defaultArrayLength + 4 * size;
+
+        for (int row = 0; row < size; row++) {
+            table.setPixelLocation(row, index.getInt(base + 4 * row), index.getInt(y + 4 * row), index.getInt(z + 4 * row));
+            table.setmzArray(row, index.getLong(mzOffset + 8 * row), index.getInt(mzEncodedLength + 4 * row), index.getInt(mzArrayLength + 4 * row));
+            table.setIntensityArray(row, index.getLong(intensityOffset + 8 * row), index.getInt(intensityEncodedLength + 4 * row), index.getInt(intensityArrayLength + 4 * row));
+            table.setDefaultArrayLength(row, index.getInt(defaultArrayLength + 4 * row));
+            table.setTotalIonCurrent(row, index.getDouble(totalIonCurrent + 8 * row));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+
+        return new String(bytes, UTF8);
+    }
+
+    private static String getUUID(ImzML imzML) {
+        FileDescription fileDescription = imzML.getFileDescription();
+
+        if (fileDescription != null && fileDescription.getFileContent() != null) {
+            CVParam uuid = fileDescription.getFileContent().getCVParam(FileContent.UUID_IDENTIFICATION_ID);
+
+            if (uuid != null) {
+                return uuid.getValueAsString();
+            }
+        }
+
+        return "";
+    }
+
+    private static void closeDataStorage(ImzMLHandler handler) {
+        if (handler != null && handler.dataStorage != null) {
+            try {
+                handler.dataStorage.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private static void close(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Contents of the index preceding the table.
+     */
+    private static class IndexHeader {
+
+        private String uuid;
+        private long spectraStart;
+        private long spectraEnd;
+        private int numberOfSpectra;
+        private int templateRow;
+
+        private int[] segmentRows;
+        private long[] segmentStarts;
+        private long[] segmentEnds;
+        private String[] segmentIDs;
+
+        private int[] storedIDRows;
+        private String[] storedIDs;
+
+        private int tableStart;
+
+        static IndexHeader read(ByteBuffer index) throws IOException {
+            if (index.getInt() != MAGIC || index.getInt() != VERSION) {
+                throw new IOException("Not an index file");
+            }
+
+            IndexHeader header = new IndexHeader();
+
+            // Size and modification time of the imzML and IBD files are checked
+            // before opening
+            index.position(KEY_SIZE);
+
+            header.uuid = readString(index);
+            header.spectraStart = index.getLong();
+            header.spectraEnd = index.getLong();
+            header.numberOfSpectra = index.getInt();
+            header.templateRow = index.getInt();
+
+            int numberOfSegments = index.getInt();
+
+            header.segmentRows = new int[numberOfSegments];
+            header.segmentStarts = new long[numberOfSegments];
+            header.segmentEnds = new long[numberOfSegments];
+            header.segmentIDs = new String[numberOfSegments];
+
+            for (int i = 0; i < numberOfSegments; i++) {
+                header.segmentRows[i] = index.getInt();
+                header.segmentStarts[i] = index.getLong();
+                header.segmentEnds[i] = index.getLong();
+                header.segmentIDs[i] = readString(index);
+            }
+
+            int numberOfStoredIDs = index.getInt();
+
+            header.storedIDRows = new int[numberOfStoredIDs];
+            header.storedIDs = new String[numberOfStoredIDs];
+
+            for (int i = 0; i < numberOfStoredIDs; i++) {
+                header.storedIDRows[i] = index.getInt();
+                header.storedIDs[i] = readString(index);
+            }
+
+            header.tableStart = index.position();
+
+            return header;
+        }
+    }
+
+    /**
+     * Handler which parses the spectra listed in the index, and adds the spectra
+     * which can be recreated from the table in between them.
+     */
+    private static class IndexHandler extends ImzMLHandler {
+
+        private final IndexHeader header;
+
+        private int nextRow = 0;
+        private int nextSegment = 0;
+        private int nextStoredID = 0;
+
+        IndexHandler(OBO obo, File ibdFile, BinaryDataStorage.AccessMode accessMode, IndexHeader header) throws IOException {
+            super(obo, ibdFile, true, accessMode);
+
+            this.header = header;
+
+            setCompact(true);
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            if ("spectrum".equals(qName)) {
+                if (nextSegment >= header.segmentRows.length) {
+                    throw new SAXException("More spectra found than listed in the index");
+                }
+
+                addTabulatedRows(header.segmentRows[nextSegment]);
+            }
+
+            super.startElement(uri, localName, qName, attributes);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if ("spectrumList".equals(qName)) {
+                addTabulatedRows(header.numberOfSpectra);
+            }
+
+            super.endElement(uri, localName, qName);
+
+            if ("spectrum".equals(qName)) {
+                CompactSpectrumList spectrumList = getCompactSpectrumList();
+                int row = nextRow++;
+
+                // The spectrum must have been added to the same row, and only the
+                // template can be recreated from the table
+                if (spectrumList.size() != nextRow || !header.segmentIDs[nextSegment].equals(spectrumList.getID(row))
+                        || spectrumList.isTabulated(row) != (row == header.templateRow)) {
+                    throw new SAXException("Spectrum " + spectrumList.getID(row) + " does not match the index");
+                }
+
+                nextSegment++;
+            }
+        }
+
+        private void addTabulatedRows(int end) {
+            CompactSpectrumList spectrumList = getCompactSpectrumList();
+
+            while (nextRow < end) {
+                String id = null;
+
+                if (nextStoredID < header.storedIDRows.length && header.storedIDRows[nextStoredID] == nextRow) {
+                    id = header.storedIDs[nextStoredID++];
+                }
+
+                spectrumList.addTabulated(id);
+                nextRow++;
+            }
+        }
+    }
+}
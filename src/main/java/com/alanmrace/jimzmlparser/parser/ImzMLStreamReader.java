@@ -0,0 +1,444 @@
+package com.alanmrace.jimzmlparser.parser;
+
+import com.alanmrace.jimzmlparser.data.BinaryDataStorage;
+import com.alanmrace.jimzmlparser.exceptions.FatalParseIssue;
+import com.alanmrace.jimzmlparser.exceptions.FatalRuntimeParseException;
+import com.alanmrace.jimzmlparser.exceptions.ImzMLParseException;
+import com.alanmrace.jimzmlparser.imzml.ImzML;
+import com.alanmrace.jimzmlparser.mzml.Spectrum;
+import com.alanmrace.jimzmlparser.obo.OBO;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+/**
+ * Streaming reader for imzML files, producing spectra one at a time with
+ * constant memory.
+ *
+ * <p>The file is read with a StAX pull parser, and each event is passed to an
+ * {@link ImzMLHandler}, so the metadata is interpreted exactly as by
+ * {@link ImzMLHandler#parseimzML(java.lang.String)}. The metadata preceding the
+ * first spectrum is parsed when the reader is created (see {@link #getimzML()}),
+ * and each spectrum is then parsed as it is requested from {@link #spectra()}
+ * (or {@link #stream()}). Spectra are removed from the SpectrumList once parsed,
+ * so earlier spectra are not kept in memory unless retained by the caller. The
+ * data of each spectrum is loaded lazily from the IBD file through its
+ * {@link com.alanmrace.jimzmlparser.data.DataLocation}.
+ *
+ * <p>As spectra are not retained, references to earlier spectra (such as the
+ * spectrumRef of a precursor) are not resolved, and the correction of absolute
+ * pixel coordinates performed for Bruker data by
+ * {@link ImzMLHandler#parseimzML(java.lang.String)} is not applied.
+ */
+public class ImzMLStreamReader implements Closeable {
+
+    /**
+     * Class logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(ImzMLStreamReader.class.getName());
+
+    /**
+     * Handler interpreting the parsed events.
+     */
+    private final ImzMLHandler handler;
+
+    /**
+     * Input stream of the imzML file.
+     */
+    private final InputStream inputStream;
+
+    /**
+     * StAX reader, positioned at the start of the next spectrum or at the end
+     * of the document.
+     */
+    private final XMLStreamReader reader;
+
+    /**
+     * SAX attributes view of the current element of the StAX reader.
+     */
+    private final StreamAttributes attributes;
+
+    /**
+     * Whether {@link #spectra()} has already been called.
+     */
+    private boolean iterating;
+
+    /**
+     * Open an imzML file for streaming, opening the IBD file with random access.
+     *
+     * @param filename Location of the imzML file
+     * @throws ImzMLParseException If a fatal parse error occurs in the metadata
+     */
+    public ImzMLStreamReader(String filename) throws ImzMLParseException {
+        this(filename, BinaryDataStorage.AccessMode.RANDOM_ACCESS_FILE, null);
+    }
+
+    /**
+     * Open an imzML file for streaming, opening the IBD file with random access
+     * and notifying the listener of non-fatal parsing issues.
+     *
+     * @param filename Location of the imzML file
+     * @param listener ParserListener to notify of non-fatal parsing issues, or null
+     * @throws ImzMLParseException If a fatal parse error occurs in the metadata
+     */
+    public ImzMLStreamReader(String filename, ParserListener listener) throws ImzMLParseException {
+        this(filename, BinaryDataStorage.AccessMode.RANDOM_ACCESS_FILE, listener);
+    }
+
+    /**
+     * Open an imzML file for streaming, opening the IBD file with the specified
+     * access mode. The listener (if any) is notified of non-fatal parsing issues
+     * in the metadata and in each spectrum.
+     *
+     * @param filename Location of the imzML file
+     * @param accessMode Method used to read from the IBD file
+     * @param listener ParserListener to notify of non-fatal parsing issues, or null
+     * @throws ImzMLParseException If a fatal parse error occurs in the metadata
+     */
+    public ImzMLStreamReader(String filename, BinaryDataStorage.AccessMode accessMode, ParserListener listener) throws ImzMLParseException {
+        InputStream openedStream = null;
+
+        try {
+            OBO obo = OBO.getOBO();
+
+            handler = new ImzMLHandler(obo, ImzMLHandler.getIBDFile(filename), true, accessMode);
+
+            if (listener != null) {
+                handler.registerParserListener(listener);
+            }
+
+            openedStream = ImzMLHandler.openInputStream(filename);
+            reader = XMLInputFactory.newInstance().createXMLStreamReader(openedStream);
+            attributes = new StreamAttributes(reader);
+
+            parseToNextSpectrum();
+
+            if (handler.mzML == null) {
+                throw new ImzMLParseException(new FatalParseIssue("No <mzML> tag found", "No <mzML> tag found in " + filename));
+            }
+
+            handler.getimzML().setOBO(obo);
+
+            inputStream = openedStream;
+            openedStream = null;
+        } catch (FatalRuntimeParseException ex) {
+            throw new ImzMLParseException(ex.getIssue(), ex);
+        } catch (XMLStreamException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+
+            throw new ImzMLParseException(new FatalParseIssue("XMLStreamException: " + ex, ex.getLocalizedMessage()), ex);
+        } catch (SAXException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+
+            throw new ImzMLParseException(new FatalParseIssue("SAXException: " + ex, ex.getLocalizedMessage()), ex);
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+
+            throw new ImzMLParseException(new FatalParseIssue("IOException: " + ex, ex.getLocalizedMessage()), ex);
+        } finally {
+            if (openedStream != null) {
+                try {
+                    openedStream.close();
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the metadata of the imzML file. Before iterating, this includes all
+     * metadata preceding the first spectrum; after iterating, it also includes
+     * any metadata following the spectra (such as the ChromatogramList). The
+     * SpectrumList of the Run does not retain the spectra.
+     *
+     * @return ImzML metadata
+     */
+    public ImzML getimzML() {
+        return handler.getimzML();
+    }
+
+    /**
+     * Get the number of spectra declared by the count attribute of the
+     * {@literal <spectrumList>} tag.
+     *
+     * @return Declared number of spectra
+     */
+    public int getDeclaredSpectrumCount() {
+        return handler.numberOfSpectra;
+    }
+
+    /**
+     * Get an iterator over the spectra of the imzML file, parsing each spectrum
+     * as it is requested. The spectra can only be iterated over once.
+     *
+     * <p>Fatal parse errors encountered while iterating are thrown as
+     * {@link FatalRuntimeParseException}.
+     *
+     * @return Iterator over the spectra
+     */
+    public synchronized Iterator<Spectrum> spectra() {
+        if (iterating) {
+            throw new IllegalStateException("The spectra of an ImzMLStreamReader can only be iterated over once");
+        }
+
+        iterating = true;
+
+        return new Iterator<Spectrum>() {
+            @Override
+            public boolean hasNext() {
+                synchronized (ImzMLStreamReader.this) {
+                    return isAtSpectrum();
+                }
+            }
+
+            @Override
+            public Spectrum next() {
+                synchronized (ImzMLStreamReader.this) {
+                    if (!isAtSpectrum()) {
+                        throw new NoSuchElementException();
+                    }
+
+                    try {
+                        return parseSpectrum();
+                    } catch (XMLStreamException ex) {
+                        throw new FatalRuntimeParseException(new FatalParseIssue("XMLStreamException: " + ex, ex.getLocalizedMessage()), ex);
+                    } catch (SAXException ex) {
+                        throw new FatalRuntimeParseException(new FatalParseIssue("SAXException: " + ex, ex.getLocalizedMessage()), ex);
+                    }
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("remove");
+            }
+        };
+    }
+
+    /**
+     * Get a sequential Stream of the spectra of the imzML file, parsing each
+     * spectrum as it is requested. The spectra can only be streamed once.
+     *
+     * @return Stream of the spectra
+     * @see #spectra()
+     */
+    public Stream<Spectrum> stream() {
+        int characteristics = Spliterator.ORDERED | Spliterator.NONNULL;
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(spectra(), characteristics), false);
+    }
+
+    /**
+     * Check whether the StAX reader is positioned at the start of a spectrum.
+     *
+     * @return true if there is another spectrum to parse
+     */
+    private boolean isAtSpectrum() {
+        return reader.getEventType() == XMLStreamConstants.START_ELEMENT && "spectrum".equals(reader.getLocalName());
+    }
+
+    /**
+     * Pass events to the handler up to (but not including) the start of the next
+     * spectrum, or the end of the document.
+     *
+     * @throws XMLStreamException If the XML is malformed
+     * @throws SAXException If the handler fails
+     */
+    private void parseToNextSpectrum() throws XMLStreamException, SAXException {
+        while (!isAtSpectrum() && reader.getEventType() != XMLStreamConstants.END_DOCUMENT) {
+            dispatchEvent();
+            reader.next();
+        }
+    }
+
+    /**
+     * Pass the events of the spectrum at the current position to the handler,
+     * remove the parsed spectrum from the SpectrumList and then parse up to the
+     * start of the next spectrum.
+     *
+     * @return Parsed spectrum
+     * @throws XMLStreamException If the XML is malformed
+     * @throws SAXException If the handler fails
+     */
+    private Spectrum parseSpectrum() throws XMLStreamException, SAXException {
+        int depth = 0;
+
+        do {
+            int event = reader.getEventType();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+
+            dispatchEvent();
+            reader.next();
+        } while (depth > 0);
+
+        Spectrum spectrum = null;
+
+        if (handler.spectrumList != null && handler.spectrumList.size() > 0) {
+            spectrum = handler.spectrumList.remove(handler.spectrumList.size() - 1);
+            spectrum.setParent(handler.spectrumList);
+        }
+
+        handler.releaseCurrentSpectrum();
+        parseToNextSpectrum();
+
+        if (spectrum == null) {
+            throw new FatalRuntimeParseException(new FatalParseIssue("Spectrum not added to the SpectrumList", "<spectrumList> tag not defined prior to defining <spectrum> tag."));
+        }
+
+        return spectrum;
+    }
+
+    /**
+     * Pass the current event of the StAX reader to the handler.
+     *
+     * @throws SAXException If the handler fails
+     */
+    private void dispatchEvent() throws SAXException {
+        switch (reader.getEventType()) {
+            case XMLStreamConstants.START_ELEMENT:
+                handler.startElement(reader.getNamespaceURI(), reader.getLocalName(), getQName(), attributes);
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                handler.endElement(reader.getNamespaceURI(), reader.getLocalName(), getQName());
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+                handler.characters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                break;
+            default:
+                break;
+        }
+    }
+
+    private String getQName() {
+        String prefix = reader.getPrefix();
+
+        return (prefix == null || prefix.isEmpty()) ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+    }
+
+    /**
+     * Close the imzML file. The IBD file remains open, as it is used to load the
+     * data of the spectra, and is closed with the DataStorage of the ImzML.
+     *
+     * @throws IOException If the file could not be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            reader.close();
+        } catch (XMLStreamException ex) {
+            LOGGER.log(Level.WARNING, null, ex);
+        }
+
+        inputStream.close();
+    }
+
+    /**
+     * SAX Attributes view of the attributes of the current element of an
+     * XMLStreamReader, only valid while the reader is at that element.
+     */
+    private static class StreamAttributes implements Attributes {
+
+        private final XMLStreamReader reader;
+
+        StreamAttributes(XMLStreamReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public int getLength() {
+            return reader.getAttributeCount();
+        }
+
+        @Override
+        public String getURI(int index) {
+            String uri = reader.getAttributeNamespace(index);
+
+            return (uri == null) ? "" : uri;
+        }
+
+        @Override
+        public String getLocalName(int index) {
+            return reader.getAttributeLocalName(index);
+        }
+
+        @Override
+        public String getQName(int index) {
+            String prefix = reader.getAttributePrefix(index);
+
+            return (prefix == null || prefix.isEmpty()) ? reader.getAttributeLocalName(index) : prefix + ":" + reader.getAttributeLocalName(index);
+        }
+
+        @Override
+        public String getType(int index) {
+            return (index >= 0 && index < getLength()) ? "CDATA" : null;
+        }
+
+        @Override
+        public String getValue(int index) {
+            return (index >= 0 && index < getLength()) ? reader.getAttributeValue(index) : null;
+        }
+
+        @Override
+        public int getIndex(String uri, String localName) {
+            for (int i = 0; i < getLength(); i++) {
+                if (getURI(i).equals(uri) && getLocalName(i).equals(localName)) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        @Override
+        public int getIndex(String qName) {
+            for (int i = 0; i < getLength(); i++) {
+                if (getQName(i).equals(qName)) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        @Override
+        public String getType(String uri, String localName) {
+            return getType(getIndex(uri, localName));
+        }
+
+        @Override
+        public String getType(String qName) {
+            return getType(getIndex(qName));
+        }
+
+        @Override
+        public String getValue(String uri, String localName) {
+            return getValue(getIndex(uri, localName));
+        }
+
+        @Override
+        public String getValue(String qName) {
+            return getValue(getIndex(qName));
+        }
+    }
+}
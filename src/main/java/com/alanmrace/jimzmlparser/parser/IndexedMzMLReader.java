@@ -0,0 +1,1005 @@
+package com.alanmrace.jimzmlparser.parser;
+
+import com.alanmrace.jimzmlparser.data.DataLocation;
+import com.alanmrace.jimzmlparser.exceptions.FatalParseIssue;
+import com.alanmrace.jimzmlparser.exceptions.FatalRuntimeParseException;
+import com.alanmrace.jimzmlparser.exceptions.InvalidMzMLIssue;
+import com.alanmrace.jimzmlparser.exceptions.MzMLParseException;
+import com.alanmrace.jimzmlparser.mzml.MzML;
+import com.alanmrace.jimzmlparser.mzml.Spectrum;
+import com.alanmrace.jimzmlparser.mzml.SpectrumList;
+import com.alanmrace.jimzmlparser.obo.OBO;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Random access reader for indexed mzML files.
+ *
+ * <p>Rather than parsing the whole file, the {@literal <indexListOffset>} is read
+ * from the end of the file and only the spectrum and chromatogram index which it
+ * points to is parsed, along with the metadata preceding the first spectrum
+ * (see {@link #getmzML()}). Each {@literal <spectrum>} is then parsed on demand
+ * from its offset, so opening a large file and accessing a few spectra only reads
+ * the parts of the file required. Parsed spectra can optionally be kept in a
+ * metadata cache (see {@link #setMetadataCacheSize(int)}).
+ *
+ * <p>If the file has no index, or the index does not match the file (for example
+ * after the file has been edited), the index is instead rebuilt by scanning the
+ * file for the {@literal <spectrum>} and {@literal <chromatogram>} tags. This
+ * reads the whole file once, but spectra are still parsed on demand.
+ *
+ * <p>The data of each spectrum is loaded lazily from the mzML file, as for
+ * {@link MzMLHeaderHandler#parsemzMLHeader(java.lang.String)}.
+ */
+public class IndexedMzMLReader implements Closeable {
+
+    /**
+     * Class logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(IndexedMzMLReader.class.getName());
+
+    /**
+     * Number of bytes read from the end of the file when searching for the
+     * {@literal <indexListOffset>} tag.
+     */
+    private static final int TAIL_LENGTH = 4096;
+
+    /**
+     * Pattern matching the {@literal <indexListOffset>} tag and its value.
+     */
+    private static final Pattern INDEX_LIST_OFFSET_PATTERN = Pattern.compile("<indexListOffset>\\s*(\\d+)\\s*</indexListOffset>");
+
+    /**
+     * Pattern matching the id attribute of a tag and its value.
+     */
+    private static final Pattern ID_PATTERN = Pattern.compile("\\sid\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')");
+
+    /**
+     * Size of the buffer used when scanning the file to rebuild the index.
+     */
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Number of bytes read from the offset of a spectrum to check that the 
+     * offset in the index is correct.
+     */
+    private static final int START_TAG_LENGTH = 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] SPECTRUM_TAG = "spectrum".getBytes(Charset.forName("US-ASCII"));
+    private static final byte[] CHROMATOGRAM_TAG = "chromatogram".getBytes(Charset.forName("US-ASCII"));
+    private static final byte[] INDEX_LIST_TAG = "indexList".getBytes(Charset.forName("US-ASCII"));
+
+    /**
+     * mzML file.
+     */
+    private final File file;
+
+    /**
+     * RandomAccessFile for the mzML file.
+     */
+    private final RandomAccessFile raf;
+
+    /**
+     * Channel of the mzML file, read using positional reads only.
+     */
+    private final FileChannel channel;
+
+    /**
+     * SAX parser reused for parsing each spectrum.
+     */
+    private final SAXParser parser;
+
+    /**
+     * Handler holding the metadata parsed from the start of the file, used to
+     * parse each spectrum.
+     */
+    private final IndexedMzMLHandler handler;
+
+    /**
+     * Offset of the {@literal <indexList>} tag, or -1 if the file is not indexed.
+     */
+    private final long indexListOffset;
+
+    /**
+     * Index of the spectra, replaced if the index is rebuilt.
+     */
+    private volatile OffsetIndex spectrumIndex;
+
+    /**
+     * Index of the chromatograms, replaced if the index is rebuilt.
+     */
+    private volatile OffsetIndex chromatogramIndex;
+
+    /**
+     * True if the index has been rebuilt by scanning the file.
+     */
+    private boolean indexScanned;
+
+    /**
+     * Maximum number of parsed spectra kept in the metadata cache.
+     */
+    private int metadataCacheSize;
+
+    /**
+     * Parsed spectra, by index, in order of access.
+     */
+    private final LinkedHashMap<Integer, Spectrum> metadataCache = new LinkedHashMap<Integer, Spectrum>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Spectrum> eldest) {
+            return size() > metadataCacheSize;
+        }
+    };
+
+    /**
+     * Open an indexed mzML file.
+     *
+     * @param filename Location of the indexed mzML file
+     * @throws MzMLParseException If the file could not be read or the metadata is
+     * invalid
+     */
+    public IndexedMzMLReader(String filename) throws MzMLParseException {
+        this(filename, null);
+    }
+
+    /**
+     * Open an indexed mzML file, notifying the listener of any issues found while
+     * parsing the metadata and spectra.
+     *
+     * @param filename Location of the indexed mzML file
+     * @param listener Listener to notify of parse issues, or null
+     * @throws MzMLParseException If the file could not be read or the metadata is
+     * invalid
+     */
+    public IndexedMzMLReader(String filename, ParserListener listener) throws MzMLParseException {
+        OBO obo = OBO.getOBO();
+        RandomAccessFile openedFile = null;
+
+        this.file = new File(filename);
+
+        try {
+            openedFile = new RandomAccessFile(file, "r");
+            channel = openedFile.getChannel();
+
+            indexListOffset = readIndexListOffset(channel);
+            parser = SAXParserFactory.newInstance().newSAXParser();
+
+            if (!readIndex()) {
+                rebuildIndex();
+            }
+
+            // Parse the metadata up to the first spectrum (or chromatogram)
+            parser.reset();
+
+            handler = new IndexedMzMLHandler(obo, file);
+
+            if (listener != null) {
+                handler.registerParserListener(listener);
+            }
+
+            try {
+                parser.parse(new ChannelInputStream(channel, 0), handler);
+            } catch (StopParsingException ex) {
+                // Reached the first spectrum or chromatogram
+            }
+
+            if (handler.getmzML() == null) {
+                throw new MzMLParseException(new InvalidMzMLIssue("No <mzML> tag found", "No <mzML> tag found before the index of " + filename));
+            }
+
+            handler.getmzML().setOBO(obo);
+
+            raf = openedFile;
+            openedFile = null;
+        } catch (FatalRuntimeParseException runtimeException) {
+            throw new MzMLParseException(runtimeException.getIssue(), runtimeException);
+        } catch (SAXException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+
+            throw new MzMLParseException(new InvalidMzMLIssue("SAXException: " + ex, ex.getLocalizedMessage()), ex);
+        } catch (FileNotFoundException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+
+            throw new MzMLParseException(new FatalParseIssue("File not found: " + filename, ex.getLocalizedMessage()), ex);
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+
+            throw new MzMLParseException(new FatalParseIssue("IOException: " + ex, ex.getLocalizedMessage()), ex);
+        } catch (ParserConfigurationException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+
+            throw new MzMLParseException(new FatalParseIssue("ParserConfigurationException: " + ex, ex.getLocalizedMessage()), ex);
+        } finally {
+            if (openedFile != null) {
+                try {
+                    openedFile.close();
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the value of the {@literal <indexListOffset>} tag from the end of an
+     * mzML file.
+     *
+     * @param channel Channel of the mzML file
+     * @return Offset of the {@literal <indexList>} tag, or -1 if the file is not indexed
+     * @throws IOException If the file could not be read
+     */
+    static long readIndexListOffset(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int length = (int) Math.min(TAIL_LENGTH, size);
+        ByteBuffer tail = ByteBuffer.allocate(length);
+
+        while (tail.hasRemaining()) {
+            if (channel.read(tail, size - length + tail.position()) < 0) {
+                break;
+            }
+        }
+
+        Matcher matcher = INDEX_LIST_OFFSET_PATTERN.matcher(new String(tail.array(), 0, tail.position(), Charset.forName("ISO-8859-1")));
+        long offset = -1;
+
+        // Use the last match, in case the tag also appears in the data
+        while (matcher.find()) {
+            offset = Long.parseLong(matcher.group(1));
+        }
+
+        if (offset >= size) {
+            return -1;
+        }
+
+        return offset;
+    }
+
+    /**
+     * Parse the {@literal <indexList>} of an indexed mzML file.
+     *
+     * @param parser SAX parser to parse with
+     * @param channel Channel of the mzML file
+     * @param indexListOffset Offset of the {@literal <indexList>} tag
+     * @param spectrumIndex Index to add the spectrum offsets to
+     * @param chromatogramIndex Index to add the chromatogram offsets to
+     * @throws IOException If the file could not be read
+     * @throws SAXException If the index is invalid
+     */
+    static void parseIndex(SAXParser parser, FileChannel channel, long indexListOffset, final OffsetIndex spectrumIndex, final OffsetIndex chromatogramIndex) throws IOException, SAXException {
+        // The index is followed by the closing </indexedmzML> tag, so add the
+        // opening tag to make the index a well formed document
+        InputStream indexStream = new SequenceInputStream(new ByteArrayInputStream("<indexedmzML>".getBytes("UTF-8")), new ChannelInputStream(channel, indexListOffset));
+
+        try {
+            parser.parse(indexStream, new DefaultHandler() {
+                private OffsetIndex currentIndex;
+                private String currentIDRef;
+                private final StringBuilder offsetData = new StringBuilder();
+                private boolean processingOffset;
+
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+                    if ("offset".equals(qName)) {
+                        currentIDRef = attributes.getValue("idRef");
+                        offsetData.setLength(0);
+                        processingOffset = true;
+                    } else if ("index".equals(qName)) {
+                        currentIndex = "chromatogram".equals(attributes.getValue("name")) ? chromatogramIndex : spectrumIndex;
+                    }
+                }
+
+                @Override
+                public void characters(char[] ch, int start, int length) throws SAXException {
+                    if (processingOffset) {
+                        offsetData.append(ch, start, length);
+                    }
+                }
+
+                @Override
+                public void endElement(String uri, String localName, String qName) throws SAXException {
+                    if ("offset".equals(qName) && currentIndex != null) {
+                        try {
+                            currentIndex.add(currentIDRef, Long.parseLong(offsetData.toString().trim()));
+                        } catch (NumberFormatException ex) {
+                            throw new SAXException("Invalid offset for '" + currentIDRef + "' in the index: " + offsetData, ex);
+                        }
+
+                        processingOffset = false;
+                    } else if ("indexList".equals(qName)) {
+                        throw new StopParsingException();
+                    }
+                }
+            });
+        } catch (StopParsingException ex) {
+            // Reached the end of the index list
+        }
+    }
+
+    /**
+     * Read the index pointed to by the {@literal <indexListOffset>} tag, checking
+     * that the first and last spectra in the index are found at their offsets.
+     *
+     * @return true if the index was read, false if it is missing or invalid
+     * @throws IOException If the file could not be read
+     */
+    private boolean readIndex() throws IOException {
+        if (indexListOffset < 0) {
+            LOGGER.log(Level.WARNING, "No <indexListOffset> found at the end of {0}, scanning the file for spectra", file);
+
+            return false;
+        }
+
+        OffsetIndex spectra = new OffsetIndex();
+        OffsetIndex chromatograms = new OffsetIndex();
+
+        try {
+            parseIndex(parser, channel, indexListOffset, spectra, chromatograms);
+        } catch (SAXException ex) {
+            LOGGER.log(Level.WARNING, "Invalid index at offset " + indexListOffset + " of " + file + ", scanning the file for spectra", ex);
+
+            return false;
+        } finally {
+            parser.reset();
+        }
+
+        int last = spectra.size() - 1;
+
+        if (last >= 0 && (!isSpectrumAt(spectra.getOffset(0), spectra.getID(0)) || !isSpectrumAt(spectra.getOffset(last), spectra.getID(last)))) {
+            LOGGER.log(Level.WARNING, "Index of {0} does not match the spectra, scanning the file for spectra", file);
+
+            return false;
+        }
+
+        setIndex(spectra, chromatograms, indexListOffset);
+
+        return true;
+    }
+
+    /**
+     * Rebuild the index by scanning the file (see 
+     * {@link #scanIndex(FileChannel, OffsetIndex, OffsetIndex)}).
+     *
+     * @throws IOException If the file could not be read
+     */
+    private void rebuildIndex() throws IOException {
+        OffsetIndex spectra = new OffsetIndex();
+        OffsetIndex chromatograms = new OffsetIndex();
+
+        long end = scanIndex(channel, spectra, chromatograms);
+
+        setIndex(spectra, chromatograms, end);
+        indexScanned = true;
+    }
+
+    /**
+     * Calculate the end of each spectrum and chromatogram, as the next offset in
+     * the file (or the end of the spectra and chromatograms), and use the indices.
+     *
+     * @param spectra Index of the spectra
+     * @param chromatograms Index of the chromatograms
+     * @param end Offset of the end of the last spectrum or chromatogram
+     */
+    private void setIndex(OffsetIndex spectra, OffsetIndex chromatograms, long end) {
+        long[] allOffsets = new long[spectra.size() + chromatograms.size() + 1];
+
+        System.arraycopy(spectra.offsets, 0, allOffsets, 0, spectra.size());
+        System.arraycopy(chromatograms.offsets, 0, allOffsets, spectra.size(), chromatograms.size());
+        allOffsets[allOffsets.length - 1] = end;
+
+        Arrays.sort(allOffsets);
+
+        spectra.calculateEnds(allOffsets);
+        chromatograms.calculateEnds(allOffsets);
+
+        spectrumIndex = spectra;
+        chromatogramIndex = chromatograms;
+    }
+
+    /**
+     * Check whether the {@literal <spectrum>} tag with the specified ID is at the
+     * specified offset.
+     *
+     * @param offset Offset in bytes
+     * @param id Spectrum ID
+     * @return true if the spectrum is at the offset
+     * @throws IOException If the file could not be read
+     */
+    private boolean isSpectrumAt(long offset, String id) throws IOException {
+        if (offset < 0 || offset >= channel.size()) {
+            return false;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(START_TAG_LENGTH, channel.size() - offset));
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) <= 0) {
+                break;
+            }
+        }
+
+        byte[] bytes = buffer.array();
+        int length = buffer.position();
+
+        if (length <= SPECTRUM_TAG.length + 1 || bytes[0] != '<' || !ParallelImzMLParser.matches(bytes, 1, SPECTRUM_TAG) 
+                || !ParallelImzMLParser.isTagNameEnd(bytes[SPECTRUM_TAG.length + 1])) {
+            return false;
+        }
+
+        return id.equals(getID(new String(bytes, 0, length, UTF8)));
+    }
+
+    /**
+     * Build the index of a file without a valid index, by scanning the file for
+     * {@literal <spectrum>} and {@literal <chromatogram>} tags and reading the ID
+     * of each. The file is read once, using a single buffer, and scanning stops 
+     * at the {@literal <indexList>} tag (if any).
+     *
+     * @param channel Channel of the mzML file
+     * @param spectrumIndex Index to add the spectrum offsets to
+     * @param chromatogramIndex Index to add the chromatogram offsets to
+     * @return Offset of the {@literal <indexList>} tag, or the size of the file if
+     * there is none
+     * @throws IOException If the file could not be read
+     */
+    static long scanIndex(FileChannel channel, OffsetIndex spectrumIndex, OffsetIndex chromatogramIndex) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+        long size = channel.size();
+        long bufferStart = 0;
+
+        while (bufferStart < size) {
+            // Any partial tag from the previous read is kept at the start of the buffer
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, bufferStart + buffer.position()) <= 0) {
+                    break;
+                }
+            }
+
+            int length = buffer.position();
+            boolean endOfFile = bufferStart + length >= size;
+            int next = length;
+
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != '<') {
+                    continue;
+                }
+
+                int tagEnd = i + 1;
+
+                while (tagEnd < length && bytes[tagEnd] != '>') {
+                    tagEnd++;
+                }
+
+                if (tagEnd == length) {
+                    // Read the tag again from the start of the next read, unless it
+                    // is longer than the buffer
+                    if (!endOfFile && i > 0) {
+                        next = i;
+                    }
+
+                    break;
+                }
+
+                if (isTag(bytes, i, tagEnd, INDEX_LIST_TAG)) {
+                    return bufferStart + i;
+                }
+
+                OffsetIndex index = null;
+
+                if (isTag(bytes, i, tagEnd, SPECTRUM_TAG)) {
+                    index = spectrumIndex;
+                } else if (isTag(bytes, i, tagEnd, CHROMATOGRAM_TAG)) {
+                    index = chromatogramIndex;
+                }
+
+                if (index != null) {
+                    String id = getID(new String(bytes, i, tagEnd - i, UTF8));
+
+                    if (id != null) {
+                        index.add(id, bufferStart + i);
+                    }
+                }
+
+                i = tagEnd;
+            }
+
+            if (endOfFile || length == 0) {
+                break;
+            }
+
+            System.arraycopy(bytes, next, bytes, 0, length - next);
+            buffer.clear();
+            buffer.position(length - next);
+            bufferStart += next;
+        }
+
+        return size;
+    }
+
+    private static boolean isTag(byte[] bytes, int tagStart, int tagEnd, byte[] name) {
+        return tagStart + name.length + 1 <= tagEnd && ParallelImzMLParser.matches(bytes, tagStart + 1, name)
+                && ParallelImzMLParser.isTagNameEnd(bytes[tagStart + name.length + 1]);
+    }
+
+    /**
+     * Get the value of the id attribute of a start tag.
+     *
+     * @param startTag Start tag
+     * @return ID, or null if the tag has no id attribute
+     */
+    static String getID(String startTag) {
+        int tagEnd = startTag.indexOf('>');
+        Matcher matcher = ID_PATTERN.matcher((tagEnd < 0) ? startTag : startTag.substring(0, tagEnd));
+
+        if (!matcher.find()) {
+            return null;
+        }
+
+        String id = (matcher.group(1) != null) ? matcher.group(1) : matcher.group(2);
+
+        return id.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'").replace("&amp;", "&");
+    }
+
+    /**
+     * Get the metadata of the mzML file, parsed from the start of the file up to
+     * the first spectrum (or chromatogram). The SpectrumList of the Run is empty;
+     * spectra are parsed on demand with {@link #getSpectrum(int)}.
+     *
+     * @return MzML metadata
+     */
+    public MzML getmzML() {
+        return handler.getmzML();
+    }
+
+    /**
+     * Get the offset of the {@literal <indexList>} tag, as read from the
+     * {@literal <indexListOffset>} tag.
+     *
+     * @return Offset in bytes, or -1 if the file is not indexed
+     */
+    public long getIndexListOffset() {
+        return indexListOffset;
+    }
+
+    /**
+     * Check whether the index has been rebuilt by scanning the file, because the
+     * index in the file was missing or did not match the spectra.
+     *
+     * @return true if the index was rebuilt
+     */
+    public synchronized boolean isIndexRebuilt() {
+        return indexScanned;
+    }
+
+    /**
+     * Get the number of spectra in the index.
+     *
+     * @return Number of spectra
+     */
+    public int getSpectrumCount() {
+        return spectrumIndex.size();
+    }
+
+    /**
+     * Get the ID of the spectrum at the specified position in the index.
+     *
+     * @param index Position in the index
+     * @return Spectrum ID
+     */
+    public String getSpectrumID(int index) {
+        return spectrumIndex.getID(index);
+    }
+
+    /**
+     * Get the position in the index of the spectrum with the specified ID.
+     *
+     * @param id Spectrum ID
+     * @return Position in the index, or -1 if not found
+     */
+    public int getSpectrumIndex(String id) {
+        return spectrumIndex.indexOf(id);
+    }
+
+    /**
+     * Get the offset of the {@literal <spectrum>} tag at the specified position
+     * in the index.
+     *
+     * @param index Position in the index
+     * @return Offset in bytes
+     */
+    public long getSpectrumOffset(int index) {
+        return spectrumIndex.getOffset(index);
+    }
+
+    /**
+     * Get the number of chromatograms in the index.
+     *
+     * @return Number of chromatograms
+     */
+    public int getChromatogramCount() {
+        return chromatogramIndex.size();
+    }
+
+    /**
+     * Get the ID of the chromatogram at the specified position in the index.
+     *
+     * @param index Position in the index
+     * @return Chromatogram ID
+     */
+    public String getChromatogramID(int index) {
+        return chromatogramIndex.getID(index);
+    }
+
+    /**
+     * Get the offset of the {@literal <chromatogram>} tag at the specified
+     * position in the index.
+     *
+     * @param index Position in the index
+     * @return Offset in bytes
+     */
+    public long getChromatogramOffset(int index) {
+        return chromatogramIndex.getOffset(index);
+    }
+
+    /**
+     * Set the maximum number of parsed spectra kept in the metadata cache, so that
+     * accessing them again does not require parsing.
+     *
+     * @param metadataCacheSize Maximum number of spectra, or 0 to disable the cache
+     */
+    public synchronized void setMetadataCacheSize(int metadataCacheSize) {
+        this.metadataCacheSize = Math.max(0, metadataCacheSize);
+
+        if (this.metadataCacheSize == 0) {
+            metadataCache.clear();
+        } else {
+            while (metadataCache.size() > this.metadataCacheSize) {
+                metadataCache.remove(metadataCache.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * Get the maximum number of parsed spectra kept in the metadata cache.
+     *
+     * @return Maximum number of spectra, or 0 if the cache is disabled
+     */
+    public synchronized int getMetadataCacheSize() {
+        return metadataCacheSize;
+    }
+
+    /**
+     * Get the spectrum with the specified ID, parsing it from the file if it is
+     * not in the metadata cache.
+     *
+     * @param id Spectrum ID
+     * @return Spectrum, or null if not in the index
+     * @throws MzMLParseException If the spectrum could not be read or is invalid
+     */
+    public Spectrum getSpectrum(String id) throws MzMLParseException {
+        int index = getSpectrumIndex(id);
+
+        if (index < 0) {
+            return null;
+        }
+
+        return getSpectrum(index);
+    }
+
+    /**
+     * Get the spectrum at the specified position in the index, parsing it from the
+     * file if it is not in the metadata cache.
+     *
+     * @param index Position in the index
+     * @return Spectrum
+     * @throws MzMLParseException If the spectrum could not be read or is invalid
+     */
+    public synchronized Spectrum getSpectrum(int index) throws MzMLParseException {
+        Spectrum spectrum = metadataCache.get(index);
+
+        if (spectrum != null) {
+            return spectrum;
+        }
+
+        long offset = spectrumIndex.getOffset(index);
+        long end = spectrumIndex.getEnd(index);
+
+        try {
+            if (!indexScanned && !isSpectrumAt(offset, getSpectrumID(index))) {
+                return getSpectrumFromRebuiltIndex(index);
+            }
+
+            spectrum = handler.parseSpectrum(parser, new ChannelInputStream(channel, offset));
+        } catch (FatalRuntimeParseException runtimeException) {
+            throw new MzMLParseException(runtimeException.getIssue(), runtimeException);
+        } catch (SAXException ex) {
+            throw new MzMLParseException(new InvalidMzMLIssue("SAXException: " + ex, "Failed to parse spectrum '" + getSpectrumID(index) + "' at offset " + offset + ": " + ex.getLocalizedMessage()), ex);
+        } catch (IOException ex) {
+            throw new MzMLParseException(new FatalParseIssue("IOException: " + ex, ex.getLocalizedMessage()), ex);
+        }
+
+        if (spectrum == null) {
+            throw new MzMLParseException(new InvalidMzMLIssue("No spectrum found", "No <spectrum> tag found at offset " + offset + " for spectrum '" + getSpectrumID(index) + "'"));
+        }
+
+        if (handler.dataStorage != null) {
+            spectrum.setDataLocation(new DataLocation(handler.dataStorage, offset, (int) (end - offset)));
+        }
+
+        if (metadataCacheSize > 0) {
+            metadataCache.put(index, spectrum);
+        }
+
+        return spectrum;
+    }
+
+    /**
+     * Rebuild the index after finding that the offset of a spectrum in the index 
+     * is incorrect, and get the spectrum from the rebuilt index.
+     *
+     * @param index Position of the spectrum in the original index
+     * @return Spectrum
+     * @throws IOException If the file could not be read
+     * @throws MzMLParseException If the spectrum could not be found or is invalid
+     */
+    private Spectrum getSpectrumFromRebuiltIndex(int index) throws IOException, MzMLParseException {
+        String id = getSpectrumID(index);
+
+        LOGGER.log(Level.WARNING, "Spectrum ''{0}'' not found at offset {1} of {2}, scanning the file for spectra", new Object[]{id, getSpectrumOffset(index), file});
+
+        rebuildIndex();
+        metadataCache.clear();
+
+        int rebuiltIndex = getSpectrumIndex(id);
+
+        if (rebuiltIndex < 0) {
+            throw new MzMLParseException(new InvalidMzMLIssue("No spectrum found", "No <spectrum> tag found for spectrum '" + id + "' in " + file));
+        }
+
+        return getSpectrum(rebuiltIndex);
+    }
+
+    /**
+     * Close the mzML file, including the data storage used to load the data of
+     * the spectra returned by this reader.
+     *
+     * @throws IOException If the file could not be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        metadataCache.clear();
+
+        if (handler.dataStorage != null) {
+            handler.dataStorage.close();
+        }
+
+        raf.close();
+    }
+
+    @Override
+    public String toString() {
+        return "IndexedMzMLReader (" + file + ", " + getSpectrumCount() + " spectra, " + getChromatogramCount() + " chromatograms)";
+    }
+
+    /**
+     * IDs and offsets of the spectra or chromatograms in the index.
+     */
+    static class OffsetIndex {
+
+        private final List<String> ids = new ArrayList<String>();
+        private final Map<String, Integer> positions = new HashMap<String, Integer>();
+        private long[] offsets = new long[16];
+        private long[] ends;
+
+        void add(String id, long offset) {
+            if (ids.size() == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+
+            offsets[ids.size()] = offset;
+            positions.put(id, ids.size());
+            ids.add(id);
+        }
+
+        int size() {
+            return ids.size();
+        }
+
+        String getID(int index) {
+            return ids.get(index);
+        }
+
+        int indexOf(String id) {
+            Integer position = positions.get(id);
+
+            return (position == null) ? -1 : position;
+        }
+
+        long getOffset(int index) {
+            if (index < 0 || index >= ids.size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + ids.size());
+            }
+
+            return offsets[index];
+        }
+
+        long getEnd(int index) {
+            getOffset(index);
+
+            return ends[index];
+        }
+
+        void calculateEnds(long[] sortedOffsets) {
+            ends = new long[ids.size()];
+
+            for (int i = 0; i < ends.length; i++) {
+                // Find the first offset after this one
+                int position = Arrays.binarySearch(sortedOffsets, offsets[i]);
+
+                while (position < sortedOffsets.length - 1 && sortedOffsets[position] == offsets[i]) {
+                    position++;
+                }
+
+                ends[i] = sortedOffsets[position];
+            }
+        }
+    }
+
+    /**
+     * Handler which stops at the first spectrum (or chromatogram) when parsing
+     * the metadata, and then parses single {@literal <spectrum>} tags using the
+     * parsed metadata.
+     */
+    private static class IndexedMzMLHandler extends MzMLHeaderHandler {
+
+        /**
+         * True when parsing a single spectrum rather than the metadata.
+         */
+        private boolean parsingSpectrum;
+
+        IndexedMzMLHandler(OBO obo, File mzMLFile) throws FileNotFoundException {
+            super(obo, mzMLFile);
+        }
+
+        Spectrum parseSpectrum(SAXParser parser, InputStream is) throws IOException, SAXException {
+            SpectrumList headerSpectrumList = spectrumList;
+
+            if (headerSpectrumList == null) {
+                throw new FatalRuntimeParseException(new InvalidMzMLIssue("<spectrumList> tag not defined prior to the first <spectrum> tag."));
+            }
+
+            // Parse into a separate list, so that spectra are not retained
+            spectrumList = new SpectrumList(1, headerSpectrumList.getDefaultDataProcessingRef());
+            parsingSpectrum = true;
+
+            try {
+                parser.parse(is, this);
+            } catch (StopParsingException ex) {
+                // Reached the end of the spectrum
+            } finally {
+                parser.reset();
+                parsingSpectrum = false;
+            }
+
+            SpectrumList parsedList = spectrumList;
+            spectrumList = headerSpectrumList;
+
+            if (parsedList.size() == 0) {
+                return null;
+            }
+
+            Spectrum spectrum = parsedList.getSpectrum(0);
+            spectrum.setParent(headerSpectrumList);
+
+            return spectrum;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            if (!parsingSpectrum && ("spectrum".equals(qName) || "chromatogram".equals(qName) || "indexList".equals(qName))) {
+                throw new StopParsingException();
+            }
+
+            super.startElement(uri, localName, qName, attributes);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            super.endElement(uri, localName, qName);
+
+            if (parsingSpectrum && "spectrum".equals(qName)) {
+                throw new StopParsingException();
+            }
+        }
+    }
+
+    /**
+     * Thrown by a handler to stop parsing once the required part of the file
+     * has been parsed.
+     */
+    private static class StopParsingException extends SAXException {
+
+        private static final long serialVersionUID = 1L;
+
+        StopParsingException() {
+            super("Parsing stopped");
+        }
+    }
+
+    /**
+     * InputStream reading from a position in a FileChannel using positional reads,
+     * so that the position of the channel is not changed and closing the stream
+     * does not close the channel. Several streams can read from the same channel
+     * concurrently.
+     */
+    static class ChannelInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        ChannelInputStream(FileChannel channel, long position) {
+            this(channel, position, Long.MAX_VALUE);
+        }
+
+        ChannelInputStream(FileChannel channel, long position, long end) {
+            this.channel = channel;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+
+            return (read(single, 0, 1) < 0) ? -1 : (single[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (position >= end) {
+                return -1;
+            }
+
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+
+            if (read > 0) {
+                position += read;
+            }
+
+            return read;
+        }
+    }
+}
@@ -275,7 +275,7 @@ public class MzMLHeaderHandler extends DefaultHandler {
      * True after {@literal <spectrum>} tag and before the end tag has been
      * encountered.
      */
-    private boolean processingSpectrum;
+    boolean processingSpectrum;
 
     /**
      * True after {@literal <chromatogram>} tag and before the end tag has been
@@ -317,6 +317,13 @@ public class MzMLHeaderHandler extends DefaultHandler {
 
     int numberOfSpectra = 0;
 
+    /**
+     * Number of {@literal <spectrum>} tags parsed so far, which can differ from the
+     * size of the SpectrumList when spectra are removed as they are parsed (see
+     * {@link ImzMLStreamReader}).
+     */
+    protected int numberOfSpectraParsed = 0;
+
     private List<ParserListener> listeners;
 
     /**
@@ -371,6 +378,59 @@ public class MzMLHeaderHandler extends DefaultHandler {
         LOGGER.log(Level.FINER, "Registered listener {0}: {1}", new Object[] {listener, Arrays.toString(listeners.toArray())});
     }
 
+    /**
+     * Prepare this handler to parse a sequence of {@literal <spectrum>} tags
+     * following the metadata already parsed by another handler. The metadata
+     * (and the DataStorage) is shared, and the parsed spectra are added to the
+     * supplied SpectrumList, which is not added to the Run.
+     *
+     * @param headerHandler Handler which has parsed the metadata
+     * @param spectrumList SpectrumList to add the parsed spectra to
+     */
+    void continueSpectrumList(MzMLHeaderHandler headerHandler, SpectrumList spectrumList) {
+        this.mzML = headerHandler.mzML;
+        this.cvList = headerHandler.cvList;
+        this.fileDescription = headerHandler.fileDescription;
+        this.sourceFileList = headerHandler.sourceFileList;
+        this.referenceableParamGroupList = headerHandler.referenceableParamGroupList;
+        this.sampleList = headerHandler.sampleList;
+        this.softwareList = headerHandler.softwareList;
+        this.scanSettingsList = headerHandler.scanSettingsList;
+        this.currentScanSettings = headerHandler.currentScanSettings;
+        this.instrumentConfigurationList = headerHandler.instrumentConfigurationList;
+        this.currentInstrumentConfiguration = headerHandler.currentInstrumentConfiguration;
+        this.dataProcessingList = headerHandler.dataProcessingList;
+        this.run = headerHandler.run;
+        this.dataStorage = headerHandler.dataStorage;
+        this.openDataStorage = headerHandler.openDataStorage;
+        this.numberOfSpectra = headerHandler.numberOfSpectra;
+        this.spectrumList = spectrumList;
+
+        contentStack.clear();
+        contentStack.push(mzML);
+        contentStack.push(run);
+        contentStack.push(spectrumList);
+    }
+
+    /**
+     * Release the references to the tags of the last parsed {@literal <spectrum>},
+     * so that the spectrum is not retained by this handler once it has been
+     * removed from the SpectrumList.
+     */
+    void releaseCurrentSpectrum() {
+        currentSpectrum = null;
+        currentScanList = null;
+        currentScan = null;
+        currentScanWindowList = null;
+        currentPrecursorList = null;
+        currentPrecursor = null;
+        currentSelectedIonList = null;
+        currentProductList = null;
+        currentProduct = null;
+        currentBinaryDataArrayList = null;
+        currentBinaryDataArray = null;
+    }
+
     protected void notifyParserListeners(Issue issue) {
         LOGGER.log(Level.FINER, "Notifying {0} listeners about the issue {1}", new Object[] {Arrays.toString(listeners.toArray()), issue});
         
@@ -409,7 +469,7 @@ public class MzMLHeaderHandler extends DefaultHandler {
 
             SAXParserFactory spf = SAXParserFactory.newInstance();
 
-            // TODO: INDEXED RAF when reading!!!
+            // For random access to indexed mzML without parsing the whole file, see IndexedMzMLReader
             raf = new RandomAccessFile(filename, "r");
             is = Channels.newInputStream(raf.getChannel());
 
@@ -1048,6 +1108,7 @@ public class MzMLHeaderHandler extends DefaultHandler {
         }
 
         processingSpectrum = true;
+        numberOfSpectraParsed++;
 
         try {
             spectrumList.addSpectrum(currentSpectrum);
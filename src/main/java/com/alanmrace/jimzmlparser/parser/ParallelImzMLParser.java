@@ -0,0 +1,550 @@
+package com.alanmrace.jimzmlparser.parser;
+
+import com.alanmrace.jimzmlparser.data.BinaryDataStorage;
+import com.alanmrace.jimzmlparser.exceptions.FatalParseIssue;
+import com.alanmrace.jimzmlparser.exceptions.FatalRuntimeParseException;
+import com.alanmrace.jimzmlparser.exceptions.ImzMLParseException;
+import com.alanmrace.jimzmlparser.exceptions.InvalidMzMLIssue;
+import com.alanmrace.jimzmlparser.exceptions.Issue;
+import com.alanmrace.jimzmlparser.imzml.ImzML;
+import com.alanmrace.jimzmlparser.mzml.Spectrum;
+import com.alanmrace.jimzmlparser.mzml.SpectrumList;
+import com.alanmrace.jimzmlparser.obo.OBO;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+/**
+ * Parser for imzML files which parses the {@literal <spectrumList>} on multiple
+ * threads.
+ *
+ * <p>The metadata surrounding the {@literal <spectrumList>} is parsed first, on
+ * a single thread. The {@literal <spectrum>} tags are then split into chunks of
+ * roughly equal size (in bytes), and each chunk is parsed by a separate
+ * {@link ImzMLHandler} in a {@link ForkJoinPool}, sharing the already parsed
+ * metadata (such as the ReferenceableParamGroupList and the
+ * InstrumentConfigurationList). The spectra are then added to the SpectrumList
+ * in the order in which they appear in the file, and any parsing issues are
+ * passed to the ParserListener in the same order.
+ *
+ * <p>The result is the same as {@link ImzMLHandler#parseimzML(java.lang.String)},
+ * with the exception that precursor spectrumRefs referring to spectra in an
+ * earlier chunk are not resolved. Compressed imzML files and SCiLS 3D data
+ * (where the pixel locations depend on all preceding spectra) are parsed on a
+ * single thread with {@link ImzMLHandler}.
+ */
+public class ParallelImzMLParser {
+
+    /**
+     * Class logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(ParallelImzMLParser.class.getName());
+
+    /**
+     * Number of chunks to create per thread, so that threads finishing early can
+     * take on further chunks.
+     */
+    public static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Size of the buffer used when searching the file for tags.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Name of the element wrapping each chunk of spectra, so that each chunk is a
+     * well formed XML document.
+     */
+    private static final String CHUNK_TAG = "spectrumChunk";
+
+    static final byte[] SPECTRUM_TAG = "<spectrum".getBytes(Charset.forName("US-ASCII"));
+    static final byte[] SPECTRUM_LIST_TAG = "<spectrumList".getBytes(Charset.forName("US-ASCII"));
+    static final byte[] SPECTRUM_LIST_END_TAG = "</spectrumList".getBytes(Charset.forName("US-ASCII"));
+
+    private ParallelImzMLParser() {
+    }
+
+    /**
+     * Parse an imzML file using the common ForkJoinPool, opening the IBD file
+     * with random access.
+     *
+     * @param filename Location of the imzML file
+     * @return ImzML representation of the imzML file
+     * @throws ImzMLParseException If a fatal parse error occurs
+     */
+    public static ImzML parseimzML(String filename) throws ImzMLParseException {
+        return parseimzML(filename, BinaryDataStorage.AccessMode.RANDOM_ACCESS_FILE, null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Parse an imzML file using the specified ForkJoinPool, opening the IBD file
+     * with random access.
+     *
+     * @param filename Location of the imzML file
+     * @param pool ForkJoinPool to parse the chunks of spectra in
+     * @return ImzML representation of the imzML file
+     * @throws ImzMLParseException If a fatal parse error occurs
+     */
+    public static ImzML parseimzML(String filename, ForkJoinPool pool) throws ImzMLParseException {
+        return parseimzML(filename, BinaryDataStorage.AccessMode.RANDOM_ACCESS_FILE, null, pool);
+    }
+
+    /**
+     * Parse an imzML file using the specified ForkJoinPool, opening the IBD file
+     * with the specified access mode. The listener (if any) is notified of all
+     * non-fatal parsing issues once parsing is complete, in the order in which
+     * they occur in the file.
+     *
+     * @param filename Location of the imzML file
+     * @param accessMode Method used to read from the IBD file
+     * @param listener ParserListener which will be notified of any non-fatal
+     * parsing issues, or null
+     * @param pool ForkJoinPool to parse the chunks of spectra in
+     * @return ImzML representation of the imzML file
+     * @throws ImzMLParseException If a fatal parse error occurs
+     */
+    public static ImzML parseimzML(String filename, BinaryDataStorage.AccessMode accessMode, ParserListener listener, ForkJoinPool pool) throws ImzMLParseException {
+        if (filename.endsWith(".lz4") || filename.endsWith(".gz") || filename.endsWith(".xz")) {
+            return ImzMLHandler.parseimzML(filename, true, accessMode, listener);
+        }
+
+        ImzML imzML = null;
+        ImzMLHandler headerHandler = null;
+        List<ForkJoinTask<ChunkHandler>> tasks = new ArrayList<ForkJoinTask<ChunkHandler>>();
+        RandomAccessFile raf = null;
+
+        try {
+            raf = new RandomAccessFile(filename, "r");
+            FileChannel channel = raf.getChannel();
+
+            long[] boundaries = findChunkBoundaries(channel, pool.getParallelism() * CHUNKS_PER_THREAD);
+
+            if (boundaries != null) {
+                OBO obo = OBO.getOBO();
+                File ibdFile = ImzMLHandler.getIBDFile(filename);
+
+                headerHandler = new ImzMLHandler(obo, ibdFile, true, accessMode);
+
+                if (listener != null) {
+                    headerHandler.registerParserListener(listener);
+                }
+
+                // Parse everything except the spectra
+                long spectraStart = boundaries[0];
+                long spectraEnd = boundaries[boundaries.length - 1];
+
+                InputStream headerStream = new SequenceInputStream(new IndexedMzMLReader.ChannelInputStream(channel, 0, spectraStart),
+                        new IndexedMzMLReader.ChannelInputStream(channel, spectraEnd));
+
+                SAXParserFactory.newInstance().newSAXParser().parse(headerStream, headerHandler);
+
+                if (headerHandler.spectrumList == null) {
+                    throw new FatalRuntimeParseException(new InvalidMzMLIssue("<spectrumList> tag not defined prior to defining <spectrum> tag."));
+                }
+
+                byte[] prolog = readProlog(channel, spectraStart);
+
+                for (int i = 0; i < boundaries.length - 1; i++) {
+                    tasks.add(pool.submit(new ChunkParser(obo, ibdFile, headerHandler, channel, prolog, boundaries[i], boundaries[i + 1])));
+                }
+
+                List<ChunkHandler> chunkHandlers = new ArrayList<ChunkHandler>(tasks.size());
+                boolean scils3DData = false;
+
+                for (ForkJoinTask<ChunkHandler> task : tasks) {
+                    ChunkHandler chunkHandler = task.get();
+
+                    chunkHandlers.add(chunkHandler);
+                    scils3DData |= chunkHandler.isProcessingSCiLS3DData();
+                }
+
+                if (scils3DData) {
+                    LOGGER.log(Level.FINE, "SCiLS 3D data found in {0}, parsing on a single thread", filename);
+                } else {
+                    for (ChunkHandler chunkHandler : chunkHandlers) {
+                        for (Issue issue : chunkHandler.issues) {
+                            headerHandler.notifyParserListeners(issue);
+                        }
+
+                        for (Spectrum spectrum : chunkHandler.spectrumList) {
+                            headerHandler.spectrumList.add(spectrum);
+                        }
+                    }
+
+                    imzML = headerHandler.getimzML();
+                    imzML.setOBO(obo);
+
+                    ImzMLHandler.correctBrukerPixelLocations(imzML);
+                }
+            }
+        } catch (FatalRuntimeParseException ex) {
+            throw new ImzMLParseException(ex.getIssue(), ex);
+        } catch (ExecutionException ex) {
+            throw createParseException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+
+            throw createParseException(ex);
+        } catch (SAXException ex) {
+            throw createParseException(ex);
+        } catch (IOException ex) {
+            throw createParseException(ex);
+        } catch (ParserConfigurationException ex) {
+            throw createParseException(ex);
+        } finally {
+            for (ForkJoinTask<ChunkHandler> task : tasks) {
+                task.cancel(false);
+            }
+
+            if (imzML == null && headerHandler != null && headerHandler.dataStorage != null) {
+                try {
+                    headerHandler.dataStorage.close();
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
+            }
+
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+
+        if (imzML == null) {
+            return ImzMLHandler.parseimzML(filename, true, accessMode, listener);
+        }
+
+        return imzML;
+    }
+
+    static ImzMLParseException createParseException(Throwable cause) {
+        if (cause instanceof FatalRuntimeParseException) {
+            return new ImzMLParseException(((FatalRuntimeParseException) cause).getIssue(), (FatalRuntimeParseException) cause);
+        }
+
+        LOGGER.log(Level.SEVERE, null, cause);
+
+        if (cause instanceof FileNotFoundException) {
+            return new ImzMLParseException(new FatalParseIssue(cause.getLocalizedMessage(), cause.getLocalizedMessage()), (Exception) cause);
+        } else if (cause instanceof Exception) {
+            return new ImzMLParseException(new FatalParseIssue(cause.getClass().getSimpleName() + ": " + cause, cause.getLocalizedMessage()), (Exception) cause);
+        }
+
+        throw (Error) cause;
+    }
+
+    /**
+     * Split the {@literal <spectrum>} tags of the {@literal <spectrumList>} into
+     * chunks of roughly equal size, each starting at a {@literal <spectrum>} tag.
+     * The last boundary is the position of the {@literal </spectrumList>} tag.
+     *
+     * @param channel FileChannel of the imzML file
+     * @param numChunks Maximum number of chunks to create
+     * @return Positions of the chunk boundaries, or null if no spectra were found
+     * @throws IOException If the file could not be read
+     */
+    static long[] findChunkBoundaries(FileChannel channel, int numChunks) throws IOException {
+        long spectrumListStart = indexOf(channel, SPECTRUM_LIST_TAG, 0, channel.size(), false);
+
+        if (spectrumListStart < 0) {
+            return null;
+        }
+
+        long spectrumListEnd = lastIndexOf(channel, SPECTRUM_LIST_END_TAG, spectrumListStart);
+
+        if (spectrumListEnd < 0) {
+            return null;
+        }
+
+        long firstSpectrum = indexOf(channel, SPECTRUM_TAG, spectrumListStart, spectrumListEnd, true);
+
+        if (firstSpectrum < 0) {
+            return null;
+        }
+
+        List<Long> boundaries = new ArrayList<Long>();
+        boundaries.add(firstSpectrum);
+
+        long chunkSize = Math.max(1, (spectrumListEnd - firstSpectrum) / Math.max(1, numChunks));
+
+        for (int i = 1; i < numChunks; i++) {
+            long previous = boundaries.get(boundaries.size() - 1);
+            long next = indexOf(channel, SPECTRUM_TAG, Math.max(firstSpectrum + i * chunkSize, previous + 1), spectrumListEnd, true);
+
+            if (next < 0) {
+                break;
+            }
+
+            boundaries.add(next);
+        }
+
+        boundaries.add(spectrumListEnd);
+
+        long[] positions = new long[boundaries.size()];
+
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = boundaries.get(i);
+        }
+
+        return positions;
+    }
+
+    /**
+     * Find the first occurrence of a pattern in the file between two positions.
+     * If tagStart is true then the pattern must be followed by whitespace,
+     * {@literal '>'} or {@literal '/'}, so that the start of a tag is not matched
+     * by the start of a longer tag name.
+     *
+     * @param channel FileChannel to search
+     * @param pattern Bytes to search for
+     * @param from Position to start searching from
+     * @param limit Position to stop searching at
+     * @param tagStart true to only match complete tag names
+     * @return Position of the pattern, or -1 if not found
+     * @throws IOException If the file could not be read
+     */
+    static long indexOf(FileChannel channel, byte[] pattern, long from, long limit, boolean tagStart) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+        int matchLength = pattern.length + (tagStart ? 1 : 0);
+        long position = from;
+
+        while (position < limit) {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, limit - position));
+
+            int read = channel.read(buffer, position);
+
+            if (read <= 0) {
+                break;
+            }
+
+            for (int i = 0; i + matchLength <= read; i++) {
+                if (matches(bytes, i, pattern) && (!tagStart || isTagNameEnd(bytes[i + pattern.length]))) {
+                    return position + i;
+                }
+            }
+
+            if (position + read >= limit) {
+                break;
+            }
+
+            position += Math.max(1, read - matchLength + 1);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Find the last occurrence of a pattern in the file after a position.
+     *
+     * @param channel FileChannel to search
+     * @param pattern Bytes to search for
+     * @param from Position to stop searching at
+     * @return Position of the pattern, or -1 if not found
+     * @throws IOException If the file could not be read
+     */
+    static long lastIndexOf(FileChannel channel, byte[] pattern, long from) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] bytes = buffer.array();
+        long end = channel.size();
+
+        while (end - from >= pattern.length) {
+            long start = Math.max(from, end - BUFFER_SIZE);
+
+            buffer.clear();
+            buffer.limit((int) (end - start));
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    return -1;
+                }
+            }
+
+            for (int i = buffer.limit() - pattern.length; i >= 0; i--) {
+                if (matches(bytes, i, pattern)) {
+                    return start + i;
+                }
+            }
+
+            if (start == from) {
+                break;
+            }
+
+            end = start + pattern.length - 1;
+        }
+
+        return -1;
+    }
+
+    static boolean matches(byte[] bytes, int offset, byte[] pattern) {
+        for (int j = 0; j < pattern.length; j++) {
+            if (bytes[offset + j] != pattern[j]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    static boolean isTagNameEnd(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '>' || b == '/';
+    }
+
+    /**
+     * Read the XML declaration (and byte order mark) at the start of the file,
+     * so that each chunk is parsed with the same encoding.
+     *
+     * @param channel FileChannel of the imzML file
+     * @param limit Position of the first spectrum
+     * @return XML declaration, or an empty array if there is none
+     * @throws IOException If the file could not be read
+     */
+    private static byte[] readProlog(FileChannel channel, long limit) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(1024, limit));
+        channel.read(buffer, 0);
+
+        String start = new String(buffer.array(), 0, buffer.position(), Charset.forName("ISO-8859-1"));
+        int declarationStart = start.indexOf("<?xml");
+        int declarationEnd = start.indexOf("?>");
+
+        if (declarationStart < 0 || declarationStart > 3 || declarationEnd < 0) {
+            return new byte[0];
+        }
+
+        return Arrays.copyOf(buffer.array(), declarationEnd + 2);
+    }
+
+    /**
+     * Task parsing a single chunk of spectra.
+     */
+    private static class ChunkParser implements Callable<ChunkHandler> {
+
+        private final OBO obo;
+        private final File ibdFile;
+        private final ImzMLHandler headerHandler;
+        private final FileChannel channel;
+        private final byte[] prolog;
+        private final long start;
+        private final long end;
+
+        ChunkParser(OBO obo, File ibdFile, ImzMLHandler headerHandler, FileChannel channel, byte[] prolog, long start, long end) {
+            this.obo = obo;
+            this.ibdFile = ibdFile;
+            this.headerHandler = headerHandler;
+            this.channel = channel;
+            this.prolog = prolog;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public ChunkHandler call() throws IOException, SAXException, ParserConfigurationException {
+            ChunkHandler handler = new ChunkHandler(obo, ibdFile, headerHandler);
+
+            byte[] prefix = ("<" + CHUNK_TAG + ">").getBytes("US-ASCII");
+            byte[] suffix = ("</" + CHUNK_TAG + ">").getBytes("US-ASCII");
+
+            InputStream chunkStream = new SequenceInputStream(Collections.enumeration(Arrays.<InputStream>asList(
+                    new ByteArrayInputStream(prolog),
+                    new ByteArrayInputStream(prefix),
+                    new IndexedMzMLReader.ChannelInputStream(channel, start, end),
+                    new ByteArrayInputStream(suffix))));
+
+            SAXParserFactory.newInstance().newSAXParser().parse(chunkStream, handler);
+
+            return handler;
+        }
+    }
+
+    /**
+     * Handler for a chunk of spectra, sharing the metadata of the header handler.
+     * Issues are collected so that they can be reported in order once all chunks
+     * have been parsed.
+     */
+    private static class ChunkHandler extends ImzMLHandler {
+
+        /**
+         * Lock guarding all access to the ReferenceableParamGroupList shared
+         * between chunks, to which groups can be added when tidying up the parsed
+         * spectra.
+         */
+        private final Object lock;
+
+        private final List<Issue> issues = new ArrayList<Issue>();
+
+        ChunkHandler(OBO obo, File ibdFile, ImzMLHandler headerHandler) throws FileNotFoundException {
+            super(obo, ibdFile, false);
+
+            continueSpectrumList(headerHandler, new SpectrumList(0, headerHandler.spectrumList.getDefaultDataProcessingRef()));
+
+            this.lock = headerHandler;
+
+            registerParserListener(new ParserListener() {
+                @Override
+                public void issueFound(Issue issue) {
+                    issues.add(issue);
+                }
+            });
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            if (!CHUNK_TAG.equals(qName)) {
+                super.startElement(uri, localName, qName, attributes);
+            }
+        }
+
+        @Override
+        protected void startReferenceableParamGroupRef(Attributes attributes) {
+            synchronized (lock) {
+                // Another chunk may have created or be adding to the list
+                referenceableParamGroupList = mzML.getReferenceableParamGroupList();
+
+                super.startReferenceableParamGroupRef(attributes);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (CHUNK_TAG.equals(qName)) {
+                return;
+            }
+
+            if ("spectrum".equals(qName) || "scan".equals(qName) || "scanWindow".equals(qName)) {
+                synchronized (lock) {
+                    // Another chunk may have created the list
+                    referenceableParamGroupList = mzML.getReferenceableParamGroupList();
+
+                    super.endElement(uri, localName, qName);
+                }
+            } else {
+                super.endElement(uri, localName, qName);
+            }
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package com.alanmrace.jimzmlparser.writer;
+
+import com.alanmrace.jimzmlparser.data.DataTransformation;
+import com.alanmrace.jimzmlparser.mzml.BinaryDataArray.CompressionType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+
+/**
+ * Selection of the compression to write arrays with, by benchmarking a set of
+ * candidate compression types on a sample of the arrays and scoring them against
+ * an objective (smallest size, fastest decoding or a weighted mix of the two).
+ *
+ * <p>Set on an {@link ImzMLWriterAbstract} (see
+ * {@link ImzMLWriterAbstract#setAdaptiveCompression(AdaptiveCompression)}), the
+ * compression is selected separately for m/z arrays and intensity arrays, and the
+ * results are reported to each {@link WriterListener}.
+ */
+public class AdaptiveCompression {
+
+    /**
+     * Logger for the class.
+     */
+    private static final Logger LOGGER = Logger.getLogger(AdaptiveCompression.class.getName());
+
+    /**
+     * Default maximum number of spectra sampled to select the compression.
+     */
+    public static final int DEFAULT_MAXIMUM_SAMPLE_SPECTRA = 100;
+
+    /**
+     * Number of times each sample is decoded, taking the fastest, to reduce the
+     * effect of timing noise.
+     */
+    private static final int DECODE_REPETITIONS = 3;
+
+    /**
+     * Objective to select the compression for.
+     */
+    public enum Objective {
+        /**
+         * Smallest encoded size.
+         */
+        SMALLEST_SIZE,
+
+        /**
+         * Fastest decoding.
+         */
+        FASTEST_DECODE,
+
+        /**
+         * Weighted mix of encoded size and decoding time (see
+         * {@link AdaptiveCompression#setSizeWeight(double)}).
+         */
+        WEIGHTED
+    }
+
+    /**
+     * Candidate compression, consisting of a compression type and for zlib, XZ
+     * and Zstd compression types the compression level.
+     */
+    public static class Candidate {
+
+        private final CompressionType compressionType;
+        private final int compressionLevel;
+
+        /**
+         * Create a candidate using the default compression level.
+         *
+         * @param compressionType Compression type
+         */
+        public Candidate(CompressionType compressionType) {
+            this(compressionType, 0);
+        }
+
+        /**
+         * Create a candidate using the specified compression level.
+         *
+         * @param compressionType Compression type
+         * @param compressionLevel Compression level (see
+         * {@link com.alanmrace.jimzmlparser.mzml.BinaryDataArray#setCompression(CompressionType, int, int, int)}),
+         * or 0 for the default
+         */
+        public Candidate(CompressionType compressionType, int compressionLevel) {
+            this.compressionType = compressionType;
+            this.compressionLevel = compressionLevel;
+        }
+
+        /**
+         * Get the compression type.
+         *
+         * @return Compression type
+         */
+        public CompressionType getCompressionType() {
+            return compressionType;
+        }
+
+        /**
+         * Get the compression level.
+         *
+         * @return Compression level, or 0 for the default
+         */
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        @Override
+        public String toString() {
+            return compressionType + ((compressionLevel == 0) ? "" : " (level " + compressionLevel + ")");
+        }
+    }
+
+    /**
+     * Measured performance of a candidate on the sample arrays.
+     */
+    public static class Result {
+
+        private final Candidate candidate;
+        private final long originalBytes;
+        private final long encodedBytes;
+        private final long encodeNanos;
+        private final long decodeNanos;
+        private double score;
+
+        Result(Candidate candidate, long originalBytes, long encodedBytes, long encodeNanos, long decodeNanos) {
+            this.candidate = candidate;
+            this.originalBytes = originalBytes;
+            this.encodedBytes = encodedBytes;
+            this.encodeNanos = encodeNanos;
+            this.decodeNanos = decodeNanos;
+        }
+
+        /**
+         * Get the candidate.
+         *
+         * @return Candidate
+         */
+        public Candidate getCandidate() {
+            return candidate;
+        }
+
+        /**
+         * Get the total size of the sample arrays as 64-bit floats.
+         *
+         * @return Size in bytes
+         */
+        public long getOriginalBytes() {
+            return originalBytes;
+        }
+
+        /**
+         * Get the total size of the encoded sample arrays.
+         *
+         * @return Size in bytes
+         */
+        public long getEncodedBytes() {
+            return encodedBytes;
+        }
+
+        /**
+         * Get the compression ratio (size as 64-bit floats divided by the encoded
+         * size).
+         *
+         * @return Compression ratio
+         */
+        public double getCompressionRatio() {
+            return (encodedBytes == 0) ? 1 : (double) originalBytes / encodedBytes;
+        }
+
+        /**
+         * Get the time taken to encode the sample arrays.
+         *
+         * @return Time in nanoseconds
+         */
+        public long getEncodeNanos() {
+            return encodeNanos;
+        }
+
+        /**
+         * Get the time taken to decode the sample arrays.
+         *
+         * @return Time in nanoseconds
+         */
+        public long getDecodeNanos() {
+            return decodeNanos;
+        }
+
+        /**
+         * Get the score of the candidate against the objective, relative to the
+         * best size and decoding time of all candidates. Lower is better, and the
+         * best possible score is 1.
+         *
+         * @return Score
+         */
+        public double getScore() {
+            return score;
+        }
+
+        @Override
+        public String toString() {
+            return candidate + ": ratio " + String.format("%.2f", getCompressionRatio())
+                    + ", decode " + (decodeNanos / 1000) + " us, score " + String.format("%.3f", score);
+        }
+    }
+
+    /**
+     * Creates the DataTransformation used to write an array with a candidate
+     * compression.
+     */
+    public interface TransformationFactory {
+
+        /**
+         * Create the DataTransformation to encode the data with the candidate.
+         *
+         * @param candidate Candidate compression
+         * @param data Data which will be encoded
+         * @return DataTransformation
+         */
+        DataTransformation createTransformation(Candidate candidate, double[] data);
+    }
+
+    private final Objective objective;
+    private double sizeWeight = 0.5;
+    private boolean includeLossy;
+    private boolean includeShuffle;
+    private int maximumSampleSpectra = DEFAULT_MAXIMUM_SAMPLE_SPECTRA;
+    private List<Candidate> candidates;
+
+    /**
+     * Create an adaptive compression selection with the specified objective.
+     *
+     * @param objective Objective to select the compression for
+     */
+    public AdaptiveCompression(Objective objective) {
+        this.objective = objective;
+    }
+
+    /**
+     * Get the objective.
+     *
+     * @return Objective
+     */
+    public Objective getObjective() {
+        return objective;
+    }
+
+    /**
+     * Set the weight given to the encoded size for the {@link Objective#WEIGHTED}
+     * objective, with the remainder given to the decoding time.
+     *
+     * @param sizeWeight Weight between 0 (only decoding time) and 1 (only size)
+     */
+    public void setSizeWeight(double sizeWeight) {
+        if (sizeWeight < 0 || sizeWeight > 1) {
+            throw new IllegalArgumentException("Invalid size weight: " + sizeWeight);
+        }
+
+        this.sizeWeight = sizeWeight;
+    }
+
+    /**
+     * Get the weight given to the encoded size for the {@link Objective#WEIGHTED}
+     * objective.
+     *
+     * @return Weight between 0 and 1
+     */
+    public double getSizeWeight() {
+        return sizeWeight;
+    }
+
+    /**
+     * Set whether the default candidates include lossy MS-Numpress compression
+     * types (linear prediction for m/z arrays, positive integer and short logged
+     * float for intensity arrays).
+     *
+     * @param includeLossy true to include lossy candidates
+     */
+    public void setIncludeLossy(boolean includeLossy) {
+        this.includeLossy = includeLossy;
+    }
+
+    /**
+     * Get whether the default candidates include lossy compression types.
+     *
+     * @return true if lossy candidates are included
+     */
+    public boolean isIncludingLossy() {
+        return includeLossy;
+    }
+
+    /**
+     * Set whether the default candidates include byte shuffled LZ4 and Zstd. 
+     * Shuffled data can only be read by jimzMLParser (see 
+     * {@link com.alanmrace.jimzmlparser.mzml.BinaryDataArray#hasNonStandardEncoding()}),
+     * so these are not included by default.
+     *
+     * @param includeShuffle true to include shuffled candidates
+     */
+    public void setIncludeShuffle(boolean includeShuffle) {
+        this.includeShuffle = includeShuffle;
+    }
+
+    /**
+     * Get whether the default candidates include byte shuffled compression types.
+     *
+     * @return true if shuffled candidates are included
+     */
+    public boolean isIncludingShuffle() {
+        return includeShuffle;
+    }
+
+    /**
+     * Set the maximum number of spectra sampled to select the compression.
+     *
+     * @param maximumSampleSpectra Maximum number of spectra
+     */
+    public void setMaximumSampleSpectra(int maximumSampleSpectra) {
+        this.maximumSampleSpectra = Math.max(1, maximumSampleSpectra);
+    }
+
+    /**
+     * Get the maximum number of spectra sampled to select the compression.
+     *
+     * @return Maximum number of spectra
+     */
+    public int getMaximumSampleSpectra() {
+        return maximumSampleSpectra;
+    }
+
+    /**
+     * Set the candidates to benchmark for all arrays, replacing the defaults.
+     *
+     * @param candidates Candidates, or null to use the defaults
+     */
+    public void setCandidates(List<Candidate> candidates) {
+        this.candidates = (candidates == null) ? null : new ArrayList<Candidate>(candidates);
+    }
+
+    /**
+     * Get the candidates benchmarked for m/z or intensity arrays. Unless set with
+     * {@link #setCandidates(java.util.List)}, these are no compression, LZ4, Zstd at
+     * levels 1, 3 and 9, (if shuffled candidates are included) byte shuffled LZ4 
+     * and Zstd, and (if lossy candidates are included) the MS-Numpress + Zstd 
+     * compression types suited to the array.
+     *
+     * @param mzArray true for m/z arrays, false for intensity (or other) arrays
+     * @return Candidates
+     */
+    public List<Candidate> getCandidates(boolean mzArray) {
+        if (candidates != null) {
+            return Collections.unmodifiableList(candidates);
+        }
+
+        List<Candidate> defaultCandidates = new ArrayList<Candidate>();
+        defaultCandidates.add(new Candidate(CompressionType.NONE));
+        defaultCandidates.add(new Candidate(CompressionType.LZ4));
+        defaultCandidates.add(new Candidate(CompressionType.ZSTD, 1));
+        defaultCandidates.add(new Candidate(CompressionType.ZSTD, 3));
+        defaultCandidates.add(new Candidate(CompressionType.ZSTD, 9));
+
+        if (includeShuffle) {
+            defaultCandidates.add(new Candidate(CompressionType.SHUFFLE_LZ4));
+            defaultCandidates.add(new Candidate(CompressionType.SHUFFLE_ZSTD, 3));
+        }
+
+        if (includeLossy) {
+            if (mzArray) {
+                defaultCandidates.add(new Candidate(CompressionType.MSNUMPRESS_LINEAR_ZSTD, 3));
+            } else {
+                defaultCandidates.add(new Candidate(CompressionType.MSNUMPRESS_POSITIVE_ZSTD, 3));
+                defaultCandidates.add(new Candidate(CompressionType.MSNUMPRESS_SLOF_ZSTD, 3));
+            }
+        }
+
+        return defaultCandidates;
+    }
+
+    /**
+     * Benchmark each candidate on the sample arrays and score them against the
+     * objective. Candidates which fail to encode or decode any of the samples are
+     * excluded.
+     *
+     * @param candidates Candidates to benchmark
+     * @param samples Sample arrays
+     * @param factory Creates the DataTransformation for each candidate and sample
+     * @return Results, sorted from best to worst score
+     */
+    public List<Result> evaluate(List<Candidate> candidates, List<double[]> samples, TransformationFactory factory) {
+        List<Result> results = new ArrayList<Result>();
+
+        for (Candidate candidate : candidates) {
+            Result result = benchmark(candidate, samples, factory);
+
+            if (result != null) {
+                results.add(result);
+            }
+        }
+
+        score(results);
+
+        return results;
+    }
+
+    /**
+     * Select the best candidate for the sample arrays.
+     *
+     * @param candidates Candidates to benchmark
+     * @param samples Sample arrays
+     * @param factory Creates the DataTransformation for each candidate and sample
+     * @return Result of the best candidate, or null if no candidate succeeded
+     */
+    public Result select(List<Candidate> candidates, List<double[]> samples, TransformationFactory factory) {
+        List<Result> results = evaluate(candidates, samples, factory);
+
+        return results.isEmpty() ? null : results.get(0);
+    }
+
+    private Result benchmark(Candidate candidate, List<double[]> samples, TransformationFactory factory) {
+        long originalBytes = 0;
+        long encodedBytes = 0;
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+
+        try {
+            for (double[] sample : samples) {
+                DataTransformation transformation = factory.createTransformation(candidate, sample);
+
+                long start = System.nanoTime();
+                byte[] encoded = transformation.performForwardTransform(sample);
+                encodeNanos += System.nanoTime() - start;
+
+                long fastestDecode = Long.MAX_VALUE;
+
+                for (int i = 0; i < DECODE_REPETITIONS; i++) {
+                    start = System.nanoTime();
+                    transformation.performReverseTransform(encoded);
+                    fastestDecode = Math.min(fastestDecode, System.nanoTime() - start);
+                }
+
+                originalBytes += sample.length * 8L;
+                encodedBytes += encoded.length;
+                decodeNanos += fastestDecode;
+            }
+        } catch (DataFormatException ex) {
+            LOGGER.log(Level.WARNING, "Failed to benchmark compression candidate " + candidate + ", excluding it", ex);
+
+            return null;
+        } catch (RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Failed to benchmark compression candidate " + candidate + ", excluding it", ex);
+
+            return null;
+        }
+
+        return new Result(candidate, originalBytes, encodedBytes, encodeNanos, decodeNanos);
+    }
+
+    private void score(List<Result> results) {
+        if (results.isEmpty()) {
+            return;
+        }
+
+        double weight;
+
+        switch (objective) {
+            case SMALLEST_SIZE:
+                weight = 1;
+                break;
+            case FASTEST_DECODE:
+                weight = 0;
+                break;
+            case WEIGHTED:
+            default:
+                weight = sizeWeight;
+                break;
+        }
+
+        long smallestSize = Long.MAX_VALUE;
+        long fastestDecode = Long.MAX_VALUE;
+
+        for (Result result : results) {
+            smallestSize = Math.min(smallestSize, result.encodedBytes);
+            fastestDecode = Math.min(fastestDecode, result.decodeNanos);
+        }
+
+        for (Result result : results) {
+            double relativeSize = (double) result.encodedBytes / Math.max(1, smallestSize);
+            double relativeDecode = (double) result.decodeNanos / Math.max(1, fastestDecode);
+
+            result.score = weight * relativeSize + (1 - weight) * relativeDecode;
+        }
+
+        // Stable sort, so that ties are broken by the order of the candidates
+        List<Result> sorted = new ArrayList<Result>(results);
+        Collections.sort(sorted, new Comparator<Result>() {
+            @Override
+            public int compare(Result first, Result second) {
+                return Double.compare(first.score, second.score);
+            }
+        });
+
+        results.clear();
+        results.addAll(sorted);
+    }
+}
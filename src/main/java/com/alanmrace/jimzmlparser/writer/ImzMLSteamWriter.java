@@ -1,5 +1,6 @@
 package com.alanmrace.jimzmlparser.writer;
 
+import com.alanmrace.jimzmlparser.data.DataTypeTransform;
 import com.alanmrace.jimzmlparser.imzml.ImzML;
 import com.alanmrace.jimzmlparser.mzml.*;
 import com.alanmrace.jimzmlparser.obo.OBO;
@@ -13,6 +14,7 @@ import java.io.RandomAccessFile;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
@@ -65,6 +67,13 @@ public class ImzMLSteamWriter extends ImzMLWriterAbstract {
     }
 
     public void write(Spectrum spectrum, double[] mzs, double[] counts) throws IOException {
+        // Spectra are not available in advance, so select the compression with
+        // the first spectrum written
+        if (adaptiveCompression != null && spectrumList.isEmpty()) {
+            mzCompression = selectCompression(true, Collections.singletonList(mzs), getDataType(mzRPG));
+            intensityCompression = selectCompression(false, Collections.singletonList(counts), getDataType(countsRPG));
+        }
+
         Spectrum newSpectrum = new Spectrum(spectrum.getID(), 0);
         newSpectrum.setPixelLocation(spectrum.getPixelLocation());
 
@@ -118,6 +127,13 @@ public class ImzMLSteamWriter extends ImzMLWriterAbstract {
         spectrumList.add(newSpectrum);
     }
 
+    private static DataTypeTransform.DataType getDataType(ReferenceableParamGroup rpg) {
+        BinaryDataArray binaryDataArray = new BinaryDataArray(0);
+        binaryDataArray.addReferenceableParamGroupRef(new ReferenceableParamGroupRef(rpg));
+
+        return binaryDataArray.getDataType();
+    }
+
     public void write(ImzML imzML) throws IOException {
         imzML.getReferenceableParamGroupList().addReferenceableParamGroup(this.mzRPG);
         imzML.getReferenceableParamGroupList().addReferenceableParamGroup(this.countsRPG);
@@ -1,5 +1,11 @@
 package com.alanmrace.jimzmlparser.writer;
 
+import com.alanmrace.jimzmlparser.data.DataTransform;
+import com.alanmrace.jimzmlparser.data.DataTransformation;
+import com.alanmrace.jimzmlparser.data.DataTypeTransform;
+import com.alanmrace.jimzmlparser.data.ReferenceAxisDataTransform;
+import com.alanmrace.jimzmlparser.data.ZstdDataTransform;
+import com.alanmrace.jimzmlparser.data.ZstdDictionary;
 import com.alanmrace.jimzmlparser.mzml.BinaryDataArray;
 import com.alanmrace.jimzmlparser.mzml.BooleanCVParam;
 import com.alanmrace.jimzmlparser.mzml.CV;
@@ -11,6 +17,7 @@ import com.alanmrace.jimzmlparser.mzml.FileContent;
 import com.alanmrace.jimzmlparser.mzml.MzML;
 import com.alanmrace.jimzmlparser.mzml.ReferenceableParamGroup;
 import com.alanmrace.jimzmlparser.mzml.Spectrum;
+import com.alanmrace.jimzmlparser.mzml.SpectrumList;
 import com.alanmrace.jimzmlparser.mzml.StringCVParam;
 import com.alanmrace.jimzmlparser.obo.OBO;
 import com.alanmrace.jimzmlparser.util.HexHelper;
@@ -21,10 +28,12 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
 /**
  * Writer for exporting both the metadata into an imzML file and the binary data
  * to an IBD file.
@@ -38,6 +47,15 @@ public class ImzMLWriter extends ImzMLWriterAbstract {
      */
     private static final Logger LOGGER = Logger.getLogger(ImzMLWriter.class.getName());
 
+    /**
+     * Maximum number of spectra sampled to train a Zstd dictionary.
+     */
+    public static final int MAXIMUM_DICTIONARY_SAMPLE_SPECTRA = 1000;
+
+    /**
+     * Maximum number of spectra sampled to build a reference m/z axis.
+     */
+    public static final int MAXIMUM_REFERENCE_AXIS_SAMPLE_SPECTRA = 1000;
 
 
     /**
@@ -109,6 +127,155 @@ public class ImzMLWriter extends ImzMLWriterAbstract {
 
 
 
+    /**
+     * Select the compression of m/z and intensity arrays with the adaptive 
+     * compression (see {@link #setAdaptiveCompression(AdaptiveCompression)}), 
+     * benchmarking the candidates on the arrays of an evenly spaced sample of (at 
+     * most {@link AdaptiveCompression#getMaximumSampleSpectra()}) spectra.
+     * 
+     * @param mzML MzML containing the spectra to sample
+     * @throws IOException Failed to read the data of a spectrum
+     */
+    protected void selectCompression(MzML mzML) throws IOException {
+        if (mzML.getRun().getSpectrumList() == null || mzML.getRun().getSpectrumList().size() == 0) {
+            return;
+        }
+
+        List<double[]> mzArrays = new ArrayList<double[]>();
+        List<double[]> intensityArrays = new ArrayList<double[]>();
+        DataTypeTransform.DataType mzDataType = null;
+        DataTypeTransform.DataType intensityDataType = null;
+        int numSpectra = mzML.getRun().getSpectrumList().size();
+        int step = Math.max(1, numSpectra / adaptiveCompression.getMaximumSampleSpectra());
+
+        for (int i = 0; i < numSpectra; i += step) {
+            for (BinaryDataArray bda : mzML.getRun().getSpectrumList().get(i).getBinaryDataArrayList()) {
+                double[] ddata;
+
+                if (bda.ismzArray()) {
+                    ddata = bda.getDataAsDouble();
+
+                    if (ddata != null) {
+                        mzArrays.add(ddata);
+                        mzDataType = bda.getDataType();
+                    }
+                } else if (bda.isIntensityArray()) {
+                    ddata = bda.getDataAsDouble();
+
+                    if (ddata != null) {
+                        intensityArrays.add(ddata);
+                        intensityDataType = bda.getDataType();
+                    }
+                }
+            }
+        }
+
+        mzCompression = selectCompression(true, mzArrays, mzDataType);
+        intensityCompression = selectCompression(false, intensityArrays, intensityDataType);
+    }
+
+    /**
+     * Build a reference m/z axis from the distinct m/z values of an evenly spaced
+     * sample of (at most {@link #MAXIMUM_REFERENCE_AXIS_SAMPLE_SPECTRA}) spectra.
+     * Any m/z values of the remaining spectra which are not in the axis are stored
+     * individually.
+     * 
+     * @param mzML MzML containing the spectra to sample
+     * @return Reference m/z axis, or null if there are no m/z arrays
+     * @throws IOException Failed to read the data of a spectrum
+     */
+    protected double[] buildReferencemzAxis(MzML mzML) throws IOException {
+        if (mzML.getRun().getSpectrumList() == null || mzML.getRun().getSpectrumList().size() == 0) {
+            return null;
+        }
+
+        List<double[]> mzArrays = new ArrayList<double[]>();
+        int numSpectra = mzML.getRun().getSpectrumList().size();
+        int step = Math.max(1, numSpectra / MAXIMUM_REFERENCE_AXIS_SAMPLE_SPECTRA);
+
+        for (int i = 0; i < numSpectra; i += step) {
+            for (BinaryDataArray bda : mzML.getRun().getSpectrumList().get(i).getBinaryDataArrayList()) {
+                if (bda.ismzArray()) {
+                    double[] mzs = bda.getDataAsDouble();
+
+                    if (mzs != null) {
+                        mzArrays.add(mzs);
+                    }
+                }
+            }
+        }
+
+        if (mzArrays.isEmpty()) {
+            return null;
+        }
+
+        return ReferenceAxisDataTransform.createReferenceAxis(mzArrays);
+    }
+
+    /**
+     * Train a Zstd dictionary of size {@link #getZstdDictionarySize()} from the
+     * arrays of an evenly spaced sample of (at most {@link #MAXIMUM_DICTIONARY_SAMPLE_SPECTRA})
+     * spectra which are compressed with Zstd when written, including with the 
+     * compression selected by any adaptive compression. Each array is transformed
+     * as it would be when written, up to the Zstd compression step.
+     * 
+     * @param mzML MzML containing the spectra to sample
+     * @return Trained dictionary, or null if there is no Zstd compressed data or
+     * too little data to train a dictionary
+     * @throws IOException Failed to read the data of a spectrum
+     */
+    protected ZstdDictionary trainZstdDictionary(MzML mzML) throws IOException {
+        if (mzML.getRun().getSpectrumList() == null || mzML.getRun().getSpectrumList().size() == 0) {
+            return null;
+        }
+
+        List<byte[]> samples = new ArrayList<byte[]>();
+        int numSpectra = mzML.getRun().getSpectrumList().size();
+        int step = Math.max(1, numSpectra / MAXIMUM_DICTIONARY_SAMPLE_SPECTRA);
+
+        try {
+            for (int i = 0; i < numSpectra; i += step) {
+                Spectrum spectrum = mzML.getRun().getSpectrumList().get(i);
+
+                for (BinaryDataArray bda : spectrum.getBinaryDataArrayList()) {
+                    // Apply any compression selected by the adaptive compression to a
+                    // copy, as the data of the array is still read with its existing
+                    // compression
+                    BinaryDataArray writtenBDA = new BinaryDataArray(bda, mzML.getReferenceableParamGroupList(), null);
+                    applySelectedCompression(writtenBDA);
+
+                    DataTransformation precompression = new DataTransformation();
+                    boolean zstdCompressed = false;
+
+                    for (DataTransform transform : createDataTransformation(writtenBDA).getTransforms()) {
+                        if (transform instanceof ZstdDataTransform) {
+                            zstdCompressed = true;
+                            break;
+                        }
+
+                        precompression.addTransform(transform);
+                    }
+
+                    double[] ddata = bda.getDataAsDouble();
+
+                    if (zstdCompressed && ddata != null && ddata.length > 0) {
+                        samples.add(precompression.performForwardTransform(ddata));
+                    }
+                }
+            }
+
+            if (samples.isEmpty()) {
+                return null;
+            }
+
+            return ZstdDictionary.train(samples, zstdDictionarySize);
+        } catch (DataFormatException ex) {
+            LOGGER.log(Level.WARNING, "Unable to train Zstd dictionary, compressing without one", ex);
+        }
+
+        return null;
+    }
+
     @Override
     public void write(MzML mzML, String outputLocation) throws IOException {
         try {
@@ -145,9 +312,41 @@ public class ImzMLWriter extends ImzMLWriterAbstract {
             UUID uuid = UUID.randomUUID();
             writeData(UUIDHelper.uuidToByteArray(uuid));
 
-            if (mzML.getRun().getSpectrumList() != null) {
+            // Select the compression before anything which depends on it
+            mzCompression = null;
+            intensityCompression = null;
+
+            if (adaptiveCompression != null) {
+                selectCompression(mzML);
+            }
+
+            // Build and write out the reference m/z axis and then the Zstd dictionary
+            // immediately after the UUID
+            referencemzAxis = null;
+            zstdDictionary = null;
+
+            if (useReferencemzAxis && outputType == OutputType.PROCESSED) {
+                double[] axis = buildReferencemzAxis(mzML);
+
+                if (axis != null) {
+                    setReferencemzAxis(axis);
+                }
+            }
+
+            if (zstdDictionarySize > 0) {
+                ZstdDictionary dictionary = trainZstdDictionary(mzML);
+
+                if (dictionary != null) {
+                    setZstdDictionary(dictionary);
+                }
+            }
+
+            SpectrumList spectrumList = mzML.getRun().getSpectrumList();
+
+            if (spectrumList != null) {
                 // TODO: For continuous data only write the m/z list once
-                for (Spectrum spectrum : mzML.getRun().getSpectrumList()) {
+                for (int index = 0; index < spectrumList.size(); index++) {
+                    Spectrum spectrum = spectrumList.get(index);
 
                     for (BinaryDataArray bda : spectrum.getBinaryDataArrayList()) {
                         double[] ddata = bda.getDataAsDouble();
@@ -178,6 +377,9 @@ public class ImzMLWriter extends ImzMLWriterAbstract {
                             LOGGER.log(Level.SEVERE, "Null data in BinaryDataArray {0}", bda);
                         }
                     }
+
+                    // Keep the locations of the written data for the metadata
+                    spectrumList.update(index);
                 }
             }
 
@@ -1,6 +1,13 @@
 package com.alanmrace.jimzmlparser.writer;
 
+import com.alanmrace.jimzmlparser.data.DataTransform;
 import com.alanmrace.jimzmlparser.data.DataTransformation;
+import com.alanmrace.jimzmlparser.data.DataTypeTransform;
+import com.alanmrace.jimzmlparser.data.DoubleDataTransform;
+import com.alanmrace.jimzmlparser.data.LZ4DataTransform;
+import com.alanmrace.jimzmlparser.data.ReferenceAxisDataTransform;
+import com.alanmrace.jimzmlparser.data.ZstdDataTransform;
+import com.alanmrace.jimzmlparser.data.ZstdDictionary;
 import com.alanmrace.jimzmlparser.imzml.PixelLocation;
 import com.alanmrace.jimzmlparser.mzml.*;
 import com.alanmrace.jimzmlparser.obo.OBO;
@@ -9,6 +16,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.security.MessageDigest;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
@@ -60,6 +68,236 @@ public abstract class ImzMLWriterAbstract extends ImzMLHeaderWriter {
      */
     protected MessageDigest messageDigest;
 
+    /**
+     * Size in bytes of the Zstd dictionary to train before writing, or 0 to not
+     * use a dictionary.
+     */
+    protected int zstdDictionarySize;
+
+    /**
+     * Dictionary that Zstd compressed arrays are currently compressed against, or
+     * null if none.
+     */
+    protected ZstdDictionary zstdDictionary;
+
+    /**
+     * Offset of the current Zstd dictionary within the binary data file.
+     */
+    protected long zstdDictionaryOffset;
+
+    /**
+     * Whether to encode m/z arrays against a reference m/z axis built before writing.
+     */
+    protected boolean useReferencemzAxis;
+
+    /**
+     * Reference m/z axis that m/z arrays are currently encoded against, or null
+     * if none.
+     */
+    protected double[] referencemzAxis;
+
+    /**
+     * Offset of the current reference m/z axis within the binary data file.
+     */
+    protected long referencemzAxisOffset;
+
+    /**
+     * Adaptive compression used to select the compression of m/z and intensity
+     * arrays before writing, or null to write with the compression already set.
+     */
+    protected AdaptiveCompression adaptiveCompression;
+
+    /**
+     * Compression selected for m/z arrays, or null if none has been selected.
+     */
+    protected AdaptiveCompression.Candidate mzCompression;
+
+    /**
+     * Compression selected for intensity arrays, or null if none has been selected.
+     */
+    protected AdaptiveCompression.Candidate intensityCompression;
+
+    /**
+     * Set the adaptive compression used to select the compression of m/z arrays
+     * and intensity arrays, by benchmarking candidate compression types on a sample
+     * of the spectra before writing. The selected compression replaces any 
+     * compression set on the arrays (without modifying their 
+     * ReferenceableParamGroups), and the
+     * selection and the measured results of all candidates are reported to each 
+     * {@link WriterListener}.
+     * 
+     * @param adaptiveCompression Adaptive compression, or null to write with the
+     * compression already set on the arrays
+     */
+    public void setAdaptiveCompression(AdaptiveCompression adaptiveCompression) {
+        this.adaptiveCompression = adaptiveCompression;
+    }
+
+    /**
+     * Get the adaptive compression used to select the compression of m/z and
+     * intensity arrays.
+     * 
+     * @return Adaptive compression, or null if not used
+     */
+    public AdaptiveCompression getAdaptiveCompression() {
+        return adaptiveCompression;
+    }
+
+    /**
+     * Select the compression for m/z arrays or intensity arrays by benchmarking the
+     * candidates of the adaptive compression on the sample arrays, and notify 
+     * each WriterListener of the selection.
+     * 
+     * @param mzArray true to select for m/z arrays, false for intensity arrays
+     * @param samples Sample arrays
+     * @param dataType Data type the arrays are stored as, or null for 64-bit float
+     * @return Selected compression, or null if no candidate succeeded
+     */
+    protected AdaptiveCompression.Candidate selectCompression(boolean mzArray, List<double[]> samples, final DataTypeTransform.DataType dataType) {
+        if (samples.isEmpty()) {
+            return null;
+        }
+
+        AdaptiveCompression.TransformationFactory factory = new AdaptiveCompression.TransformationFactory() {
+            @Override
+            public DataTransformation createTransformation(AdaptiveCompression.Candidate candidate, double[] data) {
+                BinaryDataArray binaryDataArray = new BinaryDataArray(0);
+                binaryDataArray.setDataType((dataType == null) ? DataTypeTransform.DataType.DOUBLE : dataType);
+                binaryDataArray.setCompression(candidate.getCompressionType(), candidate.getCompressionLevel(), 0, 0);
+                binaryDataArray.setArrayLength(data.length);
+
+                return binaryDataArray.generateDataTransformation();
+            }
+        };
+
+        List<AdaptiveCompression.Result> results = adaptiveCompression.evaluate(adaptiveCompression.getCandidates(mzArray), samples, factory);
+
+        if (results.isEmpty()) {
+            LOGGER.log(Level.WARNING, "No compression candidate succeeded for {0} arrays, using the existing compression", mzArray ? "m/z" : "intensity");
+
+            return null;
+        }
+
+        LOGGER.log(Level.FINE, "Selected {0} for {1} arrays from {2}", new Object[]{results.get(0).getCandidate(), mzArray ? "m/z" : "intensity", results});
+        notifyCompressionSelected(mzArray, results.get(0), results);
+
+        return results.get(0).getCandidate();
+    }
+
+    /**
+     * Apply the compression selected for the type of a BinaryDataArray (if any).
+     * Any ReferenceableParamGroups describing the compression are copied onto the 
+     * BinaryDataArray rather than modified (see 
+     * {@link BinaryDataArray#setCompression(BinaryDataArray.CompressionType, int, int, int)}),
+     * as they may still be required to read the data of other spectra.
+     * 
+     * @param binaryDataArray BinaryDataArray to be written
+     */
+    protected void applySelectedCompression(BinaryDataArray binaryDataArray) {
+        AdaptiveCompression.Candidate candidate = getSelectedCompression(binaryDataArray);
+
+        if (candidate == null) {
+            return;
+        }
+
+        binaryDataArray.setCompression(candidate.getCompressionType(), candidate.getCompressionLevel(), 0, 0);
+    }
+
+    private AdaptiveCompression.Candidate getSelectedCompression(BinaryDataArray binaryDataArray) {
+        if (binaryDataArray.ismzArray()) {
+            return mzCompression;
+        } else if (binaryDataArray.isIntensityArray()) {
+            return intensityCompression;
+        }
+
+        return null;
+    }
+
+    /**
+     * Set whether to encode m/z arrays against a reference m/z axis, built from the
+     * distinct m/z values of a sample of the spectra before writing processed data.
+     * The axis is stored once at the start of the binary data file and referenced
+     * from each m/z BinaryDataArray with the 
+     * {@link BinaryDataArray#REFERENCE_MZ_AXIS_OFFSET_NAME} and
+     * {@link BinaryDataArray#REFERENCE_MZ_AXIS_LENGTH_NAME} UserParams. Each m/z
+     * array is then stored (losslessly) as indices into the axis, prior to any 
+     * compression. This replaces the data type of the m/z arrays, and is not used 
+     * for m/z arrays compressed with MS-Numpress or LZ4.
+     * 
+     * @param useReferencemzAxis true to encode m/z arrays against a reference axis
+     */
+    public void setUseReferencemzAxis(boolean useReferencemzAxis) {
+        this.useReferencemzAxis = useReferencemzAxis;
+    }
+
+    /**
+     * Get whether m/z arrays are encoded against a reference m/z axis.
+     * 
+     * @return true if using a reference m/z axis
+     */
+    public boolean isUsingReferencemzAxis() {
+        return useReferencemzAxis;
+    }
+
+    /**
+     * Write the reference m/z axis to the binary data file at the current position,
+     * and encode all m/z arrays written subsequently against it.
+     * 
+     * @param referencemzAxis Reference m/z axis, sorted in ascending order
+     * @throws IOException Failed to write the axis
+     */
+    public void setReferencemzAxis(double[] referencemzAxis) throws IOException {
+        referencemzAxisOffset = getDataPointer();
+        writeData(DataTypeTransform.convertDoublesToBytes(referencemzAxis));
+
+        this.referencemzAxis = referencemzAxis;
+    }
+
+    /**
+     * Set the size of the Zstd dictionary to train from a sample of the spectra
+     * before writing. When set, all arrays compressed with Zstd (including the
+     * MS-Numpress + Zstd compression types) are compressed against this dictionary,
+     * which is stored once at the start of the binary data file and referenced 
+     * from each BinaryDataArray with the 
+     * {@link BinaryDataArray#ZSTD_DICTIONARY_OFFSET_NAME} and 
+     * {@link BinaryDataArray#ZSTD_DICTIONARY_LENGTH_NAME} UserParams. This greatly
+     * improves compression of small, similar arrays such as those of processed 
+     * imzML data.
+     * 
+     * @param dictionarySize Size of the dictionary in bytes (for example 
+     * {@link ZstdDictionary#DEFAULT_DICTIONARY_SIZE}), or 0 to not use a dictionary
+     */
+    public void setZstdDictionarySize(int dictionarySize) {
+        if (dictionarySize < 0) {
+            throw new IllegalArgumentException("Invalid Zstd dictionary size: " + dictionarySize);
+        }
+
+        this.zstdDictionarySize = dictionarySize;
+    }
+
+    /**
+     * Get the size of the Zstd dictionary trained before writing.
+     * 
+     * @return Size of the dictionary in bytes, or 0 if not using a dictionary
+     */
+    public int getZstdDictionarySize() {
+        return zstdDictionarySize;
+    }
+
+    /**
+     * Write the Zstd dictionary to the binary data file at the current position,
+     * and compress all Zstd compressed arrays written subsequently against it.
+     * 
+     * @param dictionary Dictionary to write and use
+     * @throws IOException Failed to write the dictionary
+     */
+    public void setZstdDictionary(ZstdDictionary dictionary) throws IOException {
+        zstdDictionaryOffset = getDataPointer();
+        writeData(dictionary.getBytes());
+
+        zstdDictionary = dictionary;
+    }
+
     protected String getIBDLocationFromOutput(String outputLocation) {
         String ibdLocation = outputLocation;
 
@@ -116,9 +354,29 @@ public abstract class ImzMLWriterAbstract extends ImzMLHeaderWriter {
         byte[] byteData = null;
 
         try {
-            DataTransformation transformation = binaryDataArray.generateDataTransformation();
+            applySelectedCompression(binaryDataArray);
+
+            binaryDataArray.removeUserParam(BinaryDataArray.ZSTD_DICTIONARY_OFFSET_NAME);
+            binaryDataArray.removeUserParam(BinaryDataArray.ZSTD_DICTIONARY_LENGTH_NAME);
+            binaryDataArray.removeUserParam(BinaryDataArray.REFERENCE_MZ_AXIS_OFFSET_NAME);
+            binaryDataArray.removeUserParam(BinaryDataArray.REFERENCE_MZ_AXIS_LENGTH_NAME);
+
+            DataTransformation transformation = createDataTransformation(binaryDataArray);
             byte[] transformedData = transformation.performForwardTransform(data);
 
+            for (DataTransform transform : transformation.getTransforms()) {
+                if (transform instanceof ReferenceAxisDataTransform) {
+                    binaryDataArray.addUserParam(new UserParam(BinaryDataArray.REFERENCE_MZ_AXIS_OFFSET_NAME, "" + referencemzAxisOffset));
+                    binaryDataArray.addUserParam(new UserParam(BinaryDataArray.REFERENCE_MZ_AXIS_LENGTH_NAME, "" + (referencemzAxis.length * 8)));
+                } else if (transform instanceof ZstdDataTransform && zstdDictionary != null) {
+                    binaryDataArray.addUserParam(new UserParam(BinaryDataArray.ZSTD_DICTIONARY_OFFSET_NAME, "" + zstdDictionaryOffset));
+                    binaryDataArray.addUserParam(new UserParam(BinaryDataArray.ZSTD_DICTIONARY_LENGTH_NAME, "" + zstdDictionary.getLength()));
+                }
+            }
+
+            // Only known to be encoded against the reference axis once the transformation is created
+            binaryDataArray.updateDataTypeForEncoding();
+
             // If using LZ4, the size of the decompressed data is required before decompression, so add this in as a UserParam that can be used later
             if (binaryDataArray.getCVParam(BinaryDataArray.MSNUMPRESS_LINEAR_LZ4_ID) != null
                     || binaryDataArray.getCVParam(BinaryDataArray.MSNUMPRESS_POSITIVE_LZ4_ID) != null
@@ -149,6 +407,55 @@ public abstract class ImzMLWriterAbstract extends ImzMLHeaderWriter {
         return byteData;
     }
 
+    /**
+     * Create the DataTransformation used to write the data of a BinaryDataArray, 
+     * from the CVParams and UserParams of the BinaryDataArray and the current
+     * reference m/z axis and Zstd dictionary of this writer.
+     * 
+     * @param binaryDataArray BinaryDataArray to be written
+     * @return DataTransformation to write the data with
+     */
+    protected DataTransformation createDataTransformation(BinaryDataArray binaryDataArray) {
+        List<DataTransform> transforms = binaryDataArray.generateDataTransformation().getTransforms();
+        DataTransformation transformation = new DataTransformation();
+        int firstTransform = 0;
+
+        // Replace the conversion to the stored data type (or any existing reference 
+        // axis encoding) with encoding against the current reference axis
+        if (!transforms.isEmpty() && transforms.get(0) instanceof ReferenceAxisDataTransform) {
+            firstTransform = 1;
+        }
+
+        boolean leadingDoubleTransform = transforms.size() > firstTransform && transforms.get(firstTransform) instanceof DoubleDataTransform;
+        boolean lz4Compressed = false;
+
+        for (DataTransform transform : transforms) {
+            lz4Compressed |= transform instanceof LZ4DataTransform;
+        }
+
+        if (referencemzAxis != null && binaryDataArray.ismzArray() && !leadingDoubleTransform && !lz4Compressed) {
+            transformation.addTransform(new ReferenceAxisDataTransform(referencemzAxis));
+
+            if (transforms.size() > firstTransform && transforms.get(firstTransform) instanceof DataTypeTransform) {
+                firstTransform++;
+            }
+        } else if (firstTransform == 1 && !DataTypeTransform.DataType.DOUBLE.equals(binaryDataArray.getDataType())) {
+            transformation.addTransform(new DataTypeTransform(DataTypeTransform.DataType.DOUBLE, binaryDataArray.getDataType()));
+        }
+
+        for (int i = firstTransform; i < transforms.size(); i++) {
+            DataTransform transform = transforms.get(i);
+
+            if (transform instanceof ZstdDataTransform) {
+                ((ZstdDataTransform) transform).setDictionary(zstdDictionary);
+            }
+
+            transformation.addTransform(transform);
+        }
+
+        return transformation;
+    }
+
     @Override
     public void writeData(byte[] data) throws IOException {
         if (data.length > 0) {
@@ -274,6 +274,11 @@ public class MzMLWriter implements MzMLWritable {
             listener.progress(current);
     }
 
+    protected void notifyCompressionSelected(boolean mzArray, AdaptiveCompression.Result selected, List<AdaptiveCompression.Result> results) {
+        for(WriterListener listener : listeners)
+            listener.compressionSelected(mzArray, selected, results);
+    }
+
     protected void outputXML(MzMLTag tag, int indent) throws IOException {
         // If the list has no children (e.g. ChromatogramList) then skip it
         if(tag instanceof MzMLIDContentList && ((MzMLIDContentList)tag).size() == 0)
@@ -315,6 +320,11 @@ public class MzMLWriter implements MzMLWritable {
     protected void outputXMLContent(HasChildren tag, int indent) throws IOException {
         ArrayList<MzMLTag> children = new ArrayList<MzMLTag>();
 
+        // The data type must reflect the encoding before the CVParams are written
+        if (tag instanceof BinaryDataArray) {
+            ((BinaryDataArray) tag).updateDataTypeForEncoding();
+        }
+
         tag.addChildrenToCollection(children);
 
         // If the tag is a list, reset the counter for index / order
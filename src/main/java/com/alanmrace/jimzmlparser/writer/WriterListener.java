@@ -1,5 +1,7 @@
 package com.alanmrace.jimzmlparser.writer;
 
+import java.util.List;
+
 /**
  *
  * @author alan.race
@@ -8,4 +10,15 @@ public interface WriterListener {
     void start();
     void progress(long current);
     void end();
+
+    /**
+     * Called when adaptive compression (see {@link AdaptiveCompression}) has selected
+     * the compression for m/z or intensity arrays. Does nothing by default.
+     *
+     * @param mzArray true if the selection is for m/z arrays, false for intensity arrays
+     * @param selected Result of the selected candidate
+     * @param results Results of all candidates, sorted from best to worst score
+     */
+    default void compressionSelected(boolean mzArray, AdaptiveCompression.Result selected, List<AdaptiveCompression.Result> results) {
+    }
 }
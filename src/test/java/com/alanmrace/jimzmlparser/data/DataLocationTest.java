@@ -0,0 +1,148 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.DoubleBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DataLocationTest {
+    
+    private File dataFile;
+    
+    private DataStorage dataStorage;
+    
+    private double[] data;
+    
+    public DataLocationTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        data = new double[2500];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = Math.round(Math.random() * 1000);
+        }
+        
+        dataFile = File.createTempFile("dataLocation", ".ibd");
+        dataStorage = new BinaryDataStorage(dataFile, true);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        dataStorage.close();
+        dataFile.delete();
+    }
+    
+    private DataLocation write(DataTransformation transformation, long offset) throws Exception {
+        byte[] encoded = transformation.performForwardTransform(data);
+        
+        FileOutputStream out = new FileOutputStream(dataFile, true);
+        out.write(encoded);
+        out.close();
+        
+        DataLocation location = new DataLocation(dataStorage, offset, encoded.length);
+        location.setDataTransformation(transformation);
+        
+        return location;
+    }
+
+    /**
+     * Test of getData(double[]) method, of class DataLocation, for uncompressed 
+     * and compressed data stored as different data types.
+     */
+    @Test
+    public void testGetDataIntoArray() throws Exception {
+        DataTransformation floatTransformation = new DataTransformation();
+        floatTransformation.addTransform(new DataTypeTransform(DataTypeTransform.DataType.DOUBLE, DataTypeTransform.DataType.FLOAT));
+        
+        DataTransformation compressedTransformation = new DataTransformation();
+        compressedTransformation.addTransform(new DataTypeTransform(DataTypeTransform.DataType.DOUBLE, DataTypeTransform.DataType.INTEGER_32BIT));
+        compressedTransformation.addTransform(new ZlibDataTransform());
+        
+        DataLocation floatLocation = write(floatTransformation, 0);
+        DataLocation compressedLocation = write(compressedTransformation, floatLocation.getLength());
+        
+        double[] reuse = new double[data.length];
+        
+        for(DataLocation location : new DataLocation[] {floatLocation, compressedLocation}) {
+            assertEquals(data.length, location.getData(reuse));
+            assertArrayEquals(location.getData(), reuse, 0.0);
+            assertArrayEquals(data, reuse, 0.0);
+        }
+    }
+    
+    /**
+     * Test of getData(DoubleBuffer) method, of class DataLocation.
+     */
+    @Test
+    public void testGetDataIntoBuffer() throws Exception {
+        DataLocation location = write(new DataTransformation(), 0);
+        
+        DoubleBuffer buffer = DoubleBuffer.allocate(data.length + 10);
+        buffer.position(10);
+        
+        assertEquals(data.length, location.getData(buffer));
+        assertEquals(data.length + 10, buffer.position());
+        
+        for(int i = 0; i < data.length; i++) {
+            assertEquals(data[i], buffer.get(i + 10), 0.0);
+        }
+    }
+    
+    /**
+     * Test of getDataAsync method, of class DataLocation.
+     */
+    @Test
+    public void testGetDataAsync() throws Exception {
+        DataTransformation transformation = new DataTransformation();
+        transformation.addTransform(new DataTypeTransform(DataTypeTransform.DataType.DOUBLE, DataTypeTransform.DataType.FLOAT));
+        
+        DataLocation location = write(transformation, 0);
+        
+        assertArrayEquals(data, location.getDataAsync().get(), 0.0);
+    }
+    
+    /**
+     * Test of getData(DataType) method, of class DataLocation, reading float data 
+     * as float[] and converting to other data types.
+     */
+    @Test
+    public void testGetDataAsType() throws Exception {
+        DataTransformation floatTransformation = new DataTransformation();
+        floatTransformation.addTransform(new DataTypeTransform(DataTypeTransform.DataType.DOUBLE, DataTypeTransform.DataType.FLOAT));
+        
+        DataTransformation compressedTransformation = new DataTransformation();
+        compressedTransformation.addTransform(new DataTypeTransform(DataTypeTransform.DataType.DOUBLE, DataTypeTransform.DataType.FLOAT));
+        compressedTransformation.addTransform(new ZlibDataTransform());
+        
+        DataLocation floatLocation = write(floatTransformation, 0);
+        DataLocation compressedLocation = write(compressedTransformation, floatLocation.getLength());
+        
+        for(DataLocation location : new DataLocation[] {floatLocation, compressedLocation}) {
+            float[] floatData = (float[]) location.getData(DataTypeTransform.DataType.FLOAT);
+            int[] intData = (int[]) location.getData(DataTypeTransform.DataType.INTEGER_32BIT);
+            
+            assertEquals(data.length, floatData.length);
+            assertEquals(data.length, intData.length);
+            
+            for(int i = 0; i < data.length; i++) {
+                assertEquals(data[i], floatData[i], 0.0);
+                assertEquals(data[i], intData[i], 0.0);
+            }
+            
+            assertArrayEquals(data, (double[]) location.getData(DataTypeTransform.DataType.DOUBLE), 0.0);
+        }
+    }
+    
+    @Test(expected = BufferOverflowException.class)
+    public void testGetDataTooSmall() throws Exception {
+        DataLocation location = write(new DataTransformation(), 0);
+        
+        location.getData(new double[data.length - 1]);
+    }
+}
@@ -0,0 +1,119 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DataStorageTest {
+    
+    private File dataFile;
+    
+    private byte[] contents;
+    
+    public DataStorageTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        dataFile = File.createTempFile("dataStorage", ".ibd");
+        
+        contents = new byte[200000];
+        for(int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) (i * 7);
+        }
+        
+        FileOutputStream out = new FileOutputStream(dataFile);
+        out.write(contents);
+        out.close();
+    }
+    
+    @After
+    public void tearDown() {
+        dataFile.delete();
+    }
+
+    /**
+     * Test of readMany method, of class DataStorage. Requests are supplied out of
+     * order, and the adjacent requests should be merged into a single read.
+     */
+    @Test
+    public void testReadMany() throws Exception {
+        CountingDataStorage storage = new CountingDataStorage(dataFile);
+        
+        try {
+            List<DataLocation> locations = new ArrayList<DataLocation>();
+            locations.add(new DataLocation(storage, 150000, 1000));
+            locations.add(new DataLocation(storage, 1000, 500));
+            locations.add(new DataLocation(storage, 0, 1000));
+            locations.add(new DataLocation(storage, 1600, 400));
+            locations.add(new DataLocation(storage, 0, 0));
+            
+            List<byte[]> results = storage.readMany(locations, 100);
+            
+            assertEquals(locations.size(), results.size());
+            assertEquals(2, storage.reads);
+            
+            for(int i = 0; i < locations.size(); i++) {
+                DataLocation location = locations.get(i);
+                byte[] result = results.get(i);
+                
+                assertEquals(location.getLength(), result.length);
+                
+                for(int j = 0; j < result.length; j++) {
+                    assertEquals(contents[(int) location.getOffset() + j], result[j]);
+                }
+            }
+        } finally {
+            storage.close();
+        }
+    }
+    
+    /**
+     * Test of setReadAheadSize method, of class DataStorage. Sequential requests 
+     * should be served from the read-ahead buffer.
+     */
+    @Test
+    public void testReadAhead() throws Exception {
+        CountingDataStorage storage = new CountingDataStorage(dataFile);
+        storage.setReadAheadSize(64 * 1024);
+        
+        try {
+            for(int offset = 0; offset + 1000 <= contents.length; offset += 1200) {
+                byte[] data = storage.getData(offset, 1000);
+                
+                for(int j = 0; j < data.length; j++) {
+                    assertEquals(contents[offset + j], data[j]);
+                }
+            }
+            
+            // The first request is not known to be sequential, then each read-ahead
+            // covers 64 KB of the 200 KB file
+            assertTrue("Too many reads: " + storage.reads, storage.reads <= 6);
+        } finally {
+            storage.close();
+        }
+    }
+    
+    private static class CountingDataStorage extends BinaryDataStorage {
+        
+        int reads = 0;
+        
+        CountingDataStorage(File dataFile) throws FileNotFoundException {
+            super(dataFile, false);
+        }
+        
+        @Override
+        protected void readData(long offset, byte[] buffer, int bufferOffset, int length) throws IOException {
+            reads++;
+            
+            super.readData(offset, buffer, bufferOffset, length);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.alanmrace.jimzmlparser.data;
+
+import com.alanmrace.jimzmlparser.data.DataTypeTransform.DataType;
+import com.alanmrace.jimzmlparser.data.MSNumpressDataTransform.NumpressAlgorithm;
+import java.nio.DoubleBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DataTransformationTest {
+    
+    private double[] data;
+    
+    @Before
+    public void setUp() {
+        data = new double[5000];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = Math.round(Math.random() * 10000);
+        }
+    }
+    
+    private DataTransformation createTransformation(DataType dataType, DataTransform... transforms) {
+        DataTransformation transformation = new DataTransformation();
+        
+        if(dataType != DataType.DOUBLE)
+            transformation.addTransform(new DataTypeTransform(DataType.DOUBLE, dataType));
+        
+        for(DataTransform transform : transforms)
+            transformation.addTransform(transform);
+        
+        return transformation;
+    }
+    
+    private void assertReverseTransform(DataTransformation transformation, double delta) throws Exception {
+        byte[] encoded = transformation.performForwardTransform(data);
+        
+        // Pad the encoded data as the scratch space used by DataLocation would be
+        byte[] padded = new byte[encoded.length + 100];
+        System.arraycopy(encoded, 0, padded, 0, encoded.length);
+        
+        assertArrayEquals(data, transformation.performReverseTransform(encoded), delta);
+        
+        double[] dest = new double[data.length];
+        assertEquals(data.length, transformation.performReverseTransform(padded, encoded.length, DoubleBuffer.wrap(dest)));
+        assertArrayEquals(data, dest, delta);
+        
+        DoubleBuffer offsetDest = DoubleBuffer.allocate(data.length + 3);
+        offsetDest.position(3);
+        assertEquals(data.length, transformation.performReverseTransform(padded, encoded.length, offsetDest));
+        
+        for(int i = 0; i < data.length; i++) {
+            assertEquals(data[i], offsetDest.get(i + 3), delta);
+        }
+        
+        float[] floatData = (float[]) transformation.performReverseTransform(padded, encoded.length, DataType.FLOAT);
+        
+        for(int i = 0; i < data.length; i++) {
+            assertEquals(data[i], floatData[i], delta);
+        }
+    }
+
+    /**
+     * Test of the fused reverse pipeline, for each compression alone and combined 
+     * with MS-Numpress, including reuse of the pipeline buffers between arrays 
+     * of different size.
+     */
+    @Test
+    public void testFusedReverseTransform() throws Exception {
+        int floatLength = data.length * 4;
+        int doubleLength = data.length * 8;
+        
+        assertReverseTransform(createTransformation(DataType.FLOAT, new ZlibDataTransform(floatLength)), 0.0);
+        assertReverseTransform(createTransformation(DataType.INTEGER_32BIT, new XZDataTransform()), 0.0);
+        assertReverseTransform(createTransformation(DataType.FLOAT, new LZ4DataTransform(floatLength)), 0.0);
+        assertReverseTransform(createTransformation(DataType.DOUBLE, new ZstdDataTransform(doubleLength)), 0.0);
+        assertReverseTransform(createTransformation(DataType.DOUBLE, new MSNumpressDataTransform(NumpressAlgorithm.PIC)), 0.0);
+        assertReverseTransform(createTransformation(DataType.DOUBLE, new MSNumpressDataTransform(NumpressAlgorithm.PIC), new ZlibDataTransform()), 0.0);
+        assertReverseTransform(createTransformation(DataType.DOUBLE, new MSNumpressDataTransform(NumpressAlgorithm.LINEAR), new XZDataTransform()), 1e-4);
+        
+        data = new double[] {1, 2, 3};
+        assertReverseTransform(createTransformation(DataType.FLOAT, new ZlibDataTransform(12)), 0.0);
+    }
+    
+    /**
+     * Test that transformations which cannot be fused (here a DataTypeTransform 
+     * after compression) still fall back to reversing each step in turn.
+     */
+    @Test
+    public void testUnfusedReverseTransform() throws Exception {
+        DataTransformation transformation = new DataTransformation();
+        transformation.addTransform(new ZlibDataTransform());
+        transformation.addTransform(new DataTypeTransform(DataType.DOUBLE, DataType.DOUBLE));
+        
+        assertReverseTransform(transformation, 0.0);
+    }
+}
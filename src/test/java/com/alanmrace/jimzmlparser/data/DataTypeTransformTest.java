@@ -0,0 +1,75 @@
+package com.alanmrace.jimzmlparser.data;
+
+import com.alanmrace.jimzmlparser.data.DataTypeTransform.DataType;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DataTypeTransformTest {
+    
+    private double[] data;
+    
+    @Before
+    public void setUp() {
+        data = new double[1001];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = Math.round((Math.random() - 0.5) * 200);
+        }
+    }
+
+    /**
+     * Test of convertData method, of class DataTypeTransform, converting between 
+     * every pair of data types.
+     */
+    @Test
+    public void testConvertData() {
+        byte[] doubleData = DataTypeTransform.convertDoublesToBytes(data);
+        
+        for(DataType from : DataType.values()) {
+            byte[] fromData = DataTypeTransform.convertData(doubleData, DataType.DOUBLE, from);
+            
+            assertEquals(data.length * DataTypeTransform.getSizeInBytes(from), fromData.length);
+            
+            for(DataType to : DataType.values()) {
+                byte[] toData = DataTypeTransform.convertData(fromData, from, to);
+                
+                assertArrayEquals(from + " to " + to, data, DataTypeTransform.convertDataToDouble(toData, to), 0.0);
+            }
+        }
+    }
+    
+    /**
+     * Test of convertDataToArray method, of class DataTypeTransform.
+     */
+    @Test
+    public void testConvertDataToArray() {
+        byte[] floatData = DataTypeTransform.convertData(DataTypeTransform.convertDoublesToBytes(data), DataType.DOUBLE, DataType.FLOAT);
+        
+        float[] floats = (float[]) DataTypeTransform.convertDataToArray(floatData, 4, floatData.length - 4, DataType.FLOAT, DataType.FLOAT);
+        short[] shorts = (short[]) DataTypeTransform.convertDataToArray(floatData, 4, floatData.length - 4, DataType.FLOAT, DataType.INTEGER_16BIT);
+        
+        assertEquals(data.length - 1, floats.length);
+        assertEquals(data.length - 1, shorts.length);
+        
+        for(int i = 1; i < data.length; i++) {
+            assertEquals(data[i], floats[i - 1], 0.0);
+            assertEquals(data[i], shorts[i - 1], 0.0);
+        }
+    }
+    
+    /**
+     * Test that 64-bit integers are converted between integer data types without 
+     * passing through double precision.
+     */
+    @Test
+    public void testConvertLongPrecision() {
+        long[] values = new long[] {Long.MAX_VALUE, (1L << 53) + 1, -7};
+        byte[] bytes = new byte[values.length * 8];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().put(values);
+        
+        assertArrayEquals(values, (long[]) DataTypeTransform.convertDataToArray(bytes, 0, bytes.length, DataType.INTEGER_64BIT, DataType.INTEGER_64BIT));
+        assertEquals((int) ((1L << 53) + 1), ((int[]) DataTypeTransform.convertDataToArray(bytes, 0, bytes.length, DataType.INTEGER_64BIT, DataType.INTEGER_32BIT))[1]);
+    }
+}
@@ -0,0 +1,99 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FileChannelDataStorageTest {
+    
+    private File dataFile;
+    
+    private byte[] contents;
+    
+    public FileChannelDataStorageTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        dataFile = File.createTempFile("fileChannelDataStorage", ".ibd");
+        
+        contents = new byte[100000];
+        for(int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) (i * 17);
+        }
+        
+        FileOutputStream out = new FileOutputStream(dataFile);
+        out.write(contents);
+        out.close();
+    }
+    
+    @After
+    public void tearDown() {
+        dataFile.delete();
+    }
+
+    /**
+     * Test of getData method, of class FileChannelDataStorage, when read concurrently
+     * from multiple threads.
+     */
+    @Test
+    public void testConcurrentGetData() throws Exception {
+        final DataStorage storage = BinaryDataStorage.open(dataFile, BinaryDataStorage.AccessMode.POSITIONAL_READ);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            
+            for(int i = 0; i < 200; i++) {
+                final int offset = (i * 4999) % (contents.length - 1000);
+                
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        byte[] data = storage.getData(offset, 1000);
+                        
+                        for(int j = 0; j < data.length; j++) {
+                            if(data[j] != contents[offset + j])
+                                return false;
+                        }
+                        
+                        return true;
+                    }
+                }));
+            }
+            
+            for(Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+            storage.close();
+        }
+    }
+
+    /**
+     * Test of getData method, of class FileChannelDataStorage, when the data
+     * extends past the end of the file, as for a truncated IBD file.
+     */
+    @Test(expected = EOFException.class)
+    public void testGetDataPastEnd() throws Exception {
+        DataStorage storage = BinaryDataStorage.open(dataFile, BinaryDataStorage.AccessMode.POSITIONAL_READ);
+        
+        try {
+            storage.getData(contents.length - 10, 100);
+        } finally {
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LZ4DataTransformTest {
+    
+    /**
+     * Test of forwardTransform, reverseTransform and decompress methods, of class 
+     * LZ4DataTransform, with incompressible data and direct buffers.
+     */
+    @Test
+    public void testTransform() throws Exception {
+        byte[] data = new byte[20000];
+        new Random(5).nextBytes(data);
+        
+        LZ4DataTransform transform = new LZ4DataTransform(data.length);
+        byte[] compressed = transform.forwardTransform(data);
+        
+        assertArrayEquals(data, transform.reverseTransform(compressed));
+        
+        ByteBuffer directSource = ByteBuffer.allocateDirect(compressed.length);
+        directSource.put(compressed).flip();
+        ByteBuffer directDestination = ByteBuffer.allocateDirect(data.length);
+        
+        assertEquals(data.length, transform.decompress(directSource, directDestination));
+        assertFalse(directSource.hasRemaining());
+    }
+    
+    /**
+     * Test of decompress method, of class LZ4DataTransform, when the decompressed 
+     * length is unknown, taking the length from the compressed data and destination.
+     */
+    @Test
+    public void testDecompressUnknownLength() throws Exception {
+        byte[] data = new byte[5000];
+        new Random(7).nextBytes(data);
+        
+        byte[] compressed = new LZ4DataTransform(data.length).forwardTransform(data);
+        ByteBuffer destination = ByteBuffer.allocate(data.length + 100);
+        
+        assertEquals(data.length, new LZ4DataTransform(-1).decompress(ByteBuffer.wrap(compressed), destination));
+        assertEquals(data.length, destination.position());
+        
+        byte[] decompressed = new byte[data.length];
+        destination.flip();
+        destination.get(decompressed);
+        
+        assertArrayEquals(data, decompressed);
+    }
+    
+    /**
+     * Test that decompressing to a byte array when the decompressed length is 
+     * unknown fails.
+     */
+    @Test(expected = DataFormatException.class)
+    public void testReverseTransformUnknownLength() throws Exception {
+        byte[] data = new byte[1000];
+        
+        new LZ4DataTransform(-1).reverseTransform(new LZ4DataTransform(data.length).forwardTransform(data));
+    }
+    
+    /**
+     * Test that decompressing into a destination smaller than the decompressed 
+     * length fails, rather than writing beyond it.
+     */
+    @Test(expected = DataFormatException.class)
+    public void testDecompressInsufficientSpace() throws Exception {
+        byte[] data = new byte[1000];
+        LZ4DataTransform transform = new LZ4DataTransform(data.length);
+        
+        transform.decompress(ByteBuffer.wrap(transform.forwardTransform(data)), ByteBuffer.allocate(data.length - 1));
+    }
+}
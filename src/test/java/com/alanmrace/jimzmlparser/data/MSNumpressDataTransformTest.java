@@ -45,6 +45,36 @@ public class MSNumpressDataTransformTest {
     public void testForwardTransform() throws Exception {
     }
 
+    /**
+     * Test of forwardTransform(double[]) and decode methods, of class 
+     * MSNumpressDataTransform, including arrays too short to fit in a byte[] of
+     * the same size as the input.
+     */
+    @Test
+    public void testDoubleTransform() throws Exception {
+        for(MSNumpressDataTransform.NumpressAlgorithm algorithm : MSNumpressDataTransform.NumpressAlgorithm.values()) {
+            MSNumpressDataTransform transform = new MSNumpressDataTransform(algorithm);
+            
+            for(int length : new int[] {1, 2, 1000}) {
+                double[] data = new double[length];
+                for(int i = 0; i < data.length; i++) {
+                    data[i] = 100 + Math.round(Math.random() * 1000);
+                }
+                
+                byte[] encoded = transform.forwardTransform(data);
+                
+                assertTrue(encoded.length <= transform.getMaximumEncodedLength(length));
+                assertArrayEquals(encoded, transform.forwardTransform(DataTypeTransform.convertDoublesToBytes(data)));
+                
+                byte[] padded = new byte[encoded.length + 10];
+                System.arraycopy(encoded, 0, padded, 5, encoded.length);
+                
+                // SLOF is a logarithmic encoding, so the error is relative to the magnitude of the value
+                assertArrayEquals(algorithm.toString(), data, transform.decode(padded, 5, encoded.length), 0.1);
+            }
+        }
+    }
+    
     /**
      * Test of reverseTransform method, of class MSNumpressDataTransform.
      */
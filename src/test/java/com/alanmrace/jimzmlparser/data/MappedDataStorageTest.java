@@ -0,0 +1,146 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MappedDataStorageTest {
+    
+    private File dataFile;
+    
+    private byte[] contents;
+    
+    public MappedDataStorageTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        dataFile = File.createTempFile("mappedDataStorage", ".ibd");
+        
+        contents = new byte[10000];
+        for(int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) (i * 31);
+        }
+        
+        FileOutputStream out = new FileOutputStream(dataFile);
+        out.write(contents);
+        out.close();
+    }
+    
+    @After
+    public void tearDown() {
+        dataFile.delete();
+    }
+
+    /**
+     * Test of getData method, of class MappedDataStorage, with reads that lie within
+     * and across segment boundaries.
+     */
+    @Test
+    public void testGetData() throws Exception {
+        MappedDataStorage storage = new MappedDataStorage(dataFile, 1024);
+        
+        try {
+            assertArrayEquals(range(0, 100), storage.getData(0, 100));
+            assertArrayEquals(range(1000, 50), storage.getData(1000, 50));
+            assertArrayEquals(range(1000, 3000), storage.getData(1000, 3000));
+            assertArrayEquals(range(9000, 1000), storage.getData(9000, 1000));
+        } finally {
+            storage.close();
+        }
+    }
+    
+    /**
+     * Test that MappedDataStorage returns the same data as BinaryDataStorage.
+     */
+    @Test
+    public void testMatchesBinaryDataStorage() throws Exception {
+        DataStorage binary = BinaryDataStorage.open(dataFile, BinaryDataStorage.AccessMode.RANDOM_ACCESS_FILE);
+        DataStorage mapped = BinaryDataStorage.open(dataFile, BinaryDataStorage.AccessMode.MEMORY_MAPPED);
+        
+        try {
+            assertTrue(mapped instanceof MappedDataStorage);
+            
+            for(int offset = 0; offset < contents.length; offset += 997) {
+                int length = Math.min(1500, contents.length - offset);
+                
+                assertArrayEquals(binary.getData(offset, length), mapped.getData(offset, length));
+            }
+        } finally {
+            binary.close();
+            mapped.close();
+        }
+    }
+    
+    /**
+     * Test of getDataBuffer method, of class MappedDataStorage, for views within and
+     * across segment boundaries.
+     */
+    @Test
+    public void testGetDataBuffer() throws Exception {
+        MappedDataStorage storage = new MappedDataStorage(dataFile, 1024);
+        
+        try {
+            for(int offset : new int[] {0, 100, 1000, 5000}) {
+                ByteBuffer view = storage.getDataBuffer(offset, 500);
+                
+                assertTrue(view.isReadOnly());
+                assertEquals(500, view.remaining());
+                
+                byte[] data = new byte[500];
+                view.get(data);
+                assertArrayEquals(range(offset, 500), data);
+            }
+        } finally {
+            storage.close();
+        }
+    }
+    
+    /**
+     * Test of getDataView method, of class DataLocation, for uncompressed float data
+     * in a MappedDataStorage.
+     */
+    @Test
+    public void testGetDataView() throws Exception {
+        float[] values = new float[] {1.5f, -2.25f, 3e10f, 0f};
+        byte[] bytes = DataTypeTransform.convertData(DataTypeTransform.convertDoublesToBytes(new double[] {1.5, -2.25, 3e10, 0}), 
+                DataTypeTransform.DataType.DOUBLE, DataTypeTransform.DataType.FLOAT);
+        
+        FileOutputStream out = new FileOutputStream(dataFile, true);
+        out.write(bytes);
+        out.close();
+        
+        MappedDataStorage storage = new MappedDataStorage(dataFile, 1024);
+        
+        try {
+            DataTransformation transformation = new DataTransformation();
+            transformation.addTransform(new DataTypeTransform(DataTypeTransform.DataType.DOUBLE, DataTypeTransform.DataType.FLOAT));
+            
+            DataLocation location = new DataLocation(storage, contents.length, bytes.length);
+            location.setDataTransformation(transformation);
+            
+            FloatBuffer view = (FloatBuffer) location.getDataView();
+            
+            assertEquals(values.length, view.remaining());
+            
+            for(int i = 0; i < values.length; i++) {
+                assertEquals(values[i], view.get(i), 0.0f);
+            }
+        } finally {
+            storage.close();
+        }
+    }
+    
+    private byte[] range(int offset, int length) {
+        byte[] data = new byte[length];
+        System.arraycopy(contents, offset, data, 0, length);
+        
+        return data;
+    }
+}
@@ -0,0 +1,125 @@
+package com.alanmrace.jimzmlparser.data;
+
+import com.alanmrace.jimzmlparser.data.QuantizationDataTransform.QuantizationType;
+import java.util.zip.DataFormatException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class QuantizationDataTransformTest {
+    
+    private double[] createData() {
+        double[] data = new double[5000];
+        
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (i % 10 == 0) ? 0 : Math.abs(Math.sin(i / 100.0)) * 20000 + 1;
+        }
+        
+        return data;
+    }
+
+    /**
+     * Test of halfToFloat and floatToHalf methods, of class QuantizationDataTransform,
+     * for all half-precision values and rounding.
+     */
+    @Test
+    public void testHalfFloat() {
+        for(int half = 0; half < 0x10000; half++) {
+            float value = QuantizationDataTransform.halfToFloat(half);
+            
+            if(Float.isNaN(value)) {
+                assertTrue(Float.isNaN(QuantizationDataTransform.halfToFloat(QuantizationDataTransform.floatToHalf(value))));
+            } else {
+                assertEquals(half, QuantizationDataTransform.floatToHalf(value));
+            }
+        }
+        
+        assertEquals(0x3C00, QuantizationDataTransform.floatToHalf(1.0004f));
+        assertEquals(0x3C01, QuantizationDataTransform.floatToHalf(1.0006f));
+        assertEquals(0x7C00, QuantizationDataTransform.floatToHalf(70000f));
+        assertEquals(0x0001, QuantizationDataTransform.floatToHalf(6e-8f));
+    }
+
+    /**
+     * Test of forwardTransform and reverseTransform methods, of class QuantizationDataTransform,
+     * checking the encoded size and the error of each quantization scheme.
+     */
+    @Test
+    public void testTransform() throws Exception {
+        double[] data = createData();
+        
+        for(QuantizationType quantizationType : QuantizationType.values()) {
+            QuantizationDataTransform transform = new QuantizationDataTransform(quantizationType);
+            byte[] encoded = transform.forwardTransform(data);
+            
+            assertEquals(transform.getEncodedLength(data.length), encoded.length);
+            
+            double[] decoded = transform.decode(encoded, 0, encoded.length);
+            
+            assertEquals(data.length, decoded.length);
+            
+            for(int i = 0; i < data.length; i++) {
+                double tolerance;
+                
+                switch(quantizationType) {
+                    case SCALED_INTEGER_16BIT:
+                        tolerance = 20001.0 / 65535;
+                        break;
+                    case HALF_FLOAT:
+                        tolerance = data[i] / 2048;
+                        break;
+                    case LOG_INTEGER_8BIT:
+                        tolerance = data[i] * 0.025;
+                        break;
+                    case LOG_INTEGER_16BIT:
+                    default:
+                        tolerance = data[i] * 0.0002;
+                        break;
+                }
+                
+                assertEquals(quantizationType.name(), data[i], decoded[i], tolerance);
+            }
+        }
+    }
+    
+    /**
+     * Test of forwardTransform method, of class QuantizationDataTransform, checking
+     * that values beyond the range of half-precision floats are clamped rather 
+     * than stored as infinity.
+     */
+    @Test
+    public void testHalfFloatClamp() throws Exception {
+        QuantizationDataTransform transform = new QuantizationDataTransform(QuantizationType.HALF_FLOAT);
+        double[] data = new double[] {1e6, -1e6, 65504, 100};
+        byte[] encoded = transform.forwardTransform(data);
+        double[] decoded = transform.decode(encoded, 0, encoded.length);
+        
+        assertEquals(QuantizationDataTransform.MAXIMUM_HALF_FLOAT, decoded[0], 0.0);
+        assertEquals(-QuantizationDataTransform.MAXIMUM_HALF_FLOAT, decoded[1], 0.0);
+        assertEquals(65504, decoded[2], 0.0);
+        assertEquals(100, decoded[3], 0.0);
+    }
+    
+    /**
+     * Test of QuantizationDataTransform followed by compression within a DataTransformation.
+     */
+    @Test
+    public void testCompressedTransformation() throws Exception {
+        double[] data = createData();
+        QuantizationDataTransform quantization = new QuantizationDataTransform(QuantizationType.LOG_INTEGER_16BIT);
+        
+        DataTransformation transformation = new DataTransformation();
+        transformation.addTransform(quantization);
+        transformation.addTransform(new ZstdDataTransform(quantization.getEncodedLength(data.length)));
+        
+        byte[] encoded = transformation.performForwardTransform(data);
+        
+        assertTrue(encoded.length < data.length * 2);
+        assertArrayEquals(quantization.decode(quantization.forwardTransform(data), 0, quantization.getEncodedLength(data.length)), 
+                transformation.performReverseTransform(encoded), 0.0);
+    }
+    
+    @Test(expected = DataFormatException.class)
+    public void testReverseTransformInvalidLength() throws Exception {
+        new QuantizationDataTransform(QuantizationType.SCALED_INTEGER_16BIT).decode(new byte[21], 0, 21);
+    }
+}
@@ -0,0 +1,133 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ReferenceAxisDataTransformTest {
+    
+    private double[] createAxis() {
+        double[] axis = new double[100000];
+        
+        for(int i = 0; i < axis.length; i++) {
+            axis[i] = 100 + i * 0.0123;
+        }
+        
+        return axis;
+    }
+    
+    private double[] createSpectrum(double[] axis, Random random) {
+        double[] mzs = new double[2000];
+        int index = 0;
+        
+        for(int i = 0; i < mzs.length; i++) {
+            index += 1 + random.nextInt(90);
+            mzs[i] = axis[index];
+        }
+        
+        return mzs;
+    }
+
+    /**
+     * Test of createReferenceAxis method, of class ReferenceAxisDataTransform.
+     */
+    @Test
+    public void testCreateReferenceAxis() {
+        List<double[]> arrays = new ArrayList<double[]>();
+        arrays.add(new double[] {3, 1, 2});
+        arrays.add(new double[] {2, 5, 1});
+        
+        assertArrayEquals(new double[] {1, 2, 3, 5}, ReferenceAxisDataTransform.createReferenceAxis(arrays), 0.0);
+    }
+
+    /**
+     * Test of forwardTransform and reverseTransform methods, of class ReferenceAxisDataTransform,
+     * for values in the axis, values not in the axis, unsorted values and duplicates.
+     */
+    @Test
+    public void testTransform() throws Exception {
+        double[] axis = createAxis();
+        ReferenceAxisDataTransform transform = new ReferenceAxisDataTransform(axis);
+        
+        double[] mzs = createSpectrum(axis, new Random(1));
+        byte[] encoded = transform.forwardTransform(mzs);
+        
+        assertTrue(encoded.length < mzs.length * 2);
+        assertArrayEquals(mzs, transform.decode(encoded, 0, encoded.length), 0.0);
+        
+        double[] mixed = new double[] {axis[10], axis[10], 100.00001, axis[5], 2000, axis[99999], Double.NaN};
+        assertArrayEquals(mixed, transform.decode(transform.forwardTransform(mixed), 0, transform.forwardTransform(mixed).length), 0.0);
+        
+        assertEquals(0, transform.decode(transform.forwardTransform(new double[0]), 0, 4).length);
+    }
+    
+    /**
+     * Test of forwardTransform method, of class ReferenceAxisDataTransform, with a
+     * tolerance.
+     */
+    @Test
+    public void testTolerance() throws Exception {
+        double[] axis = createAxis();
+        ReferenceAxisDataTransform transform = new ReferenceAxisDataTransform(axis, 0.001);
+        
+        double[] mzs = new double[] {axis[3] + 0.0005, axis[7] - 0.0009, axis[8] + 0.005};
+        byte[] encoded = transform.forwardTransform(mzs);
+        
+        assertArrayEquals(new double[] {axis[3], axis[7], axis[8] + 0.005}, transform.decode(encoded, 0, encoded.length), 0.0);
+    }
+    
+    /**
+     * Test of reference axis encoding followed by compression within a DataTransformation,
+     * with the axis stored in and loaded from a DataStorage.
+     */
+    @Test
+    public void testStoredAxis() throws Exception {
+        double[] axis = createAxis();
+        double[] mzs = createSpectrum(axis, new Random(2));
+        
+        DataTransformation transformation = new DataTransformation();
+        transformation.addTransform(new ReferenceAxisDataTransform(axis));
+        transformation.addTransform(new ZstdDataTransform(-1));
+        
+        byte[] encoded = transformation.performForwardTransform(mzs);
+        
+        File dataFile = File.createTempFile("referenceAxis", ".ibd");
+        
+        try {
+            FileOutputStream out = new FileOutputStream(dataFile);
+            out.write(new byte[16]);
+            out.write(DataTypeTransform.convertDoublesToBytes(axis));
+            out.close();
+            
+            DataStorage dataStorage = new BinaryDataStorage(dataFile, false);
+            double[] loaded = ReferenceAxisDataTransform.loadReferenceAxis(dataStorage, 16, axis.length * 8);
+            
+            assertSame(loaded, ReferenceAxisDataTransform.loadReferenceAxis(dataStorage, 16, axis.length * 8));
+            assertTrue(Arrays.equals(axis, loaded));
+            
+            DataTransformation loadedTransformation = new DataTransformation();
+            loadedTransformation.addTransform(new ReferenceAxisDataTransform(loaded));
+            loadedTransformation.addTransform(new ZstdDataTransform(-1));
+            
+            assertArrayEquals(mzs, loadedTransformation.performReverseTransform(encoded), 0.0);
+            
+            dataStorage.close();
+        } finally {
+            dataFile.delete();
+        }
+    }
+    
+    @Test(expected = DataFormatException.class)
+    public void testReverseTransformDifferentAxis() throws Exception {
+        double[] axis = createAxis();
+        byte[] encoded = new ReferenceAxisDataTransform(axis).forwardTransform(new double[] {axis[50000]});
+        
+        new ReferenceAxisDataTransform(Arrays.copyOf(axis, 100)).decode(encoded, 0, encoded.length);
+    }
+}
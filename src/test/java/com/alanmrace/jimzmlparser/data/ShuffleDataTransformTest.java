@@ -0,0 +1,106 @@
+package com.alanmrace.jimzmlparser.data;
+
+import com.alanmrace.jimzmlparser.data.ShuffleDataTransform.ShuffleType;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ShuffleDataTransformTest {
+
+    /**
+     * Test of transposeBitMatrix method, of class ShuffleDataTransform, against
+     * a bit by bit transpose.
+     */
+    @Test
+    public void testTransposeBitMatrix() {
+        Random random = new Random(5);
+
+        for(int n = 0; n < 100; n++) {
+            long matrix = random.nextLong();
+            long expected = 0;
+
+            for(int row = 0; row < 8; row++) {
+                for(int column = 0; column < 8; column++) {
+                    long bit = (matrix >>> (row * 8 + column)) & 1;
+                    expected |= bit << (column * 8 + row);
+                }
+            }
+
+            assertEquals(expected, ShuffleDataTransform.transposeBitMatrix(matrix));
+        }
+    }
+
+    /**
+     * Test of forwardTransform method, of class ShuffleDataTransform, for byte
+     * and bit shuffles.
+     */
+    @Test
+    public void testForwardTransform() throws Exception {
+        byte[] data = new byte[] {1, 2, 3, 4, 5, 6, 7};
+
+        assertArrayEquals(new byte[] {1, 3, 5, 2, 4, 6, 7}, new ShuffleDataTransform(2).forwardTransform(data));
+
+        // 8 single byte elements with value 1 have only the lowest bit plane set
+        byte[] bitData = new byte[] {1, 1, 1, 1, 1, 1, 1, 1, 9};
+
+        assertArrayEquals(new byte[] {(byte) 0xFF, 0, 0, 0, 0, 0, 0, 0, 9}, new ShuffleDataTransform(1, ShuffleType.BIT).forwardTransform(bitData));
+    }
+
+    /**
+     * Test of reverseTransform method, of class ShuffleDataTransform, for lengths
+     * which are not whole numbers of elements or groups of elements.
+     */
+    @Test
+    public void testReverseTransform() throws Exception {
+        Random random = new Random(11);
+
+        for(ShuffleType shuffleType : ShuffleType.values()) {
+            for(int elementSize : new int[] {1, 2, 4, 8}) {
+                for(int length : new int[] {0, 7, 64, 1003}) {
+                    byte[] data = new byte[length];
+                    random.nextBytes(data);
+
+                    ShuffleDataTransform transform = new ShuffleDataTransform(elementSize, shuffleType);
+
+                    assertArrayEquals(data, transform.reverseTransform(transform.forwardTransform(data)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of ShuffleDataTransform followed by compression within a DataTransformation,
+     * checking that shuffling improves the compression of a smooth float array.
+     */
+    @Test
+    public void testShuffleCompression() throws Exception {
+        double[] data = new double[20000];
+
+        for(int i = 0; i < data.length; i++) {
+            data[i] = 100 + i * 0.01 + Math.sin(i / 50.0);
+        }
+
+        for(ShuffleType shuffleType : ShuffleType.values()) {
+            DataTransformation shuffled = new DataTransformation();
+            shuffled.addTransform(new DataTypeTransform(DataTypeTransform.DataType.DOUBLE, DataTypeTransform.DataType.FLOAT));
+            shuffled.addTransform(new ShuffleDataTransform(4, shuffleType));
+            shuffled.addTransform(new LZ4DataTransform(data.length * 4));
+
+            DataTransformation unshuffled = new DataTransformation();
+            unshuffled.addTransform(new DataTypeTransform(DataTypeTransform.DataType.DOUBLE, DataTypeTransform.DataType.FLOAT));
+            unshuffled.addTransform(new LZ4DataTransform(data.length * 4));
+
+            byte[] shuffledData = shuffled.performForwardTransform(data);
+
+            assertTrue(shuffledData.length < unshuffled.performForwardTransform(data).length);
+
+            double[] decoded = shuffled.performReverseTransform(shuffledData);
+
+            assertEquals(data.length, decoded.length);
+
+            for(int i = 0; i < data.length; i++) {
+                assertEquals((float) data[i], decoded[i], 0.0);
+            }
+        }
+    }
+}
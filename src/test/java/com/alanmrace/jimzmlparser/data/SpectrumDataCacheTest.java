@@ -0,0 +1,80 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SpectrumDataCacheTest {
+    
+    private File dataFile;
+    
+    private DataStorage dataStorage;
+    
+    public SpectrumDataCacheTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        double[] data = new double[1000];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = i;
+        }
+        
+        dataFile = File.createTempFile("spectrumDataCache", ".ibd");
+        
+        FileOutputStream out = new FileOutputStream(dataFile);
+        out.write(DataTypeTransform.convertDoublesToBytes(data));
+        out.close();
+        
+        dataStorage = new BinaryDataStorage(dataFile, false);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        dataStorage.close();
+        dataFile.delete();
+    }
+
+    /**
+     * Test that data is returned from the cache, and that the least recently used
+     * data is evicted when the cache is full.
+     */
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        // Enough space for two arrays of 100 doubles
+        SpectrumDataCache cache = new SpectrumDataCache(2 * (100 * 8 + 96));
+        dataStorage.setSpectrumDataCache(cache);
+        
+        DataLocation first = new DataLocation(dataStorage, 0, 800);
+        DataLocation second = new DataLocation(dataStorage, 800, 800);
+        DataLocation third = new DataLocation(dataStorage, 1600, 800);
+        
+        assertEquals(0, first.getData()[0], 0.0);
+        assertEquals(100, second.getData()[0], 0.0);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        
+        // Access the first so that the second becomes least recently used
+        double[] cached = first.getData();
+        assertEquals(1, cache.getHitCount());
+        
+        // Modifying the returned data must not modify the cache
+        cached[0] = -1;
+        assertEquals(0, first.getData()[0], 0.0);
+        
+        assertEquals(200, third.getData()[0], 0.0);
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, cache.getEntryCount());
+        assertTrue(cache.getSize() <= cache.getMaximumSize());
+        
+        first.getData();
+        assertEquals(3, cache.getHitCount());
+        
+        second.getData();
+        assertEquals(4, cache.getMissCount());
+    }
+}
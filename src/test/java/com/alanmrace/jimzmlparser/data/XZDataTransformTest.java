@@ -5,6 +5,7 @@
  */
 package com.alanmrace.jimzmlparser.data;
 
+import java.util.zip.DataFormatException;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -46,6 +47,37 @@ public class XZDataTransformTest {
         
     }
 
+    /**
+     * Test of reverseTransform method, of class XZDataTransform, with the decompressed
+     * length known, unknown and incorrect, and with a non-default preset and 
+     * dictionary size.
+     */
+    @Test
+    public void testReverseTransformExpectedLength() throws Exception {
+        byte[] data = new byte[300000];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte) ((i % 251) ^ (i >> 10));
+        }
+        
+        XZDataTransform transform = new XZDataTransform(data.length, 1, 1 << 16);
+        assertEquals(1 << 16, transform.getDictionarySize());
+        
+        byte[] compressedData = transform.forwardTransform(data);
+        
+        assertArrayEquals(data, new XZDataTransform(data.length).reverseTransform(compressedData));
+        assertArrayEquals(data, new XZDataTransform().reverseTransform(compressedData));
+        assertArrayEquals(data, new XZDataTransform(data.length / 7).reverseTransform(compressedData));
+        assertArrayEquals(data, new XZDataTransform(data.length + 5).reverseTransform(compressedData));
+    }
+    
+    @Test(expected = DataFormatException.class)
+    public void testReverseTransformCorrupt() throws Exception {
+        byte[] compressedData = new XZDataTransform().forwardTransform(new byte[1000]);
+        compressedData[compressedData.length / 2] ^= 0x55;
+        
+        new XZDataTransform(1000).reverseTransform(compressedData);
+    }
+    
     /**
      * Test of reverseTransform method, of class XZDataTransform.
      */
@@ -70,4 +102,13 @@ public class XZDataTransformTest {
         }
     }
     
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPreset() {
+        new XZDataTransform(1000, 10, 0);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidDictionarySizeLog() {
+        XZDataTransform.checkDictionarySizeLog(XZDataTransform.MAXIMUM_DICTIONARY_SIZE_LOG + 1);
+    }
 }
@@ -0,0 +1,116 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ZlibDataTransformTest {
+    
+    private byte[] createData(int length) {
+        byte[] data = new byte[length];
+        
+        for(int i = 0; i < length; i++) {
+            data[i] = (byte) ((i % 97) * (i % 13));
+        }
+        
+        return data;
+    }
+
+    /**
+     * Test of reverseTransform method, of class ZlibDataTransform, with the 
+     * decompressed length known, unknown and incorrect.
+     */
+    @Test
+    public void testReverseTransform() throws Exception {
+        for(int length : new int[] {0, 1, 1000, 3 * 1024 * 1024}) {
+            byte[] data = createData(length);
+            byte[] compressed = new ZlibDataTransform().forwardTransform(data);
+            
+            assertArrayEquals(data, new ZlibDataTransform(length).reverseTransform(compressed));
+            assertArrayEquals(data, new ZlibDataTransform().reverseTransform(compressed));
+            assertArrayEquals(data, new ZlibDataTransform(length / 3).reverseTransform(compressed));
+            assertArrayEquals(data, new ZlibDataTransform(length * 2 + 1).reverseTransform(compressed));
+        }
+    }
+    
+    /**
+     * Test of reverseTransform method, of class ZlibDataTransform, with truncated
+     * data, which must fail rather than return partial data.
+     */
+    @Test(expected = DataFormatException.class)
+    public void testReverseTransformTruncated() throws Exception {
+        byte[] data = createData(100000);
+        byte[] compressed = new ZlibDataTransform().forwardTransform(data);
+        
+        new ZlibDataTransform(data.length).reverseTransform(Arrays.copyOf(compressed, compressed.length / 2));
+    }
+    
+    /**
+     * Test of forwardTransform method, of class ZlibDataTransform, at different 
+     * compression levels including incompressible data.
+     */
+    @Test
+    public void testForwardTransform() throws Exception {
+        byte[] data = createData(100000);
+        
+        byte[] fastest = new ZlibDataTransform(data.length, Deflater.BEST_SPEED).forwardTransform(data);
+        byte[] smallest = new ZlibDataTransform(data.length, Deflater.BEST_COMPRESSION).forwardTransform(data);
+        
+        assertTrue(smallest.length <= fastest.length);
+        assertArrayEquals(data, new ZlibDataTransform(data.length).reverseTransform(fastest));
+        assertArrayEquals(data, new ZlibDataTransform(data.length).reverseTransform(smallest));
+        
+        byte[] random = new byte[50000];
+        new Random(1).nextBytes(random);
+        
+        assertArrayEquals(random, new ZlibDataTransform(random.length).reverseTransform(new ZlibDataTransform().forwardTransform(random)));
+    }
+    
+    /**
+     * Test of forwardTransform and reverseTransform methods, of class ZlibDataTransform,
+     * from more threads than the number of pooled Inflaters and Deflaters, with 
+     * different compression levels on each thread.
+     */
+    @Test
+    public void testConcurrentTransforms() throws Exception {
+        final byte[] data = createData(20000);
+        int numThreads = ZlibDataTransform.MAXIMUM_POOLED_CONTEXTS + 4;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+        
+        try {
+            for(int i = 0; i < numThreads * 4; i++) {
+                final int level = 1 + (i % 9);
+                
+                results.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        ZlibDataTransform transform = new ZlibDataTransform(data.length, level);
+                        
+                        return transform.reverseTransform(transform.forwardTransform(data));
+                    }
+                }));
+            }
+            
+            for(Future<byte[]> result : results) {
+                assertArrayEquals(data, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCompressionLevel() {
+        new ZlibDataTransform(1000, 10);
+    }
+}
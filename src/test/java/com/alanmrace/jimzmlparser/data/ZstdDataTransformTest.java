@@ -0,0 +1,200 @@
+package com.alanmrace.jimzmlparser.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ZstdDataTransformTest {
+    
+    private byte[] createData(int length) {
+        byte[] data = new byte[length];
+        Random random = new Random(3);
+        
+        for(int i = 0; i < length; i++) {
+            data[i] = (byte) (random.nextInt(16) + (i % 64));
+        }
+        
+        return data;
+    }
+
+    /**
+     * Test of forwardTransform and reverseTransform methods, of class ZstdDataTransform,
+     * with different compression settings and with the decompressed length unknown.
+     */
+    @Test
+    public void testTransform() throws Exception {
+        byte[] data = createData(500000);
+        
+        ZstdDataTransform[] transforms = new ZstdDataTransform[] {
+            new ZstdDataTransform(data.length),
+            new ZstdDataTransform(data.length, 1),
+            new ZstdDataTransform(data.length, 19, 24, 0),
+            new ZstdDataTransform(data.length, 3, 0, 2)
+        };
+        
+        for(ZstdDataTransform transform : transforms) {
+            byte[] compressed = transform.forwardTransform(data);
+            
+            assertTrue(compressed.length < data.length);
+            assertArrayEquals(data, transform.reverseTransform(compressed));
+            assertArrayEquals(data, new ZstdDataTransform(-1).reverseTransform(compressed));
+        }
+    }
+    
+    /**
+     * Test of decompress method, of class ZstdDataTransform, with direct and heap 
+     * buffers.
+     */
+    @Test
+    public void testDecompressByteBuffer() throws Exception {
+        byte[] data = createData(10000);
+        ZstdDataTransform transform = new ZstdDataTransform(data.length);
+        byte[] compressed = transform.forwardTransform(data);
+        
+        ByteBuffer directSource = ByteBuffer.allocateDirect(compressed.length);
+        directSource.put(compressed).flip();
+        ByteBuffer directDestination = ByteBuffer.allocateDirect(data.length);
+        
+        assertEquals(data.length, transform.decompress(directSource, directDestination));
+        
+        byte[] decompressed = new byte[data.length];
+        directDestination.flip();
+        directDestination.get(decompressed);
+        assertArrayEquals(data, decompressed);
+        
+        ByteBuffer heapDestination = ByteBuffer.allocate(data.length + 5);
+        heapDestination.position(5);
+        
+        assertEquals(data.length, transform.decompress(ByteBuffer.wrap(compressed), heapDestination));
+        assertEquals(data.length + 5, heapDestination.position());
+        assertEquals(data[0], heapDestination.get(5));
+    }
+    
+    @Test(expected = DataFormatException.class)
+    public void testReverseTransformCorrupt() throws Exception {
+        byte[] compressed = new ZstdDataTransform(1000).forwardTransform(createData(1000));
+        
+        new ZstdDataTransform(1000).reverseTransform(new byte[] {compressed[0], compressed[1], 0, 0, 0});
+    }
+    
+    /**
+     * Test of forwardTransform and reverseTransform methods, of class ZstdDataTransform,
+     * with a trained dictionary stored in and loaded from a DataStorage.
+     */
+    @Test
+    public void testDictionary() throws Exception {
+        byte[] base = createData(3000);
+        Random random = new Random(7);
+        List<byte[]> samples = new ArrayList<byte[]>();
+        
+        for(int i = 0; i < 200; i++) {
+            byte[] sample = base.clone();
+            
+            for(int j = 0; j < 50; j++) {
+                sample[random.nextInt(sample.length)] = (byte) random.nextInt();
+            }
+            
+            samples.add(sample);
+        }
+        
+        ZstdDictionary dictionary = ZstdDictionary.train(samples, 16 * 1024);
+        
+        byte[] data = samples.get(0);
+        ZstdDataTransform transform = new ZstdDataTransform(data.length);
+        transform.setDictionary(dictionary);
+        
+        byte[] compressed = transform.forwardTransform(data);
+        
+        assertTrue(compressed.length < new ZstdDataTransform(data.length).forwardTransform(data).length);
+        assertArrayEquals(data, transform.reverseTransform(compressed));
+        
+        // Store the dictionary and check that the loaded copy is shared and decompresses the data
+        File dataFile = File.createTempFile("zstdDictionary", ".ibd");
+        
+        try {
+            FileOutputStream out = new FileOutputStream(dataFile);
+            out.write(new byte[16]);
+            out.write(dictionary.getBytes());
+            out.close();
+            
+            DataStorage dataStorage = new BinaryDataStorage(dataFile, false);
+            
+            ZstdDictionary loaded = ZstdDictionary.load(dataStorage, 16, dictionary.getLength());
+            assertSame(loaded, ZstdDictionary.load(dataStorage, 16, dictionary.getLength()));
+            
+            ZstdDataTransform loadedTransform = new ZstdDataTransform(-1);
+            loadedTransform.setDictionary(loaded);
+            
+            assertArrayEquals(data, loadedTransform.reverseTransform(compressed));
+            
+            dataStorage.close();
+        } finally {
+            dataFile.delete();
+        }
+    }
+    
+    @Test(expected = DataFormatException.class)
+    public void testReverseTransformMissingDictionary() throws Exception {
+        List<byte[]> samples = new ArrayList<byte[]>();
+        
+        for(int i = 0; i < 100; i++) {
+            samples.add(createData(2000 + i));
+        }
+        
+        ZstdDataTransform transform = new ZstdDataTransform(2000);
+        transform.setDictionary(ZstdDictionary.train(samples, 8 * 1024));
+        
+        byte[] compressed = transform.forwardTransform(samples.get(0));
+        
+        new ZstdDataTransform(2000).reverseTransform(compressed);
+    }
+    
+    /**
+     * Test of forwardTransform and reverseTransform methods, of class ZstdDataTransform,
+     * from more threads than the number of pooled contexts, with different settings
+     * on each thread.
+     */
+    @Test
+    public void testConcurrentTransforms() throws Exception {
+        final byte[] data = createData(20000);
+        int numThreads = ZstdDataTransform.MAXIMUM_POOLED_CONTEXTS + 4;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+        
+        try {
+            for(int i = 0; i < numThreads * 4; i++) {
+                final int level = 1 + (i % 5);
+                
+                results.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        ZstdDataTransform transform = new ZstdDataTransform(data.length, level);
+                        
+                        return transform.reverseTransform(transform.forwardTransform(data));
+                    }
+                }));
+            }
+            
+            for(Future<byte[]> result : results) {
+                assertArrayEquals(data, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWorkers() {
+        new ZstdDataTransform(1000, 3, 0, -1);
+    }
+}
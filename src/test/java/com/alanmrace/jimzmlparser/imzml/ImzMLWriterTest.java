@@ -5,19 +5,32 @@
  */
 package com.alanmrace.jimzmlparser.imzml;
 
+import com.alanmrace.jimzmlparser.data.DataTypeTransform;
+import com.alanmrace.jimzmlparser.data.QuantizationDataTransform;
 import com.alanmrace.jimzmlparser.exceptions.ImzMLParseException;
 import com.alanmrace.jimzmlparser.exceptions.MzMLParseException;
 import com.alanmrace.jimzmlparser.mzml.*;
 import com.alanmrace.jimzmlparser.obo.OBO;
 import com.alanmrace.jimzmlparser.parser.ImzMLHandler;
 import com.alanmrace.jimzmlparser.parser.MzMLHeaderHandler;
+import com.alanmrace.jimzmlparser.writer.AdaptiveCompression;
 import com.alanmrace.jimzmlparser.writer.ImzMLSteamWriter;
 import com.alanmrace.jimzmlparser.writer.ImzMLWriter;
+import java.io.File;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Ignore;
 import org.junit.Test;
@@ -108,4 +121,404 @@ public class ImzMLWriterTest {
 
         streamer.write(imzML);
     }
+
+    /**
+     * Test that an imzML file written with a trained Zstd dictionary references 
+     * the dictionary from each array, and that the data read back with 
+     * ImzMLHandler is the same as that written.
+     * 
+     * @throws Exception Failed to write or parse the file
+     */
+    @Test
+    public void testImzMLWriterZstdDictionary() throws Exception {
+        File imzMLFile = File.createTempFile("dictionary", ".imzML");
+        File ibdFile = new File(imzMLFile.getPath().replace(".imzML", ".ibd"));
+        imzMLFile.deleteOnExit();
+        ibdFile.deleteOnExit();
+        
+        ImzML imzML = ImzML.create();
+        Random random = new Random(11);
+        List<double[]> mzArrays = new ArrayList<double[]>();
+        List<double[]> intensityArrays = new ArrayList<double[]>();
+        
+        for (int i = 0; i < 100; i++) {
+            double[] mzs = new double[200];
+            double[] intensities = new double[mzs.length];
+            
+            for (int j = 0; j < mzs.length; j++) {
+                mzs[j] = 100 + j * 2.5 + random.nextInt(4) * 0.001;
+                intensities[j] = random.nextInt(50) * 10;
+            }
+            
+            Spectrum spectrum = Spectrum.createSpectrum(mzs, intensities, 1 + (i % 10), 1 + (i / 10));
+            spectrum.getBinaryDataArrayList().getmzArray().setCompression(BinaryDataArray.CompressionType.ZSTD);
+            spectrum.getBinaryDataArrayList().getIntensityArray().setCompression(BinaryDataArray.CompressionType.ZSTD);
+            
+            imzML.addSpectrum(spectrum);
+            mzArrays.add(mzs);
+            intensityArrays.add(intensities);
+        }
+        
+        ImzMLWriter writer = new ImzMLWriter();
+        writer.setZstdDictionarySize(4 * 1024);
+        writer.write(imzML, imzMLFile.getPath());
+        
+        ImzML imzMLBack = ImzMLHandler.parseimzML(imzMLFile.getPath());
+        
+        try {
+            assertEquals(mzArrays.size(), imzMLBack.getRun().getSpectrumList().size());
+            
+            for (int i = 0; i < mzArrays.size(); i++) {
+                Spectrum spectrum = imzMLBack.getRun().getSpectrumList().getSpectrum(i);
+                BinaryDataArray mzArray = spectrum.getBinaryDataArrayList().getmzArray();
+                
+                assertNotNull(mzArray.getUserParam(BinaryDataArray.ZSTD_DICTIONARY_OFFSET_NAME));
+                assertNotNull(mzArray.getZstdDictionary());
+                assertArrayEquals(mzArrays.get(i), spectrum.getmzArray(), 0.0);
+                assertArrayEquals(intensityArrays.get(i), spectrum.getIntensityArray(), 0.0);
+            }
+        } finally {
+            imzMLBack.close();
+        }
+    }
+
+    /**
+     * Test that an imzML file of zlib compressed arrays, written with adaptive 
+     * compression selecting Zstd and a trained Zstd dictionary, references the 
+     * dictionary from each array, and that the data read back with ImzMLHandler 
+     * is the same as that written.
+     * 
+     * @throws Exception Failed to write or parse the file
+     */
+    @Test
+    public void testImzMLWriterAdaptiveCompressionZstdDictionary() throws Exception {
+        File imzMLFile = File.createTempFile("adaptivedictionary", ".imzML");
+        File ibdFile = new File(imzMLFile.getPath().replace(".imzML", ".ibd"));
+        imzMLFile.deleteOnExit();
+        ibdFile.deleteOnExit();
+        
+        ImzML imzML = ImzML.create();
+        Random random = new Random(13);
+        List<double[]> mzArrays = new ArrayList<double[]>();
+        List<double[]> intensityArrays = new ArrayList<double[]>();
+        
+        for (int i = 0; i < 100; i++) {
+            double[] mzs = new double[200];
+            double[] intensities = new double[mzs.length];
+            
+            for (int j = 0; j < mzs.length; j++) {
+                mzs[j] = 100 + j * 2.5 + random.nextInt(4) * 0.001;
+                intensities[j] = random.nextInt(50) * 10;
+            }
+            
+            Spectrum spectrum = Spectrum.createSpectrum(mzs, intensities, 1 + (i % 10), 1 + (i / 10));
+            spectrum.getBinaryDataArrayList().getmzArray().setCompression(BinaryDataArray.CompressionType.ZLIB);
+            spectrum.getBinaryDataArrayList().getIntensityArray().setCompression(BinaryDataArray.CompressionType.ZLIB);
+            
+            imzML.addSpectrum(spectrum);
+            mzArrays.add(mzs);
+            intensityArrays.add(intensities);
+        }
+        
+        AdaptiveCompression adaptiveCompression = new AdaptiveCompression(AdaptiveCompression.Objective.SMALLEST_SIZE);
+        adaptiveCompression.setCandidates(Arrays.asList(new AdaptiveCompression.Candidate(BinaryDataArray.CompressionType.ZSTD, 3)));
+        
+        ImzMLWriter writer = new ImzMLWriter();
+        writer.setAdaptiveCompression(adaptiveCompression);
+        writer.setZstdDictionarySize(4 * 1024);
+        writer.write(imzML, imzMLFile.getPath());
+        
+        ImzML imzMLBack = ImzMLHandler.parseimzML(imzMLFile.getPath());
+        
+        try {
+            assertEquals(mzArrays.size(), imzMLBack.getRun().getSpectrumList().size());
+            
+            for (int i = 0; i < mzArrays.size(); i++) {
+                Spectrum spectrum = imzMLBack.getRun().getSpectrumList().getSpectrum(i);
+                
+                for (BinaryDataArray bda : spectrum.getBinaryDataArrayList()) {
+                    assertEquals(BinaryDataArray.ZSTD_COMPRESSION_ID, bda.getCVParamOrChild(BinaryDataArray.COMPRESSION_TYPE_ID).getTerm().getID());
+                    assertNotNull(bda.getUserParam(BinaryDataArray.ZSTD_DICTIONARY_OFFSET_NAME));
+                    assertNotNull(bda.getZstdDictionary());
+                }
+                
+                assertArrayEquals(mzArrays.get(i), spectrum.getmzArray(), 0.0);
+                assertArrayEquals(intensityArrays.get(i), spectrum.getIntensityArray(), 0.0);
+            }
+        } finally {
+            imzMLBack.close();
+        }
+    }
+
+    /**
+     * Test that byte shuffled arrays are written with the generic binary data type
+     * term and the encoded data type UserParam, so that other readers reject them,
+     * without modifying the ReferenceableParamGroups shared by the source arrays, 
+     * and that the data read back with ImzMLHandler is the same as that written.
+     * 
+     * @throws Exception Failed to write or parse the file
+     */
+    @Test
+    public void testImzMLWriterShuffleMarker() throws Exception {
+        File imzMLFile = File.createTempFile("shuffle", ".imzML");
+        File ibdFile = new File(imzMLFile.getPath().replace(".imzML", ".ibd"));
+        imzMLFile.deleteOnExit();
+        ibdFile.deleteOnExit();
+        
+        ImzML imzML = ImzMLHandler.parseimzML(ImzMLWriterTest.class.getResource("/MatrixTests_N2.imzML").getPath());
+        
+        try {
+            SpectrumList spectrumList = imzML.getRun().getSpectrumList();
+            List<double[]> intensityArrays = new ArrayList<double[]>();
+            ReferenceableParamGroup intensityRPG = imzML.getReferenceableParamGroupList().getReferenceableParamGroup("intensityArray");
+            
+            for (int i = 0; i < spectrumList.size(); i++) {
+                Spectrum spectrum = spectrumList.getSpectrum(i);
+                
+                intensityArrays.add(spectrum.getIntensityArray());
+                spectrum.getBinaryDataArrayList().getIntensityArray().setCompression(BinaryDataArray.CompressionType.SHUFFLE_ZSTD);
+            }
+            
+            new ImzMLWriter().write(imzML, imzMLFile.getPath());
+            
+            // The shared group retains the specific data type and is not shuffled
+            assertEquals(BinaryDataArray.SINGLE_PRECISION_ID, intensityRPG.getCVParamOrChild(BinaryDataArray.BINARY_DATA_TYPE_ID).getTerm().getID());
+            assertNull(intensityRPG.getUserParam(BinaryDataArray.SHUFFLE_NAME));
+            
+            ImzML imzMLBack = ImzMLHandler.parseimzML(imzMLFile.getPath());
+            
+            try {
+                assertEquals(intensityArrays.size(), imzMLBack.getRun().getSpectrumList().size());
+                
+                for (int i = 0; i < intensityArrays.size(); i++) {
+                    Spectrum spectrum = imzMLBack.getRun().getSpectrumList().getSpectrum(i);
+                    BinaryDataArray intensityArray = spectrum.getBinaryDataArrayList().getIntensityArray();
+                    BinaryDataArray mzArray = spectrum.getBinaryDataArrayList().getmzArray();
+                    
+                    assertEquals(BinaryDataArray.BINARY_DATA_TYPE_ID, intensityArray.getCVParamOrChild(BinaryDataArray.BINARY_DATA_TYPE_ID).getTerm().getID());
+                    assertNotNull(intensityArray.getUserParam(BinaryDataArray.ENCODED_DATA_TYPE_NAME));
+                    assertTrue(intensityArray.hasNonStandardEncoding());
+                    assertEquals(BinaryDataArray.ZSTD_COMPRESSION_ID, intensityArray.getCVParamOrChild(BinaryDataArray.COMPRESSION_TYPE_ID).getTerm().getID());
+                    
+                    assertNull(mzArray.getUserParam(BinaryDataArray.ENCODED_DATA_TYPE_NAME));
+                    assertFalse(mzArray.hasNonStandardEncoding());
+                    
+                    assertArrayEquals(intensityArrays.get(i), spectrum.getIntensityArray(), 0.0);
+                }
+            } finally {
+                imzMLBack.close();
+            }
+        } finally {
+            imzML.close();
+        }
+    }
+
+    /**
+     * Test that quantized arrays are written with the generic binary data type 
+     * term and the encoded data type UserParam, so that other readers reject them,
+     * and that the data read back with ImzMLHandler is within the quantization error.
+     * 
+     * @throws Exception Failed to write or parse the file
+     */
+    @Test
+    public void testImzMLWriterQuantizationMarker() throws Exception {
+        File imzMLFile = File.createTempFile("quantization", ".imzML");
+        File ibdFile = new File(imzMLFile.getPath().replace(".imzML", ".ibd"));
+        imzMLFile.deleteOnExit();
+        ibdFile.deleteOnExit();
+        
+        ImzML imzML = ImzML.create();
+        double[] mzs = new double[] {100, 200, 300, 400};
+        double[] intensities = new double[] {10, 250.5, 1e6, 0};
+        
+        for (int i = 0; i < 4; i++) {
+            Spectrum spectrum = Spectrum.createSpectrum(mzs, intensities, i + 1, 1);
+            spectrum.getBinaryDataArrayList().getIntensityArray().setCompression(BinaryDataArray.CompressionType.HALF_FLOAT_ZSTD);
+            
+            imzML.addSpectrum(spectrum);
+        }
+        
+        new ImzMLWriter().write(imzML, imzMLFile.getPath());
+        
+        ImzML imzMLBack = ImzMLHandler.parseimzML(imzMLFile.getPath());
+        
+        try {
+            for (int i = 0; i < 4; i++) {
+                Spectrum spectrum = imzMLBack.getRun().getSpectrumList().getSpectrum(i);
+                BinaryDataArray intensityArray = spectrum.getBinaryDataArrayList().getIntensityArray();
+                
+                assertEquals(BinaryDataArray.BINARY_DATA_TYPE_ID, intensityArray.getCVParamOrChild(BinaryDataArray.BINARY_DATA_TYPE_ID).getTerm().getID());
+                assertEquals(DataTypeTransform.DataType.DOUBLE, intensityArray.getDataType());
+                assertTrue(intensityArray.hasNonStandardEncoding());
+                assertFalse(spectrum.getBinaryDataArrayList().getmzArray().hasNonStandardEncoding());
+                
+                double[] intensitiesBack = spectrum.getIntensityArray();
+                
+                assertArrayEquals(mzs, spectrum.getmzArray(), 0.0);
+                assertEquals(10, intensitiesBack[0], 0.01);
+                assertEquals(250.5, intensitiesBack[1], 0.2);
+                assertEquals(QuantizationDataTransform.MAXIMUM_HALF_FLOAT, intensitiesBack[2], 0.0);
+                assertEquals(0, intensitiesBack[3], 0.0);
+            }
+        } finally {
+            imzMLBack.close();
+        }
+    }
+
+    /**
+     * Test that m/z arrays encoded against a reference m/z axis are written with
+     * the generic binary data type term and the encoded data type UserParam, so 
+     * that other readers reject them, and that the data read back with 
+     * ImzMLHandler is the same as that written.
+     * 
+     * @throws Exception Failed to write or parse the file
+     */
+    @Test
+    public void testImzMLWriterReferenceAxisMarker() throws Exception {
+        File imzMLFile = File.createTempFile("referenceaxis", ".imzML");
+        File ibdFile = new File(imzMLFile.getPath().replace(".imzML", ".ibd"));
+        imzMLFile.deleteOnExit();
+        ibdFile.deleteOnExit();
+        
+        ImzML imzML = ImzML.create();
+        List<double[]> mzArrays = new ArrayList<double[]>();
+        
+        for (int i = 0; i < 10; i++) {
+            double[] mzs = new double[50];
+            double[] intensities = new double[mzs.length];
+            
+            for (int j = 0; j < mzs.length; j++) {
+                mzs[j] = 100 + (j * 2 + i % 2) * 0.5;
+                intensities[j] = j;
+            }
+            
+            imzML.addSpectrum(Spectrum.createSpectrum(mzs, intensities, i + 1, 1));
+            mzArrays.add(mzs);
+        }
+        
+        ImzMLWriter writer = new ImzMLWriter();
+        writer.setUseReferencemzAxis(true);
+        writer.write(imzML, imzMLFile.getPath());
+        
+        ImzML imzMLBack = ImzMLHandler.parseimzML(imzMLFile.getPath());
+        
+        try {
+            for (int i = 0; i < mzArrays.size(); i++) {
+                Spectrum spectrum = imzMLBack.getRun().getSpectrumList().getSpectrum(i);
+                BinaryDataArray mzArray = spectrum.getBinaryDataArrayList().getmzArray();
+                
+                assertNotNull(mzArray.getUserParam(BinaryDataArray.REFERENCE_MZ_AXIS_OFFSET_NAME));
+                assertEquals(BinaryDataArray.BINARY_DATA_TYPE_ID, mzArray.getCVParamOrChild(BinaryDataArray.BINARY_DATA_TYPE_ID).getTerm().getID());
+                assertTrue(mzArray.hasNonStandardEncoding());
+                assertFalse(spectrum.getBinaryDataArrayList().getIntensityArray().hasNonStandardEncoding());
+                
+                assertArrayEquals(mzArrays.get(i), spectrum.getmzArray(), 0.0);
+            }
+        } finally {
+            imzMLBack.close();
+        }
+    }
+
+    /**
+     * Test that writing a compact parsed imzML file with adaptive compression 
+     * does not modify the ReferenceableParamGroups describing the compression of 
+     * the source, which are still required to read the remaining spectra, and 
+     * that the data written is the same as the source.
+     * 
+     * @throws Exception Failed to write or parse the files
+     */
+    @Test
+    public void testImzMLWriterAdaptiveCompressionCompact() throws Exception {
+        File sourceFile = File.createTempFile("adaptivesource", ".imzML");
+        File sourceIbdFile = new File(sourceFile.getPath().replace(".imzML", ".ibd"));
+        File imzMLFile = File.createTempFile("adaptive", ".imzML");
+        File ibdFile = new File(imzMLFile.getPath().replace(".imzML", ".ibd"));
+        sourceFile.deleteOnExit();
+        sourceIbdFile.deleteOnExit();
+        imzMLFile.deleteOnExit();
+        ibdFile.deleteOnExit();
+        
+        // Write a copy of the test data compressed with Zstd, described by the 
+        // shared ReferenceableParamGroups
+        ImzML imzML = ImzMLHandler.parseimzML(ImzMLWriterTest.class.getResource("/MatrixTests_N2.imzML").getPath());
+        List<double[]> mzArrays = new ArrayList<double[]>();
+        List<double[]> intensityArrays = new ArrayList<double[]>();
+        
+        try {
+            for (Spectrum spectrum : imzML.getRun().getSpectrumList()) {
+                mzArrays.add(spectrum.getmzArray());
+                intensityArrays.add(spectrum.getIntensityArray());
+            }
+            
+            for (ReferenceableParamGroup rpg : imzML.getReferenceableParamGroupList()) {
+                if (rpg.getCVParamOrChild(BinaryDataArray.COMPRESSION_TYPE_ID) != null) {
+                    rpg.removeChildrenOfCVParam(BinaryDataArray.COMPRESSION_TYPE_ID, false);
+                    rpg.addCVParam(new EmptyCVParam(OBO.getOBO().getTerm(BinaryDataArray.ZSTD_COMPRESSION_ID)));
+                }
+            }
+            
+            new ImzMLWriter().write(imzML, sourceFile.getPath());
+        } finally {
+            imzML.close();
+        }
+        
+        ImzML source = ImzMLHandler.parseimzMLCompact(sourceFile.getPath());
+        
+        try {
+            BinaryDataArray sourceIntensityArray = source.getRun().getSpectrumList().getSpectrum(0).getBinaryDataArrayList().getIntensityArray();
+            
+            CVParam sourceCompression = sourceIntensityArray.getCVParamOrChild(BinaryDataArray.COMPRESSION_TYPE_ID);
+            
+            // The compression is described by a shared ReferenceableParamGroup
+            assertEquals(BinaryDataArray.ZSTD_COMPRESSION_ID, sourceCompression.getTerm().getID());
+            assertFalse(sourceIntensityArray.containsCVParam(sourceCompression));
+            
+            int numZstdGroups = countGroups(source, BinaryDataArray.ZSTD_COMPRESSION_ID);
+            assertEquals(2, numZstdGroups);
+            
+            // Sample only the first spectrum, so the remaining spectra are read while writing
+            AdaptiveCompression adaptiveCompression = new AdaptiveCompression(AdaptiveCompression.Objective.SMALLEST_SIZE);
+            adaptiveCompression.setCandidates(Arrays.asList(new AdaptiveCompression.Candidate(BinaryDataArray.CompressionType.NONE)));
+            adaptiveCompression.setMaximumSampleSpectra(1);
+            
+            ImzMLWriter writer = new ImzMLWriter();
+            writer.setAdaptiveCompression(adaptiveCompression);
+            writer.write(source, imzMLFile.getPath());
+            
+            // The shared groups still describe the compression of the source
+            assertEquals(numZstdGroups, countGroups(source, BinaryDataArray.ZSTD_COMPRESSION_ID));
+        } finally {
+            source.close();
+        }
+        
+        ImzML imzMLBack = ImzMLHandler.parseimzML(imzMLFile.getPath());
+        
+        try {
+            assertEquals(mzArrays.size(), imzMLBack.getRun().getSpectrumList().size());
+            
+            for (int i = 0; i < mzArrays.size(); i++) {
+                Spectrum spectrum = imzMLBack.getRun().getSpectrumList().getSpectrum(i);
+                
+                assertEquals(BinaryDataArray.NO_COMPRESSION_ID, spectrum.getBinaryDataArrayList().getIntensityArray().getCVParamOrChild(BinaryDataArray.COMPRESSION_TYPE_ID).getTerm().getID());
+                assertArrayEquals(mzArrays.get(i), spectrum.getmzArray(), 0.0);
+                assertArrayEquals(intensityArrays.get(i), spectrum.getIntensityArray(), 0.0);
+            }
+        } finally {
+            imzMLBack.close();
+        }
+    }
+
+    private static int countGroups(ImzML imzML, String compressionID) {
+        int count = 0;
+        
+        for (ReferenceableParamGroup rpg : imzML.getReferenceableParamGroupList()) {
+            CVParam compression = rpg.getCVParamOrChild(BinaryDataArray.COMPRESSION_TYPE_ID);
+            
+            if (compression != null && compressionID.equals(compression.getTerm().getID())) {
+                count++;
+            }
+        }
+        
+        return count;
+    }
 }
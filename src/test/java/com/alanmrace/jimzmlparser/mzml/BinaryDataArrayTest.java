@@ -0,0 +1,319 @@
+package com.alanmrace.jimzmlparser.mzml;
+
+import com.alanmrace.jimzmlparser.data.BinaryDataStorage;
+import com.alanmrace.jimzmlparser.data.DataTransform;
+import com.alanmrace.jimzmlparser.data.DataTransformation;
+import com.alanmrace.jimzmlparser.data.DataTypeTransform.DataType;
+import com.alanmrace.jimzmlparser.data.XZDataTransform;
+import com.alanmrace.jimzmlparser.data.ZlibDataTransform;
+import com.alanmrace.jimzmlparser.imzml.ImzML;
+import com.alanmrace.jimzmlparser.parser.ImzMLHandler;
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tukaani.xz.LZMA2Options;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for BinaryDataArray.
+ */
+public class BinaryDataArrayTest {
+
+    /**
+     * Resource imzML file with 4 spectra for testing.
+     */
+    private static final String TEST_RESOURCE = "/MatrixTests_N2.imzML";
+
+    private ImzML imzML;
+
+    /**
+     * DataStorage counting the number of reads from the IBD file.
+     */
+    private CountingDataStorage dataStorage;
+
+    /**
+     * BinaryDataStorage which counts the number of reads.
+     */
+    private static class CountingDataStorage extends BinaryDataStorage {
+
+        private final AtomicInteger reads = new AtomicInteger();
+
+        CountingDataStorage(File dataFile) throws IOException {
+            super(dataFile, false);
+        }
+
+        @Override
+        protected void readData(long offset, byte[] buffer, int bufferOffset, int length) throws IOException {
+            reads.incrementAndGet();
+
+            super.readData(offset, buffer, bufferOffset, length);
+        }
+    }
+
+    /**
+     * Read of the data of a BinaryDataArray, returning the data as double[].
+     */
+    private interface Read {
+        double[] read(BinaryDataArray bda) throws Exception;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        assertNotNull("Test file missing", BinaryDataArrayTest.class.getResource(TEST_RESOURCE));
+
+        String filename = BinaryDataArrayTest.class.getResource(TEST_RESOURCE).getPath();
+
+        imzML = ImzMLHandler.parseimzML(filename);
+        dataStorage = new CountingDataStorage(getIntensityArray().getDataLocation().getDataStorage().getFile());
+
+        for (Spectrum spectrum : imzML.getRun().getSpectrumList()) {
+            for (BinaryDataArray bda : spectrum.getBinaryDataArrayList()) {
+                bda.getDataLocation().setDataStorage(dataStorage);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        dataStorage.close();
+        imzML.close();
+    }
+
+    private BinaryDataArray getIntensityArray() {
+        return imzML.getRun().getSpectrumList().getSpectrum(0).getBinaryDataArrayList().getIntensityArray();
+    }
+
+    /**
+     * Check that a read following prefetch returns the data without reading from
+     * the DataStorage again.
+     */
+    private void assertPrefetchedRead(Read read) throws Exception {
+        BinaryDataArray bda = getIntensityArray();
+        double[] expected = bda.getDataAsDouble();
+
+        dataStorage.reads.set(0);
+        bda.prefetch();
+
+        assertArrayEquals(expected, read.read(bda), 1e-3);
+        assertEquals(1, dataStorage.reads.get());
+
+        // The prefetched data is only used once
+        assertArrayEquals(expected, read.read(bda), 1e-3);
+        assertEquals(2, dataStorage.reads.get());
+    }
+
+    private static double[] toDoubles(float[] data) {
+        double[] doubles = new double[data.length];
+
+        for (int i = 0; i < data.length; i++) {
+            doubles[i] = data[i];
+        }
+
+        return doubles;
+    }
+
+    /**
+     * Test of prefetch method, of class BinaryDataArray, followed by
+     * getDataAsDouble().
+     *
+     * @throws Exception Failed to read the data
+     */
+    @Test
+    public void testPrefetchGetDataAsDouble() throws Exception {
+        assertPrefetchedRead(new Read() {
+            @Override
+            public double[] read(BinaryDataArray bda) throws Exception {
+                return bda.getDataAsDouble();
+            }
+        });
+    }
+
+    /**
+     * Test of prefetch method, of class BinaryDataArray, followed by
+     * getDataAsDouble(double[]).
+     *
+     * @throws Exception Failed to read the data
+     */
+    @Test
+    public void testPrefetchGetDataAsDoubleReuse() throws Exception {
+        assertPrefetchedRead(new Read() {
+            @Override
+            public double[] read(BinaryDataArray bda) throws Exception {
+                double[] reuse = new double[bda.getArrayLength()];
+
+                assertEquals(reuse.length, bda.getDataAsDouble(reuse));
+
+                return reuse;
+            }
+        });
+    }
+
+    /**
+     * Test of prefetch method, of class BinaryDataArray, followed by
+     * getDataAsFloat() and getDataAs(DataType).
+     *
+     * @throws Exception Failed to read the data
+     */
+    @Test
+    public void testPrefetchGetDataAsFloat() throws Exception {
+        assertPrefetchedRead(new Read() {
+            @Override
+            public double[] read(BinaryDataArray bda) throws Exception {
+                return toDoubles(bda.getDataAsFloat());
+            }
+        });
+
+        assertPrefetchedRead(new Read() {
+            @Override
+            public double[] read(BinaryDataArray bda) throws Exception {
+                return (double[]) bda.getDataAs(DataType.DOUBLE);
+            }
+        });
+    }
+
+    /**
+     * Test of prefetch method, of class BinaryDataArray, followed by
+     * getDataView().
+     *
+     * @throws Exception Failed to read the data
+     */
+    @Test
+    public void testPrefetchGetDataView() throws Exception {
+        assertPrefetchedRead(new Read() {
+            @Override
+            public double[] read(BinaryDataArray bda) throws Exception {
+                Buffer view = bda.getDataView();
+                double[] data = new double[view.remaining()];
+
+                if (view instanceof DoubleBuffer) {
+                    ((DoubleBuffer) view).get(data);
+                } else {
+                    float[] floats = new float[data.length];
+                    ((FloatBuffer) view).get(floats);
+
+                    data = toDoubles(floats);
+                }
+
+                return data;
+            }
+        });
+    }
+
+    /**
+     * Test of prefetch method, of class BinaryDataArray, followed by
+     * getDataAsDoubleAsync().
+     *
+     * @throws Exception Failed to read the data
+     */
+    @Test
+    public void testPrefetchGetDataAsDoubleAsync() throws Exception {
+        assertPrefetchedRead(new Read() {
+            @Override
+            public double[] read(BinaryDataArray bda) throws Exception {
+                return bda.getDataAsDoubleAsync().get();
+            }
+        });
+    }
+
+    /**
+     * Test of SpectrumList.iterator(int), checking that reading the data of each
+     * spectrum as float[] reads each array from the DataStorage only once.
+     *
+     * @throws Exception Failed to read the data
+     */
+    @Test
+    public void testPrefetchIterator() throws Exception {
+        SpectrumList spectrumList = imzML.getRun().getSpectrumList();
+        Iterator<Spectrum> spectra = spectrumList.iterator(2);
+        int count = 0;
+
+        while (spectra.hasNext()) {
+            Spectrum spectrum = spectra.next();
+
+            BinaryDataArrayList bdaList = spectrum.getBinaryDataArrayList();
+
+            assertEquals(bdaList.getmzArray().getArrayLength(), spectrum.getmzArrayAsFloat().length);
+            assertEquals(bdaList.getIntensityArray().getArrayLength(), spectrum.getIntensityArrayAsFloat().length);
+
+            count++;
+        }
+
+        assertEquals(spectrumList.size(), count);
+        assertEquals(2 * count, dataStorage.reads.get());
+    }
+
+    /**
+     * Get the last transform (the compression) of the transformation used to
+     * write the data of a BinaryDataArray.
+     */
+    private static DataTransform getCompressionTransform(BinaryDataArray bda) {
+        DataTransformation transformation = bda.generateDataTransformation();
+        List<DataTransform> transforms = transformation.getTransforms();
+
+        return transforms.get(transforms.size() - 1);
+    }
+
+    /**
+     * Test of setCompression method, of class BinaryDataArray, checking that the
+     * zlib compression level is set for the array.
+     */
+    @Test
+    public void testSetCompressionZlibLevel() {
+        BinaryDataArray bda = getIntensityArray();
+
+        bda.setCompression(BinaryDataArray.CompressionType.ZLIB);
+        assertEquals(Deflater.DEFAULT_COMPRESSION, ((ZlibDataTransform) getCompressionTransform(bda)).getCompressionLevel());
+
+        bda.setCompression(BinaryDataArray.CompressionType.ZLIB, Deflater.BEST_SPEED, 0, 0);
+        assertEquals(Deflater.BEST_SPEED, ((ZlibDataTransform) getCompressionTransform(bda)).getCompressionLevel());
+
+        bda.setCompression(BinaryDataArray.CompressionType.MSNUMPRESS_LINEAR_ZLIB, Deflater.BEST_COMPRESSION, 0, 0);
+        assertEquals(Deflater.BEST_COMPRESSION, ((ZlibDataTransform) getCompressionTransform(bda)).getCompressionLevel());
+
+        // Other arrays are unaffected
+        BinaryDataArray mzArray = imzML.getRun().getSpectrumList().getSpectrum(0).getBinaryDataArrayList().getmzArray();
+        mzArray.setCompression(BinaryDataArray.CompressionType.ZLIB);
+        assertEquals(Deflater.DEFAULT_COMPRESSION, ((ZlibDataTransform) getCompressionTransform(mzArray)).getCompressionLevel());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetCompressionInvalidZlibLevel() {
+        getIntensityArray().setCompression(BinaryDataArray.CompressionType.ZLIB, 12, 0, 0);
+    }
+
+    /**
+     * Test of setCompression method, of class BinaryDataArray, checking that the
+     * XZ preset and dictionary size are set for the array.
+     */
+    @Test
+    public void testSetCompressionXZSettings() {
+        BinaryDataArray bda = getIntensityArray();
+
+        bda.setCompression(BinaryDataArray.CompressionType.XZ);
+        XZDataTransform transform = (XZDataTransform) getCompressionTransform(bda);
+        assertEquals(LZMA2Options.PRESET_DEFAULT, transform.getPreset());
+        assertEquals(new XZDataTransform(-1, LZMA2Options.PRESET_DEFAULT, 0).getDictionarySize(), transform.getDictionarySize());
+
+        bda.setCompression(BinaryDataArray.CompressionType.XZ, 2, 16, 0);
+        transform = (XZDataTransform) getCompressionTransform(bda);
+        assertEquals(2, transform.getPreset());
+        assertEquals(1 << 16, transform.getDictionarySize());
+
+        bda.setCompression(BinaryDataArray.CompressionType.MSNUMPRESS_SLOF_XZ, 9, 0, 0);
+        assertEquals(9, ((XZDataTransform) getCompressionTransform(bda)).getPreset());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetCompressionInvalidXZDictionarySize() {
+        getIntensityArray().setCompression(BinaryDataArray.CompressionType.XZ, 0, 11, 0);
+    }
+}
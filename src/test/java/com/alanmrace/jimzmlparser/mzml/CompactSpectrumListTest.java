@@ -0,0 +1,440 @@
+package com.alanmrace.jimzmlparser.mzml;
+
+import com.alanmrace.jimzmlparser.data.BinaryDataStorage;
+import com.alanmrace.jimzmlparser.data.DataStorage;
+import com.alanmrace.jimzmlparser.imzml.ImzML;
+import com.alanmrace.jimzmlparser.imzml.PixelLocation;
+import com.alanmrace.jimzmlparser.parser.ImzMLHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for CompactSpectrumList.
+ */
+public class CompactSpectrumListTest {
+
+    /**
+     * Resource imzML file with 4 spectra, used to create the spectra added to
+     * the list.
+     */
+    private static final String TEST_RESOURCE = "/MatrixTests_N2.imzML";
+
+    private ImzML imzML;
+
+    private DataStorage dataStorage;
+
+    @Before
+    public void setUp() throws Exception {
+        assertNotNull("Test file missing", CompactSpectrumListTest.class.getResource(TEST_RESOURCE));
+
+        imzML = ImzMLHandler.parseimzML(CompactSpectrumListTest.class.getResource(TEST_RESOURCE).getPath());
+        dataStorage = getSourceSpectrum(0).getBinaryDataArrayList().getmzArray().getDataLocation().getDataStorage();
+    }
+
+    @After
+    public void tearDown() {
+        imzML.close();
+    }
+
+    private Spectrum getSourceSpectrum(int index) {
+        return imzML.getRun().getSpectrumList().getSpectrum(index);
+    }
+
+    /**
+     * Source spectrum whose data is used for the spectrum at the specified index.
+     */
+    private Spectrum getDataSpectrum(int index) {
+        return getSourceSpectrum(index % imzML.getRun().getSpectrumList().size());
+    }
+
+    private CompactSpectrumList createList(int count) {
+        return new CompactSpectrumList(count, null, imzML, dataStorage);
+    }
+
+    /**
+     * Create a copy of the first spectrum in the file, with the ID
+     * {@literal spectrum=<index>}, a pixel location and total ion current
+     * depending on the index, and the data of one of the spectra in the file.
+     */
+    private Spectrum createSpectrum(int index) {
+        Spectrum spectrum = new Spectrum(getSourceSpectrum(0), imzML);
+        Spectrum dataSpectrum = getDataSpectrum(index);
+
+        spectrum.id = "spectrum=" + index;
+        spectrum.defaultArrayLength = dataSpectrum.getDefaultArrayLength();
+
+        setValue(spectrum, Spectrum.TOTAL_ION_CURRENT_ID, "" + (index * 10.0));
+
+        Scan scan = spectrum.getScanList().get(0);
+
+        setValue(scan, Scan.POSITION_X_ID, "" + getExpectedPixelLocation(index).getX());
+        setValue(scan, Scan.POSITION_Y_ID, "" + getExpectedPixelLocation(index).getY());
+
+        copyExternalLocation(spectrum.getBinaryDataArrayList().getmzArray(), dataSpectrum.getBinaryDataArrayList().getmzArray());
+        copyExternalLocation(spectrum.getBinaryDataArrayList().getIntensityArray(), dataSpectrum.getBinaryDataArrayList().getIntensityArray());
+
+        return spectrum;
+    }
+
+    private static PixelLocation getExpectedPixelLocation(int index) {
+        return new PixelLocation(index % 5 + 1, index / 5 + 1, 1);
+    }
+
+    private static void setValue(MzMLContentWithParams content, String accession, String value) {
+        content.getCVParam(accession).setValueAsString(value);
+    }
+
+    private static void copyExternalLocation(BinaryDataArray bda, BinaryDataArray source) {
+        setValue(bda, BinaryDataArray.EXTERNAL_OFFSET_ID, "" + source.getExternalOffset());
+        setValue(bda, BinaryDataArray.EXTERNAL_ENCODED_LENGTH_ID, "" + source.getExternalEncodedLength());
+        setValue(bda, BinaryDataArray.EXTERNAL_ARRAY_LENGTH_ID, "" + source.getExternalArrayLength());
+    }
+
+    private CompactSpectrumList createTabulatedList(int numberOfSpectra) {
+        CompactSpectrumList spectrumList = createList(2);
+
+        for (int i = 0; i < numberOfSpectra; i++) {
+            assertTrue(spectrumList.addCompact(createSpectrum(i)));
+        }
+
+        return spectrumList;
+    }
+
+    /**
+     * Check that a spectrum in the list has the ID, pixel location, total ion
+     * current, external offsets and data of the spectrum created by
+     * createSpectrum for the specified index.
+     */
+    private void assertSpectrum(int expectedIndex, Spectrum spectrum) throws Exception {
+        Spectrum dataSpectrum = getDataSpectrum(expectedIndex);
+
+        assertEquals("spectrum=" + expectedIndex, spectrum.getID());
+        assertEquals(getExpectedPixelLocation(expectedIndex), spectrum.getPixelLocation());
+        assertEquals(dataSpectrum.getDefaultArrayLength(), spectrum.getDefaultArrayLength());
+        assertEquals(expectedIndex * 10.0, spectrum.getCVParam(Spectrum.TOTAL_ION_CURRENT_ID).getValueAsDouble(), 0.0);
+        assertEquals(dataSpectrum.getBinaryDataArrayList().getmzArray().getExternalOffset(), spectrum.getBinaryDataArrayList().getmzArray().getExternalOffset());
+        assertEquals(dataSpectrum.getBinaryDataArrayList().getIntensityArray().getExternalOffset(), spectrum.getBinaryDataArrayList().getIntensityArray().getExternalOffset());
+        assertArrayEquals(dataSpectrum.getmzArray(), spectrum.getmzArray(), 0.0);
+        assertArrayEquals(dataSpectrum.getIntensityArray(), spectrum.getIntensityArray(), 0.0);
+    }
+
+    /**
+     * Test of addCompact method, of class CompactSpectrumList, checking that the
+     * first spectrum with all of the values in the table is used as the template,
+     * and that only spectra which are compatible with the template are discarded.
+     */
+    @Test
+    public void testAddCompact() {
+        CompactSpectrumList spectrumList = createList(2);
+
+        // Without a pixel location the spectrum cannot be recreated from the table
+        Spectrum noPosition = createSpectrum(0);
+        noPosition.getScanList().get(0).removeCVParam(Scan.POSITION_X_ID);
+
+        assertFalse(spectrumList.addCompact(noPosition));
+        assertTrue(spectrumList.addCompact(createSpectrum(1)));
+        assertTrue(spectrumList.addCompact(createSpectrum(2)));
+
+        Spectrum additionalParam = createSpectrum(3);
+        additionalParam.addUserParam(new UserParam("additional", "value"));
+
+        assertFalse(spectrumList.addCompact(additionalParam));
+
+        Spectrum differentScan = createSpectrum(4);
+        setValue(differentScan.getScanList().get(0), "MS:1000016", "1.5");
+
+        assertFalse(spectrumList.addCompact(differentScan));
+
+        // Refers to different ReferenceableParamGroups to the template
+        Spectrum differentGroups = new Spectrum(getSourceSpectrum(1), imzML);
+
+        assertFalse(spectrumList.addCompact(differentGroups));
+        assertTrue(spectrumList.addCompact(createSpectrum(6)));
+
+        assertEquals(7, spectrumList.size());
+        assertEquals(4, spectrumList.getStoredSpectrumCount());
+
+        boolean[] tabulated = {false, true, true, false, false, false, true};
+
+        for (int i = 0; i < tabulated.length; i++) {
+            assertEquals(tabulated[i], spectrumList.isTabulated(i));
+        }
+
+        // The IDs of the template numbering are not stored
+        assertNull(spectrumList.getStoredID(1));
+        assertNull(spectrumList.getStoredID(6));
+        assertEquals("spectrum=6", spectrumList.getID(6));
+        assertEquals(differentGroups.getID(), spectrumList.getID(5));
+        assertSame(differentGroups, spectrumList.get(5));
+    }
+
+    /**
+     * Test of createSpectrum method, of class CompactSpectrumList, checking that
+     * the IDs, pixel locations, offsets and data are recreated from the table, and
+     * that the created spectra (and those requested with get) are not stored.
+     *
+     * @throws Exception Failed to read the data
+     */
+    @Test
+    public void testCreateSpectrum() throws Exception {
+        CompactSpectrumList spectrumList = createTabulatedList(10);
+
+        assertEquals(10, spectrumList.size());
+        assertEquals(0, spectrumList.getStoredSpectrumCount());
+
+        for (int i = 0; i < spectrumList.size(); i++) {
+            Spectrum spectrum = spectrumList.createSpectrum(i);
+
+            assertSpectrum(i, spectrum);
+            assertEquals(getExpectedPixelLocation(i), spectrumList.getPixelLocation(i));
+            assertSame(spectrumList, spectrum.getParent());
+            assertNotSame(spectrum, spectrumList.createSpectrum(i));
+        }
+
+        assertEquals(0, spectrumList.getStoredSpectrumCount());
+
+        // The requested spectrum is returned again while in use, but not stored
+        Spectrum spectrum = spectrumList.get(4);
+
+        assertSame(spectrum, spectrumList.get(4));
+        assertSame(spectrum, spectrumList.get("spectrum=4"));
+        assertNotSame(spectrum, spectrumList.createSpectrum(4));
+        assertEquals(0, spectrumList.getStoredSpectrumCount());
+        assertNull(spectrumList.get("spectrum=10"));
+    }
+
+    /**
+     * Test of get method, of class CompactSpectrumList, with a spectrum which
+     * is not compatible with the template in the middle of the list.
+     *
+     * @throws Exception Failed to read the data
+     */
+    @Test
+    public void testStoredSpectrum() throws Exception {
+        CompactSpectrumList spectrumList = createList(2);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(spectrumList.addCompact(createSpectrum(i)));
+        }
+
+        Spectrum stored = createSpectrum(3);
+        stored.addUserParam(new UserParam("additional", "value"));
+        stored.setPixelLocation(20, 20);
+
+        assertFalse(spectrumList.addCompact(stored));
+
+        for (int i = 4; i < 8; i++) {
+            assertTrue(spectrumList.addCompact(createSpectrum(i)));
+        }
+
+        assertEquals(1, spectrumList.getStoredSpectrumCount());
+        assertSame(stored, spectrumList.get(3));
+        assertSame(stored, spectrumList.createSpectrum(3));
+        assertSame(stored, spectrumList.get("spectrum=3"));
+        assertSame(spectrumList, stored.getParent());
+        assertEquals(new PixelLocation(20, 20, -1), spectrumList.getPixelLocation(3));
+
+        for (int i = 0; i < spectrumList.size(); i++) {
+            if (i != 3) {
+                assertSpectrum(i, spectrumList.createSpectrum(i));
+            }
+        }
+    }
+
+    /**
+     * Test of remove method, of class CompactSpectrumList, checking that the IDs
+     * which follow the numbering of the template are kept once moved, and that
+     * spectra added afterwards get the correct IDs.
+     *
+     * @throws Exception Failed to read the data
+     */
+    @Test
+    public void testRemove() throws Exception {
+        CompactSpectrumList spectrumList = createTabulatedList(6);
+
+        Spectrum removed = spectrumList.remove(2);
+
+        assertEquals("spectrum=2", removed.getID());
+        assertEquals(5, spectrumList.size());
+        assertEquals(0, spectrumList.getStoredSpectrumCount());
+
+        for (int i = 0; i < spectrumList.size(); i++) {
+            int expectedIndex = (i < 2) ? i : i + 1;
+
+            assertEquals("spectrum=" + expectedIndex, spectrumList.getID(i));
+            assertEquals(i >= 2, spectrumList.getStoredID(i) != null);
+            assertTrue(spectrumList.isTabulated(i));
+            assertSpectrum(expectedIndex, spectrumList.createSpectrum(i));
+        }
+
+        assertNull(spectrumList.get("spectrum=2"));
+        assertEquals("spectrum=4", spectrumList.get("spectrum=4").getID());
+
+        // Spectra added after the removal no longer follow the numbering by index
+        assertTrue(spectrumList.addCompact(createSpectrum(6)));
+        assertEquals(6, spectrumList.size());
+        assertEquals("spectrum=6", spectrumList.getStoredID(5));
+        assertSpectrum(6, spectrumList.createSpectrum(5));
+        assertEquals(0, spectrumList.getStoredSpectrumCount());
+    }
+
+    /**
+     * Test that rows can be added after spectra have been requested (and IDs which
+     * do not follow the numbering have been stored), and that the rows added
+     * afterwards can be accessed.
+     *
+     * @throws Exception Failed to read the data
+     */
+    @Test
+    public void testAddAfterGet() throws Exception {
+        CompactSpectrumList spectrumList = createList(2);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(spectrumList.addCompact(createSpectrum(i)));
+        }
+
+        // Creates the spectrum (and stores an ID out of the numbering) for the first rows only
+        Spectrum spectrum = spectrumList.get(1);
+        Spectrum outOfNumbering = createSpectrum(100);
+
+        assertTrue(spectrumList.addCompact(outOfNumbering));
+        assertEquals("spectrum=100", spectrumList.getStoredID(3));
+
+        for (int i = 4; i < 20; i++) {
+            assertTrue(spectrumList.addCompact(createSpectrum(i)));
+        }
+
+        assertEquals(20, spectrumList.size());
+        assertSame(spectrum, spectrumList.get(1));
+        assertEquals("spectrum=100", spectrumList.getID(3));
+        assertNull(spectrumList.getStoredID(19));
+
+        for (int i = 4; i < 20; i++) {
+            assertSpectrum(i, spectrumList.get(i));
+        }
+
+        assertEquals(0, spectrumList.getStoredSpectrumCount());
+    }
+
+    /**
+     * Test of update method, of class CompactSpectrumList, checking that changes
+     * to the values in the table update the table, and that other changes store
+     * the spectrum.
+     *
+     * @throws Exception Failed to read the data
+     */
+    @Test
+    public void testUpdate() throws Exception {
+        CompactSpectrumList spectrumList = createTabulatedList(6);
+
+        // Only the values in the table have changed, so the table is updated
+        Spectrum moved = spectrumList.get(1);
+        moved.setPixelLocation(30, 40);
+        moved.getCVParam(Spectrum.TOTAL_ION_CURRENT_ID).setValueAsString("5.0");
+        spectrumList.update(1);
+
+        assertEquals(0, spectrumList.getStoredSpectrumCount());
+        assertTrue(spectrumList.isTabulated(1));
+        assertEquals(new PixelLocation(30, 40, 1), spectrumList.getPixelLocation(1));
+        assertEquals(5.0, spectrumList.getSpectrumTable().getTotalIonCurrent(1), 0.0);
+        assertEquals(new PixelLocation(30, 40, 1), spectrumList.createSpectrum(1).getPixelLocation());
+
+        // Other changes can not be recreated from the table, so the spectrum is stored
+        Spectrum changed = spectrumList.get(3);
+        changed.addUserParam(new UserParam("additional", "value"));
+        spectrumList.update(3);
+
+        assertEquals(1, spectrumList.getStoredSpectrumCount());
+        assertFalse(spectrumList.isTabulated(3));
+        assertSame(changed, spectrumList.createSpectrum(3));
+
+        // Updating a stored spectrum, or one which has not been requested, has no effect
+        spectrumList.update(3);
+        spectrumList.update(5);
+
+        assertEquals(1, spectrumList.getStoredSpectrumCount());
+        assertSpectrum(5, spectrumList.createSpectrum(5));
+
+        // Changes to the pixel location through the list apply to a spectrum in use
+        Spectrum inUse = spectrumList.get(4);
+        spectrumList.setPixelLocation(4, 7, 8);
+
+        assertEquals(new PixelLocation(7, 8, 1), inUse.getPixelLocation());
+        assertEquals(new PixelLocation(7, 8, 1), spectrumList.getPixelLocation(4));
+    }
+
+    /**
+     * Test of setDataStorage method, of class CompactSpectrumList, checking that
+     * stored spectra, spectra in use and spectra created afterwards read from the
+     * new DataStorage.
+     *
+     * @throws Exception Failed to read the data
+     */
+    @Test
+    public void testSetDataStorage() throws Exception {
+        CompactSpectrumList spectrumList = createTabulatedList(3);
+
+        Spectrum stored = createSpectrum(3);
+        spectrumList.add(stored);
+
+        Spectrum inUse = spectrumList.get(1);
+        BinaryDataStorage newStorage = new BinaryDataStorage(dataStorage.getFile(), false);
+
+        try {
+            spectrumList.setDataStorage(newStorage);
+
+            assertSame(newStorage, spectrumList.getDataStorage());
+            assertEquals(1, spectrumList.getStoredSpectrumCount());
+
+            for (Spectrum spectrum : new Spectrum[] {stored, inUse, spectrumList.createSpectrum(2)}) {
+                for (BinaryDataArray bda : spectrum.getBinaryDataArrayList()) {
+                    assertSame(newStorage, bda.getDataLocation().getDataStorage());
+                }
+            }
+
+            assertSpectrum(1, inUse);
+            assertSpectrum(2, spectrumList.createSpectrum(2));
+        } finally {
+            newStorage.close();
+        }
+    }
+
+    /**
+     * Test of MzML.setDataStorageAccessMode with a CompactSpectrumList, checking
+     * that the spectra are not created and stored in order to change the access
+     * mode, and that the data is read from the new DataStorage.
+     *
+     * @throws Exception Failed to parse the file or read the data
+     */
+    @Test
+    public void testSetDataStorageAccessMode() throws Exception {
+        ImzML compact = ImzMLHandler.parseimzMLCompact(CompactSpectrumListTest.class.getResource(TEST_RESOURCE).getPath());
+
+        try {
+            CompactSpectrumList spectrumList = (CompactSpectrumList) compact.getRun().getSpectrumList();
+            Spectrum inUse = spectrumList.get(0);
+            int storedSpectrumCount = spectrumList.getStoredSpectrumCount();
+
+            compact.setDataStorageAccessMode(BinaryDataStorage.AccessMode.POSITIONAL_READ);
+
+            DataStorage newStorage = compact.getDataStorage();
+
+            assertSame(newStorage, spectrumList.getDataStorage());
+            assertEquals(BinaryDataStorage.AccessMode.POSITIONAL_READ, ((BinaryDataStorage) newStorage).getAccessMode());
+            assertEquals(storedSpectrumCount, spectrumList.getStoredSpectrumCount());
+            assertSame(newStorage, inUse.getBinaryDataArrayList().getmzArray().getDataLocation().getDataStorage());
+
+            for (int i = 0; i < spectrumList.size(); i++) {
+                Spectrum spectrum = spectrumList.get(i);
+
+                assertSame(newStorage, spectrum.getBinaryDataArrayList().getIntensityArray().getDataLocation().getDataStorage());
+                assertArrayEquals(getSourceSpectrum(i).getmzArray(), spectrum.getmzArray(), 0.0);
+                assertArrayEquals(getSourceSpectrum(i).getIntensityArray(), spectrum.getIntensityArray(), 0.0);
+            }
+        } finally {
+            compact.close();
+        }
+    }
+}
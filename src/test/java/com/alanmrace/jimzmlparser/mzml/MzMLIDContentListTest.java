@@ -0,0 +1,38 @@
+package com.alanmrace.jimzmlparser.mzml;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for removing items from MzMLIDContentList.
+ */
+public class MzMLIDContentListTest {
+
+    /**
+     * Test of remove methods, of class MzMLIDContentList, checking that single
+     * item lists can be removed from and that the ID dictionary is updated.
+     */
+    @Test
+    public void testRemove() {
+        SoftwareList softwareList = new SoftwareList(0);
+        Software first = new Software("first", "1.0");
+        Software second = new Software("second", "2.0");
+
+        softwareList.add(first);
+
+        assertSame(first, softwareList.remove(0));
+        assertEquals(0, softwareList.size());
+        assertNull(softwareList.get("first"));
+
+        softwareList.add(first);
+        softwareList.add(second);
+
+        assertTrue(softwareList.remove(first));
+        assertEquals(1, softwareList.size());
+        assertNull(softwareList.get("first"));
+        assertSame(second, softwareList.get("second"));
+
+        assertSame(second, softwareList.remove(softwareList.size() - 1));
+        assertNull(softwareList.get("second"));
+    }
+}
@@ -0,0 +1,98 @@
+package com.alanmrace.jimzmlparser.mzml;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for SpectrumTable.
+ */
+public class SpectrumTableTest {
+
+    private static SpectrumTable createTable(int rows) {
+        SpectrumTable table = new SpectrumTable(2);
+
+        for (int i = 0; i < rows; i++) {
+            int row = table.addRow();
+
+            table.setPixelLocation(row, i + 1, i + 2, 1);
+            table.setmzArray(row, 16 + i * 1000L, 400, 100);
+            table.setIntensityArray(row, 416 + i * 1000L, 400, 100);
+            table.setDefaultArrayLength(row, 100);
+        }
+
+        return table;
+    }
+
+    /**
+     * Test of addRow method, of class SpectrumTable, checking that the table
+     * grows beyond the initial capacity and retains the values.
+     */
+    @Test
+    public void testAddRow() {
+        SpectrumTable table = createTable(10);
+
+        assertEquals(10, table.size());
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, table.getX(i));
+            assertEquals(i + 2, table.getY(i));
+            assertEquals(1, table.getZ(i));
+            assertEquals(16 + i * 1000L, table.getmzOffset(i));
+            assertEquals(416 + i * 1000L, table.getIntensityOffset(i));
+            assertEquals(400, table.getmzEncodedLength(i));
+            assertEquals(100, table.getIntensityArrayLength(i));
+            assertEquals(100, table.getDefaultArrayLength(i));
+            assertTrue(Double.isNaN(table.getTotalIonCurrent(i)));
+        }
+
+        table.setTotalIonCurrent(3, 123.5);
+        assertEquals(123.5, table.getTotalIonCurrent(3), 0.0);
+    }
+
+    /**
+     * Test of removeRow method, of class SpectrumTable.
+     */
+    @Test
+    public void testRemoveRow() {
+        SpectrumTable table = createTable(5);
+
+        table.removeRow(1);
+
+        assertEquals(4, table.size());
+        assertEquals(1, table.getX(0));
+        assertEquals(3, table.getX(1));
+        assertEquals(2016L, table.getmzOffset(1));
+
+        table.removeRow(3);
+
+        assertEquals(3, table.size());
+        assertEquals(4, table.getX(2));
+    }
+
+    /**
+     * Test that accessing a row beyond the size of the table fails, even when
+     * the row has been allocated.
+     */
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testRowOutOfBounds() {
+        SpectrumTable table = createTable(3);
+
+        table.clear();
+        table.getX(0);
+    }
+
+    /**
+     * Test of trimToSize and getMemoryUsage methods, of class SpectrumTable.
+     */
+    @Test
+    public void testTrimToSize() {
+        SpectrumTable table = createTable(10);
+
+        assertTrue(table.getMemoryUsage() >= 10L * SpectrumTable.BYTES_PER_ROW);
+
+        table.trimToSize();
+
+        assertEquals(10L * SpectrumTable.BYTES_PER_ROW, table.getMemoryUsage());
+        assertEquals(10, table.getX(9));
+    }
+}
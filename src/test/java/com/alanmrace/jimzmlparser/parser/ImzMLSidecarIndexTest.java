@@ -0,0 +1,395 @@
+package com.alanmrace.jimzmlparser.parser;
+
+import com.alanmrace.jimzmlparser.data.BinaryDataStorage;
+import com.alanmrace.jimzmlparser.imzml.ImzML;
+import com.alanmrace.jimzmlparser.mzml.CompactSpectrumList;
+import com.alanmrace.jimzmlparser.mzml.Spectrum;
+import com.alanmrace.jimzmlparser.mzml.SpectrumList;
+import com.alanmrace.jimzmlparser.mzml.SpectrumTable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ImzMLSidecarIndex.
+ */
+public class ImzMLSidecarIndexTest {
+
+    /**
+     * Resource imzML file with 4 spectra, used to create imzML files with more
+     * spectra.
+     */
+    private static final String TEST_RESOURCE = "/MatrixTests_N2.imzML";
+
+    private static String createXML(int numberOfSpectra) {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<mzML><run><spectrumList count=\"")
+                .append(numberOfSpectra).append("\">\n");
+
+        for (int i = 0; i < numberOfSpectra; i++) {
+            xml.append("<spectrum index=\"").append(i).append("\" id=\"s").append(i).append("\"><a/></spectrum>\n");
+        }
+
+        return xml.append("</spectrumList></run></mzML>\n").toString();
+    }
+
+    private static String createXML(int numberOfSpectra, int paddingLength) {
+        StringBuilder padding = new StringBuilder();
+
+        for (int i = 0; i < paddingLength; i++) {
+            padding.append("<a/>");
+        }
+
+        return createXML(numberOfSpectra).replace("<a/>", padding);
+    }
+
+    private static File createFile(String xml) throws Exception {
+        File file = File.createTempFile("sidecar", ".imzML");
+        file.deleteOnExit();
+
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(xml.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        return file;
+    }
+
+    /**
+     * Test of findSpectra method, of class ImzMLSidecarIndex.
+     *
+     * @throws Exception Failed to create the test file
+     */
+    @Test
+    public void testFindSpectra() throws Exception {
+        String xml = createXML(5);
+        File file = createFile(xml);
+
+        long firstSpectrum = xml.indexOf("<spectrum ");
+        long spectraEnd = xml.indexOf("</spectrumList>");
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+
+            long[][] segments = ImzMLSidecarIndex.findSpectra(channel, firstSpectrum, spectraEnd, new int[]{0, 3, 4}, new String[]{"s0", "s3", "s4"});
+
+            assertNotNull(segments);
+            assertEquals(firstSpectrum, segments[0][0]);
+            assertEquals(xml.indexOf("<spectrum index=\"1\""), segments[0][1]);
+            assertEquals(xml.indexOf("<spectrum index=\"3\""), segments[1][0]);
+            assertEquals(xml.indexOf("<spectrum index=\"4\""), segments[2][0]);
+            assertEquals(spectraEnd, segments[2][1]);
+
+            // The ID must be found at the start of the spectrum
+            assertNull(ImzMLSidecarIndex.findSpectra(channel, firstSpectrum, spectraEnd, new int[]{2}, new String[]{"s1"}));
+
+            // More spectra than in the file
+            assertNull(ImzMLSidecarIndex.findSpectra(channel, firstSpectrum, spectraEnd, new int[]{5}, new String[]{"s5"}));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Test of findSpectra method, of class ImzMLSidecarIndex, with spectra
+     * larger than the buffer, so that tags are split between reads.
+     *
+     * @throws Exception Failed to create the test file
+     */
+    @Test
+    public void testFindSpectraLargeSpectra() throws Exception {
+        String xml = createXML(6, 30001);
+        File file = createFile(xml);
+
+        long firstSpectrum = xml.indexOf("<spectrum ");
+        long spectraEnd = xml.indexOf("</spectrumList>");
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            long[][] segments = ImzMLSidecarIndex.findSpectra(raf.getChannel(), firstSpectrum, spectraEnd, new int[]{1, 2, 5}, new String[]{"s1", "s2", "s5"});
+
+            assertNotNull(segments);
+            assertEquals(xml.indexOf("<spectrum index=\"1\""), segments[0][0]);
+            assertEquals(xml.indexOf("<spectrum index=\"2\""), segments[0][1]);
+            assertEquals(xml.indexOf("<spectrum index=\"2\""), segments[1][0]);
+            assertEquals(xml.indexOf("<spectrum index=\"3\""), segments[1][1]);
+            assertEquals(xml.indexOf("<spectrum index=\"5\""), segments[2][0]);
+            assertEquals(spectraEnd, segments[2][1]);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Test of write and isUpToDate methods, of class ImzMLSidecarIndex, checking
+     * that the index becomes stale when the imzML or IBD file changes.
+     *
+     * @throws Exception Failed to create the test files
+     */
+    @Test
+    public void testWriteAndIsUpToDate() throws Exception {
+        File imzMLFile = createFile(createXML(3));
+        File ibdFile = ImzMLHandler.getIBDFile(imzMLFile.getPath());
+        ibdFile.deleteOnExit();
+        Files.write(ibdFile.toPath(), new byte[16]);
+
+        File indexFile = ImzMLSidecarIndex.getIndexFile(imzMLFile.getPath());
+        indexFile.deleteOnExit();
+
+        assertFalse(ImzMLSidecarIndex.isUpToDate(indexFile, imzMLFile, ibdFile));
+
+        CompactSpectrumList spectrumList = new CompactSpectrumList(3, null, null, null);
+
+        for (int i = 0; i < 3; i++) {
+            spectrumList.add(new Spectrum("s" + i, 0));
+        }
+
+        assertTrue(write(imzMLFile, ibdFile, spectrumList, indexFile));
+        assertTrue(ImzMLSidecarIndex.isUpToDate(indexFile, imzMLFile, ibdFile));
+
+        // Changing the size or modification time of the IBD file
+        Files.write(ibdFile.toPath(), new byte[32]);
+        assertFalse(ImzMLSidecarIndex.isUpToDate(indexFile, imzMLFile, ibdFile));
+
+        assertTrue(write(imzMLFile, ibdFile, spectrumList, indexFile));
+        assertTrue(ImzMLSidecarIndex.isUpToDate(indexFile, imzMLFile, ibdFile));
+
+        assertTrue(ibdFile.setLastModified(ibdFile.lastModified() - 10000));
+        assertFalse(ImzMLSidecarIndex.isUpToDate(indexFile, imzMLFile, ibdFile));
+
+        assertTrue(write(imzMLFile, ibdFile, spectrumList, indexFile));
+        assertTrue(ImzMLSidecarIndex.isUpToDate(indexFile, imzMLFile, ibdFile));
+
+        // Changing the imzML file
+
+        RandomAccessFile raf = new RandomAccessFile(imzMLFile, "rw");
+
+        try {
+            raf.seek(raf.length());
+            raf.write('\n');
+        } finally {
+            raf.close();
+        }
+
+        assertFalse(ImzMLSidecarIndex.isUpToDate(indexFile, imzMLFile, ibdFile));
+    }
+
+    private static boolean write(File imzMLFile, File ibdFile, CompactSpectrumList spectrumList, File indexFile) throws Exception {
+        return ImzMLSidecarIndex.write(imzMLFile, imzMLFile.length(), imzMLFile.lastModified(),
+                ibdFile.length(), ibdFile.lastModified(), "", spectrumList, indexFile);
+    }
+
+    /**
+     * Create an imzML file (with a copy of the IBD file) from the spectra of
+     * MatrixTests_N2.imzML, repeated with unique IDs and pixel locations. The
+     * spectra are made compatible with the first spectrum, so that only the first
+     * spectrum is parsed when reopening with the index, other than the spectrum
+     * at nonTemplateIndex (if not -1), which has an additional userParam.
+     */
+    private static File createImzMLFile(int numberOfSpectra, int nonTemplateIndex) throws Exception {
+        assertNotNull("Test file missing", ImzMLSidecarIndexTest.class.getResource(TEST_RESOURCE));
+
+        File resource = new File(ImzMLSidecarIndexTest.class.getResource(TEST_RESOURCE).getPath());
+        String xml = new String(Files.readAllBytes(resource.toPath()), "UTF-8");
+
+        int spectraStart = xml.indexOf("<spectrum ");
+        int spectraEnd = xml.indexOf("</spectrumList>");
+
+        List<String> templates = new ArrayList<String>();
+
+        for (int start = spectraStart; start >= 0 && start < spectraEnd; start = xml.indexOf("<spectrum ", start + 1)) {
+            templates.add(xml.substring(start, xml.indexOf("</spectrum>", start) + "</spectrum>".length()));
+        }
+
+        StringBuilder imzML = new StringBuilder(xml.substring(0, spectraStart).replace("<spectrumList count=\"4\"", "<spectrumList count=\"" + numberOfSpectra + "\""));
+
+        for (int i = 0; i < numberOfSpectra; i++) {
+            String spectrum = templates.get(i % templates.size())
+                    .replaceAll("sample[0-9]+experiment1", "sample1experiment1")
+                    .replaceAll("value=\"[0-9.]*\" unitCvRef=\"unit.ontology\"", "value=\"0.25\" unitCvRef=\"unit.ontology\"")
+                    .replaceAll("encodedLength=\"[0-9]*\"", "encodedLength=\"0\"")
+                    .replaceFirst("id=\"[^\"]*\" index=\"[0-9]*\"", "id=\"spectrum=" + i + "\" index=\"" + i + "\"")
+                    .replaceFirst("name=\"position x\" value=\"[0-9]*\"", "name=\"position x\" value=\"" + (i % 5 + 1) + "\"")
+                    .replaceFirst("name=\"position y\" value=\"[0-9]*\"", "name=\"position y\" value=\"" + (i / 5 + 1) + "\"");
+
+            if (i == nonTemplateIndex) {
+                spectrum = spectrum.replaceFirst("<scanList ", "<userParam name=\"additional\" value=\"value\"/>\n        <scanList ");
+            }
+
+            imzML.append(spectrum).append("\n      ");
+        }
+
+        imzML.append(xml.substring(spectraEnd));
+
+        File directory = Files.createTempDirectory("sidecar").toFile();
+        directory.deleteOnExit();
+
+        File imzMLFile = new File(directory, "sidecar.imzML");
+        imzMLFile.deleteOnExit();
+        Files.write(imzMLFile.toPath(), imzML.toString().getBytes("UTF-8"));
+
+        File ibdFile = new File(directory, "sidecar.ibd");
+        ibdFile.deleteOnExit();
+        Files.copy(ImzMLHandler.getIBDFile(resource.getPath()).toPath(), ibdFile.toPath());
+
+        ImzMLSidecarIndex.getIndexFile(imzMLFile.getPath()).deleteOnExit();
+
+        return imzMLFile;
+    }
+
+    /**
+     * Parse the imzML file writing the index, reopen it using the index, and check
+     * that the reopened spectra, table and IDs are the same as when the index was
+     * written, and that the spectra are the same as from a full parse.
+     */
+    private static void assertReopenedSameAsParsed(File imzMLFile, int expectedStoredSpectra) throws Exception {
+        String filename = imzMLFile.getPath();
+        File indexFile = ImzMLSidecarIndex.getIndexFile(filename);
+
+        assertFalse(indexFile.exists());
+
+        ImzML parsed = ImzMLSidecarIndex.parseimzML(filename);
+        ImzML reopened = null;
+        ImzML expected = null;
+
+        try {
+            assertTrue(ImzMLSidecarIndex.isUpToDate(indexFile, imzMLFile, ImzMLHandler.getIBDFile(filename)));
+
+            reopened = ImzMLSidecarIndex.open(filename, indexFile, BinaryDataStorage.AccessMode.RANDOM_ACCESS_FILE, null);
+            expected = ImzMLHandler.parseimzML(filename);
+
+            assertNotNull("Failed to reopen using the index", reopened);
+
+            CompactSpectrumList parsedSpectra = (CompactSpectrumList) parsed.getRun().getSpectrumList();
+            CompactSpectrumList spectra = (CompactSpectrumList) reopened.getRun().getSpectrumList();
+            SpectrumList expectedSpectra = expected.getRun().getSpectrumList();
+
+            assertEquals(expectedSpectra.size(), parsedSpectra.size());
+            assertEquals(expectedSpectra.size(), spectra.size());
+            assertEquals(expectedStoredSpectra, spectra.getStoredSpectrumCount());
+            assertEquals(parsedSpectra.getStoredSpectrumCount(), spectra.getStoredSpectrumCount());
+
+            SpectrumTable parsedTable = parsedSpectra.getSpectrumTable();
+            SpectrumTable table = spectra.getSpectrumTable();
+
+            for (int i = 0; i < spectra.size(); i++) {
+                assertEquals(parsedSpectra.isTabulated(i), spectra.isTabulated(i));
+                assertEquals(parsedSpectra.getID(i), spectra.getID(i));
+                assertEquals(parsedSpectra.getStoredID(i), spectra.getStoredID(i));
+
+                assertEquals(parsedTable.getX(i), table.getX(i));
+                assertEquals(parsedTable.getY(i), table.getY(i));
+                assertEquals(parsedTable.getZ(i), table.getZ(i));
+                assertEquals(parsedTable.getmzOffset(i), table.getmzOffset(i));
+                assertEquals(parsedTable.getmzEncodedLength(i), table.getmzEncodedLength(i));
+                assertEquals(parsedTable.getmzArrayLength(i), table.getmzArrayLength(i));
+                assertEquals(parsedTable.getIntensityOffset(i), table.getIntensityOffset(i));
+                assertEquals(parsedTable.getIntensityEncodedLength(i), table.getIntensityEncodedLength(i));
+                assertEquals(parsedTable.getIntensityArrayLength(i), table.getIntensityArrayLength(i));
+                assertEquals(parsedTable.getDefaultArrayLength(i), table.getDefaultArrayLength(i));
+                assertEquals(parsedTable.getTotalIonCurrent(i), table.getTotalIonCurrent(i), 0.0);
+
+                Spectrum expectedSpectrum = expectedSpectra.getSpectrum(i);
+                Spectrum spectrum = spectra.createSpectrum(i);
+
+                assertEquals(expectedSpectrum.getID(), spectrum.getID());
+                assertEquals(expectedSpectrum.getPixelLocation(), spectrum.getPixelLocation());
+                assertEquals(expectedSpectrum.getDefaultArrayLength(), spectrum.getDefaultArrayLength());
+                assertEquals(expectedSpectrum.getCVParam(Spectrum.TOTAL_ION_CURRENT_ID).getValueAsDouble(),
+                        spectrum.getCVParam(Spectrum.TOTAL_ION_CURRENT_ID).getValueAsDouble(), 0.0);
+                assertEquals(expectedSpectrum.getUserParamList().size(), spectrum.getUserParamList().size());
+                assertArrayEquals(expectedSpectrum.getmzArray(), spectrum.getmzArray(), 0.0);
+                assertArrayEquals(expectedSpectrum.getIntensityArray(), spectrum.getIntensityArray(), 0.0);
+            }
+        } finally {
+            parsed.close();
+
+            if (reopened != null) {
+                reopened.close();
+            }
+
+            if (expected != null) {
+                expected.close();
+            }
+        }
+    }
+
+    /**
+     * Test of parseimzML and open methods, of class ImzMLSidecarIndex, checking
+     * that an imzML file reopened using the index is the same as when parsed.
+     *
+     * @throws Exception Failed to create or parse the test file
+     */
+    @Test
+    public void testReopen() throws Exception {
+        assertReopenedSameAsParsed(createImzMLFile(20, -1), 0);
+    }
+
+    /**
+     * Test of parseimzML and open methods, of class ImzMLSidecarIndex, with a
+     * spectrum which is not compatible with the template in the middle of the
+     * spectrumList.
+     *
+     * @throws Exception Failed to create or parse the test file
+     */
+    @Test
+    public void testReopenNonTemplateSpectrum() throws Exception {
+        assertReopenedSameAsParsed(createImzMLFile(20, 9), 1);
+    }
+
+    /**
+     * Test of parseimzML method, of class ImzMLSidecarIndex, checking that the
+     * index is rebuilt when the IBD file changes, and that it can be rewritten
+     * while an imzML file opened using the index is in use.
+     *
+     * @throws Exception Failed to create or parse the test file
+     */
+    @Test
+    public void testRewriteAfterOpen() throws Exception {
+        File imzMLFile = createImzMLFile(20, -1);
+        String filename = imzMLFile.getPath();
+        File ibdFile = ImzMLHandler.getIBDFile(filename);
+        File indexFile = ImzMLSidecarIndex.getIndexFile(filename);
+
+        ImzMLSidecarIndex.parseimzML(filename).close();
+        assertTrue(ImzMLSidecarIndex.isUpToDate(indexFile, imzMLFile, ibdFile));
+
+        ImzML reopened = ImzMLSidecarIndex.open(filename, indexFile, BinaryDataStorage.AccessMode.RANDOM_ACCESS_FILE, null);
+        ImzML rebuilt = null;
+
+        try {
+            assertNotNull("Failed to reopen using the index", reopened);
+
+            assertTrue(ibdFile.setLastModified(ibdFile.lastModified() - 10000));
+            assertFalse(ImzMLSidecarIndex.isUpToDate(indexFile, imzMLFile, ibdFile));
+
+            // The index is replaced while the reopened imzML is still open
+            rebuilt = ImzMLSidecarIndex.parseimzML(filename);
+
+            assertTrue(ImzMLSidecarIndex.isUpToDate(indexFile, imzMLFile, ibdFile));
+            assertFalse(new File(indexFile.getPath() + ".tmp").exists());
+            assertEquals(20, rebuilt.getRun().getSpectrumList().size());
+            assertArrayEquals(reopened.getRun().getSpectrumList().getSpectrum(5).getIntensityArray(),
+                    rebuilt.getRun().getSpectrumList().getSpectrum(5).getIntensityArray(), 0.0);
+        } finally {
+            if (reopened != null) {
+                reopened.close();
+            }
+
+            if (rebuilt != null) {
+                rebuilt.close();
+            }
+        }
+    }
+}
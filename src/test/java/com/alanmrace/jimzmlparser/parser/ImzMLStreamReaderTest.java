@@ -0,0 +1,222 @@
+package com.alanmrace.jimzmlparser.parser;
+
+import com.alanmrace.jimzmlparser.imzml.ImzML;
+import com.alanmrace.jimzmlparser.mzml.Spectrum;
+import com.alanmrace.jimzmlparser.mzml.SpectrumList;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ImzMLStreamReader.
+ */
+public class ImzMLStreamReaderTest {
+
+    /**
+     * Resource imzML file with 4 spectra for testing.
+     */
+    private static final String TEST_RESOURCE = "/MatrixTests_N2.imzML";
+
+    private static String getResourcePath() {
+        assertNotNull("Test file missing", ImzMLStreamReaderTest.class.getResource(TEST_RESOURCE));
+
+        return ImzMLStreamReaderTest.class.getResource(TEST_RESOURCE).getPath();
+    }
+
+    /**
+     * Count the file descriptors of this process open on the specified file.
+     */
+    private static int countOpenDescriptors(String filename) throws IOException {
+        File[] descriptors = new File("/proc/self/fd").listFiles();
+        Path path = new File(filename).getCanonicalFile().toPath();
+        int count = 0;
+
+        for (File descriptor : descriptors) {
+            try {
+                if (path.equals(Files.readSymbolicLink(descriptor.toPath()))) {
+                    count++;
+                }
+            } catch (IOException ex) {
+                // Descriptor closed while listing
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Test of spectra method, of class ImzMLStreamReader, checking that every
+     * spectrum is produced in order with the same ID, pixel location and data
+     * (loaded through its DataLocation) as from ImzMLHandler.
+     *
+     * @throws Exception Failed to parse the test file
+     */
+    @Test
+    public void testSpectra() throws Exception {
+        String filename = getResourcePath();
+        ImzML imzML = ImzMLHandler.parseimzML(filename);
+        ImzMLStreamReader reader = new ImzMLStreamReader(filename);
+
+        try {
+            SpectrumList expectedSpectra = imzML.getRun().getSpectrumList();
+
+            assertEquals(expectedSpectra.size(), reader.getDeclaredSpectrumCount());
+
+            Iterator<Spectrum> spectra = reader.spectra();
+            int count = 0;
+
+            while (spectra.hasNext()) {
+                Spectrum expected = expectedSpectra.getSpectrum(count);
+                Spectrum spectrum = spectra.next();
+
+                assertEquals(expected.getID(), spectrum.getID());
+                assertEquals(expected.getPixelLocation(), spectrum.getPixelLocation());
+                assertNotNull(spectrum.getBinaryDataArrayList().getIntensityArray().getDataLocation());
+                assertArrayEquals(expected.getmzArray(), spectrum.getmzArray(), 0.0);
+                assertArrayEquals(expected.getIntensityArray(), spectrum.getIntensityArray(), 0.0);
+
+                count++;
+            }
+
+            assertEquals(expectedSpectra.size(), count);
+
+            try {
+                spectra.next();
+                fail("Expected NoSuchElementException");
+            } catch (NoSuchElementException ex) {
+                // Expected
+            }
+        } finally {
+            reader.close();
+            reader.getimzML().close();
+            imzML.close();
+        }
+    }
+
+    /**
+     * Test of stream method, of class ImzMLStreamReader, and that the spectra
+     * can only be iterated over once.
+     *
+     * @throws Exception Failed to parse the test file
+     */
+    @Test
+    public void testStream() throws Exception {
+        ImzMLStreamReader reader = new ImzMLStreamReader(getResourcePath());
+
+        try {
+            List<String> ids = reader.stream().map(Spectrum::getID).collect(Collectors.toList());
+
+            assertEquals(reader.getDeclaredSpectrumCount(), ids.size());
+
+            try {
+                reader.spectra();
+                fail("Expected IllegalStateException");
+            } catch (IllegalStateException ex) {
+                // Expected
+            }
+        } finally {
+            reader.close();
+            reader.getimzML().close();
+        }
+    }
+
+    /**
+     * Test that spectra are not retained by the SpectrumList (or the reader) once
+     * they have been produced.
+     *
+     * @throws Exception Failed to parse the test file
+     */
+    @Test
+    public void testSpectraNotRetained() throws Exception {
+        ImzMLStreamReader reader = new ImzMLStreamReader(getResourcePath());
+
+        try {
+            List<WeakReference<Spectrum>> references = iterate(reader);
+
+            // The reader is kept reachable, so only references held by it or the
+            // ImzML would keep the spectra from being collected
+            for (int i = 0; i < 20 && !allCleared(references); i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+
+            assertEquals(reader.getDeclaredSpectrumCount(), references.size());
+            assertTrue("Spectra retained after iteration", allCleared(references));
+        } finally {
+            reader.close();
+            reader.getimzML().close();
+        }
+    }
+
+    /**
+     * Iterate over the spectra, checking that each is removed from the SpectrumList,
+     * and return weak references to the spectra.
+     */
+    private static List<WeakReference<Spectrum>> iterate(ImzMLStreamReader reader) {
+        SpectrumList spectrumList = reader.getimzML().getRun().getSpectrumList();
+        Iterator<Spectrum> spectra = reader.spectra();
+        List<WeakReference<Spectrum>> references = new ArrayList<WeakReference<Spectrum>>();
+
+        while (spectra.hasNext()) {
+            Spectrum spectrum = spectra.next();
+
+            assertEquals(0, spectrumList.size());
+            assertSame(spectrumList, spectrum.getParent());
+
+            references.add(new WeakReference<Spectrum>(spectrum));
+        }
+
+        return references;
+    }
+
+    private static boolean allCleared(List<WeakReference<Spectrum>> references) {
+        for (WeakReference<Spectrum> reference : references) {
+            if (reference.get() != null) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Test of close method, of class ImzMLStreamReader, checking that the imzML
+     * file is released, and that the IBD file remains open for the data of the
+     * spectra until the ImzML is closed.
+     *
+     * @throws Exception Failed to parse the test file
+     */
+    @Test
+    public void testClose() throws Exception {
+        Assume.assumeTrue(new File("/proc/self/fd").isDirectory());
+
+        String filename = getResourcePath();
+        String ibdFilename = ImzMLHandler.getIBDFile(filename).getPath();
+        int openBefore = countOpenDescriptors(filename);
+        int ibdOpenBefore = countOpenDescriptors(ibdFilename);
+
+        ImzMLStreamReader reader = new ImzMLStreamReader(filename);
+        Spectrum first = reader.spectra().next();
+
+        assertTrue(countOpenDescriptors(filename) > openBefore);
+
+        reader.close();
+
+        assertEquals(openBefore, countOpenDescriptors(filename));
+        assertTrue(first.getIntensityArray().length > 0);
+
+        reader.getimzML().close();
+
+        assertEquals(ibdOpenBefore, countOpenDescriptors(ibdFilename));
+    }
+}
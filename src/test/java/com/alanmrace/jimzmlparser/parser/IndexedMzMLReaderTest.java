@@ -0,0 +1,361 @@
+package com.alanmrace.jimzmlparser.parser;
+
+import com.alanmrace.jimzmlparser.mzml.MzML;
+import com.alanmrace.jimzmlparser.mzml.Spectrum;
+import com.alanmrace.jimzmlparser.mzml.SpectrumList;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.parsers.SAXParserFactory;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for IndexedMzMLReader.
+ */
+public class IndexedMzMLReaderTest {
+
+    /**
+     * Resource indexed mzML file for testing (from http://www.psidev.info/mzml_1_0_0%20).
+     */
+    private static final String TINY_PWIZ_RESOURCE = "/tiny.pwiz.1.1.mzML";
+
+    /**
+     * Resource indexed mzML file with 48 spectra for testing.
+     */
+    private static final String SMALL_MIAPE_RESOURCE = "/small_miape.pwiz.1.1.mzML";
+
+    /**
+     * Charset preserving each byte of the test files, so that offsets are unchanged.
+     */
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private static String getResourcePath(String resource) {
+        assertNotNull("Test file missing", IndexedMzMLReaderTest.class.getResource(resource));
+
+        return IndexedMzMLReaderTest.class.getResource(resource).getPath();
+    }
+
+    /**
+     * Create a modified copy of the test file.
+     */
+    private static File createModifiedCopy(String content) throws Exception {
+        File file = File.createTempFile("indexed", ".mzML");
+        file.deleteOnExit();
+
+        FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(content.getBytes(LATIN1));
+        } finally {
+            out.close();
+        }
+
+        return file;
+    }
+
+    private static String readResource(String resource) throws Exception {
+        return new String(Files.readAllBytes(new File(getResourcePath(resource)).toPath()), LATIN1);
+    }
+
+    /**
+     * Check that every spectrum of the reader, accessed by index and by ID, 
+     * matches the spectrum of the fully parsed file.
+     */
+    private static void assertSameSpectra(MzML mzML, IndexedMzMLReader reader) throws Exception {
+        SpectrumList spectrumList = mzML.getRun().getSpectrumList();
+
+        assertEquals(spectrumList.size(), reader.getSpectrumCount());
+
+        for (int i = 0; i < spectrumList.size(); i++) {
+            Spectrum expected = spectrumList.getSpectrum(i);
+            Spectrum spectrum = reader.getSpectrum(i);
+
+            assertEquals(expected.getID(), reader.getSpectrumID(i));
+            assertEquals(expected.getID(), spectrum.getID());
+            assertEquals(i, reader.getSpectrumIndex(expected.getID()));
+            assertArrayEquals(expected.getmzArray(), spectrum.getmzArray(), 0.0);
+            assertArrayEquals(expected.getIntensityArray(), spectrum.getIntensityArray(), 0.0);
+
+            Spectrum byID = reader.getSpectrum(expected.getID());
+
+            assertEquals(expected.getID(), byID.getID());
+            assertArrayEquals(expected.getIntensityArray(), byID.getIntensityArray(), 0.0);
+        }
+
+        assertNull(reader.getSpectrum("not a spectrum"));
+    }
+
+    private static String readString(FileChannel channel, long offset, int length) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.read(buffer, offset);
+
+        return new String(buffer.array(), 0, buffer.position(), Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Test of readIndexListOffset and parseIndex methods, of class IndexedMzMLReader,
+     * checking that each offset points to the corresponding tag.
+     *
+     * @throws Exception Failed to read the test file
+     */
+    @Test
+    public void testParseIndex() throws Exception {
+        assertNotNull("Test file missing", IndexedMzMLReaderTest.class.getResource(TINY_PWIZ_RESOURCE));
+
+        String resourcePath = IndexedMzMLReaderTest.class.getResource(TINY_PWIZ_RESOURCE).getPath();
+        RandomAccessFile raf = new RandomAccessFile(resourcePath, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+            long indexListOffset = IndexedMzMLReader.readIndexListOffset(channel);
+
+            assertEquals(24498, indexListOffset);
+            assertTrue(readString(channel, indexListOffset, 10).startsWith("<indexList"));
+
+            IndexedMzMLReader.OffsetIndex spectrumIndex = new IndexedMzMLReader.OffsetIndex();
+            IndexedMzMLReader.OffsetIndex chromatogramIndex = new IndexedMzMLReader.OffsetIndex();
+
+            IndexedMzMLReader.parseIndex(SAXParserFactory.newInstance().newSAXParser(), channel, indexListOffset, spectrumIndex, chromatogramIndex);
+
+            assertEquals(4, spectrumIndex.size());
+            assertEquals(2, chromatogramIndex.size());
+            assertEquals(1, spectrumIndex.indexOf("scan=20"));
+            assertEquals(-1, spectrumIndex.indexOf("scan=1"));
+            assertEquals("tic", chromatogramIndex.getID(0));
+            assertEquals(20654, chromatogramIndex.getOffset(0));
+
+            for (int i = 0; i < spectrumIndex.size(); i++) {
+                String tag = readString(channel, spectrumIndex.getOffset(i), 200);
+
+                assertTrue(tag, tag.startsWith("<spectrum "));
+                assertTrue(tag, tag.contains("id=\"" + spectrumIndex.getID(i) + "\""));
+            }
+
+            for (int i = 0; i < chromatogramIndex.size(); i++) {
+                assertTrue(readString(channel, chromatogramIndex.getOffset(i), 200).startsWith("<chromatogram "));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Test of the IndexedMzMLReader constructor with a file which is not indexed.
+     *
+     * @throws Exception Failed to create the test file
+     */
+    @Test
+    public void testReadIndexListOffsetNotIndexed() throws Exception {
+        java.io.File file = java.io.File.createTempFile("notindexed", ".mzML");
+        file.deleteOnExit();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            raf.write("<mzML><run></run></mzML>".getBytes("UTF-8"));
+
+            assertEquals(-1, IndexedMzMLReader.readIndexListOffset(raf.getChannel()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Test of getSpectrum methods, of class IndexedMzMLReader, checking that each 
+     * spectrum parsed on demand by index and by ID matches the spectrum from
+     * MzMLHandler.
+     *
+     * @throws Exception Failed to read the test file
+     */
+    @Test
+    public void testGetSpectrum() throws Exception {
+        String resourcePath = getResourcePath(SMALL_MIAPE_RESOURCE);
+        MzML mzML = MzMLHandler.parsemzML(resourcePath);
+        IndexedMzMLReader reader = new IndexedMzMLReader(resourcePath);
+
+        try {
+            assertEquals(2073321, reader.getIndexListOffset());
+            assertFalse(reader.isIndexRebuilt());
+            assertEquals(0, reader.getmzML().getRun().getSpectrumList().size());
+
+            assertSameSpectra(mzML, reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Test of setMetadataCacheSize method, of class IndexedMzMLReader, checking
+     * that parsed spectra are kept up to the cache size, evicting the least 
+     * recently accessed spectrum.
+     *
+     * @throws Exception Failed to read the test file
+     */
+    @Test
+    public void testMetadataCache() throws Exception {
+        IndexedMzMLReader reader = new IndexedMzMLReader(getResourcePath(SMALL_MIAPE_RESOURCE));
+
+        try {
+            // No cache by default, so each access parses the spectrum
+            assertEquals(0, reader.getMetadataCacheSize());
+            assertNotSame(reader.getSpectrum(0), reader.getSpectrum(0));
+
+            reader.setMetadataCacheSize(2);
+
+            Spectrum spectrum0 = reader.getSpectrum(0);
+            Spectrum spectrum1 = reader.getSpectrum(1);
+
+            assertSame(spectrum0, reader.getSpectrum(0));
+            assertSame(spectrum1, reader.getSpectrum(reader.getSpectrumID(1)));
+
+            // Spectrum 0 was accessed more recently than spectrum 1
+            reader.getSpectrum(0);
+            reader.getSpectrum(2);
+
+            assertSame(spectrum0, reader.getSpectrum(0));
+            assertNotSame(spectrum1, reader.getSpectrum(1));
+
+            reader.setMetadataCacheSize(0);
+
+            assertNotSame(spectrum0, reader.getSpectrum(0));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Test of the IndexedMzMLReader constructor with a file without the 
+     * {@literal <indexListOffset>} tag, checking that the index is rebuilt by 
+     * scanning the file.
+     *
+     * @throws Exception Failed to read or create the test files
+     */
+    @Test
+    public void testMissingIndexListOffset() throws Exception {
+        String content = readResource(SMALL_MIAPE_RESOURCE);
+        File file = createModifiedCopy(content.replaceAll("<indexListOffset>\\d+</indexListOffset>", ""));
+
+        MzML mzML = MzMLHandler.parsemzML(getResourcePath(SMALL_MIAPE_RESOURCE));
+        IndexedMzMLReader reader = new IndexedMzMLReader(file.getPath());
+
+        try {
+            assertEquals(-1, reader.getIndexListOffset());
+            assertTrue(reader.isIndexRebuilt());
+            assertEquals(countMatches(content, "<chromatogram "), reader.getChromatogramCount());
+
+            assertSameSpectra(mzML, reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Test of the IndexedMzMLReader constructor with a file where the 
+     * {@literal <indexListOffset>} does not point to the index, checking that the
+     * index is rebuilt by scanning the file.
+     *
+     * @throws Exception Failed to read or create the test files
+     */
+    @Test
+    public void testWrongIndexListOffset() throws Exception {
+        String content = readResource(SMALL_MIAPE_RESOURCE);
+        File file = createModifiedCopy(content.replace("<indexListOffset>2073321</indexListOffset>", "<indexListOffset>1073321</indexListOffset>"));
+
+        MzML mzML = MzMLHandler.parsemzML(getResourcePath(SMALL_MIAPE_RESOURCE));
+        IndexedMzMLReader reader = new IndexedMzMLReader(file.getPath());
+
+        try {
+            assertTrue(reader.isIndexRebuilt());
+
+            assertSameSpectra(mzML, reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Test of getSpectrum method, of class IndexedMzMLReader, with an index where
+     * the offset of one spectrum is wrong, checking that the index is rebuilt when
+     * the spectrum is accessed.
+     *
+     * @throws Exception Failed to read or create the test files
+     */
+    @Test
+    public void testWrongSpectrumOffset() throws Exception {
+        String content = readResource(SMALL_MIAPE_RESOURCE);
+        File file = createModifiedCopy(content.replace("scan=5\">274113</offset>", "scan=5\">286995</offset>"));
+
+        MzML mzML = MzMLHandler.parsemzML(getResourcePath(SMALL_MIAPE_RESOURCE));
+        IndexedMzMLReader reader = new IndexedMzMLReader(file.getPath());
+
+        try {
+            assertFalse(reader.isIndexRebuilt());
+            assertEquals(286995, reader.getSpectrumOffset(4));
+
+            Spectrum spectrum = reader.getSpectrum(4);
+
+            assertTrue(reader.isIndexRebuilt());
+            assertEquals("controllerType=0 controllerNumber=1 scan=5", spectrum.getID());
+            assertEquals(274113, reader.getSpectrumOffset(4));
+
+            assertSameSpectra(mzML, reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Test of scanIndex method, of class IndexedMzMLReader, checking that the
+     * offsets found match the index in the file.
+     *
+     * @throws Exception Failed to read the test file
+     */
+    @Test
+    public void testScanIndex() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(getResourcePath(SMALL_MIAPE_RESOURCE), "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+            IndexedMzMLReader.OffsetIndex spectrumIndex = new IndexedMzMLReader.OffsetIndex();
+            IndexedMzMLReader.OffsetIndex chromatogramIndex = new IndexedMzMLReader.OffsetIndex();
+            IndexedMzMLReader.OffsetIndex scannedSpectrumIndex = new IndexedMzMLReader.OffsetIndex();
+            IndexedMzMLReader.OffsetIndex scannedChromatogramIndex = new IndexedMzMLReader.OffsetIndex();
+
+            IndexedMzMLReader.parseIndex(SAXParserFactory.newInstance().newSAXParser(), channel, 2073321, spectrumIndex, chromatogramIndex);
+
+            assertEquals(2073321, IndexedMzMLReader.scanIndex(channel, scannedSpectrumIndex, scannedChromatogramIndex));
+            assertEquals(spectrumIndex.size(), scannedSpectrumIndex.size());
+            assertEquals(chromatogramIndex.size(), scannedChromatogramIndex.size());
+
+            for (int i = 0; i < spectrumIndex.size(); i++) {
+                assertEquals(spectrumIndex.getID(i), scannedSpectrumIndex.getID(i));
+                assertEquals(spectrumIndex.getOffset(i), scannedSpectrumIndex.getOffset(i));
+            }
+
+            for (int i = 0; i < chromatogramIndex.size(); i++) {
+                assertEquals(chromatogramIndex.getID(i), scannedChromatogramIndex.getID(i));
+                assertEquals(chromatogramIndex.getOffset(i), scannedChromatogramIndex.getOffset(i));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int countMatches(String content, String pattern) {
+        Matcher matcher = Pattern.compile(Pattern.quote(pattern)).matcher(content);
+        int count = 0;
+
+        while (matcher.find()) {
+            count++;
+        }
+
+        return count;
+    }
+}
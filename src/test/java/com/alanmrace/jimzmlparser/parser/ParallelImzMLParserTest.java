@@ -0,0 +1,268 @@
+package com.alanmrace.jimzmlparser.parser;
+
+import com.alanmrace.jimzmlparser.data.BinaryDataStorage;
+import com.alanmrace.jimzmlparser.exceptions.Issue;
+import com.alanmrace.jimzmlparser.imzml.ImzML;
+import com.alanmrace.jimzmlparser.mzml.Scan;
+import com.alanmrace.jimzmlparser.mzml.Spectrum;
+import com.alanmrace.jimzmlparser.mzml.SpectrumList;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for ParallelImzMLParser.
+ */
+public class ParallelImzMLParserTest {
+
+    private static String readString(FileChannel channel, long offset, int length) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.read(buffer, offset);
+
+        return new String(buffer.array(), 0, buffer.position(), Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Test of findChunkBoundaries method, of class ParallelImzMLParser, with
+     * spectra larger than the search buffer, checking that each chunk starts at
+     * a spectrum and the last boundary is the end of the spectrumList.
+     *
+     * @throws Exception Failed to create the test file
+     */
+    @Test
+    public void testFindChunkBoundaries() throws Exception {
+        File file = File.createTempFile("chunks", ".imzML");
+        file.deleteOnExit();
+
+        StringBuilder padding = new StringBuilder();
+
+        for (int i = 0; i < 30000; i++) {
+            padding.append("<a/>");
+        }
+
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<mzML><run><spectrumList count=\"6\">\n");
+
+        for (int i = 0; i < 6; i++) {
+            xml.append("<spectrum id=\"s").append(i).append("\">").append(padding).append("</spectrum>\n");
+        }
+
+        xml.append("</spectrumList></run></mzML>\n");
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            raf.write(xml.toString().getBytes("UTF-8"));
+
+            FileChannel channel = raf.getChannel();
+            long[] boundaries = ParallelImzMLParser.findChunkBoundaries(channel, 3);
+
+            assertEquals(4, boundaries.length);
+            assertEquals(xml.indexOf("<spectrum "), boundaries[0]);
+            assertEquals(xml.indexOf("</spectrumList>"), boundaries[3]);
+
+            for (int i = 0; i < boundaries.length - 1; i++) {
+                assertTrue(boundaries[i] < boundaries[i + 1]);
+                assertTrue(readString(channel, boundaries[i], 10).startsWith("<spectrum "));
+            }
+
+            boundaries = ParallelImzMLParser.findChunkBoundaries(channel, 20);
+
+            assertEquals(7, boundaries.length);
+            assertEquals(xml.indexOf("<spectrum id=\"s5\""), boundaries[5]);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Test of findChunkBoundaries method, of class ParallelImzMLParser, with an
+     * empty spectrumList.
+     *
+     * @throws Exception Failed to create the test file
+     */
+    @Test
+    public void testFindChunkBoundariesNoSpectra() throws Exception {
+        File file = File.createTempFile("nospectra", ".imzML");
+        file.deleteOnExit();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            raf.write("<mzML><run><spectrumList count=\"0\"></spectrumList></run></mzML>".getBytes("UTF-8"));
+
+            assertNull(ParallelImzMLParser.findChunkBoundaries(raf.getChannel(), 4));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Resource imzML file with 4 spectra, used as templates for the spectra of
+     * the generated multi-chunk file.
+     */
+    private static final String TEST_RESOURCE = "/MatrixTests_N2.imzML";
+
+    /**
+     * Number of spectra in the generated multi-chunk file.
+     */
+    private static final int NUMBER_OF_SPECTRA = 200;
+
+    /**
+     * Create an imzML file (with a copy of the IBD file) containing spectra
+     * repeated from MatrixTests_N2.imzML with unique IDs and pixel locations.
+     * Every third spectrum has its spectrum and scan window parameters inline, so
+     * that the chunks add ReferenceableParamGroups while parsing, and every
+     * seventh spectrum refers to a missing ReferenceableParamGroup, so that
+     * issues are reported.
+     */
+    private static File createMultiChunkFile() throws Exception {
+        assertNotNull("Test file missing", ParallelImzMLParserTest.class.getResource(TEST_RESOURCE));
+
+        File resource = new File(ParallelImzMLParserTest.class.getResource(TEST_RESOURCE).getPath());
+        String xml = new String(Files.readAllBytes(resource.toPath()), "UTF-8");
+
+        int spectraStart = xml.indexOf("<spectrum ");
+        int spectraEnd = xml.indexOf("</spectrumList>");
+
+        List<String> templates = new ArrayList<String>();
+
+        for (int start = spectraStart; start >= 0 && start < spectraEnd; start = xml.indexOf("<spectrum ", start + 1)) {
+            templates.add(xml.substring(start, xml.indexOf("</spectrum>", start) + "</spectrum>".length()));
+        }
+
+        StringBuilder imzML = new StringBuilder(xml.substring(0, spectraStart).replace("<spectrumList count=\"4\"", "<spectrumList count=\"" + NUMBER_OF_SPECTRA + "\""));
+
+        for (int i = 0; i < NUMBER_OF_SPECTRA; i++) {
+            int sample = i % templates.size() + 1;
+            String spectrum = templates.get(i % templates.size())
+                    .replaceFirst("id=\"[^\"]*\" index=\"[0-9]*\"", "id=\"spectrum=" + i + "\" index=\"" + i + "\"")
+                    .replaceFirst("name=\"position x\" value=\"[0-9]*\"", "name=\"position x\" value=\"" + (i % 20 + 1) + "\"")
+                    .replaceFirst("name=\"position y\" value=\"[0-9]*\"", "name=\"position y\" value=\"" + (i / 20 + 1) + "\"");
+
+            if (i % 3 == 0) {
+                spectrum = spectrum.replace("<referenceableParamGroupRef ref=\"sample" + sample + "experiment1SpectrumParams\"/>",
+                        getGroupContent(xml, "sample" + sample + "experiment1SpectrumParams"))
+                        .replace("<referenceableParamGroupRef ref=\"sample" + sample + "experiment1ScanWindowParams\"/>",
+                                getGroupContent(xml, "sample" + sample + "experiment1ScanWindowParams"));
+            }
+
+            if (i % 7 == 0) {
+                spectrum = spectrum.replaceFirst("<scanList ", "<referenceableParamGroupRef ref=\"missingGroup" + i + "\"/>\n        <scanList ");
+            }
+
+            imzML.append(spectrum).append("\n      ");
+        }
+
+        imzML.append(xml.substring(spectraEnd));
+
+        File directory = Files.createTempDirectory("parallel").toFile();
+        directory.deleteOnExit();
+
+        File imzMLFile = new File(directory, "multichunk.imzML");
+        imzMLFile.deleteOnExit();
+        Files.write(imzMLFile.toPath(), imzML.toString().getBytes("UTF-8"));
+
+        File ibdFile = new File(directory, "multichunk.ibd");
+        ibdFile.deleteOnExit();
+        Files.copy(ImzMLHandler.getIBDFile(resource.getPath()).toPath(), ibdFile.toPath());
+
+        return imzMLFile;
+    }
+
+    private static String getGroupContent(String xml, String id) {
+        String groupStart = "<referenceableParamGroup id=\"" + id + "\">";
+        int start = xml.indexOf(groupStart) + groupStart.length();
+
+        return xml.substring(start, xml.indexOf("</referenceableParamGroup>", start)).trim();
+    }
+
+    /**
+     * Test of parseimzML method, of class ParallelImzMLParser, with a file split
+     * into multiple chunks, checking that the spectra (in order, with their pixel
+     * locations, parameters and data) and the issues are the same as from
+     * ImzMLHandler.
+     *
+     * @throws Exception Failed to create or parse the test file
+     */
+    @Test
+    public void testParseimzML() throws Exception {
+        File file = createMultiChunkFile();
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            assertTrue(ParallelImzMLParser.findChunkBoundaries(raf.getChannel(), pool.getParallelism() * ParallelImzMLParser.CHUNKS_PER_THREAD).length > 2);
+        } finally {
+            raf.close();
+        }
+
+        final List<Issue> expectedIssues = new ArrayList<Issue>();
+        final List<Issue> issues = new ArrayList<Issue>();
+
+        ImzML expected = ImzMLHandler.parseimzML(file.getPath(), true, BinaryDataStorage.AccessMode.RANDOM_ACCESS_FILE, new ParserListener() {
+            @Override
+            public void issueFound(Issue issue) {
+                expectedIssues.add(issue);
+            }
+        });
+
+        ImzML imzML = null;
+
+        try {
+            imzML = ParallelImzMLParser.parseimzML(file.getPath(), BinaryDataStorage.AccessMode.RANDOM_ACCESS_FILE, new ParserListener() {
+                @Override
+                public void issueFound(Issue issue) {
+                    issues.add(issue);
+                }
+            }, pool);
+
+            SpectrumList expectedSpectra = expected.getRun().getSpectrumList();
+            SpectrumList spectra = imzML.getRun().getSpectrumList();
+
+            assertEquals(NUMBER_OF_SPECTRA, expectedSpectra.size());
+            assertEquals(expectedSpectra.size(), spectra.size());
+
+            for (int i = 0; i < spectra.size(); i++) {
+                Spectrum expectedSpectrum = expectedSpectra.getSpectrum(i);
+                Spectrum spectrum = spectra.getSpectrum(i);
+
+                assertEquals(expectedSpectrum.getID(), spectrum.getID());
+                assertEquals(expectedSpectrum.getPixelLocation(), spectrum.getPixelLocation());
+                assertEquals(expectedSpectrum.getCVParamOrChild("MS:1000294").getTerm(), spectrum.getCVParamOrChild("MS:1000294").getTerm());
+                assertEquals(expectedSpectrum.getCVParamOrChild("MS:1000511").getValueAsString(), spectrum.getCVParamOrChild("MS:1000511").getValueAsString());
+
+                Scan expectedScan = expectedSpectrum.getScanList().getScan(0);
+                Scan scan = spectrum.getScanList().getScan(0);
+
+                assertEquals(expectedScan.getScanWindowList().get(0).getCVParamOrChild("MS:1000501").getValueAsDouble(),
+                        scan.getScanWindowList().get(0).getCVParamOrChild("MS:1000501").getValueAsDouble(), 0.0);
+                assertArrayEquals(expectedSpectrum.getmzArray(), spectrum.getmzArray(), 0.0);
+                assertArrayEquals(expectedSpectrum.getIntensityArray(), spectrum.getIntensityArray(), 0.0);
+            }
+
+            assertTrue(expectedIssues.size() >= (NUMBER_OF_SPECTRA + 6) / 7);
+            assertEquals(expectedIssues.size(), issues.size());
+
+            for (int i = 0; i < issues.size(); i++) {
+                assertEquals(expectedIssues.get(i).getIssueTitle(), issues.get(i).getIssueTitle());
+                assertEquals(expectedIssues.get(i).getIssueMessage(), issues.get(i).getIssueMessage());
+            }
+        } finally {
+            pool.shutdown();
+            expected.close();
+
+            if (imzML != null) {
+                imzML.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.alanmrace.jimzmlparser.writer;
+
+import com.alanmrace.jimzmlparser.data.DataTransformation;
+import com.alanmrace.jimzmlparser.data.DataTypeTransform;
+import com.alanmrace.jimzmlparser.data.ZstdDataTransform;
+import com.alanmrace.jimzmlparser.mzml.BinaryDataArray.CompressionType;
+import com.alanmrace.jimzmlparser.writer.AdaptiveCompression.Candidate;
+import com.alanmrace.jimzmlparser.writer.AdaptiveCompression.Objective;
+import com.alanmrace.jimzmlparser.writer.AdaptiveCompression.Result;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AdaptiveCompressionTest {
+
+    /**
+     * Factory creating transformations without the ontology, supporting only no
+     * compression and Zstd compression.
+     */
+    private static final AdaptiveCompression.TransformationFactory FACTORY = new AdaptiveCompression.TransformationFactory() {
+        @Override
+        public DataTransformation createTransformation(Candidate candidate, double[] data) {
+            DataTransformation transformation = new DataTransformation();
+            transformation.addTransform(new DataTypeTransform(DataTypeTransform.DataType.DOUBLE, DataTypeTransform.DataType.DOUBLE));
+
+            switch (candidate.getCompressionType()) {
+                case NONE:
+                    break;
+                case ZSTD:
+                    transformation.addTransform(new ZstdDataTransform(data.length * 8, candidate.getCompressionLevel()));
+                    break;
+                default:
+                    throw new UnsupportedOperationException("Unsupported candidate " + candidate);
+            }
+
+            return transformation;
+        }
+    };
+
+    private static List<double[]> createSamples() {
+        List<double[]> samples = new ArrayList<double[]>();
+
+        for (int n = 0; n < 5; n++) {
+            double[] data = new double[2000];
+
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (i % 50 == 0) ? 100 + n : 0;
+            }
+
+            samples.add(data);
+        }
+
+        return samples;
+    }
+
+    /**
+     * Test of select method, of class AdaptiveCompression, for the smallest size
+     * objective, checking that unsupported candidates are excluded.
+     */
+    @Test
+    public void testSelectSmallestSize() {
+        AdaptiveCompression adaptiveCompression = new AdaptiveCompression(Objective.SMALLEST_SIZE);
+        List<Candidate> candidates = Arrays.asList(new Candidate(CompressionType.NONE), new Candidate(CompressionType.XZ), new Candidate(CompressionType.ZSTD, 3));
+
+        List<Result> results = adaptiveCompression.evaluate(candidates, createSamples(), FACTORY);
+
+        assertEquals(2, results.size());
+
+        Result selected = results.get(0);
+
+        assertEquals(CompressionType.ZSTD, selected.getCandidate().getCompressionType());
+        assertEquals(3, selected.getCandidate().getCompressionLevel());
+        assertEquals(1.0, selected.getScore(), 1e-9);
+        assertEquals(5 * 2000 * 8, selected.getOriginalBytes());
+        assertTrue(selected.getCompressionRatio() > 10);
+
+        assertEquals(CompressionType.NONE, results.get(1).getCandidate().getCompressionType());
+        assertEquals(1.0, results.get(1).getCompressionRatio(), 1e-9);
+        assertTrue(results.get(1).getScore() > selected.getScore());
+    }
+
+    /**
+     * Test of select method, of class AdaptiveCompression, when no candidate succeeds.
+     */
+    @Test
+    public void testSelectNoCandidate() {
+        AdaptiveCompression adaptiveCompression = new AdaptiveCompression(Objective.WEIGHTED);
+
+        assertNull(adaptiveCompression.select(Arrays.asList(new Candidate(CompressionType.XZ)), createSamples(), FACTORY));
+    }
+
+    /**
+     * Test of getCandidates method, of class AdaptiveCompression.
+     */
+    @Test
+    public void testGetCandidates() {
+        AdaptiveCompression adaptiveCompression = new AdaptiveCompression(Objective.WEIGHTED);
+        int numLossless = adaptiveCompression.getCandidates(true).size();
+
+        adaptiveCompression.setIncludeLossy(true);
+
+        assertEquals(numLossless + 1, adaptiveCompression.getCandidates(true).size());
+        assertEquals(numLossless + 2, adaptiveCompression.getCandidates(false).size());
+
+        adaptiveCompression.setCandidates(Arrays.asList(new Candidate(CompressionType.LZ4)));
+
+        assertEquals(1, adaptiveCompression.getCandidates(true).size());
+        assertEquals(1, adaptiveCompression.getCandidates(false).size());
+    }
+
+    /**
+     * Test of setIncludeShuffle method, of class AdaptiveCompression, checking that
+     * shuffled compression types are only candidates when included.
+     */
+    @Test
+    public void testIncludeShuffle() {
+        AdaptiveCompression adaptiveCompression = new AdaptiveCompression(Objective.WEIGHTED);
+
+        assertFalse(adaptiveCompression.isIncludingShuffle());
+
+        for (Candidate candidate : adaptiveCompression.getCandidates(false)) {
+            assertNotEquals(CompressionType.SHUFFLE_LZ4, candidate.getCompressionType());
+            assertNotEquals(CompressionType.SHUFFLE_ZSTD, candidate.getCompressionType());
+        }
+
+        int numCandidates = adaptiveCompression.getCandidates(false).size();
+
+        adaptiveCompression.setIncludeShuffle(true);
+
+        List<CompressionType> compressionTypes = new ArrayList<CompressionType>();
+
+        for (Candidate candidate : adaptiveCompression.getCandidates(false)) {
+            compressionTypes.add(candidate.getCompressionType());
+        }
+
+        assertEquals(numCandidates + 2, compressionTypes.size());
+        assertTrue(compressionTypes.contains(CompressionType.SHUFFLE_LZ4));
+        assertTrue(compressionTypes.contains(CompressionType.SHUFFLE_ZSTD));
+    }
+
+    /**
+     * Test of setSizeWeight method, of class AdaptiveCompression, with an invalid weight.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetSizeWeightInvalid() {
+        new AdaptiveCompression(Objective.WEIGHTED).setSizeWeight(1.5);
+    }
+}